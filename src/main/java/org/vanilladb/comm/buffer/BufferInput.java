@@ -0,0 +1,169 @@
+package org.vanilladb.comm.buffer;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * A {@link DataInput} that reads from a range of a byte array. Each thread
+ * reuses its own input, so decoding a message does not allocate anything
+ * but the decoded objects.
+ */
+public class BufferInput implements DataInput {
+	
+	private static final ThreadLocal<BufferInput> inputs = new ThreadLocal<BufferInput>() {
+		@Override
+		protected BufferInput initialValue() {
+			return new BufferInput();
+		}
+	};
+	
+	/**
+	 * Opens an input of the current thread on the given range. It must be
+	 * closed after use. If the input of the thread is in use, a new one is
+	 * opened instead.
+	 * 
+	 * @param data the array
+	 * @param offset the start of the range
+	 * @param length the length of the range
+	 * @return the input
+	 */
+	public static BufferInput open(byte[] data, int offset, int length) {
+		BufferInput input = inputs.get();
+		if (input.data != null)
+			input = new BufferInput();
+		input.data = data;
+		input.position = offset;
+		input.limit = offset + length;
+		return input;
+	}
+	
+	// Null if the input is closed
+	private byte[] data;
+	private int position;
+	private int limit;
+	
+	private BufferInput() {
+	}
+	
+	public void close() {
+		data = null;
+	}
+	
+	private void require(int count) throws EOFException {
+		if (limit - position < count)
+			throw new EOFException();
+	}
+	
+	@Override
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+	
+	@Override
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		require(len);
+		System.arraycopy(data, position, b, off, len);
+		position += len;
+	}
+	
+	@Override
+	public int skipBytes(int n) {
+		int skipped = Math.max(0, Math.min(n, limit - position));
+		position += skipped;
+		return skipped;
+	}
+	
+	@Override
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+	
+	@Override
+	public byte readByte() throws IOException {
+		require(1);
+		return data[position++];
+	}
+	
+	@Override
+	public int readUnsignedByte() throws IOException {
+		return readByte() & 0xFF;
+	}
+	
+	@Override
+	public short readShort() throws IOException {
+		return (short) readUnsignedShort();
+	}
+	
+	@Override
+	public int readUnsignedShort() throws IOException {
+		require(2);
+		int v = ((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF);
+		position += 2;
+		return v;
+	}
+	
+	@Override
+	public char readChar() throws IOException {
+		return (char) readUnsignedShort();
+	}
+	
+	@Override
+	public int readInt() throws IOException {
+		require(4);
+		int v = ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16)
+				| ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+		position += 4;
+		return v;
+	}
+	
+	@Override
+	public long readLong() throws IOException {
+		long high = readInt() & 0xFFFFFFFFL;
+		long low = readInt() & 0xFFFFFFFFL;
+		return (high << 32) | low;
+	}
+	
+	@Override
+	public float readFloat() throws IOException {
+		return Float.intBitsToFloat(readInt());
+	}
+	
+	@Override
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+	
+	/**
+	 * Reads a line like {@link DataInputStream#readLine()}, which converts
+	 * each byte to a character. The line ends at a '\n', a '\r' or a
+	 * "\r\n".
+	 * 
+	 * @return the line without its terminator, or null at the end of the input
+	 */
+	@Override
+	public String readLine() {
+		if (position >= limit)
+			return null;
+		
+		StringBuilder line = new StringBuilder();
+		while (position < limit) {
+			int c = data[position++] & 0xFF;
+			if (c == '\n')
+				break;
+			if (c == '\r') {
+				if (position < limit && data[position] == '\n')
+					position++;
+				break;
+			}
+			line.append((char) c);
+		}
+		return line.toString();
+	}
+	
+	@Override
+	public String readUTF() throws IOException {
+		return DataInputStream.readUTF(this);
+	}
+}
@@ -0,0 +1,204 @@
+package org.vanilladb.comm.buffer;
+
+import java.io.DataOutput;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MsgBuffer;
+
+/**
+ * A {@link DataOutput} that writes into a heap buffer, which is replaced
+ * with a larger one when it is full. Each thread reuses its own output and
+ * its buffer, so encoding a message does not allocate anything once the
+ * buffer is large enough. The bytes are copied only once, when they are
+ * pushed to the message buffer.
+ */
+public class BufferOutput implements DataOutput {
+	
+	private static final int INITIAL_SIZE = 256;
+	// A thread does not keep a buffer larger than this after closing it
+	private static final int MAX_KEPT_SIZE = 1024 * 1024;
+	
+	private static final ThreadLocal<BufferOutput> outputs = new ThreadLocal<BufferOutput>() {
+		@Override
+		protected BufferOutput initialValue() {
+			return new BufferOutput();
+		}
+	};
+	
+	/**
+	 * Opens an empty output for the current thread. It must be closed after
+	 * use. If the output of the thread is in use (e.g. by an encoding that
+	 * encodes another message), a new one is opened instead.
+	 * 
+	 * @return the output
+	 */
+	public static BufferOutput open() {
+		BufferOutput output = outputs.get();
+		if (output.isOpen)
+			output = new BufferOutput();
+		output.isOpen = true;
+		return output;
+	}
+	
+	private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SIZE);
+	private boolean isOpen;
+	
+	private BufferOutput() {
+	}
+	
+	public int size() {
+		return buffer.position();
+	}
+	
+	/**
+	 * Pushes the written bytes to the message buffer with their length,
+	 * in the same format as {@link org.vanilladb.comm.codec.CodecRegistry#pushBytes}.
+	 * 
+	 * @param message the message buffer
+	 */
+	public void pushTo(Message message) {
+		MsgBuffer space = new MsgBuffer();
+		space.len = buffer.position();
+		message.push(space);
+		System.arraycopy(buffer.array(), 0, space.data, space.off, space.len);
+		buffer.clear();
+		message.pushInt(space.len);
+	}
+	
+	/**
+	 * Discards the written bytes, so that the thread can open the output
+	 * again.
+	 */
+	public void close() {
+		if (buffer.capacity() > MAX_KEPT_SIZE)
+			buffer = ByteBuffer.allocate(INITIAL_SIZE);
+		else
+			buffer.clear();
+		isOpen = false;
+	}
+	
+	private void ensureRemaining(int count) {
+		if (buffer.remaining() < count) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+					buffer.position() + count));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+	}
+	
+	@Override
+	public void write(int b) {
+		ensureRemaining(1);
+		buffer.put((byte) b);
+	}
+	
+	@Override
+	public void write(byte[] b) {
+		write(b, 0, b.length);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureRemaining(len);
+		buffer.put(b, off, len);
+	}
+	
+	@Override
+	public void writeBoolean(boolean v) {
+		write(v? 1 : 0);
+	}
+	
+	@Override
+	public void writeByte(int v) {
+		write(v);
+	}
+	
+	@Override
+	public void writeShort(int v) {
+		ensureRemaining(2);
+		buffer.putShort((short) v);
+	}
+	
+	@Override
+	public void writeChar(int v) {
+		ensureRemaining(2);
+		buffer.putChar((char) v);
+	}
+	
+	@Override
+	public void writeInt(int v) {
+		ensureRemaining(4);
+		buffer.putInt(v);
+	}
+	
+	@Override
+	public void writeLong(long v) {
+		ensureRemaining(8);
+		buffer.putLong(v);
+	}
+	
+	@Override
+	public void writeFloat(float v) {
+		ensureRemaining(4);
+		buffer.putFloat(v);
+	}
+	
+	@Override
+	public void writeDouble(double v) {
+		ensureRemaining(8);
+		buffer.putDouble(v);
+	}
+	
+	@Override
+	public void writeBytes(String s) {
+		ensureRemaining(s.length());
+		for (int i = 0; i < s.length(); i++)
+			buffer.put((byte) s.charAt(i));
+	}
+	
+	@Override
+	public void writeChars(String s) {
+		ensureRemaining(s.length() * 2);
+		for (int i = 0; i < s.length(); i++)
+			buffer.putChar(s.charAt(i));
+	}
+	
+	/**
+	 * Writes the string in the modified UTF-8 encoding, as
+	 * {@link java.io.DataOutputStream#writeUTF(String)} does.
+	 */
+	@Override
+	public void writeUTF(String s) throws UTFDataFormatException {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F)
+				length++;
+			else if (c > 0x07FF)
+				length += 3;
+			else
+				length += 2;
+		}
+		if (length > 65535)
+			throw new UTFDataFormatException("encoded string too long: " + length + " bytes");
+		
+		ensureRemaining(2 + length);
+		buffer.putShort((short) length);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				buffer.put((byte) c);
+			} else if (c > 0x07FF) {
+				buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			} else {
+				buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+}
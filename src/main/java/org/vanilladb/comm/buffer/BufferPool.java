@@ -0,0 +1,111 @@
+package org.vanilladb.comm.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers in size classes. The capacity of each
+ * class doubles that of the previous one, from MIN_BUFFER_SIZE up to
+ * MAX_BUFFER_SIZE. A buffer larger than that is allocated on the heap
+ * and never pooled.<br>
+ * <br>
+ * A buffer must be released once it is no longer used (e.g. after it
+ * has been written to a socket), and must not be touched after that.
+ */
+public class BufferPool {
+	
+	private static final int MIN_BUFFER_SIZE = Integer.getInteger(
+			BufferPool.class.getName() + ".MIN_BUFFER_SIZE", 256);
+	private static final int MAX_BUFFER_SIZE = Integer.getInteger(
+			BufferPool.class.getName() + ".MAX_BUFFER_SIZE", 1024 * 1024);
+	// The number of idle buffers that each size class can keep
+	private static final int MAX_IDLE_BUFFERS = Integer.getInteger(
+			BufferPool.class.getName() + ".MAX_IDLE_BUFFERS", 64);
+	
+	private static final int CLASS_COUNT = classOf(MAX_BUFFER_SIZE) + 1;
+	
+	/**
+	 * The idle buffers of a size class. The count is kept apart, since
+	 * the size of the queue takes linear time.
+	 */
+	private static class SizeClass {
+		Queue<ByteBuffer> idleBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		AtomicInteger idleCount = new AtomicInteger();
+	}
+	
+	private static final SizeClass[] sizeClasses = new SizeClass[CLASS_COUNT];
+	
+	static {
+		for (int i = 0; i < CLASS_COUNT; i++)
+			sizeClasses[i] = new SizeClass();
+	}
+	
+	/**
+	 * Gets a cleared buffer that can hold at least the given number of
+	 * bytes. Its capacity is that of the size class.
+	 * 
+	 * @param size the number of bytes
+	 * @return the buffer
+	 */
+	public static ByteBuffer acquire(int size) {
+		if (size > MAX_BUFFER_SIZE)
+			return ByteBuffer.allocate(size);
+		
+		int sizeClass = classOf(size);
+		ByteBuffer buffer = sizeClasses[sizeClass].idleBuffers.poll();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << sizeClass);
+		sizeClasses[sizeClass].idleCount.decrementAndGet();
+		return buffer;
+	}
+	
+	/**
+	 * Returns a buffer acquired from the pool. The buffers that do not
+	 * belong to any size class are left to the garbage collector.
+	 * 
+	 * @param buffer the buffer
+	 */
+	public static void release(ByteBuffer buffer) {
+		if (!buffer.isDirect() || buffer.capacity() > MAX_BUFFER_SIZE)
+			return;
+		
+		int sizeClass = classOf(buffer.capacity());
+		if (buffer.capacity() != MIN_BUFFER_SIZE << sizeClass)
+			return;
+		
+		if (sizeClasses[sizeClass].idleCount.incrementAndGet() > MAX_IDLE_BUFFERS) {
+			sizeClasses[sizeClass].idleCount.decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		sizeClasses[sizeClass].idleBuffers.offer(buffer);
+	}
+	
+	/**
+	 * Moves the content of a buffer in the writing mode into a larger one,
+	 * and releases the old buffer.
+	 * 
+	 * @param buffer the buffer in the writing mode
+	 * @param size the number of bytes the new buffer must hold at least
+	 * @return the new buffer in the writing mode
+	 */
+	public static ByteBuffer grow(ByteBuffer buffer, int size) {
+		ByteBuffer larger = acquire(size);
+		buffer.flip();
+		larger.put(buffer);
+		release(buffer);
+		return larger;
+	}
+	
+	/**
+	 * Finds the smallest size class whose buffers can hold the given
+	 * number of bytes.
+	 */
+	private static int classOf(int size) {
+		if (size <= MIN_BUFFER_SIZE)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_BUFFER_SIZE);
+	}
+}
@@ -1,11 +1,18 @@
 package org.vanilladb.comm.client;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.logging.log4j.core.config.Configurator;
+import org.vanilladb.comm.codec.CodecRegistry;
+import org.vanilladb.comm.codec.MessageCodec;
 import org.vanilladb.comm.process.ProcessList;
+import org.vanilladb.comm.protocols.coalescing.CoalescingLayer;
+import org.vanilladb.comm.protocols.compression.CompressionLayer;
+import org.vanilladb.comm.protocols.niotcp.NioTcpLayer;
 import org.vanilladb.comm.protocols.p2pappl.P2pApplicationLayer;
 import org.vanilladb.comm.protocols.p2pappl.P2pMessage;
 import org.vanilladb.comm.protocols.p2pappl.P2pMessageListener;
@@ -25,6 +32,19 @@ import net.sf.appia.protocols.tcpcomplete.TcpCompleteLayer;
 public class VanillaCommClient implements P2pMessageListener, Runnable {
 	private static Logger logger = Logger.getLogger(VanillaCommClient.class.getName());
 	
+	// If enabled, the client uses the NIO transport instead of TcpCompleteLayer
+	private static final boolean NIO_TRANSPORT;
+	
+	static {
+		// The settings can only be read after ProcessView
+		// has loaded the configuration file
+		if (ProcessView.SERVER_COUNT == 0)
+			throw new RuntimeException("There is no server in the view");
+		
+		NIO_TRANSPORT = Boolean.valueOf(System.getProperty(
+				VanillaCommClient.class.getName() + ".NIO_TRANSPORT", "false"));
+	}
+	
 	public static int getServerCount() {
 		return ProcessView.SERVER_COUNT;
 	}
@@ -33,6 +53,21 @@ public class VanillaCommClient implements P2pMessageListener, Runnable {
 		return ProcessView.CLIENT_COUNT;
 	}
 	
+	/**
+	 * Registers a codec that encodes the messages of the given class instead of
+	 * the Java serialization. It works like
+	 * {@link org.vanilladb.comm.server.VanillaCommServer#registerCodec}, and the
+	 * type ids must match the ones registered on the servers.
+	 * 
+	 * @param typeId the non-negative id that identifies the class
+	 * @param type the class of the messages
+	 * @param codec the codec for the messages
+	 */
+	public static <T extends Serializable> void registerCodec(int typeId, Class<T> type,
+			MessageCodec<? super T> codec) {
+		CodecRegistry.register(typeId, type, codec);
+	}
+	
 	private VanillaCommClientListener listener;
 	private Channel p2pChannel;
 
@@ -71,11 +106,17 @@ public class VanillaCommClient implements P2pMessageListener, Runnable {
 	private void setupP2pChannel(int globalSelfId) {
 		try {
 			ProcessList processList = ProcessView.buildAllProcessList(globalSelfId);
-			Layer[] layers = new Layer[] {
-				new TcpCompleteLayer(),
-				new P2pApplicationLayer(this, processList, true)
-			};
-			QoS qos = new QoS("P2P QoS", layers);
+			// Must match the P2P channel of the servers
+			List<Layer> layers = new ArrayList<Layer>();
+			layers.add(NIO_TRANSPORT? new NioTcpLayer() : new TcpCompleteLayer());
+			Layer coalescingLayer = CoalescingLayer.ifEnabled();
+			if (coalescingLayer != null)
+				layers.add(coalescingLayer);
+			Layer compressionLayer = CompressionLayer.forP2pChannel();
+			if (compressionLayer != null)
+				layers.add(compressionLayer);
+			layers.add(new P2pApplicationLayer(this, processList, true));
+			QoS qos = new QoS("P2P QoS", layers.toArray(new Layer[layers.size()]));
 			p2pChannel = qos.createUnboundChannel("P2P Channel");
 			p2pChannel.start();
 		} catch (AppiaInvalidQoSException e) {
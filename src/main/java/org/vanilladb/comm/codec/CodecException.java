@@ -0,0 +1,21 @@
+package org.vanilladb.comm.codec;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a message popped from a message buffer cannot be decoded,
+ * such as when no codec is registered for its type id on this process or
+ * its bytes are corrupted. The message should be dropped.
+ */
+public class CodecException extends IOException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public CodecException(String message) {
+		super(message);
+	}
+	
+	public CodecException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,286 @@
+package org.vanilladb.comm.codec;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.vanilladb.comm.buffer.BufferInput;
+import org.vanilladb.comm.buffer.BufferOutput;
+
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MessageException;
+import net.sf.appia.core.message.MsgBuffer;
+
+/**
+ * Keeps the registered {@link MessageCodec}s, and pushes the messages to
+ * the message buffers of the events and pops them back. A message is encoded
+ * in one of the following ways:
+ * <ul>
+ * <li>A byte array is copied into the buffer as it is, for the applications
+ * that have their own encodings.</li>
+ * <li>A message of a registered class is encoded by its codec and tagged
+ * with the type id of the codec.</li>
+ * <li>The other messages are serialized as objects.</li>
+ * </ul>
+ * The codecs must be registered with the same type ids on every process
+ * before the processes start. The negative type ids are reserved for the
+ * classes of VanillaComm, which are registered by the protocol layers that
+ * send them. A message that cannot be decoded fails the pop with a
+ * {@link CodecException}.
+ */
+public class CodecRegistry {
+	
+	private static final byte BYTES = 0;
+	private static final byte OBJECT = 1;
+	private static final byte CODEC = 2;
+	
+	private static class Entry {
+		int typeId;
+		Class<?> type;
+		MessageCodec<Object> codec;
+		
+		@SuppressWarnings("unchecked")
+		Entry(int typeId, Class<?> type, MessageCodec<?> codec) {
+			this.typeId = typeId;
+			this.type = type;
+			this.codec = (MessageCodec<Object>) codec;
+		}
+	}
+	
+	private static final Map<Class<?>, Entry> entriesByType =
+			new ConcurrentHashMap<Class<?>, Entry>();
+	private static final Map<Integer, Entry> entriesById =
+			new ConcurrentHashMap<Integer, Entry>();
+	
+	/**
+	 * Registers a codec for the messages of the given class. Only the messages
+	 * of exactly that class use the codec, not the ones of its subclasses.
+	 * 
+	 * @param typeId the id that identifies the class on every process, which
+	 *        must not be negative
+	 * @param type the class of the messages
+	 * @param codec the codec for the messages
+	 */
+	public static synchronized <T extends Serializable> void register(int typeId, Class<T> type,
+			MessageCodec<? super T> codec) {
+		if (typeId < 0)
+			throw new IllegalArgumentException("The negative type ids are reserved: " + typeId);
+		
+		checkUnregistered(typeId, type);
+		addEntry(new Entry(typeId, type, codec));
+	}
+	
+	/**
+	 * Registers a codec with a reserved type id for a class of VanillaComm.
+	 * A layer registers the codecs of the messages it sends when it is
+	 * created, so registering the same codec again does nothing.
+	 * 
+	 * @param typeId the negative id that identifies the class on every process
+	 * @param type the class of the messages
+	 * @param codec the codec for the messages
+	 */
+	public static synchronized <T extends Serializable> void registerReserved(int typeId,
+			Class<T> type, MessageCodec<? super T> codec) {
+		if (typeId >= 0)
+			throw new IllegalArgumentException("The reserved type ids are negative: " + typeId);
+		
+		Entry entry = entriesById.get(typeId);
+		if (entry != null && entry.type == type && entry.codec == codec)
+			return;
+		
+		checkUnregistered(typeId, type);
+		addEntry(new Entry(typeId, type, codec));
+	}
+	
+	
+	/**
+	 * Pushes a single message. The messages pushed one by one can be joined
+	 * and popped one by one.
+	 * 
+	 * @param buffer the message buffer
+	 * @param message the message
+	 */
+	public static void push(Message buffer, Serializable message) {
+		if (!pushEncoded(buffer, message)) {
+			buffer.pushObject(message);
+			buffer.pushByte(OBJECT);
+		}
+	}
+	
+	/**
+	 * Pops a single message pushed by {@link #push(Message, Serializable)}.
+	 * 
+	 * @param buffer the message buffer
+	 * @return the message
+	 * @throws CodecException if the message cannot be decoded
+	 */
+	public static Serializable pop(Message buffer) throws CodecException {
+		byte tag = buffer.popByte();
+		if (tag == OBJECT)
+			return popObject(buffer, Serializable.class);
+		return popEncoded(buffer, tag);
+	}
+	
+	/**
+	 * Pushes a group of messages. The messages that have to be serialized
+	 * are serialized together, since serializing them one by one costs much
+	 * more.
+	 * 
+	 * @param buffer the message buffer
+	 * @param messages the messages
+	 */
+	public static void pushAll(Message buffer, Serializable[] messages) {
+		List<Serializable> objects = new ArrayList<Serializable>();
+		for (int i = messages.length - 1; i >= 0; i--) {
+			if (!pushEncoded(buffer, messages[i])) {
+				objects.add(0, messages[i]);
+				buffer.pushByte(OBJECT);
+			}
+		}
+		if (!objects.isEmpty())
+			buffer.pushObject(objects.toArray(new Serializable[objects.size()]));
+		buffer.pushBoolean(!objects.isEmpty());
+		buffer.pushInt(messages.length);
+	}
+	
+	/**
+	 * Pops a group of messages pushed by {@link #pushAll(Message, Serializable[])}.
+	 * 
+	 * @param buffer the message buffer
+	 * @return the messages
+	 * @throws CodecException if some of the messages cannot be decoded
+	 */
+	public static Serializable[] popAll(Message buffer) throws CodecException {
+		Serializable[] messages = new Serializable[buffer.popInt()];
+		Serializable[] objects = null;
+		if (buffer.popBoolean())
+			objects = popObject(buffer, Serializable[].class);
+		
+		int objectIndex = 0;
+		for (int i = 0; i < messages.length; i++) {
+			byte tag = buffer.popByte();
+			if (tag == OBJECT) {
+				if (objects == null || objectIndex >= objects.length)
+					throw new CodecException("missing serialized messages");
+				messages[i] = objects[objectIndex++];
+			} else
+				messages[i] = popEncoded(buffer, tag);
+		}
+		return messages;
+	}
+	
+	private static void checkUnregistered(int typeId, Class<?> type) {
+		if (entriesById.containsKey(typeId))
+			throw new IllegalArgumentException("The type id has been registered: " + typeId);
+		if (entriesByType.containsKey(type))
+			throw new IllegalArgumentException("The class has been registered: " + type.getName());
+	}
+	
+	private static void addEntry(Entry entry) {
+		entriesById.put(entry.typeId, entry);
+		entriesByType.put(entry.type, entry);
+	}
+	
+	/**
+	 * Pushes the message with its tag if it does not need the Java
+	 * serialization.
+	 * 
+	 * @return false if the message has not been pushed
+	 */
+	private static boolean pushEncoded(Message buffer, Serializable message) {
+		if (message instanceof byte[]) {
+			pushBytes(buffer, (byte[]) message);
+			buffer.pushByte(BYTES);
+			return true;
+		}
+		
+		Entry entry = (message == null)? null : entriesByType.get(message.getClass());
+		if (entry == null)
+			return false;
+		
+		// Encode into the heap buffer of the thread, then copy it into the message
+		BufferOutput out = BufferOutput.open();
+		try {
+			entry.codec.encode(message, out);
+			out.pushTo(buffer);
+		} catch (IOException e) {
+			throw new RuntimeException("cannot encode a message of " + entry.type.getName(), e);
+		} finally {
+			out.close();
+		}
+		buffer.pushInt(entry.typeId);
+		buffer.pushByte(CODEC);
+		return true;
+	}
+	
+	private static <T> T popObject(Message buffer, Class<T> type) throws CodecException {
+		// Appia fails with a MessageException if the object cannot be deserialized
+		Object object;
+		try {
+			object = buffer.popObject();
+		} catch (MessageException e) {
+			throw new CodecException("cannot deserialize a message", e);
+		}
+		if (object != null && !type.isInstance(object))
+			throw new CodecException("not a message: " + object.getClass().getName());
+		return type.cast(object);
+	}
+	
+	private static Serializable popEncoded(Message buffer, byte tag) throws CodecException {
+		if (tag == BYTES)
+			return popBytes(buffer);
+		if (tag != CODEC)
+			throw new CodecException("unknown message tag " + tag);
+		
+		int typeId = buffer.popInt();
+		Entry entry = entriesById.get(typeId);
+		if (entry == null)
+			throw new CodecException("no codec is registered for type id " + typeId);
+		
+		MsgBuffer space = new MsgBuffer();
+		space.len = buffer.popInt();
+		buffer.pop(space);
+		BufferInput in = BufferInput.open(space.data, space.off, space.len);
+		try {
+			return (Serializable) entry.codec.decode(in);
+		} catch (IOException e) {
+			throw new CodecException("cannot decode a message of " + entry.type.getName(), e);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Pushes the bytes with their length, which is popped back by
+	 * {@link #popBytes(Message)}.
+	 * 
+	 * @param buffer the message buffer
+	 * @param bytes the bytes
+	 */
+	public static void pushBytes(Message buffer, byte[] bytes) {
+		// Reserve the space on top of the buffer, then copy the bytes into it.
+		// Appia does not give an array for an empty space.
+		if (bytes.length > 0) {
+			MsgBuffer space = new MsgBuffer();
+			space.len = bytes.length;
+			buffer.push(space);
+			System.arraycopy(bytes, 0, space.data, space.off, bytes.length);
+		}
+		buffer.pushInt(bytes.length);
+	}
+	
+	public static byte[] popBytes(Message buffer) {
+		int length = buffer.popInt();
+		byte[] bytes = new byte[length];
+		if (length > 0) {
+			MsgBuffer space = new MsgBuffer();
+			space.len = length;
+			buffer.pop(space);
+			System.arraycopy(space.data, space.off, bytes, 0, length);
+		}
+		return bytes;
+	}
+}
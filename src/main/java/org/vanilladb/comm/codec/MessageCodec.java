@@ -0,0 +1,21 @@
+package org.vanilladb.comm.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encodes the messages of a class into a compact binary form, which replaces
+ * the Java serialization for that class. A codec is registered with an integer
+ * type id through {@link CodecRegistry}, and the id is sent instead of the
+ * class descriptors.
+ * 
+ * @param <T> the class of the messages
+ */
+public interface MessageCodec<T> {
+	
+	void encode(T message, DataOutput out) throws IOException;
+	
+	T decode(DataInput in) throws IOException;
+	
+}
@@ -50,14 +50,21 @@ public class CommProcess implements Serializable {
 	private int id;
 	private InetSocketAddress address;
 	private boolean isSelf;
+	// An observer receives the total order messages but never votes
+	private boolean isObserver;
 	
 	// Machine States
 	private ProcessState state;
 
 	public CommProcess(InetSocketAddress addr, int id, boolean isSelf) {
+		this(addr, id, isSelf, false);
+	}
+
+	public CommProcess(InetSocketAddress addr, int id, boolean isSelf, boolean isObserver) {
 		this.address = addr;
 		this.id = id;
 		this.isSelf = isSelf;
+		this.isObserver = isObserver;
 		if (isSelf)
 			this.state = ProcessState.CORRECT;
 		else
@@ -73,6 +80,7 @@ public class CommProcess implements Serializable {
 		this.address = process.address;
 		this.id = process.id;
 		this.isSelf = process.isSelf;
+		this.isObserver = process.isObserver;
 		this.state = process.state;
 	}
 
@@ -103,6 +111,16 @@ public class CommProcess implements Serializable {
 		return isSelf;
 	}
 
+	/**
+	 * Check if the process is an observer, which receives the total order
+	 * messages but does not take part in voting or leader election.
+	 * 
+	 * @return true if it is an observer, false otherwise
+	 */
+	public boolean isObserver() {
+		return isObserver;
+	}
+
 	/**
 	 * @see java.lang.Object#equals(java.lang.Object)
 	 */
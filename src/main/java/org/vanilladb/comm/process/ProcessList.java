@@ -196,4 +196,18 @@ public class ProcessList implements Serializable {
     	}
     	return count;
     }
+    
+    /**
+     * Gets the number of correct processes that are not observers.
+     * 
+     * @return the number of correct voters
+     */
+    public int getCorrectVoterCount() {
+    	int count = 0;
+    	for (int id = 0; id < processes.length; id++) {
+    		if (processes[id].isCorrect() && !processes[id].isObserver())
+    			count++;
+    	}
+    	return count;
+    }
 }
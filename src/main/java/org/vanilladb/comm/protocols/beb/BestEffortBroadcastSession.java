@@ -1,5 +1,7 @@
 package org.vanilladb.comm.protocols.beb;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,15 +17,31 @@ import net.sf.appia.core.Direction;
 import net.sf.appia.core.Event;
 import net.sf.appia.core.Layer;
 import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
 
 /**
- * Best Effort Broadcast.
+ * Best Effort Broadcast.<br>
+ * <br>
+ * By default, the sender sends a broadcast to every other process by itself.
+ * If a relay fan-out is set, a broadcast is disseminated along a tree rooted
+ * at the sender instead, where each process forwards it to at most fan-out
+ * processes. The sender builds the tree from the processes it believes
+ * correct and attaches it to the broadcast, so that all the relays agree on
+ * the tree and the processes below a failed relay are reattached to the
+ * others once the sender detects the failure. The broadcasts on the fly
+ * through a failed relay may be lost, as with a failed sender, so only the
+ * {@link RelayableBroadcast} events, whose senders resend them, are relayed.
  * 
  * @author yslin
  */
 public class BestEffortBroadcastSession extends Session {
 	private static Logger logger = Logger.getLogger(BestEffortBroadcastSession.class.getName());
 	
+	// The number of processes to which a process forwards a broadcast.
+	// 0 means that the sender sends it to all the other processes.
+	private static final int RELAY_FAN_OUT = Integer.getInteger(
+			BestEffortBroadcastSession.class.getName() + ".RELAY_FAN_OUT", 0);
+	
 	private ProcessList processList;
 	
 	BestEffortBroadcastSession(Layer layer) {
@@ -94,22 +112,18 @@ public class BestEffortBroadcastSession extends Session {
 
 		try {
 			if (event.getDir() == Direction.DOWN) {
-				// Replicates the event to all other correct processes
-				for (int i = 0; i < processList.getSize(); i++) {
-					CommProcess process = processList.getProcess(i);
-					if (process.isCorrect() && !process.isSelf()) {
-						// Clone the event
-						Broadcast clonedEvent = (Broadcast) event.cloneEvent();
-						
-						// Setup the address
-						clonedEvent.setSourceSession(this);
-						clonedEvent.source = processList.getSelfProcess().getAddress();
-						clonedEvent.dest = process.getAddress();
-						
-						// GO!
-						clonedEvent.init();
-						clonedEvent.go();
+				if (isRelayed(event)) {
+					// Send the event to the children in a tree rooted at this process
+					relay(event, buildTree());
+				} else {
+					// Send the event to all other correct processes
+					List<Object> destinations = new ArrayList<Object>();
+					for (int i = 0; i < processList.getSize(); i++) {
+						CommProcess process = processList.getProcess(i);
+						if (process.isCorrect() && !process.isSelf())
+							destinations.add(process.getAddress());
 					}
+					multicast((Broadcast) event.cloneEvent(), destinations);
 				}
 				
 				// Send the event back to upper layers
@@ -120,6 +134,17 @@ public class BestEffortBroadcastSession extends Session {
 				event.init();
 				event.go();
 			} else {
+				if (isRelayed(event)) {
+					// Forward the event down the tree, then let the upper
+					// layers see the root as the sender
+					List<Integer> tree = new ArrayList<Integer>();
+					int treeSize = event.getMessage().popInt();
+					for (int i = 0; i < treeSize; i++)
+						tree.add(event.getMessage().popInt());
+					relay(event, tree);
+					event.source = processList.getProcess(tree.get(0)).getAddress();
+				}
+				
 				// Come from other processes, let the event continue
 				event.go();
 			}
@@ -129,4 +154,63 @@ public class BestEffortBroadcastSession extends Session {
 			e.printStackTrace();
 		}
 	}
+	
+	private boolean isRelayed(Broadcast event) {
+		return RELAY_FAN_OUT > 0 && event instanceof RelayableBroadcast;
+	}
+	
+	private List<Integer> buildTree() {
+		// Line up this process and the correct processes after it. The children
+		// of the i-th process are the (i * fan-out + 1)-th to the
+		// (i * fan-out + fan-out)-th processes.
+		List<Integer> tree = new ArrayList<Integer>();
+		for (int i = 0; i < processList.getSize(); i++) {
+			CommProcess process = processList.getProcess(
+					(processList.getSelfId() + i) % processList.getSize());
+			if (process.isSelf() || process.isCorrect())
+				tree.add(process.getId());
+		}
+		return tree;
+	}
+	
+	private void relay(Broadcast event, List<Integer> tree)
+			throws AppiaEventException, CloneNotSupportedException {
+		int position = tree.indexOf(processList.getSelfId());
+		if (position < 0)
+			return;
+		
+		int first = position * RELAY_FAN_OUT + 1;
+		int last = Math.min(position * RELAY_FAN_OUT + RELAY_FAN_OUT, tree.size() - 1);
+		List<Object> children = new ArrayList<Object>();
+		for (int i = first; i <= last; i++)
+			children.add(processList.getProcess(tree.get(i)).getAddress());
+		
+		// Clone the event and attach the tree
+		Broadcast clonedEvent = (Broadcast) event.cloneEvent();
+		for (int j = tree.size() - 1; j >= 0; j--)
+			clonedEvent.getMessage().pushInt(tree.get(j));
+		clonedEvent.getMessage().pushInt(tree.size());
+		multicast(clonedEvent, children);
+	}
+	
+	/**
+	 * Sends a single event to all the given processes. The TCP layer encodes
+	 * the event once and writes the same frame to every destination, instead
+	 * of encoding a clone for each of them.
+	 */
+	private void multicast(Broadcast event, List<Object> destinations)
+			throws AppiaEventException {
+		if (destinations.isEmpty())
+			return;
+		
+		// Setup the addresses
+		event.setDir(Direction.DOWN);
+		event.setSourceSession(this);
+		event.source = processList.getSelfProcess().getAddress();
+		event.dest = new AppiaMulticast(null, destinations.toArray());
+		
+		// GO!
+		event.init();
+		event.go();
+	}
 }
@@ -0,0 +1,11 @@
+package org.vanilladb.comm.protocols.beb;
+
+/**
+ * Implemented by the {@link Broadcast} events that may be disseminated along
+ * a relay tree. A broadcast relayed through a failed process is lost, so only
+ * the events whose senders send them again in that case should implement it.
+ * The others are always sent to every process by the sender.
+ */
+public interface RelayableBroadcast {
+
+}
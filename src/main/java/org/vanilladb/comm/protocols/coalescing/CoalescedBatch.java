@@ -0,0 +1,25 @@
+package org.vanilladb.comm.protocols.coalescing;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * The events sent to the same destination in a dispatch round, which are
+ * packed into a single message and split again on the other side.
+ */
+public class CoalescedBatch extends SendableEvent {
+	
+	// We must provide a public constructor for TcpCompleteSession
+	// in order to reconstruct this on the other side
+	public CoalescedBatch() {
+		super();
+	}
+	
+	public CoalescedBatch(Channel channel, Session source)
+			throws AppiaEventException {
+		super(channel, Direction.DOWN, source);
+	}
+}
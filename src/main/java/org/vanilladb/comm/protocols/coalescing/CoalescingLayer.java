@@ -0,0 +1,55 @@
+package org.vanilladb.comm.protocols.coalescing;
+
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.EchoEvent;
+
+/**
+ * A layer that coalesces the small events sent to the same destination
+ * into a batch. It should be placed right above the transport, and must be
+ * enabled on every process, since a process without it cannot split the
+ * batches.
+ */
+public class CoalescingLayer extends Layer {
+	
+	private static final boolean ENABLED = Boolean.valueOf(System.getProperty(
+			CoalescingLayer.class.getName() + ".ENABLED", "false"));
+	
+	/**
+	 * Creates the layer if write coalescing is enabled.
+	 * 
+	 * @return the layer, or null if write coalescing is disabled
+	 */
+	public static CoalescingLayer ifEnabled() {
+		if (!ENABLED)
+			return null;
+		return new CoalescingLayer();
+	}
+	
+	public CoalescingLayer() {
+		// Events that the protocol will create
+		evProvide = new Class[] {
+			CoalescedBatch.class,
+			EchoEvent.class,
+			FlushBatches.class,
+		};
+		
+		// Events that the protocol requires to work
+		// This is a subset of the accepted events
+		evRequire = new Class[] {
+			SendableEvent.class,
+		};
+		
+		// Events that the protocol will accept
+		evAccept = new Class[] {
+			SendableEvent.class,
+			FlushBatches.class,
+		};
+	}
+	
+	@Override
+	public Session createSession() {
+		return new CoalescingSession(this);
+	}
+}
@@ -0,0 +1,269 @@
+package org.vanilladb.comm.protocols.coalescing;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.EchoEvent;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MessageException;
+import net.sf.appia.core.message.MsgBuffer;
+
+/**
+ * Buffers the small outgoing events for each destination, and sends the
+ * buffered events of a destination as a single {@link CoalescedBatch} when
+ * they fill a batch or the current dispatch round ends. The end of a round
+ * is caught by an {@link EchoEvent}, which the channel bounces back as a
+ * {@link FlushBatches} after the events already scheduled.<br>
+ * <br>
+ * The large events are sent on their own after the events buffered for
+ * their destinations, so the events to a destination stay in order.
+ * A small broadcast is copied into the batch of each destination. An
+ * incoming batch that cannot be split is dropped.
+ */
+public class CoalescingSession extends Session {
+	private static Logger logger = Logger.getLogger(CoalescingSession.class.getName());
+	
+	// The events larger than this (in bytes) are not buffered
+	private static final int MAX_EVENT_SIZE = Integer.getInteger(
+			CoalescingSession.class.getName() + ".MAX_EVENT_SIZE", 4096);
+	// A batch is sent once its events reach this size (in bytes)
+	private static final int MAX_BATCH_SIZE = Integer.getInteger(
+			CoalescingSession.class.getName() + ".MAX_BATCH_SIZE", 65536);
+	
+	private static class Batch {
+		List<SendableEvent> events = new ArrayList<SendableEvent>();
+		int size;
+	}
+	
+	private Map<Object, Batch> batches = new LinkedHashMap<Object, Batch>();
+	private boolean flushScheduled;
+	private Map<String, Class<?>> eventTypes = new HashMap<String, Class<?>>();
+	
+	CoalescingSession(Layer layer) {
+		super(layer);
+	}
+	
+	@Override
+	public void handle(Event event) {
+		if (event instanceof FlushBatches)
+			handleFlushBatches();
+		else if (event instanceof CoalescedBatch)
+			handleCoalescedBatch((CoalescedBatch) event);
+		else if (event instanceof SendableEvent && event.getDir() == Direction.DOWN)
+			handleOutgoing((SendableEvent) event);
+		else {
+			// Let the event continue
+			try {
+				event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void handleOutgoing(SendableEvent event) {
+		Object[] destinations;
+		if (event.dest instanceof AppiaMulticast)
+			destinations = ((AppiaMulticast) event.dest).getDestinations();
+		else
+			destinations = new Object[] { event.dest };
+		
+		int size = event.getMessage().length();
+		boolean buffered = size <= MAX_EVENT_SIZE;
+		for (Object dest : destinations)
+			if (!(dest instanceof SocketAddress))
+				buffered = false;
+		
+		try {
+			if (!buffered) {
+				// Send the buffered events first to keep the order
+				for (Object dest : destinations)
+					sendBatch(dest, batches.remove(dest));
+				event.go();
+				return;
+			}
+			
+			if (event.dest instanceof AppiaMulticast) {
+				for (Object dest : destinations) {
+					SendableEvent copy = (SendableEvent) event.cloneEvent();
+					copy.dest = dest;
+					copy.setSourceSession(this);
+					copy.init();
+					buffer(dest, copy, size);
+				}
+			} else
+				buffer(event.dest, event, size);
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		} catch (CloneNotSupportedException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void buffer(Object dest, SendableEvent event, int size)
+			throws AppiaEventException {
+		Batch batch = batches.get(dest);
+		if (batch == null) {
+			batch = new Batch();
+			batches.put(dest, batch);
+		}
+		batch.events.add(event);
+		batch.size += size;
+		
+		if (batch.size >= MAX_BATCH_SIZE)
+			sendBatch(dest, batches.remove(dest));
+		else if (!flushScheduled) {
+			// The channel bounces the echo back after the scheduled events
+			new EchoEvent(new FlushBatches(), event.getChannel(),
+					Direction.DOWN, this).go();
+			flushScheduled = true;
+		}
+	}
+	
+	private void handleFlushBatches() {
+		flushScheduled = false;
+		try {
+			for (Map.Entry<Object, Batch> entry : batches.entrySet())
+				sendBatch(entry.getKey(), entry.getValue());
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+		batches.clear();
+	}
+	
+	private void sendBatch(Object dest, Batch batch) throws AppiaEventException {
+		if (batch == null)
+			return;
+		
+		// A single event does not need a batch
+		if (batch.events.size() == 1) {
+			batch.events.get(0).go();
+			return;
+		}
+		
+		List<String> typeNames = new ArrayList<String>();
+		short[] typeIndexes = new short[batch.events.size()];
+		for (int i = 0; i < typeIndexes.length; i++) {
+			String typeName = batch.events.get(i).getClass().getName();
+			int typeIndex = typeNames.indexOf(typeName);
+			if (typeIndex < 0) {
+				typeIndex = typeNames.size();
+				typeNames.add(typeName);
+			}
+			typeIndexes[i] = (short) typeIndex;
+		}
+		
+		// Join the messages with their headers from the last one, which
+		// links the blocks of the messages instead of copying them
+		Message message = new Message();
+		for (int i = typeIndexes.length - 1; i >= 0; i--) {
+			Message bufferedMessage = batch.events.get(i).getMessage();
+			bufferedMessage.pushInt(bufferedMessage.length());
+			bufferedMessage.pushShort(typeIndexes[i]);
+			bufferedMessage.join(message);
+			message = bufferedMessage;
+		}
+		for (int i = typeNames.size() - 1; i >= 0; i--)
+			message.pushString(typeNames.get(i));
+		message.pushShort((short) typeNames.size());
+		message.pushInt(typeIndexes.length);
+		
+		CoalescedBatch event = new CoalescedBatch(
+				batch.events.get(0).getChannel(), this);
+		event.setMessage(message);
+		event.dest = dest;
+		event.go();
+	}
+	
+	private void handleCoalescedBatch(CoalescedBatch batch) {
+		// Split the whole batch first, so a malformed one delivers nothing
+		try {
+			for (SendableEvent event : split(batch))
+				event.go();
+		} catch (ReflectiveOperationException | MessageException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Dropped a batch from " + batch.source +
+						" that cannot be split: " + e);
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private List<SendableEvent> split(CoalescedBatch batch)
+			throws ReflectiveOperationException, AppiaEventException {
+		Message message = batch.getMessage();
+		require(message, 6);
+		int eventCount = message.popInt();
+		int typeCount = message.popShort();
+		if (eventCount < 0 || typeCount < 0)
+			throw new MessageException("negative event or type count");
+		Class<?>[] types = new Class<?>[typeCount];
+		for (int i = 0; i < types.length; i++) {
+			require(message, 2);
+			require(message, 2 + message.peekUnsignedShort());
+			types[i] = getEventType(message.popString());
+		}
+		
+		List<SendableEvent> events = new ArrayList<SendableEvent>(
+				Math.min(eventCount, message.length()));
+		for (int i = 0; i < eventCount; i++) {
+			require(message, 6);
+			int typeIndex = message.popShort();
+			if (typeIndex < 0 || typeIndex >= types.length)
+				throw new MessageException("unknown type index " + typeIndex);
+			
+			// The message of the event is a view of the batch
+			MsgBuffer space = new MsgBuffer();
+			space.len = message.popInt();
+			if (space.len < 0 || space.len > message.length())
+				throw new MessageException("bad event length " + space.len);
+			message.pop(space);
+			
+			SendableEvent event = (SendableEvent) types[typeIndex]
+					.getDeclaredConstructor().newInstance();
+			event.setChannel(batch.getChannel());
+			event.setDir(Direction.UP);
+			event.setSourceSession(this);
+			event.source = batch.source;
+			event.dest = batch.dest;
+			event.setMessage(new Message(space.data, space.off, space.len));
+			event.init();
+			events.add(event);
+		}
+		return events;
+	}
+	
+	/**
+	 * Checks the length before popping, since popping past the end of
+	 * a message does not fail with a {@link MessageException}.
+	 */
+	private static void require(Message message, int length) {
+		if (message.length() < length)
+			throw new MessageException("the batch is truncated");
+	}
+	
+	private Class<?> getEventType(String typeName) throws ClassNotFoundException {
+		Class<?> type = eventTypes.get(typeName);
+		if (type == null) {
+			type = Class.forName(typeName);
+			// Only the events can be in a batch
+			if (!SendableEvent.class.isAssignableFrom(type))
+				throw new ClassNotFoundException("not a sendable event: " + typeName);
+			eventTypes.put(typeName, type);
+		}
+		return type;
+	}
+}
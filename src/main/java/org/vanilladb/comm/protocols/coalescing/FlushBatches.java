@@ -0,0 +1,17 @@
+package org.vanilladb.comm.protocols.coalescing;
+
+import net.sf.appia.core.Event;
+
+/**
+ * Echoed back by the channel once the events of the current dispatch
+ * round have been handled. It has the highest priority, so it is handled
+ * before the events waiting for the next round, such as the ones from
+ * the network.
+ */
+public class FlushBatches extends Event {
+	
+	public FlushBatches() {
+		super();
+		setPriority(MAX_PRIORITY);
+	}
+}
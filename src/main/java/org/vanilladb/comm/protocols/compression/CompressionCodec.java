@@ -0,0 +1,38 @@
+package org.vanilladb.comm.protocols.compression;
+
+import java.util.zip.Deflater;
+
+public enum CompressionCodec {
+	
+	/**
+	 * The messages are sent as they are. The compression layer is
+	 * not inserted into the channel.
+	 */
+	NONE(0),
+	
+	/**
+	 * DEFLATE at the fastest level, which suits the links that are
+	 * only slightly bandwidth-bound.
+	 */
+	DEFLATE_FAST(Deflater.BEST_SPEED),
+	
+	/**
+	 * DEFLATE at the default level.
+	 */
+	DEFLATE(Deflater.DEFAULT_COMPRESSION),
+	
+	/**
+	 * DEFLATE at the best level, which spends much more CPU time.
+	 */
+	DEFLATE_BEST(Deflater.BEST_COMPRESSION);
+	
+	private int level;
+	
+	private CompressionCodec(int level) {
+		this.level = level;
+	}
+	
+	int getLevel() {
+		return level;
+	}
+}
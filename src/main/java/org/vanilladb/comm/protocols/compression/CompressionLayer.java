@@ -0,0 +1,98 @@
+package org.vanilladb.comm.protocols.compression;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * A layer that compresses the large messages sent through a channel.
+ * It must be inserted at the same position of the channel on every
+ * process, so the codec of a channel must be the same everywhere.
+ */
+public class CompressionLayer extends Layer {
+	
+	private static final CompressionCodec ZAB_CODEC = CompressionCodec.valueOf(
+			System.getProperty(CompressionLayer.class.getName() + ".ZAB_CODEC",
+					CompressionCodec.NONE.name()));
+	private static final CompressionCodec P2P_CODEC = CompressionCodec.valueOf(
+			System.getProperty(CompressionLayer.class.getName() + ".P2P_CODEC",
+					CompressionCodec.NONE.name()));
+	// The preset dictionaries shared by all the processes (null if not set)
+	private static final byte[] ZAB_DICTIONARY = readDictionary(
+			System.getProperty(CompressionLayer.class.getName() + ".ZAB_DICTIONARY_FILE"));
+	private static final byte[] P2P_DICTIONARY = readDictionary(
+			System.getProperty(CompressionLayer.class.getName() + ".P2P_DICTIONARY_FILE"));
+	
+	/**
+	 * Creates the layer for a Zab channel.
+	 * 
+	 * @return the layer, or null if the Zab channels are not compressed
+	 */
+	public static CompressionLayer forZabChannel() {
+		if (ZAB_CODEC == CompressionCodec.NONE)
+			return null;
+		return new CompressionLayer(ZAB_CODEC, ZAB_DICTIONARY);
+	}
+	
+	/**
+	 * Creates the layer for a P2P channel.
+	 * 
+	 * @return the layer, or null if the P2P channels are not compressed
+	 */
+	public static CompressionLayer forP2pChannel() {
+		if (P2P_CODEC == CompressionCodec.NONE)
+			return null;
+		return new CompressionLayer(P2P_CODEC, P2P_DICTIONARY);
+	}
+	
+	private static byte[] readDictionary(String path) {
+		if (path == null || path.isEmpty())
+			return null;
+		try {
+			return Files.readAllBytes(Paths.get(path));
+		} catch (IOException e) {
+			throw new RuntimeException("cannot read the compression dictionary " + path, e);
+		}
+	}
+	
+	private CompressionCodec codec;
+	private byte[] dictionary;
+	
+	/**
+	 * Creates a layer that compresses the messages with the given codec.
+	 * 
+	 * @param codec the codec, which must not be {@link CompressionCodec#NONE}
+	 * @param dictionary the preset dictionary, or null if there is none
+	 */
+	public CompressionLayer(CompressionCodec codec, byte[] dictionary) {
+		if (codec == CompressionCodec.NONE)
+			throw new IllegalArgumentException("The codec of a compression layer cannot be NONE");
+		
+		this.codec = codec;
+		this.dictionary = dictionary;
+		
+		// Events that the protocol will create
+		evProvide = new Class[] {
+		};
+		
+		// Events that the protocol requires to work
+		// This is a subset of the accepted events
+		evRequire = new Class[] {
+			SendableEvent.class
+		};
+		
+		// Events that the protocol will accept
+		evAccept = new Class[] {
+			SendableEvent.class
+		};
+	}
+	
+	@Override
+	public Session createSession() {
+		return new CompressionSession(this, codec, dictionary);
+	}
+}
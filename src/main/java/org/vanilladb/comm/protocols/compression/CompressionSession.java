@@ -0,0 +1,139 @@
+package org.vanilladb.comm.protocols.compression;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MsgBuffer;
+
+/**
+ * Compresses the message of every outgoing event that reaches the size
+ * threshold, and decompresses the incoming ones. A message is tagged with
+ * a byte telling whether it is compressed, so a message that does not
+ * shrink is sent as it is. If the layer has a preset dictionary, the
+ * same dictionary must be given to the layer on every process.<br>
+ * <br>
+ * Since a broadcast goes down as a single event for all of its
+ * destinations, it is compressed only once. An incoming event that cannot
+ * be decompressed is dropped.
+ */
+public class CompressionSession extends Session {
+	private static Logger logger = Logger.getLogger(CompressionSession.class.getName());
+	
+	// The messages smaller than this (in bytes) are not compressed
+	private static final int THRESHOLD = Integer.getInteger(
+			CompressionSession.class.getName() + ".THRESHOLD", 4096);
+	
+	private static final byte RAW = 0;
+	private static final byte DEFLATED = 1;
+	
+	private byte[] dictionary;
+	// Only used by the Appia thread
+	private Deflater deflater;
+	private Inflater inflater = new Inflater();
+	
+	CompressionSession(Layer layer, CompressionCodec codec, byte[] dictionary) {
+		super(layer);
+		this.dictionary = dictionary;
+		this.deflater = new Deflater(codec.getLevel());
+	}
+	
+	@Override
+	public void handle(Event event) {
+		if (event instanceof SendableEvent) {
+			if (event.getDir() == Direction.DOWN)
+				compress((SendableEvent) event);
+			else if (!decompress((SendableEvent) event))
+				return;
+		}
+		
+		// Let the event continue
+		try {
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void compress(SendableEvent event) {
+		Message message = event.getMessage();
+		int length = message.length();
+		if (length >= THRESHOLD) {
+			byte[] raw = message.toByteArray();
+			deflater.reset();
+			if (dictionary != null)
+				deflater.setDictionary(dictionary);
+			deflater.setInput(raw);
+			deflater.finish();
+			
+			// Give up once the output is as large as the input
+			byte[] compressed = new byte[length];
+			int compressedLength = 0;
+			while (!deflater.finished() && compressedLength < compressed.length)
+				compressedLength += deflater.deflate(compressed, compressedLength,
+						compressed.length - compressedLength);
+			
+			if (deflater.finished() && compressedLength < length) {
+				message.setByteArray(compressed, 0, compressedLength);
+				message.pushInt(length);
+				message.pushByte(DEFLATED);
+				return;
+			}
+		}
+		message.pushByte(RAW);
+	}
+	
+	/**
+	 * Decompresses the message of the event if it is compressed.
+	 * 
+	 * @return false if the message is corrupted and the event should be dropped
+	 */
+	private boolean decompress(SendableEvent event) {
+		Message message = event.getMessage();
+		if (message.popByte() == RAW)
+			return true;
+		
+		int length = message.popInt();
+		MsgBuffer space = new MsgBuffer();
+		space.len = message.length();
+		message.pop(space);
+		inflater.reset();
+		inflater.setInput(space.data, space.off, space.len);
+		
+		byte[] raw;
+		int rawLength = 0;
+		try {
+			if (length < 0)
+				throw new DataFormatException("the original length is negative");
+			raw = new byte[length];
+			while (rawLength < length) {
+				int inflated = inflater.inflate(raw, rawLength, length - rawLength);
+				if (inflated == 0) {
+					if (!inflater.needsDictionary())
+						throw new DataFormatException("the compressed message is truncated");
+					if (dictionary == null)
+						throw new DataFormatException("the message needs a preset dictionary");
+					inflater.setDictionary(dictionary);
+				}
+				rawLength += inflated;
+			}
+		} catch (DataFormatException | IllegalArgumentException e) {
+			// An IllegalArgumentException means that the dictionary does not match
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Dropped a message from " + event.source +
+						" that cannot be decompressed: " + e);
+			return false;
+		}
+		message.setByteArray(raw, 0, length);
+		return true;
+	}
+}
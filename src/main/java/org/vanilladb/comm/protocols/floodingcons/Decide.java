@@ -1,5 +1,7 @@
 package org.vanilladb.comm.protocols.floodingcons;
 
+import org.vanilladb.comm.codec.CodecException;
+import org.vanilladb.comm.codec.CodecRegistry;
 import org.vanilladb.comm.protocols.beb.Broadcast;
 
 import net.sf.appia.core.AppiaEventException;
@@ -28,19 +30,19 @@ public class Decide extends Broadcast {
 		
 		// Push the data to the message buffer in order to send
 		// through network
-		getMessage().pushObject(value);
+		CodecRegistry.push(getMessage(), value);
 	}
 	
-	public Value getValue() {
+	public Value getValue() throws CodecException {
 		if (!isInitailized)
 			recoverData();
 		return value;
 	}
 	
-	private void recoverData() {
+	private void recoverData() throws CodecException {
 		// The data must be recovered from the message buffer
 		// after it is sent through the network.
-		value = (Value) getMessage().popObject();
+		value = (Value) CodecRegistry.pop(getMessage());
 		isInitailized = true;
 	}
 }
@@ -1,7 +1,10 @@
 package org.vanilladb.comm.protocols.floodingcons;
 
+import java.util.HashSet;
 import java.util.Set;
 
+import org.vanilladb.comm.codec.CodecException;
+import org.vanilladb.comm.codec.CodecRegistry;
 import org.vanilladb.comm.protocols.beb.Broadcast;
 
 import net.sf.appia.core.AppiaEventException;
@@ -34,25 +37,30 @@ public class Propose extends Broadcast {
 		// Push the data to the message buffer in order to send
 		// through network
 		getMessage().pushInt(roundId);
-		getMessage().pushObject(proposal);
+		for (Value value : proposal)
+			CodecRegistry.push(getMessage(), value);
+		getMessage().pushInt(proposal.size());
 	}
 	
-	public int getRoundId() {
+	public int getRoundId() throws CodecException {
 		if (!isInitailized)
 			recoverData();
 		return roundId;
 	}
 	
-	public Set<Value> getProposal() {
+	public Set<Value> getProposal() throws CodecException {
 		if (!isInitailized)
 			recoverData();
 		return proposal;
 	}
 	
-	private void recoverData() {
+	private void recoverData() throws CodecException {
 		// The data must be recovered from the message buffer
 		// after it is sent through the network.
-		proposal = (Set<Value>) getMessage().popObject();
+		int valueCount = getMessage().popInt();
+		proposal = new HashSet<Value>();
+		for (int i = 0; i < valueCount; i++)
+			proposal.add((Value) CodecRegistry.pop(getMessage()));
 		roundId = getMessage().popInt();
 		isInitailized = true;
 	}
@@ -0,0 +1,34 @@
+package org.vanilladb.comm.protocols.multicastbeb;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Session;
+
+/**
+ * Tells the upper layers that a process has skipped some broadcasts of a
+ * sender, since the sender no longer kept them for retransmission. It goes
+ * up on both the sender and the receiver, so that the protocols above can
+ * send the lost information again or ask for it.
+ */
+public class BroadcastsLost extends Event {
+	
+	private int senderId;
+	private int receiverId;
+	
+	public BroadcastsLost(Channel channel, Session src, int senderId, int receiverId)
+			throws AppiaEventException {
+		super(channel, Direction.UP, src);
+		this.senderId = senderId;
+		this.receiverId = receiverId;
+	}
+	
+	public int getSenderId() {
+		return senderId;
+	}
+	
+	public int getReceiverId() {
+		return receiverId;
+	}
+}
@@ -0,0 +1,29 @@
+package org.vanilladb.comm.protocols.multicastbeb;
+
+import java.net.SocketAddress;
+
+import net.sf.appia.core.Event;
+
+/**
+ * A datagram received by a {@link MulticastEndpoint}, which is handed over
+ * to the session in the Appia thread.
+ */
+public class DatagramReceived extends Event {
+	
+	private byte[] datagram;
+	private SocketAddress sender;
+	
+	public DatagramReceived(byte[] datagram, SocketAddress sender) {
+		super();
+		this.datagram = datagram;
+		this.sender = sender;
+	}
+	
+	public byte[] getDatagram() {
+		return datagram;
+	}
+	
+	public SocketAddress getSender() {
+		return sender;
+	}
+}
@@ -0,0 +1,50 @@
+package org.vanilladb.comm.protocols.multicastbeb;
+
+import org.vanilladb.comm.protocols.beb.Broadcast;
+import org.vanilladb.comm.protocols.events.ProcessListInit;
+import org.vanilladb.comm.protocols.tcpfd.FailureDetected;
+import org.vanilladb.comm.protocols.tcpfd.ProcessConnected;
+
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.channel.ChannelClose;
+
+/**
+ * Best Effort Broadcast over UDP multicast, which can replace
+ * BestEffortBroadcastLayer in a channel.
+ */
+public class MulticastBebLayer extends Layer {
+	
+	public MulticastBebLayer() {
+		// Events that the protocol will create
+		evProvide = new Class[] {
+			DatagramReceived.class,
+			NextRepair.class,
+			BroadcastsLost.class,
+		};
+		
+		// Events that the protocol requires to work
+		// This is a subset of the accepted events
+		evRequire = new Class[] {
+			ProcessListInit.class,
+			ProcessConnected.class,
+			Broadcast.class
+		};
+		
+		// Events that the protocol will accept
+		evAccept = new Class[] {
+			ProcessListInit.class,
+			ProcessConnected.class,
+			FailureDetected.class,
+			Broadcast.class,
+			DatagramReceived.class,
+			NextRepair.class,
+			ChannelClose.class,
+		};
+	}
+	
+	@Override
+	public Session createSession() {
+		return new MulticastBebSession(this);
+	}
+}
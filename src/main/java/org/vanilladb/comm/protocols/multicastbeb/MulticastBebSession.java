@@ -0,0 +1,690 @@
+package org.vanilladb.comm.protocols.multicastbeb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vanilladb.comm.process.CommProcess;
+import org.vanilladb.comm.process.ProcessList;
+import org.vanilladb.comm.process.ProcessState;
+import org.vanilladb.comm.protocols.beb.Broadcast;
+import org.vanilladb.comm.protocols.events.ProcessListInit;
+import org.vanilladb.comm.protocols.tcpfd.FailureDetected;
+import org.vanilladb.comm.protocols.tcpfd.ProcessConnected;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AppiaException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MsgBuffer;
+import net.sf.appia.core.message.MsgWalk;
+
+/**
+ * Best Effort Broadcast over UDP multicast. The sender multicasts a
+ * broadcast to the group once, instead of sending it to every other
+ * process over TCP, while the other events of the channel still go
+ * through the transport below.<br>
+ * <br>
+ * A broadcast is split into datagrams of at most {@code MAX_DATAGRAM_SIZE}
+ * bytes, which are numbered in a sequence of the sender. A receiver puts
+ * them back in order, and asks the sender for the missing ones with a NACK
+ * once it sees a gap, either from a later datagram or from the heartbeats
+ * that the sender multicasts every {@code REPAIR_INTERVAL} milliseconds
+ * for a while after it has sent something. The NACKs are repeated every
+ * interval until the gap is filled. The sender keeps its last
+ * {@code RETRANSMISSION_BUFFER_SIZE} datagrams for the retransmissions.
+ * If some of the requested ones have been dropped from the buffer, it
+ * tells the receiver to skip to the oldest broadcast it still has, and
+ * both of them raise a {@link BroadcastsLost}, so that the protocols above
+ * can make up for the lost broadcasts. A receiver also holds at most
+ * {@code RETRANSMISSION_BUFFER_SIZE} datagrams received after a gap, since
+ * the sender no longer keeps the missing ones once it has sent that many
+ * after them, so it skips the gap by itself when the buffer is full. Hence,
+ * a process delivers the broadcasts of a sender in the order they were
+ * sent.<br>
+ * <br>
+ * The sequence of a sender is tagged with an incarnation chosen at random
+ * when the session starts, so the receivers start over when the sender
+ * restarts. A receiver starts a stream from the first datagram or heartbeat
+ * it sees, so a process that joins later does not receive the broadcasts
+ * sent before it. The datagrams of a process detected failed are ignored
+ * until it connects again.<br>
+ * <br>
+ * If the process cannot join the group, it sends its broadcasts to the
+ * other processes through the transport below, as
+ * {@link org.vanilladb.comm.protocols.beb.BestEffortBroadcastSession} does,
+ * and the others deliver them as they come.
+ */
+public class MulticastBebSession extends Session {
+	private static Logger logger = Logger.getLogger(MulticastBebSession.class.getName());
+	
+	// The maximum size (in bytes) of a datagram
+	private static final int MAX_DATAGRAM_SIZE = Integer.getInteger(
+			MulticastBebSession.class.getName() + ".MAX_DATAGRAM_SIZE", 8192);
+	// The number of the latest datagrams kept for retransmission
+	private static final int RETRANSMISSION_BUFFER_SIZE = Integer.getInteger(
+			MulticastBebSession.class.getName() + ".RETRANSMISSION_BUFFER_SIZE", 4096);
+	// How often (in milliseconds) a process multicasts its heartbeat and
+	// repeats its NACKs
+	private static final int REPAIR_INTERVAL = Integer.getInteger(
+			MulticastBebSession.class.getName() + ".REPAIR_INTERVAL", 10);
+	
+	// The maximum number of ranges in a NACK
+	private static final int MAX_NACK_RANGES = 64;
+	// The maximum number of datagrams retransmitted for a NACK. The
+	// receiver asks for the rest in the next interval.
+	private static final int MAX_RETRANSMISSIONS = 128;
+	// The number of heartbeats multicast after the last datagram, which
+	// let the receivers find the lost datagrams at the end
+	private static final int MAX_HEARTBEATS = 10;
+	
+	// The kinds of the datagrams
+	private static final byte DATA = 0;
+	private static final byte HEARTBEAT = 1;
+	private static final byte NACK = 2;
+	private static final byte SKIP = 3;
+	
+	// The flags of a data datagram
+	private static final byte FIRST = 1;
+	private static final byte LAST = 2;
+	
+	/**
+	 * The datagrams received from an incarnation of a process.
+	 */
+	private static class InboundStream {
+		long incarnation;
+		// -1 until the first datagram or heartbeat is seen
+		long nextSequence = -1;
+		// The largest sequence number known to be sent
+		long highestSequence = -1;
+		TreeMap<Long, ByteBuffer> early = new TreeMap<Long, ByteBuffer>();
+		// The datagrams of a broadcast split into many
+		ByteArrayOutputStream partial;
+		SocketAddress repairAddress;
+		long lastNackTime;
+		boolean suspected;
+		
+		InboundStream(long incarnation) {
+			this.incarnation = incarnation;
+		}
+	}
+	
+	private Channel channel;
+	private ProcessList processList;
+	private MulticastEndpoint endpoint;
+	private byte[] channelId;
+	private int headerSize;
+	
+	private long incarnation = ThreadLocalRandom.current().nextLong();
+	private long nextSequence;
+	private byte[][] retained = new byte[RETRANSMISSION_BUFFER_SIZE][];
+	// The number of heartbeats to multicast before the sender goes quiet
+	private int remainingHeartbeats;
+	private boolean isNextRepairScheduled;
+	
+	private InboundStream[] streams;
+	private Map<Class<?>, byte[]> eventTypeNames = new HashMap<Class<?>, byte[]>();
+	private Map<String, Class<?>> eventTypes = new HashMap<String, Class<?>>();
+	
+	MulticastBebSession(Layer layer) {
+		super(layer);
+	}
+	
+	@Override
+	public void handle(Event event) {
+		if (event instanceof ProcessListInit)
+			handleProcessListInit((ProcessListInit) event);
+		else if (event instanceof ProcessConnected)
+			handleProcessConnected((ProcessConnected) event);
+		else if (event instanceof FailureDetected)
+			handleFailureDetected((FailureDetected) event);
+		else if (event instanceof Broadcast)
+			handleBroadcast((Broadcast) event);
+		else if (event instanceof DatagramReceived)
+			handleDatagramReceived((DatagramReceived) event);
+		else if (event instanceof NextRepair)
+			handleNextRepair();
+		else if (event instanceof ChannelClose)
+			handleChannelClose((ChannelClose) event);
+	}
+	
+	private void handleProcessListInit(ProcessListInit event) {
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("Received ProcessListInit");
+		
+		// Save the list
+		this.processList = event.copyProcessList();
+		
+		// Join the group
+		if (endpoint == null) {
+			channel = event.getChannel();
+			channelId = channel.getChannelID().getBytes();
+			headerSize = 1 + 2 + channelId.length + 4 + 8;
+			streams = new InboundStream[processList.getSize()];
+			try {
+				endpoint = new MulticastEndpoint(channel,
+						processList.getSelfProcess().getAddress().getAddress());
+				Thread thread = channel.getThreadFactory().newThread(endpoint);
+				thread.setName("Multicast BEB thread (" + channel.getChannelID() + ")");
+				thread.start();
+			} catch (IOException e) {
+				// The broadcasts go through the transport instead
+				if (logger.isLoggable(Level.SEVERE))
+					logger.severe("Failed to join the multicast group, sending " +
+							"the broadcasts over the transport: " + e);
+			}
+		}
+		
+		// Let the event continue
+		try {
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleProcessConnected(ProcessConnected event) {
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("Received ProcessConnected");
+		
+		// Let the event continue
+		try {
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+		
+		// Set the connected process ready
+		int id = event.getConnectedProcessId();
+		processList.getProcess(id).setState(ProcessState.CORRECT);
+		if (streams[id] != null)
+			streams[id].suspected = false;
+	}
+	
+	private void handleFailureDetected(FailureDetected event) {
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("Received FailureDetected (failed id = " +
+					event.getFailedProcessId() + ")");
+		
+		int id = event.getFailedProcessId();
+		processList.getProcess(id).setState(ProcessState.FAILED);
+		if (streams[id] != null)
+			streams[id].suspected = true;
+		
+		// Let the event continue
+		try {
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleBroadcast(Broadcast event) {
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("Received a Broadcast request");
+		
+		try {
+			if (event.getDir() == Direction.DOWN) {
+				// Send the event to the group
+				if (endpoint != null)
+					multicast(event);
+				else
+					send((Broadcast) event.cloneEvent());
+				
+				// Send the event back to upper layers
+				event.setDir(Direction.UP);
+				event.setSourceSession(this);
+				event.source = processList.getSelfProcess().getAddress();
+				event.dest = processList.getSelfProcess().getAddress();
+				event.init();
+				event.go();
+			} else {
+				// Come from the transport (e.g. a process using
+				// BestEffortBroadcastSession), let the event continue
+				event.go();
+			}
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		} catch (CloneNotSupportedException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Sends the event to every other correct process through the transport.
+	 */
+	private void send(Broadcast event) throws AppiaEventException {
+		List<Object> destinations = new ArrayList<Object>();
+		for (int i = 0; i < processList.getSize(); i++) {
+			CommProcess process = processList.getProcess(i);
+			if (process.isCorrect() && !process.isSelf())
+				destinations.add(process.getAddress());
+		}
+		if (destinations.isEmpty())
+			return;
+		
+		event.setDir(Direction.DOWN);
+		event.setSourceSession(this);
+		event.source = processList.getSelfProcess().getAddress();
+		event.dest = new AppiaMulticast(null, destinations.toArray());
+		event.init();
+		event.go();
+	}
+	
+	/**
+	 * Encodes the event as {@code [type length][type][message]}, and
+	 * multicasts it in as many datagrams as it needs.
+	 */
+	private void multicast(Broadcast event) {
+		byte[] eventType = eventTypeNames.get(event.getClass());
+		if (eventType == null) {
+			eventType = event.getClass().getName().getBytes();
+			eventTypeNames.put(event.getClass(), eventType);
+		}
+		
+		Message message = event.getMessage();
+		ByteBuffer payload = ByteBuffer.allocate(4 + eventType.length + message.length());
+		payload.putInt(eventType.length);
+		payload.put(eventType);
+		if (message.length() > 0) {
+			MsgWalk walk = message.getMsgWalk();
+			MsgBuffer block = new MsgBuffer();
+			for (walk.next(block); block.data != null; walk.next(block))
+				payload.put(block.data, block.off, block.len);
+		}
+		payload.flip();
+		
+		int fragmentSize = MAX_DATAGRAM_SIZE - headerSize - 9;
+		do {
+			int length = Math.min(fragmentSize, payload.remaining());
+			byte flags = 0;
+			if (payload.position() == 0)
+				flags |= FIRST;
+			if (length == payload.remaining())
+				flags |= LAST;
+			
+			ByteBuffer datagram = newDatagram(DATA, processList.getSelfId(),
+					incarnation, 9 + length);
+			datagram.putLong(nextSequence);
+			datagram.put(flags);
+			datagram.put(payload.array(), payload.position(), length);
+			payload.position(payload.position() + length);
+			datagram.flip();
+			
+			retained[(int) (nextSequence % RETRANSMISSION_BUFFER_SIZE)] = datagram.array();
+			nextSequence++;
+			endpoint.sendToGroup(datagram);
+		} while (payload.hasRemaining());
+		
+		remainingHeartbeats = MAX_HEARTBEATS;
+		scheduleNextRepair();
+	}
+	
+	private void handleDatagramReceived(DatagramReceived event) {
+		if (endpoint == null)
+			return;
+		
+		ByteBuffer datagram = ByteBuffer.wrap(event.getDatagram());
+		try {
+			byte kind = datagram.get();
+			
+			// Drop the datagrams of the other channels
+			int channelIdLength = datagram.getShort();
+			if (channelIdLength != channelId.length)
+				return;
+			for (int i = 0; i < channelIdLength; i++)
+				if (datagram.get() != channelId[i])
+					return;
+			
+			// Drop the datagrams looped back to this process
+			int processId = datagram.getInt();
+			long incarnation = datagram.getLong();
+			if (processId < 0 || processId >= processList.getSize()
+					|| processId == processList.getSelfId())
+				return;
+			
+			if (kind == NACK) {
+				if (incarnation == this.incarnation)
+					handleNack(processId, datagram, event.getSender());
+				return;
+			}
+			
+			InboundStream stream = getStream(processId, incarnation);
+			if (stream.suspected)
+				return;
+			stream.repairAddress = event.getSender();
+			
+			if (kind == DATA)
+				receiveData(processId, stream, datagram);
+			else if (kind == HEARTBEAT)
+				receiveHeartbeat(stream, datagram.getLong());
+			else if (kind == SKIP)
+				skip(processId, stream, datagram.getLong());
+			
+			if (isMissing(stream))
+				scheduleNextRepair();
+		} catch (BufferUnderflowException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Received a malformed datagram from " + event.getSender());
+		}
+	}
+	
+	private InboundStream getStream(int processId, long incarnation) {
+		InboundStream stream = streams[processId];
+		if (stream == null || stream.incarnation != incarnation) {
+			if (stream != null && logger.isLoggable(Level.INFO))
+				logger.info("Process " + processId + " has restarted, " +
+						"receiving its new broadcasts");
+			stream = new InboundStream(incarnation);
+			streams[processId] = stream;
+		}
+		return stream;
+	}
+	
+	private void receiveData(int processId, InboundStream stream, ByteBuffer datagram) {
+		long sequence = datagram.getLong();
+		
+		// Start from the first datagram seen. If it is in the middle of
+		// a broadcast, the broadcast is dropped.
+		if (stream.nextSequence < 0) {
+			stream.nextSequence = sequence;
+			stream.highestSequence = sequence - 1;
+		}
+		
+		// Drop the duplicates
+		if (sequence < stream.nextSequence || stream.early.containsKey(sequence))
+			return;
+		
+		// Ask for the datagrams skipped over right away
+		if (sequence > stream.highestSequence + 1)
+			sendNack(stream, Math.max(stream.highestSequence + 1, stream.nextSequence), sequence);
+		stream.highestSequence = Math.max(stream.highestSequence, sequence);
+		
+		if (sequence == stream.nextSequence) {
+			receiveFragment(processId, stream, datagram);
+			stream.nextSequence++;
+			receiveEarlyFragments(processId, stream);
+		} else {
+			stream.early.put(sequence, datagram);
+			
+			// The sender no longer keeps the missing datagrams once it has
+			// sent this many after them, so stop waiting for them
+			if (stream.early.size() >= RETRANSMISSION_BUFFER_SIZE)
+				skip(processId, stream, stream.early.firstKey());
+		}
+	}
+	
+	private void receiveHeartbeat(InboundStream stream, long senderNextSequence) {
+		// Only the datagrams after the first heartbeat seen will be received
+		if (stream.nextSequence < 0) {
+			stream.nextSequence = senderNextSequence;
+			stream.highestSequence = senderNextSequence - 1;
+			return;
+		}
+		
+		if (senderNextSequence - 1 > stream.highestSequence) {
+			sendNack(stream, Math.max(stream.highestSequence + 1, stream.nextSequence),
+					senderNextSequence);
+			stream.highestSequence = senderNextSequence - 1;
+		}
+	}
+	
+	private void skip(int processId, InboundStream stream, long sequence) {
+		if (stream.nextSequence < 0 || sequence <= stream.nextSequence)
+			return;
+		
+		// Only the missing datagrams are lost. The ones received
+		// after them are still delivered.
+		if (!stream.early.isEmpty() && stream.early.firstKey() < sequence)
+			sequence = stream.early.firstKey();
+		
+		if (logger.isLoggable(Level.WARNING))
+			logger.warning("Lost the broadcasts in " + (sequence - stream.nextSequence) +
+					" datagrams from process " + processId + ", which are no longer kept");
+		
+		stream.partial = null;
+		stream.nextSequence = sequence;
+		stream.highestSequence = Math.max(stream.highestSequence, sequence - 1);
+		
+		// Let the upper layers know before delivering the later broadcasts
+		reportLostBroadcasts(processId, processList.getSelfId());
+		receiveEarlyFragments(processId, stream);
+	}
+	
+	private void reportLostBroadcasts(int senderId, int receiverId) {
+		try {
+			BroadcastsLost lost = new BroadcastsLost(channel, this, senderId, receiverId);
+			lost.init();
+			lost.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private boolean isMissing(InboundStream stream) {
+		return stream.nextSequence >= 0 && stream.highestSequence >= stream.nextSequence;
+	}
+	
+	private void receiveEarlyFragments(int processId, InboundStream stream) {
+		ByteBuffer datagram;
+		while ((datagram = stream.early.remove(stream.nextSequence)) != null) {
+			receiveFragment(processId, stream, datagram);
+			stream.nextSequence++;
+		}
+	}
+	
+	private void receiveFragment(int processId, InboundStream stream, ByteBuffer fragment) {
+		byte flags = fragment.get();
+		if ((flags & FIRST) != 0) {
+			// Deliver a single datagram without copying it
+			if ((flags & LAST) != 0) {
+				stream.partial = null;
+				deliver(processId, fragment.array(), fragment.position(), fragment.remaining());
+				return;
+			}
+			stream.partial = new ByteArrayOutputStream();
+		} else if (stream.partial == null) {
+			// The rest of a broadcast whose beginning has been skipped
+			return;
+		}
+		
+		stream.partial.write(fragment.array(), fragment.position(), fragment.remaining());
+		if ((flags & LAST) != 0) {
+			byte[] payload = stream.partial.toByteArray();
+			stream.partial = null;
+			deliver(processId, payload, 0, payload.length);
+		}
+	}
+	
+	private void deliver(int processId, byte[] payload, int offset, int length) {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(payload, offset, length);
+			int typeLength = buffer.getInt();
+			String typeName = new String(payload, buffer.position(), typeLength);
+			int position = buffer.position() + typeLength;
+			
+			Class<?> type = eventTypes.get(typeName);
+			if (type == null) {
+				type = Class.forName(typeName);
+				eventTypes.put(typeName, type);
+			}
+			
+			SendableEvent event = (SendableEvent) type.getDeclaredConstructor().newInstance();
+			event.setChannel(channel);
+			event.setDir(Direction.UP);
+			event.setSourceSession(this);
+			event.source = processList.getProcess(processId).getAddress();
+			event.dest = processList.getSelfProcess().getAddress();
+			event.setMessage(channel.getMessageFactory().newMessage(payload,
+					position, offset + length - position));
+			event.init();
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Failed to decode a broadcast from process " +
+						processId + ": " + e);
+		}
+	}
+	
+	private void handleNack(int requesterId, ByteBuffer datagram, SocketAddress requester) {
+		long firstRetainedSequence = Math.max(0, nextSequence - RETRANSMISSION_BUFFER_SIZE);
+		int rangeCount = datagram.getInt();
+		int retransmissions = 0;
+		boolean skipped = false;
+		for (int i = 0; i < rangeCount && retransmissions < MAX_RETRANSMISSIONS; i++) {
+			long from = datagram.getLong();
+			long to = Math.min(datagram.getLong(), nextSequence);
+			
+			// Some of them are no longer kept
+			if (from < firstRetainedSequence && !skipped) {
+				sendSkip(requester, firstRetainedSequence);
+				reportLostBroadcasts(processList.getSelfId(), requesterId);
+				skipped = true;
+			}
+			
+			for (long sequence = Math.max(from, firstRetainedSequence);
+					sequence < to && retransmissions < MAX_RETRANSMISSIONS; sequence++) {
+				byte[] retransmitted = retained[(int) (sequence % RETRANSMISSION_BUFFER_SIZE)];
+				endpoint.send(ByteBuffer.wrap(retransmitted), requester);
+				retransmissions++;
+			}
+		}
+	}
+	
+	/**
+	 * Tells the requester to skip to the first broadcast that begins at
+	 * or after the given sequence number.
+	 */
+	private void sendSkip(SocketAddress requester, long sequence) {
+		while (sequence < nextSequence &&
+				(retained[(int) (sequence % RETRANSMISSION_BUFFER_SIZE)][headerSize + 8] & FIRST) == 0)
+			sequence++;
+		
+		ByteBuffer datagram = newDatagram(SKIP, processList.getSelfId(), incarnation, 8);
+		datagram.putLong(sequence);
+		datagram.flip();
+		endpoint.send(datagram, requester);
+	}
+	
+	private void sendNack(InboundStream stream, long from, long to) {
+		List<long[]> ranges = new ArrayList<long[]>();
+		ranges.add(new long[] { from, to });
+		sendNack(stream, ranges);
+	}
+	
+	private void sendNack(InboundStream stream, List<long[]> ranges) {
+		ByteBuffer datagram = newDatagram(NACK, processList.getSelfId(),
+				stream.incarnation, 4 + 16 * ranges.size());
+		datagram.putInt(ranges.size());
+		for (long[] range : ranges) {
+			datagram.putLong(range[0]);
+			datagram.putLong(range[1]);
+		}
+		datagram.flip();
+		endpoint.send(datagram, stream.repairAddress);
+		stream.lastNackTime = System.currentTimeMillis();
+	}
+	
+	private void handleNextRepair() {
+		isNextRepairScheduled = false;
+		if (endpoint == null)
+			return;
+		
+		// Let the receivers find the lost datagrams at the end
+		if (remainingHeartbeats > 0) {
+			remainingHeartbeats--;
+			ByteBuffer datagram = newDatagram(HEARTBEAT, processList.getSelfId(),
+					incarnation, 8);
+			datagram.putLong(nextSequence);
+			datagram.flip();
+			endpoint.sendToGroup(datagram);
+		}
+		
+		// Ask for the missing datagrams again
+		boolean isRepairing = false;
+		long now = System.currentTimeMillis();
+		for (InboundStream stream : streams) {
+			if (stream == null || stream.suspected || !isMissing(stream))
+				continue;
+			isRepairing = true;
+			if (now - stream.lastNackTime < REPAIR_INTERVAL)
+				continue;
+			
+			List<long[]> ranges = new ArrayList<long[]>();
+			long from = stream.nextSequence;
+			for (long received : stream.early.keySet()) {
+				if (ranges.size() == MAX_NACK_RANGES)
+					break;
+				if (received > from)
+					ranges.add(new long[] { from, received });
+				from = received + 1;
+			}
+			if (from <= stream.highestSequence && ranges.size() < MAX_NACK_RANGES)
+				ranges.add(new long[] { from, stream.highestSequence + 1 });
+			if (!ranges.isEmpty())
+				sendNack(stream, ranges);
+		}
+		
+		// Stay quiet once there is nothing to repair
+		if (remainingHeartbeats > 0 || isRepairing)
+			scheduleNextRepair();
+	}
+	
+	private void scheduleNextRepair() {
+		if (isNextRepairScheduled)
+			return;
+		
+		try {
+			NextRepair next = new NextRepair(REPAIR_INTERVAL, "NextRepair", channel, this);
+			next.init();
+			next.go();
+			isNextRepairScheduled = true;
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		} catch (AppiaException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleChannelClose(ChannelClose event) {
+		if (endpoint != null) {
+			endpoint.stop();
+			endpoint = null;
+		}
+		
+		try {
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private ByteBuffer newDatagram(byte kind, int processId, long incarnation, int bodySize) {
+		ByteBuffer datagram = ByteBuffer.allocate(headerSize + bodySize);
+		datagram.put(kind);
+		datagram.putShort((short) channelId.length);
+		datagram.put(channelId);
+		datagram.putInt(processId);
+		datagram.putLong(incarnation);
+		return datagram;
+	}
+}
@@ -0,0 +1,184 @@
+package org.vanilladb.comm.protocols.multicastbeb;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+
+/**
+ * The UDP sockets of a {@link MulticastBebSession}. One socket joins the
+ * multicast group, and another one, bound to the address of the process,
+ * sends the datagrams and receives the ones sent to the process alone
+ * (i.e. the repair requests and the retransmissions). A thread reads both
+ * sockets and puts each datagram into the channel as a
+ * {@link DatagramReceived}, so that the session handles it in the Appia
+ * thread.<br>
+ * <br>
+ * The group is joined on {@code INTERFACE}, or on the interface of the
+ * process address if it is not set, so that the processes on the loopback
+ * address multicast through the loopback interface.
+ */
+class MulticastEndpoint implements Runnable {
+	private static Logger logger = Logger.getLogger(MulticastEndpoint.class.getName());
+	
+	private static final String GROUP_ADDRESS = System.getProperty(
+			MulticastEndpoint.class.getName() + ".GROUP_ADDRESS", "239.255.42.99");
+	private static final int GROUP_PORT = Integer.getInteger(
+			MulticastEndpoint.class.getName() + ".GROUP_PORT", 42900);
+	// The name of the network interface (e.g. eth0)
+	private static final String INTERFACE = System.getProperty(
+			MulticastEndpoint.class.getName() + ".INTERFACE", "");
+	private static final int TIME_TO_LIVE = Integer.getInteger(
+			MulticastEndpoint.class.getName() + ".TIME_TO_LIVE", 1);
+	// The size (in bytes) of the send and receive buffers of the sockets
+	private static final int SOCKET_BUFFER_SIZE = Integer.getInteger(
+			MulticastEndpoint.class.getName() + ".SOCKET_BUFFER_SIZE", 4 * 1024 * 1024);
+	
+	// The largest payload of a UDP datagram
+	private static final int MAX_DATAGRAM_SIZE = 65507;
+	
+	private Channel channel;
+	private InetSocketAddress groupAddress;
+	private DatagramChannel groupChannel;
+	private DatagramChannel unicastChannel;
+	private Selector selector;
+	private volatile boolean running = true;
+	
+	MulticastEndpoint(Channel channel, InetAddress localHost) throws IOException {
+		this.channel = channel;
+		
+		NetworkInterface networkInterface;
+		if (INTERFACE.isEmpty())
+			networkInterface = NetworkInterface.getByInetAddress(localHost);
+		else
+			networkInterface = NetworkInterface.getByName(INTERFACE);
+		if (networkInterface == null)
+			throw new IOException("cannot find the network interface for multicast");
+		
+		InetAddress group = InetAddress.getByName(GROUP_ADDRESS);
+		groupAddress = new InetSocketAddress(group, GROUP_PORT);
+		
+		try {
+			// The processes on the same host share the port of the group
+			groupChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+			groupChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			groupChannel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+			groupChannel.bind(new InetSocketAddress(GROUP_PORT));
+			groupChannel.join(group, networkInterface);
+			groupChannel.configureBlocking(false);
+			
+			unicastChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+			unicastChannel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+			unicastChannel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+			unicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+			unicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, TIME_TO_LIVE);
+			// The other processes on this host receive the datagrams by the loopback
+			unicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+			unicastChannel.bind(new InetSocketAddress(localHost, 0));
+			unicastChannel.configureBlocking(false);
+			
+			selector = Selector.open();
+			groupChannel.register(selector, SelectionKey.OP_READ);
+			unicastChannel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		
+		if (logger.isLoggable(Level.INFO))
+			logger.info("Joined multicast group " + groupAddress + " on " +
+					networkInterface.getName());
+	}
+	
+	/**
+	 * Sends a datagram to the group. Like the other UDP datagrams, it is
+	 * dropped if the socket buffer is full.
+	 */
+	void sendToGroup(ByteBuffer datagram) {
+		send(datagram, groupAddress);
+	}
+	
+	void send(ByteBuffer datagram, SocketAddress target) {
+		try {
+			if (unicastChannel.send(datagram, target) == 0 && logger.isLoggable(Level.FINE))
+				logger.fine("Dropped a datagram to " + target + " since the socket buffer is full");
+		} catch (IOException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Failed to send a datagram to " + target + ": " + e);
+		}
+	}
+	
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+	
+	@Override
+	public void run() {
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				receiveAll((DatagramChannel) key.channel(), buffer);
+			}
+		}
+		
+		close();
+	}
+	
+	private void close() {
+		try {
+			if (groupChannel != null)
+				groupChannel.close();
+			if (unicastChannel != null)
+				unicastChannel.close();
+			if (selector != null)
+				selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void receiveAll(DatagramChannel datagramChannel, ByteBuffer buffer) {
+		try {
+			SocketAddress source;
+			buffer.clear();
+			while ((source = datagramChannel.receive(buffer)) != null) {
+				byte[] datagram = new byte[buffer.position()];
+				buffer.flip();
+				buffer.get(datagram);
+				buffer.clear();
+				
+				new DatagramReceived(datagram, source).asyncGo(channel, Direction.UP);
+			}
+		} catch (IOException e) {
+			if (running && logger.isLoggable(Level.WARNING))
+				logger.warning("Failed to receive a datagram: " + e);
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package org.vanilladb.comm.protocols.multicastbeb;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AppiaException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.EventQualifier;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.channel.Timer;
+
+public class NextRepair extends Timer {
+	
+	public NextRepair(long waitingTime, String timerID,
+			Channel channel, Session source)
+			throws AppiaEventException, AppiaException {
+		super(waitingTime, timerID, channel,
+				Direction.DOWN, source, EventQualifier.ON);
+	}
+}
@@ -0,0 +1,87 @@
+package org.vanilladb.comm.protocols.niotcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.vanilladb.comm.buffer.BufferPool;
+
+import net.sf.appia.core.Channel;
+
+/**
+ * An encoded event waiting to be written to a connection. The frames of an
+ * event sent to multiple destinations share the same pooled buffer, which
+ * is returned to the pool after all of them have been released. A frame may
+ * also have a small header of its own, which is written before the shared
+ * bytes.
+ */
+class Frame {
+	
+	private ByteBuffer pooledBuffer;
+	private AtomicInteger references;
+	// A view of the pooled buffer with its own position
+	private ByteBuffer content;
+	// Written before the content (null if there is none)
+	private ByteBuffer header;
+	private Channel channel;
+	
+	/**
+	 * Creates a frame of the bytes in the given buffer, which must be
+	 * in the reading mode.
+	 */
+	Frame(ByteBuffer pooledBuffer, Channel channel) {
+		this(pooledBuffer, new AtomicInteger(1), channel);
+	}
+	
+	private Frame(ByteBuffer pooledBuffer, AtomicInteger references, Channel channel) {
+		this.pooledBuffer = pooledBuffer;
+		this.references = references;
+		this.content = pooledBuffer.duplicate();
+		this.channel = channel;
+	}
+	
+	/**
+	 * Creates another frame of the same bytes for another connection.
+	 * It must be called before any of the frames is released.
+	 */
+	Frame share() {
+		references.incrementAndGet();
+		return new Frame(pooledBuffer, references, channel);
+	}
+	
+	void setHeader(ByteBuffer header) {
+		this.header = header;
+	}
+	
+	/**
+	 * Puts the buffers of the frame into the given array for a gathering
+	 * write.
+	 * 
+	 * @return the index after the buffers of the frame
+	 */
+	int gather(ByteBuffer[] buffers, int index) {
+		if (header != null)
+			buffers[index++] = header;
+		buffers[index++] = content;
+		return index;
+	}
+	
+	boolean hasRemaining() {
+		return content.hasRemaining() || (header != null && header.hasRemaining());
+	}
+	
+	/**
+	 * Returns the size of the shared bytes, excluding the header.
+	 */
+	int getContentSize() {
+		return content.limit();
+	}
+	
+	Channel getChannel() {
+		return channel;
+	}
+	
+	void release() {
+		if (references.decrementAndGet() == 0)
+			BufferPool.release(pooledBuffer);
+	}
+}
@@ -0,0 +1,82 @@
+package org.vanilladb.comm.protocols.niotcp;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * The connections accepted from a group of another process, which are read
+ * by any of the selector threads. The events of each channel are put into
+ * the channel in the order of their sequence numbers, so a channel sees
+ * them in the order they were sent, as over a single connection.
+ */
+class InboundPeer {
+	
+	private static class Stream {
+		long nextSequence;
+		Map<Long, SendableEvent> early = new HashMap<Long, SendableEvent>();
+	}
+	
+	private Set<NioConnection> connections = new HashSet<NioConnection>();
+	private Map<String, Stream> streams = new HashMap<String, Stream>();
+	private boolean closed;
+	
+	/**
+	 * Adds an accepted connection of the group.
+	 *
+	 * @return false if the group has been closed
+	 */
+	synchronized boolean add(NioConnection connection) {
+		if (closed)
+			return false;
+		connections.add(connection);
+		return true;
+	}
+	
+	/**
+	 * Puts the event into its channel once the events before it have been
+	 * put, along with the early events that it was holding back.
+	 */
+	synchronized void receive(long sequence, SendableEvent event, Channel channel) {
+		if (closed)
+			return;
+		
+		Stream stream = streams.get(channel.getChannelID());
+		if (stream == null) {
+			stream = new Stream();
+			streams.put(channel.getChannelID(), stream);
+		}
+		
+		if (sequence != stream.nextSequence) {
+			stream.early.put(sequence, event);
+			return;
+		}
+		
+		while (event != null) {
+			try {
+				event.asyncGo(channel, Direction.UP);
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+			stream.nextSequence++;
+			event = stream.early.remove(stream.nextSequence);
+		}
+	}
+	
+	/**
+	 * Closes all the connections of the group, since the events on the
+	 * others cannot be put in order without the ones on the failed one.
+	 */
+	synchronized void close() {
+		closed = true;
+		for (NioConnection connection : connections)
+			connection.closeLater();
+		streams.clear();
+	}
+}
@@ -0,0 +1,357 @@
+package org.vanilladb.comm.protocols.niotcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.vanilladb.comm.buffer.BufferPool;
+
+import net.sf.appia.core.Channel;
+
+/**
+ * A connection to another process. Any thread can queue frames on it, while
+ * only the thread of its {@link SelectorLoop} reads and writes the socket.
+ * The queued frames are written together with gathering writes.<br>
+ * <br>
+ * The process that opens a connection first sends the port it listens on,
+ * so that the other side knows the address of the process. If the processes
+ * open multiple connections to each other, the port is followed by the id
+ * of the group of connections that it belongs to. A connection through a
+ * Unix domain socket also carries the IP address of the process, which
+ * cannot be told from the socket.
+ */
+class NioConnection {
+	
+	private NioTcpSession session;
+	private SelectorLoop loop;
+	private SocketChannel socketChannel;
+	private boolean unixSocket;
+	private SelectionKey key;
+	// The address that the remote process listens on,
+	// which is null until it is received on an accepted connection
+	private volatile InetSocketAddress remoteAddress;
+	// The group of the connections opened together, which is received
+	// with the address on an accepted connection
+	private volatile long groupId;
+	// The channels to notify when the connection fails
+	private Set<Channel> channels = Collections.newSetFromMap(
+			new ConcurrentHashMap<Channel, Boolean>());
+	private volatile boolean closed;
+	
+	// Writing
+	private Queue<Frame> outbound = new ConcurrentLinkedQueue<Frame>();
+	// Set when a flush has been requested or the socket is waiting to be writable
+	private AtomicBoolean flushScheduled = new AtomicBoolean();
+	// Only used by the loop thread
+	private ArrayDeque<Frame> writing = new ArrayDeque<Frame>();
+	private ByteBuffer[] gathered;
+	
+	// Reading (only used by the loop thread)
+	private ByteBuffer readBuffer;
+	private byte[] frame;
+	private int frameFilled;
+	
+	/**
+	 * Opens a connection to the given process, through a Unix domain socket
+	 * if the process is on the same host, and queues our address (and the
+	 * group id) as its first bytes.
+	 * 
+	 * @param localAddress the address that we listen on, or null if there is none
+	 */
+	static NioConnection connect(NioTcpSession session, SelectorLoop loop,
+			InetSocketAddress remoteAddress, Channel channel, InetSocketAddress localAddress,
+			long groupId) throws IOException {
+		SocketChannel socketChannel = null;
+		if (localAddress != null && remoteAddress.getAddress() != null)
+			socketChannel = UnixSockets.connect(session.getUnixSocketDirectory(),
+					remoteAddress.getAddress(), remoteAddress.getPort());
+		boolean unixSocket = socketChannel != null;
+		if (!unixSocket) {
+			socketChannel = SocketChannel.open();
+			socketChannel.configureBlocking(false);
+			socketChannel.socket().setTcpNoDelay(true);
+			socketChannel.connect(remoteAddress);
+		}
+		
+		NioConnection connection = new NioConnection(session, loop, socketChannel, remoteAddress);
+		connection.unixSocket = unixSocket;
+		connection.groupId = groupId;
+		connection.channels.add(channel);
+		byte[] localHost = unixSocket? localAddress.getAddress().getAddress() : new byte[0];
+		ByteBuffer handshake = ByteBuffer.allocate(NioTcpSession.HANDSHAKE_SIZE
+				+ (unixSocket? 1 + localHost.length : 0));
+		handshake.putInt((localAddress != null)? localAddress.getPort() : -1);
+		if (NioTcpSession.STRIPED)
+			handshake.putLong(groupId);
+		if (unixSocket) {
+			handshake.put((byte) localHost.length);
+			handshake.put(localHost);
+		}
+		handshake.flip();
+		connection.enqueue(new Frame(handshake, channel));
+		loop.register(connection);
+		return connection;
+	}
+	
+	/**
+	 * Wraps a connection accepted from another process, whose address is
+	 * known after its port is received.
+	 */
+	static NioConnection accept(NioTcpSession session, SelectorLoop loop,
+			SocketChannel socketChannel, Channel channel) throws IOException {
+		boolean unixSocket = !(socketChannel.getLocalAddress() instanceof InetSocketAddress);
+		socketChannel.configureBlocking(false);
+		if (!unixSocket)
+			socketChannel.socket().setTcpNoDelay(true);
+		
+		NioConnection connection = new NioConnection(session, loop, socketChannel, null);
+		connection.unixSocket = unixSocket;
+		connection.channels.add(channel);
+		loop.register(connection);
+		return connection;
+	}
+	
+	private NioConnection(NioTcpSession session, SelectorLoop loop,
+			SocketChannel socketChannel, InetSocketAddress remoteAddress) {
+		this.session = session;
+		this.loop = loop;
+		this.socketChannel = socketChannel;
+		this.remoteAddress = remoteAddress;
+		// A frame has at most two buffers
+		this.gathered = new ByteBuffer[2 * NioTcpSession.MAX_GATHERED_FRAMES];
+	}
+	
+	InetSocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+	
+	boolean isUnixSocket() {
+		return unixSocket;
+	}
+	
+	long getGroupId() {
+		return groupId;
+	}
+	
+	Set<Channel> getChannels() {
+		return channels;
+	}
+	
+	boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Queues a frame to be written. The frame is released once it has been
+	 * written or the connection has failed.
+	 */
+	void enqueue(Frame frame) {
+		channels.add(frame.getChannel());
+		outbound.add(frame);
+		
+		if (closed)
+			releaseOutbound();
+		else if (flushScheduled.compareAndSet(false, true))
+			loop.requestFlush(this);
+	}
+	
+	void register(Selector selector) throws IOException {
+		if (closed)
+			return;
+		
+		readBuffer = BufferPool.acquire(NioTcpSession.READ_BUFFER_SIZE);
+		int ops = socketChannel.isConnectionPending()? SelectionKey.OP_CONNECT : SelectionKey.OP_READ;
+		key = socketChannel.register(selector, ops, this);
+		
+		// Write the frames queued before the registration
+		if (socketChannel.isConnected())
+			flush();
+	}
+	
+	void finishConnect() throws IOException {
+		if (socketChannel.finishConnect()) {
+			key.interestOps(SelectionKey.OP_READ);
+			flush();
+		}
+	}
+	
+	/**
+	 * Writes the queued frames until they run out or the socket cannot
+	 * take more.
+	 */
+	void flush() throws IOException {
+		if (closed || key == null || !socketChannel.isConnected())
+			return;
+		
+		while (true) {
+			Frame queued;
+			while (writing.size() < NioTcpSession.MAX_GATHERED_FRAMES && (queued = outbound.poll()) != null)
+				writing.add(queued);
+			
+			if (writing.isEmpty()) {
+				key.interestOps(SelectionKey.OP_READ);
+				flushScheduled.set(false);
+				
+				// Check again for the frames queued before the flag is cleared
+				if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true))
+					return;
+				continue;
+			}
+			
+			int count = 0;
+			for (Frame frame : writing)
+				count = frame.gather(gathered, count);
+			socketChannel.write(gathered, 0, count);
+			Arrays.fill(gathered, 0, count, null);
+			
+			while (!writing.isEmpty() && !writing.peekFirst().hasRemaining())
+				writing.pollFirst().release();
+			
+			// Wait until the socket is writable again
+			if (!writing.isEmpty()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+	}
+	
+	void read() throws IOException {
+		if (socketChannel.read(readBuffer) < 0)
+			throw new EOFException("the connection is closed by " + remoteAddress);
+		readBuffer.flip();
+		
+		if (remoteAddress == null) {
+			if (!readHandshake()) {
+				readBuffer.compact();
+				return;
+			}
+			session.onIdentified(this);
+			if (closed)
+				return;
+		}
+		
+		while (true) {
+			if (frame == null) {
+				if (readBuffer.remaining() < 4)
+					break;
+				int frameSize = readBuffer.getInt();
+				if (frameSize < 0 || frameSize > session.getMaxFrameSize())
+					throw new IOException("received a frame of " + frameSize +
+							" bytes from " + remoteAddress + ", which exceeds the limit");
+				frame = new byte[frameSize];
+				frameFilled = 0;
+			}
+			
+			int count = Math.min(readBuffer.remaining(), frame.length - frameFilled);
+			readBuffer.get(frame, frameFilled, count);
+			frameFilled += count;
+			if (frameFilled < frame.length)
+				break;
+			
+			byte[] received = frame;
+			frame = null;
+			session.deliver(this, received);
+		}
+		readBuffer.compact();
+	}
+	
+	/**
+	 * Reads the address (and the group id) of the process on an accepted
+	 * connection.
+	 * 
+	 * @return false if the bytes have not all arrived
+	 */
+	private boolean readHandshake() throws IOException {
+		int size = NioTcpSession.HANDSHAKE_SIZE;
+		if (unixSocket) {
+			if (readBuffer.remaining() < size + 1)
+				return false;
+			size += 1 + readBuffer.get(readBuffer.position() + size);
+		}
+		if (readBuffer.remaining() < size)
+			return false;
+		
+		int port = readBuffer.getInt();
+		if (NioTcpSession.STRIPED)
+			groupId = readBuffer.getLong();
+		InetAddress host;
+		if (unixSocket) {
+			byte[] address = new byte[readBuffer.get()];
+			readBuffer.get(address);
+			host = InetAddress.getByAddress(address);
+		} else
+			host = socketChannel.socket().getInetAddress();
+		remoteAddress = new InetSocketAddress(host, port);
+		return true;
+	}
+	
+	/**
+	 * Closes the connection after an error, and lets the session report
+	 * the failure.
+	 */
+	void fail(IOException cause) {
+		if (closed)
+			return;
+		close();
+		session.onFailed(this, cause);
+	}
+	
+	void close() {
+		if (closed)
+			return;
+		closed = true;
+		releaseResources();
+	}
+	
+	/**
+	 * Closes the connection from a thread other than the one of its loop,
+	 * which releases the resources of the connection later.
+	 */
+	void closeLater() {
+		if (closed)
+			return;
+		closed = true;
+		loop.requestClose(this);
+	}
+	
+	/**
+	 * Only called by the thread of the loop.
+	 */
+	void releaseResources() {
+		if (key != null)
+			key.cancel();
+		try {
+			socketChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		for (Frame frame : writing)
+			frame.release();
+		writing.clear();
+		releaseOutbound();
+		if (readBuffer != null) {
+			BufferPool.release(readBuffer);
+			readBuffer = null;
+		}
+	}
+	
+	private void releaseOutbound() {
+		Frame frame;
+		while ((frame = outbound.poll()) != null)
+			frame.release();
+	}
+}
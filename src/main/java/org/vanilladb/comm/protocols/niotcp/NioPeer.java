@@ -0,0 +1,76 @@
+package org.vanilladb.comm.protocols.niotcp;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The connections opened together for sending to another process, when the
+ * processes use multiple connections to each other. The first connection
+ * carries the small frames, so that they never wait behind a large one in
+ * a socket, and the large frames are striped over the others.<br>
+ * <br>
+ * Since the frames of a channel may arrive on different connections, each
+ * frame carries a sequence number counted per channel, by which the other
+ * side puts them back in order. The channels do not wait for each other.
+ */
+class NioPeer {
+	
+	private long groupId;
+	private NioConnection[] connections;
+	// Only used by the Appia thread
+	private int nextBulkIndex;
+	private Map<String, Long> nextSequences = new HashMap<String, Long>();
+	
+	NioPeer(long groupId, NioConnection[] connections) {
+		this.groupId = groupId;
+		this.connections = connections;
+	}
+	
+	long getGroupId() {
+		return groupId;
+	}
+	
+	NioConnection[] getConnections() {
+		return connections;
+	}
+	
+	boolean isClosed() {
+		for (NioConnection connection : connections)
+			if (connection.isClosed())
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Numbers the frame in its channel and queues it on a connection.
+	 *
+	 * @param frame the frame of an event, whose content does not include
+	 *        the length
+	 * @param channelId the id of the channel of the event
+	 */
+	void send(Frame frame, String channelId) {
+		Long sequence = nextSequences.get(channelId);
+		if (sequence == null)
+			sequence = 0L;
+		nextSequences.put(channelId, sequence + 1);
+		
+		ByteBuffer header = ByteBuffer.allocate(12);
+		header.putInt(8 + frame.getContentSize());
+		header.putLong(sequence);
+		header.flip();
+		frame.setHeader(header);
+		
+		NioConnection connection = connections[0];
+		if (frame.getContentSize() >= NioTcpSession.STRIPE_THRESHOLD) {
+			connection = connections[1 + nextBulkIndex];
+			nextBulkIndex = (nextBulkIndex + 1) % (connections.length - 1);
+		}
+		connection.enqueue(frame);
+	}
+	
+	void close() {
+		for (NioConnection connection : connections)
+			connection.closeLater();
+	}
+}
@@ -0,0 +1,79 @@
+package org.vanilladb.comm.protocols.niotcp;
+
+import java.io.File;
+
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticastSupport;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.tcpcomplete.TcpUndeliveredEvent;
+
+/**
+ * A TCP transport that can replace {@link net.sf.appia.protocols.tcpcomplete.TcpCompleteLayer}.
+ * It serves all the connections with a few selector threads instead of two
+ * threads per connection, and speaks the same protocol on the wire, so the
+ * processes using either of them can talk to each other.
+ */
+public class NioTcpLayer extends Layer implements AppiaMulticastSupport {
+	
+	private int maxFrameSize;
+	private File unixSocketDirectory;
+	
+	public NioTcpLayer() {
+		this(NioTcpSession.MAX_FRAME_SIZE);
+	}
+	
+	/**
+	 * Creates a layer whose connections accept the frames up to the given
+	 * size, instead of {@code MAX_FRAME_SIZE}.
+	 * 
+	 * @param maxFrameSize the largest frame (in bytes) that a connection accepts
+	 */
+	public NioTcpLayer(int maxFrameSize) {
+		this(maxFrameSize, UnixSockets.getDefaultDirectory());
+	}
+	
+	/**
+	 * Creates a layer that connects the processes on the same host through
+	 * the Unix domain sockets in the given directory, instead of the one set
+	 * by the properties.
+	 * 
+	 * @param maxFrameSize the largest frame (in bytes) that a connection accepts
+	 * @param unixSocketDirectory the directory of the socket files, which is
+	 *        shared by the processes on the host, or null to use TCP only
+	 */
+	public NioTcpLayer(int maxFrameSize, File unixSocketDirectory) {
+		this.maxFrameSize = maxFrameSize;
+		this.unixSocketDirectory = unixSocketDirectory;
+		
+		// Events that the protocol will create
+		evProvide = new Class[] {
+			TcpUndeliveredEvent.class,
+			SendableEvent.class
+		};
+		
+		// Events that the protocol requires to work
+		// This is a subset of the accepted events
+		evRequire = new Class[] {
+			RegisterSocketEvent.class,
+			SendableEvent.class,
+			ChannelInit.class
+		};
+		
+		// Events that the protocol will accept
+		evAccept = new Class[] {
+			RegisterSocketEvent.class,
+			SendableEvent.class,
+			ChannelInit.class,
+			ChannelClose.class
+		};
+	}
+	
+	@Override
+	public Session createSession() {
+		return new NioTcpSession(this, maxFrameSize, unixSocketDirectory);
+	}
+}
@@ -0,0 +1,601 @@
+package org.vanilladb.comm.protocols.niotcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vanilladb.comm.buffer.BufferPool;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MsgBuffer;
+import net.sf.appia.core.message.MsgWalk;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.tcpcomplete.TcpUndeliveredEvent;
+import net.sf.appia.protocols.utils.HostUtils;
+
+/**
+ * Sends the events over TCP with nonblocking sockets. An event is encoded
+ * once into a pooled buffer, which is shared by the connections to all of
+ * its destinations. The connections are spread over a few
+ * {@link SelectorLoop}s, which write the queued frames of a connection
+ * with gathering writes and put the received events into their channels.<br>
+ * <br>
+ * A connection is opened when an event is first sent to a process and kept
+ * until it fails. As with TcpCompleteSession, a {@link TcpUndeliveredEvent}
+ * is sent up through the channels that used the connection when it fails,
+ * and the events queued on it are dropped.<br>
+ * <br>
+ * If {@code CONNECTIONS_PER_PEER} is larger than one, a process opens that
+ * many connections to each process and sends through a {@link NioPeer},
+ * which keeps the small frames on one connection and stripes the large
+ * ones over the others. The frames of a channel are numbered and put back
+ * in order by an {@link InboundPeer} on the other side. This changes the
+ * format of the frames, so every process must use the same setting.<br>
+ * <br>
+ * The processes on the same host can be connected through the Unix domain
+ * sockets opened by {@link UnixSockets} instead, if the layer is given a
+ * directory for the socket files and the JVM supports them.
+ */
+public class NioTcpSession extends Session {
+	private static Logger logger = Logger.getLogger(NioTcpSession.class.getName());
+	
+	// The number of threads that serve the connections
+	private static final int SELECTOR_THREAD_COUNT = Math.max(1, Integer.getInteger(
+			NioTcpSession.class.getName() + ".SELECTOR_THREAD_COUNT", 2));
+	// The maximum number of frames written by one gathering write
+	static final int MAX_GATHERED_FRAMES = Math.max(1, Integer.getInteger(
+			NioTcpSession.class.getName() + ".MAX_GATHERED_FRAMES", 64));
+	// The size (in bytes) of the buffer that a connection reads into
+	static final int READ_BUFFER_SIZE = Integer.getInteger(
+			NioTcpSession.class.getName() + ".READ_BUFFER_SIZE", 64 * 1024);
+	// The largest frame (in bytes) that a connection accepts by default. A
+	// connection that receives a larger one is closed, since it is likely
+	// corrupted.
+	static final int MAX_FRAME_SIZE = Integer.getInteger(
+			NioTcpSession.class.getName() + ".MAX_FRAME_SIZE", 256 * 1024 * 1024);
+	// The number of connections that a process opens to each process
+	private static final int CONNECTIONS_PER_PEER = Math.max(1, Integer.getInteger(
+			NioTcpSession.class.getName() + ".CONNECTIONS_PER_PEER", 1));
+	// The frames of at least this size (in bytes) are striped over the
+	// connections other than the first one
+	static final int STRIPE_THRESHOLD = Integer.getInteger(
+			NioTcpSession.class.getName() + ".STRIPE_THRESHOLD", 64 * 1024);
+	static final boolean STRIPED = CONNECTIONS_PER_PEER > 1;
+	// The port, and the group id if the connections are striped
+	static final int HANDSHAKE_SIZE = STRIPED? 12 : 4;
+	
+	private Map<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
+	// The connections used for sending, keyed by the addresses that
+	// the processes listen on
+	private Map<InetSocketAddress, NioConnection> connections =
+			new ConcurrentHashMap<InetSocketAddress, NioConnection>();
+	// Used instead of the connections if they are striped
+	private Map<InetSocketAddress, NioPeer> peers =
+			new ConcurrentHashMap<InetSocketAddress, NioPeer>();
+	private Map<Long, InboundPeer> inboundPeers = new ConcurrentHashMap<Long, InboundPeer>();
+	// The encoded names, only used by the Appia thread
+	private Map<Class<?>, byte[]> eventTypeNames = new HashMap<Class<?>, byte[]>();
+	private Map<String, byte[]> channelIds = new HashMap<String, byte[]>();
+	// The classes of the received events
+	private Map<String, Class<?>> eventTypes = new ConcurrentHashMap<String, Class<?>>();
+	
+	private SelectorLoop[] loops;
+	private AtomicInteger nextLoopIndex = new AtomicInteger();
+	private ServerSocketChannel serverChannel;
+	// Accepts the processes on the same host (null if not supported)
+	private ServerSocketChannel unixServerChannel;
+	// The channel that registered the socket, which receives the events
+	// about the accepted connections
+	private Channel registeredChannel;
+	private InetSocketAddress localAddress;
+	private int localPort = -1;
+	private int maxFrameSize;
+	// Null if the Unix domain sockets are not used
+	private File unixSocketDirectory;
+	
+	NioTcpSession(Layer layer, int maxFrameSize, File unixSocketDirectory) {
+		super(layer);
+		this.maxFrameSize = maxFrameSize;
+		this.unixSocketDirectory = unixSocketDirectory;
+	}
+	
+	@Override
+	public void handle(Event event) {
+		if (event instanceof SendableEvent)
+			handleSendable((SendableEvent) event);
+		else if (event instanceof RegisterSocketEvent)
+			handleRegisterSocket((RegisterSocketEvent) event);
+		else if (event instanceof ChannelInit)
+			handleChannelInit((ChannelInit) event);
+		else if (event instanceof ChannelClose)
+			handleChannelClose((ChannelClose) event);
+	}
+	
+	private void handleChannelInit(ChannelInit event) {
+		Channel channel = event.getChannel();
+		channels.put(channel.getChannelID(), channel);
+		
+		// Start the selector threads with the first channel
+		if (loops == null) {
+			loops = new SelectorLoop[SELECTOR_THREAD_COUNT];
+			for (int i = 0; i < loops.length; i++) {
+				try {
+					loops[i] = new SelectorLoop(this);
+				} catch (IOException e) {
+					throw new RuntimeException("cannot open a selector", e);
+				}
+				Thread thread = channel.getThreadFactory().newThread(loops[i]);
+				thread.setName("NIO selector thread " + i);
+				thread.start();
+			}
+		}
+		
+		try {
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleChannelClose(ChannelClose event) {
+		channels.remove(event.getChannel().getChannelID());
+		
+		// Stop serving once no channel uses this session
+		if (channels.isEmpty() && loops != null) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("No more channels. Closing the connections.");
+			
+			for (SelectorLoop loop : loops)
+				loop.stop();
+			loops = null;
+			connections.clear();
+			peers.clear();
+			inboundPeers.clear();
+			if (serverChannel != null) {
+				try {
+					serverChannel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (unixServerChannel != null) {
+				try {
+					unixServerChannel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				UnixSockets.delete(unixSocketDirectory, localAddress.getAddress(), localPort);
+			}
+		}
+		
+		try {
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleRegisterSocket(RegisterSocketEvent event) {
+		if (localPort < 0) {
+			try {
+				InetAddress host = (event.localHost != null)? event.localHost :
+						HostUtils.getLocalAddress();
+				int port = (event.port == RegisterSocketEvent.FIRST_AVAILABLE ||
+						event.port == RegisterSocketEvent.RANDOMLY_AVAILABLE)? 0 : event.port;
+				
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setReuseAddress(true);
+				channel.socket().bind(new InetSocketAddress(host, port), 50);
+				
+				serverChannel = channel;
+				localPort = channel.socket().getLocalPort();
+				localAddress = new InetSocketAddress(host, localPort);
+				registeredChannel = event.getChannel();
+				loops[0].accept(channel);
+				
+				unixServerChannel = UnixSockets.listen(unixSocketDirectory, host, localPort);
+				if (unixServerChannel != null)
+					loops[0].accept(unixServerChannel);
+				
+				event.localHost = host;
+				event.port = localPort;
+				event.error = false;
+			} catch (IOException e) {
+				event.error = true;
+				event.setErrorCode(RegisterSocketEvent.RESOURCE_BUSY_ERROR);
+				event.setErrorDescription("Could not create socket. Resource is busy. (" + e + ")");
+			}
+		} else {
+			event.error = true;
+			event.setErrorCode(RegisterSocketEvent.RESOURCE_ALREADY_BOUND_ERROR);
+			event.setErrorDescription("Socket already bound in port " + localPort);
+		}
+		
+		// Send the result back
+		try {
+			event.setDir(Direction.invert(event.getDir()));
+			event.setSourceSession(this);
+			event.init();
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleSendable(SendableEvent event) {
+		if (event.getDir() == Direction.UP) {
+			if (event.getChannel().isStarted()) {
+				try {
+					event.go();
+				} catch (AppiaEventException e) {
+					e.printStackTrace();
+				}
+			}
+			return;
+		}
+		
+		Object[] destinations;
+		if (event.dest instanceof AppiaMulticast)
+			destinations = ((AppiaMulticast) event.dest).getDestinations();
+		else
+			destinations = new Object[] { event.dest };
+		send(event, destinations);
+		
+		try {
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void send(SendableEvent event, Object[] destinations) {
+		if (destinations.length == 0)
+			return;
+		
+		// Share the encoded event among the destinations. All the frames
+		// must be created before any of them is queued (and released).
+		Frame[] frames = new Frame[destinations.length];
+		frames[0] = encode(event);
+		for (int i = 1; i < frames.length; i++)
+			frames[i] = frames[0].share();
+		
+		if (STRIPED) {
+			sendStriped(event, destinations, frames);
+			return;
+		}
+		
+		for (int i = 0; i < destinations.length; i++) {
+			NioConnection connection = null;
+			if (destinations[i] instanceof InetSocketAddress)
+				connection = getOrConnect((InetSocketAddress) destinations[i], event.getChannel());
+			
+			if (connection != null) {
+				connection.enqueue(frames[i]);
+			} else {
+				frames[i].release();
+				sendUndelivered(event.getChannel(), destinations[i]);
+			}
+		}
+	}
+	
+	private void sendStriped(SendableEvent event, Object[] destinations, Frame[] frames) {
+		String channelId = event.getChannel().getChannelID();
+		for (int i = 0; i < destinations.length; i++) {
+			NioPeer peer = null;
+			if (destinations[i] instanceof InetSocketAddress)
+				peer = getOrConnectPeer((InetSocketAddress) destinations[i], event.getChannel());
+			
+			if (peer != null) {
+				peer.send(frames[i], channelId);
+			} else {
+				frames[i].release();
+				sendUndelivered(event.getChannel(), destinations[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Encodes the event in the same format as TcpCompleteSession:
+	 * {@code [length][type length][type][channel id length][channel id][message]}.
+	 * If the connections are striped, the length is left to the header
+	 * written by {@link NioPeer}.
+	 */
+	private Frame encode(SendableEvent event) {
+		byte[] eventType = eventTypeNames.get(event.getClass());
+		if (eventType == null) {
+			eventType = event.getClass().getName().getBytes(StandardCharsets.UTF_8);
+			eventTypeNames.put(event.getClass(), eventType);
+		}
+		String channelIdString = event.getChannel().getChannelID();
+		byte[] channelId = channelIds.get(channelIdString);
+		if (channelId == null) {
+			channelId = channelIdString.getBytes(StandardCharsets.UTF_8);
+			channelIds.put(channelIdString, channelId);
+		}
+		
+		Message message = event.getMessage();
+		int length = 4 + eventType.length + 4 + channelId.length + message.length();
+		ByteBuffer buffer = BufferPool.acquire(STRIPED? length : 4 + length);
+		if (!STRIPED)
+			buffer.putInt(length);
+		buffer.putInt(eventType.length);
+		buffer.put(eventType);
+		buffer.putInt(channelId.length);
+		buffer.put(channelId);
+		
+		// Copy the blocks of the message without joining them first
+		if (message.length() > 0) {
+			MsgWalk walk = message.getMsgWalk();
+			MsgBuffer block = new MsgBuffer();
+			for (walk.next(block); block.data != null; walk.next(block))
+				buffer.put(block.data, block.off, block.len);
+		}
+		buffer.flip();
+		
+		return new Frame(buffer, event.getChannel());
+	}
+	
+	private NioConnection getOrConnect(InetSocketAddress address, Channel channel) {
+		while (true) {
+			NioConnection existing = connections.get(address);
+			if (existing != null && !existing.isClosed())
+				return existing;
+			
+			NioConnection connection;
+			try {
+				connection = NioConnection.connect(this, nextLoop(), address, channel, localAddress, 0);
+			} catch (IOException e) {
+				if (logger.isLoggable(Level.WARNING))
+					logger.warning("Failed to connect to " + address + ": " + e);
+				return null;
+			}
+			
+			// A selector thread may have registered an accepted connection
+			// to the same process in the meantime
+			boolean registered = (existing == null)?
+					connections.putIfAbsent(address, connection) == null :
+					connections.replace(address, existing, connection);
+			if (registered) {
+				if (connection.isUnixSocket() && logger.isLoggable(Level.FINE))
+					logger.fine("Connecting to " + address + " through a Unix domain socket");
+				return connection;
+			}
+			connection.closeLater();
+		}
+	}
+	
+	private NioPeer getOrConnectPeer(InetSocketAddress address, Channel channel) {
+		NioPeer peer = peers.get(address);
+		if (peer != null && !peer.isClosed())
+			return peer;
+		
+		long groupId = ThreadLocalRandom.current().nextLong();
+		NioConnection[] group = new NioConnection[CONNECTIONS_PER_PEER];
+		try {
+			for (int i = 0; i < group.length; i++)
+				group[i] = NioConnection.connect(this, nextLoop(), address, channel,
+						localAddress, groupId);
+		} catch (IOException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Failed to connect to " + address + ": " + e);
+			for (NioConnection connection : group)
+				if (connection != null)
+					connection.closeLater();
+			return null;
+		}
+		
+		peer = new NioPeer(groupId, group);
+		peers.put(address, peer);
+		if (group[0].isUnixSocket() && logger.isLoggable(Level.FINE))
+			logger.fine("Connecting to " + address + " through Unix domain sockets");
+		return peer;
+	}
+	
+	/**
+	 * Returns the connections used for sending to the given process if they
+	 * are striped, or null if there are none.
+	 */
+	NioPeer getPeer(InetSocketAddress address) {
+		return peers.get(address);
+	}
+	
+	private SelectorLoop nextLoop() {
+		int index = (nextLoopIndex.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+		return loops[index];
+	}
+	
+	private void sendUndelivered(Channel channel, Object address) {
+		try {
+			TcpUndeliveredEvent undelivered = new TcpUndeliveredEvent(channel,
+					Direction.UP, this, address);
+			undelivered.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	
+	File getUnixSocketDirectory() {
+		return unixSocketDirectory;
+	}
+	
+	/**
+	 * Returns the connection used for sending to the given process, or null
+	 * if there is none.
+	 */
+	NioConnection getConnection(InetSocketAddress address) {
+		return connections.get(address);
+	}
+	
+	/**
+	 * Called by a selector thread when another process connects.
+	 */
+	void onAccepted(SocketChannel socketChannel) {
+		try {
+			NioConnection.accept(this, nextLoop(), socketChannel, registeredChannel);
+		} catch (IOException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Failed to set up an accepted connection: " + e);
+			try {
+				socketChannel.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Called by a selector thread when the address of the process on an
+	 * accepted connection is received. The connection is used for sending
+	 * only if there is no other connection to the process. If the
+	 * connections are striped, it is only used for receiving.
+	 */
+	void onIdentified(NioConnection connection) {
+		if (STRIPED) {
+			InboundPeer inbound = inboundPeers.get(connection.getGroupId());
+			if (inbound == null) {
+				inbound = new InboundPeer();
+				InboundPeer existing = inboundPeers.putIfAbsent(connection.getGroupId(), inbound);
+				if (existing != null)
+					inbound = existing;
+			}
+			if (!inbound.add(connection))
+				connection.closeLater();
+			return;
+		}
+		
+		InetSocketAddress address = connection.getRemoteAddress();
+		NioConnection existing = connections.putIfAbsent(address, connection);
+		if (existing != null && existing.isClosed())
+			connections.replace(address, existing, connection);
+	}
+	
+	/**
+	 * Called by a selector thread after a connection fails.
+	 */
+	void onFailed(NioConnection connection, IOException cause) {
+		InetSocketAddress address = connection.getRemoteAddress();
+		if (address == null)
+			return;
+		
+		Set<Channel> channelsToNotify = connection.getChannels();
+		if (STRIPED) {
+			// The other connections of the group fail along with it
+			NioPeer peer = peers.get(address);
+			InboundPeer inbound = inboundPeers.remove(connection.getGroupId());
+			if (peer != null && peer.getGroupId() == connection.getGroupId()) {
+				if (!peers.remove(address, peer))
+					return;
+				peer.close();
+				channelsToNotify = new HashSet<Channel>();
+				for (NioConnection member : peer.getConnections())
+					channelsToNotify.addAll(member.getChannels());
+			} else if (inbound != null)
+				inbound.close();
+			else
+				return;
+		} else
+			connections.remove(address, connection);
+		
+		if (logger.isLoggable(Level.WARNING))
+			logger.warning("Lost the connection to " + address + ": " + cause);
+		
+		for (Channel channel : channelsToNotify) {
+			try {
+				new TcpUndeliveredEvent(address).asyncGo(channel, Direction.UP);
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Called by a selector thread to put a received event into its channel.
+	 * 
+	 * @throws IOException if the event cannot be decoded
+	 */
+	void deliver(NioConnection connection, byte[] frame) throws IOException {
+		try {
+			int position = 0;
+			long sequence = 0;
+			if (STRIPED) {
+				sequence = getLong(frame, position);
+				position += 8;
+			}
+			int typeLength = getInt(frame, position);
+			String typeName = new String(frame, position + 4, typeLength, StandardCharsets.UTF_8);
+			position += 4 + typeLength;
+			int channelIdLength = getInt(frame, position);
+			String channelId = new String(frame, position + 4, channelIdLength,
+					StandardCharsets.UTF_8);
+			position += 4 + channelIdLength;
+			
+			// Drop the events of unknown channels, as TcpCompleteSession does
+			Channel channel = channels.get(channelId);
+			if (channel == null)
+				return;
+			connection.getChannels().add(channel);
+			
+			Class<?> type = eventTypes.get(typeName);
+			if (type == null) {
+				type = Class.forName(typeName);
+				eventTypes.put(typeName, type);
+			}
+			
+			SendableEvent event = (SendableEvent) type.getDeclaredConstructor().newInstance();
+			event.setChannel(channel);
+			event.source = connection.getRemoteAddress();
+			event.dest = localAddress;
+			event.setMessage(channel.getMessageFactory().newMessage(frame,
+					position, frame.length - position));
+			
+			if (STRIPED) {
+				InboundPeer inbound = inboundPeers.get(connection.getGroupId());
+				if (inbound != null)
+					inbound.receive(sequence, event, channel);
+			} else
+				event.asyncGo(channel, Direction.UP);
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			throw new IOException("cannot decode an event from " + connection.getRemoteAddress(), e);
+		}
+	}
+	
+	private static long getLong(byte[] bytes, int offset) {
+		return ((long) getInt(bytes, offset) << 32) | (getInt(bytes, offset + 4) & 0xFFFFFFFFL);
+	}
+	
+	private static int getInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+				| ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+}
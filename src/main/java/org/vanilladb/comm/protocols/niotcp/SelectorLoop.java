@@ -0,0 +1,154 @@
+package org.vanilladb.comm.protocols.niotcp;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread that serves a share of the connections with a selector. All the
+ * reads and writes of a connection happen in the thread of its loop. The
+ * other threads hand the connections over through queues and wake the
+ * selector up.
+ */
+class SelectorLoop implements Runnable {
+	private static Logger logger = Logger.getLogger(SelectorLoop.class.getName());
+	
+	private NioTcpSession session;
+	private Selector selector;
+	private Queue<ServerSocketChannel> newServerChannels = new ConcurrentLinkedQueue<ServerSocketChannel>();
+	private Queue<NioConnection> newConnections = new ConcurrentLinkedQueue<NioConnection>();
+	private Queue<NioConnection> flushRequests = new ConcurrentLinkedQueue<NioConnection>();
+	private Queue<NioConnection> closeRequests = new ConcurrentLinkedQueue<NioConnection>();
+	private volatile boolean running = true;
+	
+	SelectorLoop(NioTcpSession session) throws IOException {
+		this.session = session;
+		this.selector = Selector.open();
+	}
+	
+	void accept(ServerSocketChannel serverChannel) {
+		newServerChannels.add(serverChannel);
+		selector.wakeup();
+	}
+	
+	void register(NioConnection connection) {
+		newConnections.add(connection);
+		selector.wakeup();
+	}
+	
+	void requestFlush(NioConnection connection) {
+		flushRequests.add(connection);
+		selector.wakeup();
+	}
+	
+	void requestClose(NioConnection connection) {
+		closeRequests.add(connection);
+		selector.wakeup();
+	}
+	
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+	
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			
+			registerNewChannels();
+			
+			NioConnection requested;
+			while ((requested = flushRequests.poll()) != null)
+				flush(requested);
+			while ((requested = closeRequests.poll()) != null)
+				requested.releaseResources();
+			
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				
+				if (key.attachment() == null)
+					acceptAll((ServerSocketChannel) key.channel());
+				else
+					handleConnection(key, (NioConnection) key.attachment());
+			}
+		}
+		
+		try {
+			for (SelectionKey key : selector.keys())
+				key.channel().close();
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void registerNewChannels() {
+		ServerSocketChannel serverChannel;
+		while ((serverChannel = newServerChannels.poll()) != null) {
+			try {
+				serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			} catch (ClosedChannelException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		NioConnection connection;
+		while ((connection = newConnections.poll()) != null) {
+			try {
+				connection.register(selector);
+			} catch (IOException e) {
+				connection.fail(e);
+			}
+		}
+	}
+	
+	private void acceptAll(ServerSocketChannel serverChannel) {
+		try {
+			SocketChannel socketChannel;
+			while ((socketChannel = serverChannel.accept()) != null)
+				session.onAccepted(socketChannel);
+		} catch (IOException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Failed to accept a connection: " + e);
+		}
+	}
+	
+	private void handleConnection(SelectionKey key, NioConnection connection) {
+		try {
+			if (!key.isValid())
+				return;
+			if (key.isConnectable())
+				connection.finishConnect();
+			if (key.isValid() && key.isReadable())
+				connection.read();
+			if (key.isValid() && key.isWritable())
+				connection.flush();
+		} catch (IOException e) {
+			connection.fail(e);
+		}
+	}
+	
+	private void flush(NioConnection connection) {
+		try {
+			connection.flush();
+		} catch (IOException e) {
+			connection.fail(e);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package org.vanilladb.comm.protocols.niotcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens Unix domain sockets to the processes on the same host, which skip
+ * the TCP stack. Besides its TCP port, a process listens on a socket file
+ * named after its address in a directory shared by the processes, and the
+ * others on the host connect to the file instead of the port. If the file
+ * cannot be created or connected, e.g. the process uses TcpCompleteSession,
+ * they fall back to TCP.<br>
+ * <br>
+ * The Unix domain sockets are supported by Java 16 and above. Since this
+ * code is compiled for older versions, they are found by reflection and
+ * not used if the JVM does not have them.
+ */
+class UnixSockets {
+	private static Logger logger = Logger.getLogger(UnixSockets.class.getName());
+	
+	private static final boolean ENABLED = Boolean.valueOf(System.getProperty(
+			UnixSockets.class.getName() + ".ENABLED", "false"));
+	// The directory of the socket files
+	private static final String DIRECTORY = System.getProperty(
+			UnixSockets.class.getName() + ".DIRECTORY", System.getProperty("java.io.tmpdir"));
+	
+	// Null if the JVM does not support the Unix domain sockets
+	private static final ProtocolFamily UNIX;
+	private static final Method NEW_ADDRESS;
+	private static final Method OPEN_SOCKET;
+	private static final Method OPEN_SERVER_SOCKET;
+	
+	private static Map<InetAddress, Boolean> localHosts = new ConcurrentHashMap<InetAddress, Boolean>();
+	
+	static {
+		ProtocolFamily family = null;
+		Method newAddress = null, openSocket = null, openServerSocket = null;
+		try {
+			family = StandardProtocolFamily.valueOf("UNIX");
+			newAddress = Class.forName("java.net.UnixDomainSocketAddress")
+					.getMethod("of", String.class);
+			openSocket = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+			openServerSocket = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+		} catch (IllegalArgumentException | ReflectiveOperationException e) {
+			family = null;
+			if (ENABLED && logger.isLoggable(Level.INFO))
+				logger.info("Unix domain sockets are not supported by this JVM");
+		}
+		UNIX = family;
+		NEW_ADDRESS = newAddress;
+		OPEN_SOCKET = openSocket;
+		OPEN_SERVER_SOCKET = openServerSocket;
+	}
+	
+	static boolean isSupported() {
+		return UNIX != null;
+	}
+	
+	/**
+	 * Returns the directory set by {@code DIRECTORY}, or null if the Unix
+	 * domain sockets are not enabled.
+	 */
+	static File getDefaultDirectory() {
+		return ENABLED? new File(DIRECTORY) : null;
+	}
+	
+	/**
+	 * Listens on the socket file of the given address, which replaces the
+	 * file left by a former process.
+	 *
+	 * @param directory the directory of the socket files, or null if the
+	 *        Unix domain sockets are not used
+	 * @return the nonblocking server channel, or null if the Unix domain
+	 *         sockets cannot be used
+	 */
+	static ServerSocketChannel listen(File directory, InetAddress host, int port) {
+		if (UNIX == null || directory == null)
+			return null;
+		
+		File file = getFile(directory, host, port);
+		ServerSocketChannel channel = null;
+		try {
+			file.delete();
+			channel = (ServerSocketChannel) OPEN_SERVER_SOCKET.invoke(null, UNIX);
+			channel.configureBlocking(false);
+			channel.bind(newAddress(file));
+			file.deleteOnExit();
+			return channel;
+		} catch (IOException | ReflectiveOperationException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Failed to listen on " + file + ": " + e);
+			close(channel);
+			return null;
+		}
+	}
+	
+	/**
+	 * Starts connecting to the socket file of the given process if it is on
+	 * the same host.
+	 *
+	 * @param directory the directory of the socket files, or null if the
+	 *        Unix domain sockets are not used
+	 * @return the nonblocking channel, or null if the process should be
+	 *         connected through TCP
+	 */
+	static SocketChannel connect(File directory, InetAddress host, int port) {
+		if (UNIX == null || directory == null || !isLocalHost(host))
+			return null;
+		
+		File file = getFile(directory, host, port);
+		if (!file.exists())
+			return null;
+		
+		SocketChannel channel = null;
+		try {
+			channel = (SocketChannel) OPEN_SOCKET.invoke(null, UNIX);
+			channel.configureBlocking(false);
+			channel.connect(newAddress(file));
+			return channel;
+		} catch (IOException | ReflectiveOperationException e) {
+			// E.g. the file is left by a process that has stopped
+			if (logger.isLoggable(Level.FINE))
+				logger.fine("Failed to connect to " + file + ", using TCP instead: " + e);
+			close(channel);
+			return null;
+		}
+	}
+	
+	static void delete(File directory, InetAddress host, int port) {
+		getFile(directory, host, port).delete();
+	}
+	
+	private static boolean isLocalHost(InetAddress host) {
+		Boolean local = localHosts.get(host);
+		if (local == null) {
+			try {
+				local = host.isLoopbackAddress() || host.isAnyLocalAddress()
+						|| NetworkInterface.getByInetAddress(host) != null;
+			} catch (SocketException e) {
+				local = false;
+			}
+			localHosts.put(host, local);
+		}
+		return local;
+	}
+	
+	private static File getFile(File directory, InetAddress host, int port) {
+		return new File(directory, "vanillacomm-" + host.getHostAddress() + "-" + port + ".sock");
+	}
+	
+	private static SocketAddress newAddress(File file) throws ReflectiveOperationException {
+		return (SocketAddress) NEW_ADDRESS.invoke(null, file.getPath());
+	}
+	
+	private static void close(Channel channel) {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
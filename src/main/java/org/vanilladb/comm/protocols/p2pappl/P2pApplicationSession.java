@@ -6,6 +6,8 @@ import java.net.SocketAddress;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.vanilladb.comm.codec.CodecException;
+import org.vanilladb.comm.codec.CodecRegistry;
 import org.vanilladb.comm.process.ProcessList;
 import org.vanilladb.comm.protocols.events.ProcessListInit;
 
@@ -103,7 +105,7 @@ public class P2pApplicationSession extends Session {
 			SendableEvent event = new SendableEvent();
 			event.source = processList.getSelfProcess().getAddress();
 			event.dest = processList.getProcess(p2pMsg.getReceiverId()).getAddress();
-			event.getMessage().pushObject(p2pMsg.getMessage());
+			CodecRegistry.push(event.getMessage(), p2pMsg.getMessage());
 			event.setChannel(p2pMsg.getChannel());
 			event.setDir(Direction.DOWN);
 			event.setSourceSession(this);
@@ -121,7 +123,15 @@ public class P2pApplicationSession extends Session {
 		try {
 			if (event.getDir() == Direction.UP) {
 				int senderId = processList.getId((SocketAddress) event.source);
-				Serializable message = (Serializable) event.getMessage().popObject();
+				Serializable message;
+				try {
+					message = CodecRegistry.pop(event.getMessage());
+				} catch (CodecException e) {
+					if (logger.isLoggable(Level.WARNING))
+						logger.warning("Dropped a message from " + senderId +
+								" that cannot be decoded: " + e);
+					return;
+				}
 				listener.onRecvP2pMessage(senderId, message);
 			} else {
 				event.go();
@@ -13,6 +13,7 @@ import net.sf.appia.core.Direction;
 import net.sf.appia.core.Event;
 import net.sf.appia.core.Layer;
 import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
 import net.sf.appia.core.events.SendableEvent;
 
 public class P2pCountingSession extends Session {
@@ -101,6 +102,11 @@ public class P2pCountingSession extends Session {
 			SocketAddress from = (SocketAddress) event.source;
 			AtomicInteger count = froms.getOrDefault(from, new AtomicInteger());
 			count.incrementAndGet();
+		} else if (event.dest instanceof AppiaMulticast) {
+			for (Object to : ((AppiaMulticast) event.dest).getDestinations()) {
+				AtomicInteger count = tos.getOrDefault((SocketAddress) to, new AtomicInteger());
+				count.incrementAndGet();
+			}
 		} else {
 			SocketAddress to = (SocketAddress) event.dest;
 			AtomicInteger count = tos.getOrDefault(to, new AtomicInteger());
@@ -2,6 +2,8 @@ package org.vanilladb.comm.protocols.rb;
 
 import java.io.Serializable;
 
+import net.sf.appia.core.message.Message;
+
 public class MessageId implements Serializable, Comparable<MessageId> {
 	
 	private static final long serialVersionUID = 20200406001L;
@@ -21,6 +23,16 @@ public class MessageId implements Serializable, Comparable<MessageId> {
 	public int getSequenceNumber() {
 		return sequenceNumber;
 	}
+	
+	public void push(Message buffer) {
+		buffer.pushInt(sequenceNumber);
+		buffer.pushInt(sourceProcessId);
+	}
+	
+	public static MessageId pop(Message buffer) {
+		int sourceProcessId = buffer.popInt();
+		return new MessageId(sourceProcessId, buffer.popInt());
+	}
 
 	@Override
 	public int compareTo(MessageId id) {
@@ -102,7 +102,7 @@ public class ReliableBroadcastSession extends Session {
 				
 				// Append the message id
 				MessageId id = new MessageId(event.getFailedProcessId(), seqNum);
-				broadcast.getMessage().pushObject(id);
+				id.push(broadcast.getMessage());
 				
 				// Go
 				broadcast.setSourceSession(this);
@@ -123,7 +123,7 @@ public class ReliableBroadcastSession extends Session {
 		// Append the message id
 		int seqNum = sequenceNumber++;
 		MessageId id = new MessageId(processList.getSelfId(), seqNum);
-		event.getMessage().pushObject(id);
+		id.push(event.getMessage());
 		
 		// Forward to Layer BestEffortBroadcast
 		try {
@@ -141,7 +141,7 @@ public class ReliableBroadcastSession extends Session {
 			logger.fine("Received a delivered broadcast from a lower layer");
 		
 		// Retrieve the message id
-		MessageId id = (MessageId) event.getMessage().popObject();
+		MessageId id = MessageId.pop(event.getMessage());
 		
 		// Check if it is delivered since it might be a duplicated message
 		if (!delivered.contains(id)) {
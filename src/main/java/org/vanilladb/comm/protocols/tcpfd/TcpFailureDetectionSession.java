@@ -33,6 +33,7 @@ public class TcpFailureDetectionSession extends Session {
 	private Map<Integer, Long> lastReceived = new HashMap<Integer, Long>();
 	private Map<Integer, List<Channel>> processIdsToChannels = new HashMap<Integer, List<Channel>>();
 	private Channel largerChannel; // The channel which assigns a larger process list
+	private boolean isHeartbeating;
 	
 	TcpFailureDetectionSession(Layer layer) {
 		super(layer);
@@ -97,7 +98,10 @@ public class TcpFailureDetectionSession extends Session {
 			// Let the event keep going
 			event.go();
 			
-			if (event.getDir() == Direction.UP && !event.error) {
+			// The channels sharing this session may each register a socket,
+			// but a single heartbeat loop serves all of them
+			if (event.getDir() == Direction.UP && !event.error && !isHeartbeating) {
+				isHeartbeating = true;
 				if (logger.isLoggable(Level.FINE))
 					logger.fine("Sending heartbeats to all other nodes");
 				
@@ -1,8 +1,13 @@
 package org.vanilladb.comm.protocols.tob;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
+import org.vanilladb.comm.codec.CodecRegistry;
+import org.vanilladb.comm.codec.MessageCodec;
 import org.vanilladb.comm.protocols.floodingcons.Value;
 import org.vanilladb.comm.protocols.rb.MessageId;
 
@@ -10,6 +15,34 @@ public class OrderProposal implements Value {
 	
 	private static final long serialVersionUID = 20200407001L;
 	
+	public static final MessageCodec<OrderProposal> CODEC = new MessageCodec<OrderProposal>() {
+		
+		@Override
+		public void encode(OrderProposal proposal, DataOutput out) throws IOException {
+			out.writeInt(proposal.messageIds.size());
+			for (MessageId id : proposal.messageIds) {
+				out.writeInt(id.getSourceProcessId());
+				out.writeInt(id.getSequenceNumber());
+			}
+		}
+		
+		@Override
+		public OrderProposal decode(DataInput in) throws IOException {
+			int count = in.readInt();
+			Set<MessageId> messageIds = new HashSet<MessageId>();
+			for (int i = 0; i < count; i++)
+				messageIds.add(new MessageId(in.readInt(), in.readInt()));
+			return new OrderProposal(messageIds);
+		}
+	};
+	
+	// The type id reserved for this class in CodecRegistry
+	private static final int CODEC_TYPE_ID = -1;
+	
+	static void registerCodec() {
+		CodecRegistry.registerReserved(CODEC_TYPE_ID, OrderProposal.class, CODEC);
+	}
+	
 	private Set<MessageId> messageIds;
 	
 	public OrderProposal(Set<MessageId> messageIds) {
@@ -17,6 +17,9 @@ import net.sf.appia.core.Session;
 public class TotalOrderBroadcastLayer extends Layer {
 	
 	public TotalOrderBroadcastLayer() {
+		// The order proposals are encoded by their codec
+		OrderProposal.registerCodec();
+		
 		// Events that the protocol will create
 		evProvide = new Class[] {
 			ConsensusRequest.class,
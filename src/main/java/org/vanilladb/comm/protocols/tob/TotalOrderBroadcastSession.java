@@ -120,7 +120,7 @@ public class TotalOrderBroadcastSession extends Session {
 		// Append a sequence number
 		MessageId id = new MessageId(processList.getSelfId(), sequenceNumber);
 		sequenceNumber++;
-		event.getMessage().pushObject(id);
+		id.push(event.getMessage());
 
 		// Let the event continue.
 		// ReliableBroadcast layer will handle it.
@@ -136,7 +136,7 @@ public class TotalOrderBroadcastSession extends Session {
 			logger.fine("Received a delivered Broadcast message");
 		
 		// Take out the message id
-		MessageId id = (MessageId) event.getMessage().popObject();
+		MessageId id = MessageId.pop(event.getMessage());
 		
 		// Check if it is delivered
 		if (!delivered.contains(id)) {
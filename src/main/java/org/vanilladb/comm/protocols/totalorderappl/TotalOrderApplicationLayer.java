@@ -5,6 +5,7 @@ import org.vanilladb.comm.process.ProcessStateListener;
 import org.vanilladb.comm.protocols.events.ProcessListInit;
 import org.vanilladb.comm.protocols.tcpfd.FailureDetected;
 import org.vanilladb.comm.protocols.tcpfd.ProcessConnected;
+import org.vanilladb.comm.protocols.zablog.ZabLogFailed;
 
 import net.sf.appia.core.Layer;
 import net.sf.appia.core.Session;
@@ -29,6 +30,8 @@ public class TotalOrderApplicationLayer extends Layer {
 		// Events that the protocol will create
 		evProvide = new Class[] {
 			TotalOrderRequest.class,
+			TotalOrderSnapshot.class,
+			TotalOrderRoundRequest.class,
 			ProcessListInit.class,
 			RegisterSocketEvent.class
 		};
@@ -46,7 +49,9 @@ public class TotalOrderApplicationLayer extends Layer {
 			ProcessConnected.class,
 			RegisterSocketEvent.class,
 			FailureDetected.class,
-			TotalOrderMessages.class
+			TotalOrderMessages.class,
+			TotalOrderSnapshot.class,
+			ZabLogFailed.class
 		};
 	}
 
@@ -10,6 +10,7 @@ import org.vanilladb.comm.process.ProcessStateListener;
 import org.vanilladb.comm.protocols.events.ProcessListInit;
 import org.vanilladb.comm.protocols.tcpfd.FailureDetected;
 import org.vanilladb.comm.protocols.tcpfd.ProcessConnected;
+import org.vanilladb.comm.protocols.zablog.ZabLogFailed;
 
 import net.sf.appia.core.AppiaEventException;
 import net.sf.appia.core.Direction;
@@ -51,6 +52,10 @@ public class TotalOrderApplicationSession extends Session {
 			handleFailureDetected((FailureDetected) event);
 		else if (event instanceof TotalOrderMessages)
 			handleTotalOrderMessage((TotalOrderMessages) event);
+		else if (event instanceof TotalOrderSnapshot)
+			handleTotalOrderSnapshot((TotalOrderSnapshot) event);
+		else if (event instanceof ZabLogFailed)
+			handleZabLogFailed((ZabLogFailed) event);
 	}
 	
 	private void handleChannelInit(ChannelInit init) {
@@ -139,8 +144,40 @@ public class TotalOrderApplicationSession extends Session {
 		// Notify the listener
 		long startId = event.getMessageSerialNumberStart();
 		Serializable[] messages = event.getMessages();
+		if (totalMsgListener instanceof TotalOrderRoundListener) {
+			((TotalOrderRoundListener) totalMsgListener).onRecvTotalOrderMessages(
+					event.getRound(), startId, messages);
+			return;
+		}
 		for (int id = 0; id < messages.length; id++) {
 			totalMsgListener.onRecvTotalOrderMessage(startId + id, messages[id]);
 		}
 	}
+	
+	private void handleTotalOrderSnapshot(TotalOrderSnapshot event) {
+		if (event.getDir() == Direction.DOWN) {
+			// The snapshot saved by the application
+			try {
+				event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		} else {
+			if (logger.isLoggable(Level.INFO))
+				logger.info(String.format("Restore the snapshot up to message %d",
+						event.getLastMessageSerial()));
+			
+			// Notify the listener
+			totalMsgListener.onRecvTotalOrderSnapshot(event.getLastMessageSerial(),
+					event.getState());
+		}
+	}
+	
+	private void handleZabLogFailed(ZabLogFailed event) {
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("Received ZabLogFailed");
+		
+		// Notify the listener
+		totalMsgListener.onTotalOrderLogFailed(event.getError());
+	}
 }
@@ -1,9 +1,18 @@
 package org.vanilladb.comm.protocols.totalorderappl;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 public interface TotalOrderMessageListener {
 	
     void onRecvTotalOrderMessage(long serialNumber, Serializable message);
+    
+    void onRecvTotalOrderSnapshot(long serialNumber, Serializable snapshot);
+    
+    /**
+     * Called when this process can no longer log the proposals, so it stops
+     * taking part in ordering the messages.
+     */
+    void onTotalOrderLogFailed(IOException error);
 	
 }
@@ -12,12 +12,14 @@ public class TotalOrderMessages extends Event {
 	
 	private Serializable[] messages;
 	private long messageSerialNumberStart;
+	private long round;
 	
 	public TotalOrderMessages(Channel channel, Session src, Serializable[] messages,
-			long messageSerialNumberStart) throws AppiaEventException {
+			long messageSerialNumberStart, long round) throws AppiaEventException {
 		super(channel, Direction.UP, src);
 		this.messages = messages;
 		this.messageSerialNumberStart = messageSerialNumberStart;
+		this.round = round;
 	}
 	
 	public Serializable[] getMessages() {
@@ -27,4 +29,16 @@ public class TotalOrderMessages extends Event {
 	public long getMessageSerialNumberStart() {
 		return messageSerialNumberStart;
 	}
+	
+	/**
+	 * Gets the round that the leader assigned to the messages. The rounds
+	 * never decrease, so that the messages of multiple groups can be merged
+	 * in the same order on every server. It is always 0 if the group does
+	 * not use rounds.
+	 * 
+	 * @return the round of the messages
+	 */
+	public long getRound() {
+		return round;
+	}
 }
@@ -4,7 +4,11 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.vanilladb.comm.codec.CodecException;
+import org.vanilladb.comm.codec.CodecRegistry;
+
 import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.message.Message;
 
 public class TotalOrderRequest extends SendableEvent {
 	
@@ -27,23 +31,48 @@ public class TotalOrderRequest extends SendableEvent {
 		// Push the data to the message buffer in order to send
 		// through network
 		for (int i = messages.size() - 1; i >= 0; i--) 
-			getMessage().pushObject(messages.get(i));
+			CodecRegistry.push(getMessage(), messages.get(i));
 		getMessage().pushInt(messages.size());
 	}
 	
-	public List<Serializable> getCarriedMessages() {
+	public List<Serializable> getCarriedMessages() throws CodecException {
 		if (!isInitailized)
 			recoverData();
 		return messages;
 	}
 	
-	private void recoverData() {
+	public int getCarriedMessageCount() {
+		if (!isInitailized)
+			return getMessage().peekInt();
+		return messages.size();
+	}
+	
+	/**
+	 * Moves the messages carried by the given request to the end of this
+	 * request. The messages are moved in their serialized form, so that
+	 * merging requests costs no extra serialization.
+	 * 
+	 * @param request the request to be merged into this one
+	 */
+	public void merge(TotalOrderRequest request) {
+		Message buffer = getMessage();
+		Message appended = request.getMessage();
+		int messageCount = buffer.popInt() + appended.popInt();
+		buffer.join(appended);
+		buffer.pushInt(messageCount);
+		
+		// The merged messages will be recovered from the buffer when needed
+		messages = null;
+		isInitailized = false;
+	}
+	
+	private void recoverData() throws CodecException {
 		// The data must be recovered from the message buffer
 		// after it is sent through the network.
 		int messageCount = getMessage().popInt();
 		messages = new ArrayList<Serializable>(messageCount);
 		for (int i = 0; i < messageCount; i++)
-			messages.add((Serializable) getMessage().popObject());
+			messages.add(CodecRegistry.pop(getMessage()));
 		isInitailized = true;
 	}
 }
@@ -0,0 +1,20 @@
+package org.vanilladb.comm.protocols.totalorderappl;
+
+import java.io.Serializable;
+
+/**
+ * A {@link TotalOrderMessageListener} that receives the messages of each
+ * delivered proposal at once, together with the round of the proposal.
+ * The messages are not passed to
+ * {@link TotalOrderMessageListener#onRecvTotalOrderMessage(long, Serializable)}
+ * then.
+ */
+public interface TotalOrderRoundListener extends TotalOrderMessageListener {
+	
+    /**
+     * Called with the messages of each delivered proposal, which may be empty
+     * if the leader only announces that the round has gone by.
+     */
+    void onRecvTotalOrderMessages(long round, long firstSerialNumber, Serializable[] messages);
+	
+}
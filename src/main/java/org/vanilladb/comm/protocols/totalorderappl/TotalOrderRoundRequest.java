@@ -0,0 +1,27 @@
+package org.vanilladb.comm.protocols.totalorderappl;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Session;
+
+/**
+ * Asks the leader of a Zab group to move past the given round, so that the
+ * messages of the other groups in that round can be merged. The leader
+ * proposes an empty proposal if it has nothing else to propose.
+ */
+public class TotalOrderRoundRequest extends Event {
+	
+	private long round;
+	
+	public TotalOrderRoundRequest(Channel channel, Session src, long round)
+			throws AppiaEventException {
+		super(channel, Direction.DOWN, src);
+		this.round = round;
+	}
+	
+	public long getRound() {
+		return round;
+	}
+}
@@ -0,0 +1,41 @@
+package org.vanilladb.comm.protocols.totalorderappl;
+
+import java.io.Serializable;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Session;
+
+/**
+ * A state snapshot of the application that reflects all the total order
+ * messages up to the given serial number. It goes down when the application
+ * saves a snapshot, and goes up when a snapshot should be restored.
+ */
+public class TotalOrderSnapshot extends Event {
+	
+	private long lastMessageSerial;
+	private Serializable state;
+	
+	public TotalOrderSnapshot(long lastMessageSerial, Serializable state) {
+		super();
+		this.lastMessageSerial = lastMessageSerial;
+		this.state = state;
+	}
+	
+	public TotalOrderSnapshot(Channel channel, Session src, long lastMessageSerial,
+			Serializable state) throws AppiaEventException {
+		super(channel, Direction.UP, src);
+		this.lastMessageSerial = lastMessageSerial;
+		this.state = state;
+	}
+	
+	public long getLastMessageSerial() {
+		return lastMessageSerial;
+	}
+	
+	public Serializable getState() {
+		return state;
+	}
+}
@@ -121,7 +121,7 @@ public class UniformReliableBroadcastSession extends Session {
 		int seqNum = sequenceNumber++;
 		int selfPid = processList.getSelfId();
 		MessageId id = new MessageId(selfPid, seqNum);
-		event.getMessage().pushObject(id);
+		id.push(event.getMessage());
 		
 		// Add it to the pending list
 		try {
@@ -146,7 +146,7 @@ public class UniformReliableBroadcastSession extends Session {
 			logger.fine("Received a delivered broadcast from a lower layer");
 		
 		// Retrieve the message id
-		MessageId id = (MessageId) event.getMessage().popObject();
+		MessageId id = MessageId.pop(event.getMessage());
 		int sourcePid = id.getSourceProcessId();
 		int seqNum = id.getSequenceNumber();
 		
@@ -5,6 +5,10 @@ import net.sf.appia.core.Channel;
 import net.sf.appia.core.Session;
 import net.sf.appia.core.events.SendableEvent;
 
+/**
+ * Acknowledges a range of proposals. The message carries the first serial,
+ * the epoch id and the last serial of the range as primitives, from the top.
+ */
 public class ZabAccept extends SendableEvent {
 	
 	// We must provide a public constructor for TcpCompleteSession
@@ -3,20 +3,48 @@ package org.vanilladb.comm.protocols.zabacceptance;
 import org.vanilladb.comm.protocols.events.ProcessListInit;
 import org.vanilladb.comm.protocols.tcpfd.FailureDetected;
 import org.vanilladb.comm.protocols.tcpfd.ProcessConnected;
+import org.vanilladb.comm.protocols.totalorderappl.TotalOrderSnapshot;
 import org.vanilladb.comm.protocols.zabelection.LeaderChanged;
+import org.vanilladb.comm.protocols.zablog.ZabLogFailed;
+import org.vanilladb.comm.protocols.zablog.ZabLogFlushed;
+import org.vanilladb.comm.protocols.zabproposal.ZabCatchUpRequest;
+import org.vanilladb.comm.protocols.zabproposal.ZabPayload;
 import org.vanilladb.comm.protocols.zabproposal.ZabPropose;
+import org.vanilladb.comm.protocols.zabproposal.ZabResend;
 
 import net.sf.appia.core.Layer;
 import net.sf.appia.core.Session;
+import net.sf.appia.core.events.channel.ChannelClose;
 
 public class ZabAcceptanceLayer extends Layer {
 	
+	private int groupId;
+	
 	public ZabAcceptanceLayer() {
+		this(0);
+	}
+	
+	/**
+	 * Creates a layer for the given Zab group, which keeps its own log.
+	 * 
+	 * @param groupId the id of the Zab group
+	 */
+	public ZabAcceptanceLayer(int groupId) {
+		this.groupId = groupId;
+		
 		// Events that the protocol will create
 		evProvide = new Class[] {
 			ZabAccept.class,
 			ZabDeny.class,
 			ZabCacheProposal.class,
+			ZabRecovered.class,
+			NextAccept.class,
+			ZabCatchUp.class,
+			ZabPayload.class,
+			ZabPayloadRequest.class,
+			ZabPayloadReply.class,
+			NextPayloadRequest.class,
+			ZabLogFailed.class
 		};
 		
 		// Events that the protocol requires to work
@@ -34,12 +62,23 @@ public class ZabAcceptanceLayer extends Layer {
 			FailureDetected.class,
 			LeaderChanged.class,
 			ZabPropose.class,
+			ZabResend.class,
+			ZabCommit.class,
+			ZabPayload.class,
+			ZabPayloadRequest.class,
+			ZabPayloadReply.class,
+			NextPayloadRequest.class,
+			NextAccept.class,
+			ZabLogFlushed.class,
+			ZabCatchUpRequest.class,
+			TotalOrderSnapshot.class,
+			ChannelClose.class
 		};
 	}
 
 	@Override
 	public Session createSession() {
-		return new ZabAcceptanceSession(this);
+		return new ZabAcceptanceSession(this, groupId);
 	}
 }
 
@@ -1,35 +1,135 @@
 package org.vanilladb.comm.protocols.zabacceptance;
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.vanilladb.comm.codec.CodecException;
+import org.vanilladb.comm.codec.CodecRegistry;
 import org.vanilladb.comm.process.ProcessList;
 import org.vanilladb.comm.process.ProcessState;
 import org.vanilladb.comm.protocols.events.ProcessListInit;
 import org.vanilladb.comm.protocols.tcpfd.FailureDetected;
 import org.vanilladb.comm.protocols.tcpfd.ProcessConnected;
+import org.vanilladb.comm.protocols.totalorderappl.TotalOrderSnapshot;
 import org.vanilladb.comm.protocols.zabelection.LeaderChanged;
+import org.vanilladb.comm.protocols.zablog.ZabLog;
+import org.vanilladb.comm.protocols.zablog.ZabLogFailed;
+import org.vanilladb.comm.protocols.zablog.ZabLogFlushed;
+import org.vanilladb.comm.protocols.zablog.ZabLogMode;
+import org.vanilladb.comm.protocols.zablog.ZabSnapshot;
+import org.vanilladb.comm.protocols.zabproposal.ZabCatchUpRequest;
+import org.vanilladb.comm.protocols.zabproposal.ZabPayload;
+import org.vanilladb.comm.protocols.zabproposal.ZabPayloadId;
 import org.vanilladb.comm.protocols.zabproposal.ZabProposal;
 import org.vanilladb.comm.protocols.zabproposal.ZabProposalId;
 import org.vanilladb.comm.protocols.zabproposal.ZabPropose;
+import org.vanilladb.comm.protocols.zabproposal.ZabResend;
 
 import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AppiaException;
+import net.sf.appia.core.Channel;
 import net.sf.appia.core.Direction;
 import net.sf.appia.core.Event;
 import net.sf.appia.core.Layer;
 import net.sf.appia.core.Session;
+import net.sf.appia.core.events.channel.ChannelClose;
 
 public class ZabAcceptanceSession extends Session {
 	private static Logger logger = Logger.getLogger(ZabAcceptanceSession.class.getName());
+	
+	// How long (in milliseconds) a process waits for more proposals
+	// so that it can acknowledge them with a single ZabAccept.
+	// 0 means that each proposal is acknowledged immediately, so that
+	// the delay is never added to the commit latency unless asked for.
+	private static final long ACCEPT_DELAY = Long.getLong(
+			ZabAcceptanceSession.class.getName() + ".ACCEPT_DELAY", 0);
+	// The maximum number of proposals sent by a ZabCatchUp. A lagging process
+	// asks for the rest after it has delivered these proposals.
+	private static final int MAX_CATCH_UP_PROPOSALS = Integer.getInteger(
+			ZabAcceptanceSession.class.getName() + ".MAX_CATCH_UP_PROPOSALS", 1000);
+	// How long (in milliseconds) a process waits for the missing payloads
+	// of a proposal before asking the leader for them
+	private static final long PAYLOAD_WAIT_TIME = Long.getLong(
+			ZabAcceptanceSession.class.getName() + ".PAYLOAD_WAIT_TIME", 200);
+
+	// A contiguous range of accepted proposals that
+	// will be acknowledged by a single ZabAccept
+	private static class AcceptRange {
+		Object leaderAddress;
+		int direction;
+		long firstSerial;
+		long lastSerial;
+		// The log position of the last proposal in the range
+		long logPosition;
+	}
+	
+	// A received proposal that waits for the payloads of its messages
+	private static class PendingProposal {
+		ZabProposal proposal;
+		// The decoded messages with the payload ids, or null
+		// if the proposal has no payload ids
+		Serializable[] messages;
+		Object leaderAddress;
+		int direction;
+		
+		PendingProposal(ZabProposal proposal, Serializable[] messages, Object leaderAddress,
+				int direction) {
+			this.proposal = proposal;
+			this.messages = messages;
+			this.leaderAddress = leaderAddress;
+			this.direction = direction;
+		}
+	}
 
 	private int epochId = 0;
 	private long lastReceivedProposalSerial = 0;
 	
+	// The range that may still be extended by the following proposals
+	private AcceptRange pendingAccept;
+	private boolean isNextAcceptScheduled;
+	
+	// Null if the proposals are only kept in memory
+	private ZabLog log;
+	// Once the log fails, this process stops accepting the proposals
+	private boolean isLogFailed;
+	private long lastFlushedLogPosition;
+	// The ranges waiting for their proposals to be forced to the disk
+	private Queue<AcceptRange> unflushedAccepts = new ArrayDeque<AcceptRange>();
+	
+	// <payload id> -> <payload>, disseminated by the servers that
+	// received the messages
+	private Map<ZabPayloadId, Serializable> payloads = new HashMap<ZabPayloadId, Serializable>();
+	// The proposals that wait for their payloads, in the order of serial numbers
+	private Queue<PendingProposal> pendingProposals = new ArrayDeque<PendingProposal>();
+	// <proposal serial #> -> <payload ids>, for dropping the payloads
+	// once the proposals have been committed
+	private SortedMap<Long, ZabPayloadId[]> orderedPayloadIds = new TreeMap<Long, ZabPayloadId[]>();
+	// <origin id> -> <the last payload serial # that has been committed>
+	private long[] committedPayloadSerials;
+	private boolean isNextPayloadRequestScheduled;
+	
 	private ProcessList processList;
+	private int groupId;
 	
-	ZabAcceptanceSession(Layer layer) {
+	ZabAcceptanceSession(Layer layer, int groupId) {
 		super(layer);
+		this.groupId = groupId;
 	}
 	
 	@Override
@@ -44,6 +144,28 @@ public class ZabAcceptanceSession extends Session {
 			handleLeaderChanged((LeaderChanged) event);
 		else if (event instanceof ZabPropose)
 			handleZabPropose((ZabPropose) event);
+		else if (event instanceof ZabResend)
+			handleZabResend((ZabResend) event);
+		else if (event instanceof ZabCommit)
+			handleZabCommit((ZabCommit) event);
+		else if (event instanceof ZabPayload)
+			handleZabPayload((ZabPayload) event);
+		else if (event instanceof ZabPayloadRequest)
+			handleZabPayloadRequest((ZabPayloadRequest) event);
+		else if (event instanceof ZabPayloadReply)
+			handleZabPayloadReply((ZabPayloadReply) event);
+		else if (event instanceof NextPayloadRequest)
+			handleNextPayloadRequest((NextPayloadRequest) event);
+		else if (event instanceof NextAccept)
+			handleNextAccept((NextAccept) event);
+		else if (event instanceof ZabLogFlushed)
+			handleZabLogFlushed((ZabLogFlushed) event);
+		else if (event instanceof TotalOrderSnapshot)
+			handleTotalOrderSnapshot((TotalOrderSnapshot) event);
+		else if (event instanceof ZabCatchUpRequest)
+			handleZabCatchUpRequest((ZabCatchUpRequest) event);
+		else if (event instanceof ChannelClose)
+			handleChannelClose((ChannelClose) event);
 	}
 	
 	private void handleProcessListInit(ProcessListInit event) {
@@ -52,6 +174,19 @@ public class ZabAcceptanceSession extends Session {
 		
 		// Save the list
 		this.processList = event.copyProcessList();
+		committedPayloadSerials = new long[processList.getSize()];
+		
+		// Open the log for persisting the accepted proposals. Running without
+		// it would lose the proposals that this process has acknowledged.
+		IOException logError = null;
+		if (ZabLog.MODE != ZabLogMode.MEMORY_ONLY) {
+			try {
+				log = new ZabLog(processList.getSelfId(), groupId, event.getChannel());
+				lastFlushedLogPosition = log.getLastAppendedPosition();
+			} catch (IOException e) {
+				logError = e;
+			}
+		}
 		
 		// Let the event continue
 		try {
@@ -59,6 +194,82 @@ public class ZabAcceptanceSession extends Session {
 		} catch (AppiaEventException e) {
 			e.printStackTrace();
 		}
+		
+		if (logError != null)
+			failLog(event.getChannel(), logError);
+		else if (log != null)
+			replayLog(event.getChannel());
+	}
+	
+	/**
+	 * Stops accepting the proposals and tells the application, which decides
+	 * what to do with this process. The acknowledgements that have not been
+	 * sent are dropped, since their proposals may not be on the disk.
+	 */
+	private void failLog(Channel channel, IOException error) {
+		if (logger.isLoggable(Level.SEVERE))
+			logger.severe("The Zab log of group " + groupId + " failed in " + ZabLog.MODE
+					+ " mode, stop accepting proposals: " + error);
+		
+		isLogFailed = true;
+		pendingAccept = null;
+		unflushedAccepts.clear();
+		
+		try {
+			ZabLogFailed failed = new ZabLogFailed(channel, Direction.UP, this, error);
+			failed.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleChannelClose(ChannelClose event) {
+		if (log != null) {
+			log.close();
+			log = null;
+		}
+		
+		try {
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void replayLog(Channel channel) {
+		ZabSnapshot snapshot = log.getSnapshot();
+		long snapshotMessageSerial = (snapshot == null)? 0 : snapshot.getLastMessageSerial();
+		
+		// The log only returns the proposals that have not been replaced
+		// by the later epochs
+		List<ZabProposal> proposals = log.readProposals();
+		long committedSerial = 0;
+		for (ZabProposal proposal : proposals) {
+			long serial = proposal.getId().getSerialNumber();
+			committedSerial = Math.max(committedSerial, proposal.getCommitWatermark());
+			
+			// The proposals covered by the snapshot have been committed
+			long lastMessageSerial = proposal.getMessageStartId() + proposal.getMessageCount() - 1;
+			if (lastMessageSerial <= snapshotMessageSerial)
+				committedSerial = Math.max(committedSerial, serial);
+		}
+		if (snapshot == null && proposals.isEmpty())
+			return;
+		
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("Replay the Zab log (snapshot: %s, proposal #: %d, committed proposal #: %d)",
+					(snapshot == null)? "none" : "up to message " + snapshotMessageSerial,
+					proposals.size(), committedSerial));
+		
+		try {
+			ZabRecovered recovered = new ZabRecovered(channel, this, snapshot,
+					proposals.toArray(new ZabProposal[proposals.size()]),
+					committedSerial);
+			recovered.init();
+			recovered.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
 	}
 	
 	private void handleProcessConnected(ProcessConnected event) {
@@ -105,14 +316,94 @@ public class ZabAcceptanceSession extends Session {
 		}
 		epochId = event.getNewEpochId();
 		
-		// Let the event continue
+		// The new leader continues the serial numbers from
+		// where it has synchronized, which may be lower
+		lastReceivedProposalSerial = 0;
+		
+		// The acknowledgements for the previous leader are useless now
+		pendingAccept = null;
+		unflushedAccepts.clear();
+		
+		// The new leader only orders the payloads sent to it, so each process
+		// sends its own payloads that no proposal has ordered to it again.
+		// Note that some payloads for the new leader may have arrived.
+		SortedMap<Long, Serializable> unordered = getUnorderedOwnPayloads();
+		pendingProposals.clear();
+		orderedPayloadIds.clear();
+		Iterator<ZabPayloadId> iter = payloads.keySet().iterator();
+		while (iter.hasNext())
+			if (iter.next().getEpochId() < epochId)
+				iter.remove();
+		
 		try {
+			resubmitPayloads(event.getChannel(), unordered);
+			
+			// Let the event continue
 			event.go();
 		} catch (AppiaEventException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Finds the payloads that this process has sent to the previous leaders
+	 * but are not in any proposal that this process has received. The ones
+	 * in the proposals are kept by the synchronization of the new leader.
+	 * 
+	 * @return the payloads in the order of their serial numbers
+	 */
+	private SortedMap<Long, Serializable> getUnorderedOwnPayloads() {
+		Set<ZabPayloadId> ordered = new HashSet<ZabPayloadId>();
+		for (ZabPayloadId[] ids : orderedPayloadIds.values())
+			ordered.addAll(Arrays.asList(ids));
+		for (PendingProposal pending : pendingProposals)
+			if (pending.messages != null)
+				for (Serializable message : pending.messages)
+					if (message instanceof ZabPayloadId)
+						ordered.add((ZabPayloadId) message);
+		
+		SortedMap<Long, Serializable> unordered = new TreeMap<Long, Serializable>();
+		int selfId = processList.getSelfId();
+		for (Map.Entry<ZabPayloadId, Serializable> entry : payloads.entrySet()) {
+			ZabPayloadId id = entry.getKey();
+			if (id.getOriginId() == selfId && id.getEpochId() < epochId && !ordered.contains(id))
+				unordered.put(id.getSerialNumber(), entry.getValue());
+		}
+		return unordered;
+	}
+	
+	private void resubmitPayloads(Channel channel, SortedMap<Long, Serializable> unordered)
+			throws AppiaEventException {
+		if (unordered.isEmpty())
+			return;
+		
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("Send %d unordered payloads to the new leader of epoch %d",
+					unordered.size(), epochId));
+		
+		// Keep the serial numbers, so each run of consecutive
+		// serials goes in a single broadcast
+		List<Serializable> run = new ArrayList<Serializable>();
+		long firstSerial = unordered.firstKey();
+		for (Map.Entry<Long, Serializable> entry : unordered.entrySet()) {
+			if (entry.getKey() != firstSerial + run.size()) {
+				broadcastPayloads(channel, firstSerial, run);
+				run.clear();
+				firstSerial = entry.getKey();
+			}
+			run.add(entry.getValue());
+		}
+		broadcastPayloads(channel, firstSerial, run);
+	}
+	
+	private void broadcastPayloads(Channel channel, long firstSerial, List<Serializable> messages)
+			throws AppiaEventException {
+		ZabPayload payload = new ZabPayload(channel, this, epochId, firstSerial,
+				messages.toArray(new Serializable[messages.size()]));
+		payload.init();
+		payload.go();
+	}
+	
 	private void handleZabPropose(ZabPropose event) {
 		try {
 			if (event.getDir() == Direction.DOWN) { // Leader
@@ -125,7 +416,11 @@ public class ZabAcceptanceSession extends Session {
 				// Let the event continue to broadcast
 				event.go();
 			} else { // Broadcast messages from network
-				ZabProposal proposal = (ZabProposal) event.getMessage().popObject();
+				// A process without its log no longer votes
+				if (isLogFailed)
+					return;
+				
+				ZabProposal proposal = ZabProposal.pop(event.getMessage());
 				ZabProposalId id = proposal.getId();
 				int senderId = processList.getId((SocketAddress) event.source);
 				int direction = (processList.getSelfId() == senderId)? Direction.UP : Direction.DOWN;
@@ -134,29 +429,26 @@ public class ZabAcceptanceSession extends Session {
 					logger.fine(String.format("Received ZabPropose from network (epoch id: %d, proposal serial #: %d)",
 							id.getEpochId(), id.getSerialNumber()));
 				
-				if (id.getEpochId() == epochId && id.getSerialNumber() > lastReceivedProposalSerial) {
-					lastReceivedProposalSerial = id.getSerialNumber();
-					
-					// Send a event to ZabProposalLayer for caching the message
-					ZabCacheProposal cache = new ZabCacheProposal(event.getChannel(), this, proposal);
-					cache.init();
-					cache.go();
-					
-					// Accept the proposal
-					ZabAccept accept = new ZabAccept(event.getChannel(), direction, this);
-					accept.getMessage().pushObject(id);
-					accept.source = processList.getSelfProcess().getAddress();
-					accept.dest = event.source;
-					accept.init();
-					accept.go();
-
+				if (id.getEpochId() == epochId)
+					onCommitted(event.getChannel(), proposal.getCommitWatermark());
+				
+				if (isAcceptable(id, proposal.getCommitWatermark())) {
+					receiveProposal(event.getChannel(), proposal, event.source, direction);
+				} else if (id.getEpochId() == epochId && id.getSerialNumber() > lastReceivedProposalSerial) {
+					// We miss some uncommitted proposals (e.g. a relay failed), so the
+					// acceptance would not be in order. Wait for the leader to resend them.
 					if (logger.isLoggable(Level.FINE))
-						logger.fine(String.format("Accept proposal (epoch id: %d, proposal serial #: %d)",
-								id.getEpochId(), id.getSerialNumber()));
+						logger.fine(String.format("Missed proposals before proposal serial #%d, wait for the resend",
+								id.getSerialNumber()));
 				} else {
+					// Keep the acknowledgements in order
+					closeAcceptRange(event.getChannel());
+					
 					// Deny the proposal
 					ZabDeny deny = new ZabDeny(event.getChannel(), direction, this);
-					deny.getMessage().pushObject(id);
+					deny.getMessage().pushInt(epochId);
+					deny.getMessage().pushLong(id.getSerialNumber());
+					deny.getMessage().pushInt(id.getEpochId());
 					deny.source = processList.getSelfProcess().getAddress();
 					deny.dest = event.source;
 					deny.init();
@@ -171,4 +463,542 @@ public class ZabAcceptanceSession extends Session {
 			e.printStackTrace();
 		}
 	}
+	
+	private void handleZabResend(ZabResend event) {
+		try {
+			if (event.getDir() == Direction.DOWN) {
+				// Let the event continue to broadcast
+				event.go();
+				return;
+			}
+			if (isLogFailed)
+				return;
+			
+			long committedSerial = event.getMessage().popLong();
+			ZabProposal[] proposals = ZabProposal.popAll(event.getMessage());
+			int senderId = processList.getId((SocketAddress) event.source);
+			int direction = (processList.getSelfId() == senderId)? Direction.UP : Direction.DOWN;
+			
+			if (logger.isLoggable(Level.FINE))
+				logger.fine(String.format("Received ZabResend (last committed serial #: %d, proposal #: %d)",
+						committedSerial, proposals.length));
+			
+			onCommitted(event.getChannel(), committedSerial);
+			
+			// The ones we have received are simply ignored
+			for (ZabProposal proposal : proposals)
+				if (isAcceptable(proposal.getId(), committedSerial))
+					receiveProposal(event.getChannel(), proposal, event.source, direction);
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleZabCommit(ZabCommit event) {
+		try {
+			if (event.getDir() == Direction.UP) {
+				// Leave the message for the proposal layer
+				int committedEpochId = event.getMessage().popInt();
+				long committedSerial = event.getMessage().peekLong();
+				event.getMessage().pushInt(committedEpochId);
+				
+				// A leader that piggybacks the commits only sends this when
+				// it stops proposing, so nothing else tells the last commits
+				if (committedEpochId == epochId)
+					onCommitted(event.getChannel(), committedSerial);
+			}
+			
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private boolean isAcceptable(ZabProposalId id, long committedSerial) {
+		// The proposals must be accepted in order, unless the ones in
+		// between have been committed and do not need our votes
+		long serial = id.getSerialNumber();
+		return id.getEpochId() == epochId && serial > lastReceivedProposalSerial &&
+				(serial == lastReceivedProposalSerial + 1 || serial - 1 <= committedSerial);
+	}
+	
+	private void receiveProposal(Channel channel, ZabProposal proposal, Object leaderAddress,
+			int direction) throws AppiaEventException {
+		// The payload ids must be decoded to wait for the payloads. A proposal
+		// that cannot be decoded is dropped as if it had not been received.
+		Serializable[] messages = null;
+		if (proposal.hasPayloadIds()) {
+			try {
+				messages = proposal.getMessages();
+			} catch (CodecException e) {
+				if (logger.isLoggable(Level.WARNING))
+					logger.warning(String.format("Dropped proposal serial #%d that cannot be decoded: %s",
+							proposal.getId().getSerialNumber(), e));
+				return;
+			}
+		}
+		
+		lastReceivedProposalSerial = proposal.getId().getSerialNumber();
+		pendingProposals.add(new PendingProposal(proposal, messages, leaderAddress, direction));
+		acceptPendingProposals(channel);
+	}
+	
+	private void acceptPendingProposals(Channel channel) throws AppiaEventException {
+		// Accept the proposals in order once their payloads are here
+		while (!pendingProposals.isEmpty() && !isLogFailed) {
+			PendingProposal pending = pendingProposals.peek();
+			ZabProposal proposal = resolvePayloads(pending);
+			if (proposal == null) {
+				schedulePayloadRequest(channel);
+				return;
+			}
+			// A proposal that cannot be logged stays in the queue
+			if (!acceptProposal(channel, proposal, pending.leaderAddress, pending.direction))
+				return;
+			pendingProposals.poll();
+		}
+	}
+	
+	/**
+	 * Replaces the payload ids in the given proposal with the payloads.
+	 * 
+	 * @param pending the proposal ordering the messages
+	 * @return the proposal carrying the payloads, or null if some
+	 * of them have not arrived
+	 */
+	private ZabProposal resolvePayloads(PendingProposal pending) {
+		// Leave the messages encoded if there is nothing to resolve
+		ZabProposal proposal = pending.proposal;
+		if (pending.messages == null)
+			return proposal;
+		
+		Serializable[] messages = pending.messages;
+		Serializable[] resolved = null;
+		List<ZabPayloadId> ids = new ArrayList<ZabPayloadId>();
+		for (int i = 0; i < messages.length; i++) {
+			if (!(messages[i] instanceof ZabPayloadId))
+				continue;
+			ZabPayloadId id = (ZabPayloadId) messages[i];
+			if (!payloads.containsKey(id))
+				return null;
+			if (resolved == null)
+				resolved = Arrays.copyOf(messages, messages.length);
+			resolved[i] = payloads.get(id);
+			ids.add(id);
+		}
+		if (resolved == null)
+			return proposal;
+		
+		orderedPayloadIds.put(proposal.getId().getSerialNumber(),
+				ids.toArray(new ZabPayloadId[ids.size()]));
+		return new ZabProposal(proposal.getId(), proposal.getMessageStartId(),
+				resolved, proposal.getCommitWatermark(), proposal.getRound());
+	}
+	
+	private boolean hasPayloads(PendingProposal pending) {
+		if (pending.messages == null)
+			return true;
+		for (Serializable message : pending.messages)
+			if (message instanceof ZabPayloadId && !payloads.containsKey(message))
+				return false;
+		return true;
+	}
+	
+	private Set<ZabPayloadId> getMissingPayloadIds() {
+		Set<ZabPayloadId> missing = new LinkedHashSet<ZabPayloadId>();
+		for (PendingProposal pending : pendingProposals) {
+			if (pending.messages == null)
+				continue;
+			for (Serializable message : pending.messages)
+				if (message instanceof ZabPayloadId && !payloads.containsKey(message))
+					missing.add((ZabPayloadId) message);
+		}
+		return missing;
+	}
+	
+	private void onCommitted(Channel channel, long committedSerial) throws AppiaEventException {
+		// The payloads of the committed proposals are in the cache
+		// of the proposal layer now
+		SortedMap<Long, ZabPayloadId[]> committed = orderedPayloadIds.headMap(committedSerial + 1);
+		for (ZabPayloadId[] ids : committed.values()) {
+			for (ZabPayloadId id : ids) {
+				payloads.remove(id);
+				// Each server's payloads are ordered in the order of their serials
+				int originId = id.getOriginId();
+				committedPayloadSerials[originId] = Math.max(
+						committedPayloadSerials[originId], id.getSerialNumber());
+			}
+		}
+		committed.clear();
+		
+		// The committed proposals do not need our votes, so stop waiting for
+		// their payloads. The proposal layer fetches them if necessary.
+		boolean isDropped = false;
+		while (!pendingProposals.isEmpty() &&
+				pendingProposals.peek().proposal.getId().getSerialNumber() <= committedSerial &&
+				!hasPayloads(pendingProposals.peek())) {
+			pendingProposals.poll();
+			isDropped = true;
+		}
+		if (isDropped)
+			acceptPendingProposals(channel);
+	}
+	
+	/**
+	 * Logs and acknowledges the proposal.
+	 * 
+	 * @return false if the proposal cannot be logged
+	 */
+	private boolean acceptProposal(Channel channel, ZabProposal proposal, Object leaderAddress,
+			int direction) throws AppiaEventException {
+		ZabProposalId id = proposal.getId();
+		
+		// Persist the proposal before accepting it. Skipping it would leave
+		// a gap that every later proposal waits for, so the process fails.
+		long logPosition = 0;
+		if (log != null) {
+			try {
+				logPosition = log.append(proposal);
+			} catch (IOException e) {
+				failLog(channel, e);
+				return false;
+			}
+		}
+		
+		// Send a event to ZabProposalLayer for caching the message
+		ZabCacheProposal cache = new ZabCacheProposal(channel, this, proposal);
+		cache.init();
+		cache.go();
+		
+		// Accept the proposal
+		accept(channel, id.getSerialNumber(), logPosition, leaderAddress, direction);
+		
+		if (logger.isLoggable(Level.FINE))
+			logger.fine(String.format("Accept proposal (epoch id: %d, proposal serial #: %d)",
+					id.getEpochId(), id.getSerialNumber()));
+		return true;
+	}
+	
+	private void handleZabPayload(ZabPayload event) {
+		try {
+			if (event.getDir() == Direction.DOWN) {
+				// Let the event continue to broadcast
+				event.go();
+				return;
+			}
+			
+			long firstSerial = event.getMessage().popLong();
+			int originId = processList.getId((SocketAddress) event.source);
+			Serializable[] messages;
+			try {
+				messages = CodecRegistry.popAll(event.getMessage());
+			} catch (CodecException e) {
+				// Nobody can order the payloads, since the leader
+				// only gets their ids from here
+				if (logger.isLoggable(Level.WARNING))
+					logger.warning(String.format("Dropped ZabPayload from %d (payload serial #: %d) that cannot be decoded: %s",
+							originId, firstSerial, e));
+				return;
+			}
+			
+			if (logger.isLoggable(Level.FINE))
+				logger.fine(String.format("Received ZabPayload from %d (payload serial #: %d, message #: %d)",
+						originId, firstSerial, messages.length));
+			
+			// The payloads for a previous leader will never be ordered
+			int payloadEpochId = event.getMessage().peekInt();
+			if (payloadEpochId >= epochId)
+				for (int i = 0; i < messages.length; i++)
+					storePayload(new ZabPayloadId(payloadEpochId, originId, firstSerial + i),
+							messages[i]);
+			
+			// Leave only the ids for the leader
+			event.getMessage().pushInt(messages.length);
+			event.getMessage().pushLong(firstSerial);
+			event.go();
+			
+			acceptPendingProposals(event.getChannel());
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void storePayload(ZabPayloadId id, Serializable payload) {
+		// A late payload of a committed proposal would never be dropped
+		if (id.getSerialNumber() > committedPayloadSerials[id.getOriginId()])
+			payloads.put(id, payload);
+	}
+	
+	private void handleZabPayloadRequest(ZabPayloadRequest event) {
+		try {
+			if (event.getDir() == Direction.DOWN) {
+				// Let the event continue to the leader
+				event.go();
+				return;
+			}
+			
+			ZabPayloadId[] ids = ZabPayloadId.popAll(event.getMessage());
+			
+			if (logger.isLoggable(Level.FINE))
+				logger.fine(String.format("Received ZabPayloadRequest from %s (payload #: %d)",
+						event.source, ids.length));
+			
+			List<ZabPayloadId> foundIds = new ArrayList<ZabPayloadId>();
+			List<Serializable> foundPayloads = new ArrayList<Serializable>();
+			for (ZabPayloadId id : ids) {
+				if (payloads.containsKey(id)) {
+					foundIds.add(id);
+					foundPayloads.add(payloads.get(id));
+				}
+			}
+			if (foundIds.isEmpty())
+				return;
+			
+			ZabPayloadReply reply = new ZabPayloadReply(event.getChannel(), this,
+					foundIds.toArray(new ZabPayloadId[foundIds.size()]),
+					foundPayloads.toArray(new Serializable[foundPayloads.size()]));
+			reply.source = processList.getSelfProcess().getAddress();
+			reply.dest = event.source;
+			reply.init();
+			reply.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleZabPayloadReply(ZabPayloadReply event) {
+		try {
+			if (event.getDir() == Direction.DOWN) {
+				// Let the event continue to the requester
+				event.go();
+				return;
+			}
+			
+			ZabPayloadId[] ids = ZabPayloadId.popAll(event.getMessage());
+			Serializable[] replied;
+			try {
+				replied = CodecRegistry.popAll(event.getMessage());
+			} catch (CodecException e) {
+				if (logger.isLoggable(Level.WARNING))
+					logger.warning("Dropped ZabPayloadReply from " + event.source +
+							" that cannot be decoded: " + e);
+				return;
+			}
+			
+			if (logger.isLoggable(Level.FINE))
+				logger.fine(String.format("Received ZabPayloadReply from %s (payload #: %d)",
+						event.source, ids.length));
+			
+			// Only keep the ones that are still waited for
+			Set<ZabPayloadId> missing = getMissingPayloadIds();
+			for (int i = 0; i < ids.length; i++)
+				if (missing.contains(ids[i]))
+					payloads.put(ids[i], replied[i]);
+			
+			acceptPendingProposals(event.getChannel());
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleNextPayloadRequest(NextPayloadRequest event) {
+		isNextPayloadRequestScheduled = false;
+		
+		Set<ZabPayloadId> missing = getMissingPayloadIds();
+		if (missing.isEmpty())
+			return;
+		
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("Ask the leader for %d missing payloads", missing.size()));
+		
+		try {
+			PendingProposal pending = pendingProposals.peek();
+			ZabPayloadRequest request = new ZabPayloadRequest(event.getChannel(), this,
+					missing.toArray(new ZabPayloadId[missing.size()]));
+			request.source = processList.getSelfProcess().getAddress();
+			request.dest = pending.leaderAddress;
+			request.init();
+			request.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+		
+		// Ask again if the reply is lost
+		schedulePayloadRequest(event.getChannel());
+	}
+	
+	private void schedulePayloadRequest(Channel channel) {
+		if (isNextPayloadRequestScheduled)
+			return;
+		
+		try {
+			NextPayloadRequest next = new NextPayloadRequest(PAYLOAD_WAIT_TIME,
+					"NextPayloadRequest", channel, this);
+			next.init();
+			next.go();
+			isNextPayloadRequestScheduled = true;
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		} catch (AppiaException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleNextAccept(NextAccept event) {
+		isNextAcceptScheduled = false;
+		closeAcceptRange(event.getChannel());
+	}
+	
+	private void handleZabLogFlushed(ZabLogFlushed event) {
+		lastFlushedLogPosition = event.getLogPosition();
+		
+		// Acknowledge the proposals that are on the disk now
+		while (!unflushedAccepts.isEmpty() &&
+				unflushedAccepts.peek().logPosition <= lastFlushedLogPosition)
+			sendAccept(event.getChannel(), unflushedAccepts.poll());
+	}
+	
+	private void handleTotalOrderSnapshot(TotalOrderSnapshot event) {
+		if (logger.isLoggable(Level.FINE))
+			logger.fine(String.format("Received TotalOrderSnapshot (up to message %d)",
+					event.getLastMessageSerial()));
+		
+		// Without a log, there is nothing to truncate and no proposal
+		// to send together with the snapshot. VanillaCommServer rejects
+		// the snapshots in MEMORY_ONLY mode, so this should not happen.
+		if (log == null) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Dropped a snapshot since there is no Zab log");
+			return;
+		}
+		
+		try {
+			log.saveSnapshot(new ZabSnapshot(event.getLastMessageSerial(), event.getState()));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleZabCatchUpRequest(ZabCatchUpRequest event) {
+		try {
+			if (event.getDir() == Direction.DOWN) {
+				// Let the event continue to the leader
+				event.go();
+				return;
+			}
+			
+			long fromMessageSerial = event.getMessage().popLong();
+			long toProposalSerial = event.getMessage().popLong();
+			
+			if (logger.isLoggable(Level.FINE))
+				logger.fine(String.format("Received ZabCatchUpRequest from %s (from message %d, up to proposal %d)",
+						event.source, fromMessageSerial, toProposalSerial));
+			
+			if (log == null)
+				return;
+			
+			// The proposals up to the given serial have been committed
+			// since the requester has seen the commits
+			List<ZabProposal> proposals = log.readProposals(fromMessageSerial,
+					toProposalSerial, MAX_CATCH_UP_PROPOSALS);
+			ZabSnapshot snapshot = null;
+			if (proposals.isEmpty() || proposals.get(0).getMessageStartId() > fromMessageSerial) {
+				// The log has been truncated, so start from the snapshot
+				snapshot = log.getSnapshot();
+				if (snapshot == null || snapshot.getLastMessageSerial() < fromMessageSerial) {
+					if (!proposals.isEmpty() && logger.isLoggable(Level.WARNING))
+						logger.warning(String.format("Cannot find the proposals from message %d for %s",
+								fromMessageSerial, event.source));
+					return;
+				}
+				proposals = log.readProposals(snapshot.getLastMessageSerial(),
+						toProposalSerial, MAX_CATCH_UP_PROPOSALS);
+			}
+			
+			ZabCatchUp catchUp = new ZabCatchUp(event.getChannel(), this);
+			ZabProposal.pushAll(catchUp.getMessage(),
+					proposals.toArray(new ZabProposal[proposals.size()]));
+			if (snapshot != null)
+				catchUp.getMessage().pushObject(snapshot);
+			catchUp.getMessage().pushBoolean(snapshot != null);
+			catchUp.source = processList.getSelfProcess().getAddress();
+			catchUp.dest = event.source;
+			catchUp.init();
+			catchUp.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void accept(Channel channel, long proposalSerial, long logPosition,
+			Object leaderAddress, int direction) {
+		// A ZabAccept acknowledges a range of contiguous proposals,
+		// so a gap in the serial numbers ends the current range
+		if (pendingAccept != null && proposalSerial != pendingAccept.lastSerial + 1)
+			closeAcceptRange(channel);
+		
+		if (pendingAccept == null) {
+			pendingAccept = new AcceptRange();
+			pendingAccept.firstSerial = proposalSerial;
+			pendingAccept.leaderAddress = leaderAddress;
+			pendingAccept.direction = direction;
+		}
+		pendingAccept.lastSerial = proposalSerial;
+		pendingAccept.logPosition = logPosition;
+		
+		if (ACCEPT_DELAY <= 0) {
+			closeAcceptRange(channel);
+		} else if (!isNextAcceptScheduled) {
+			try {
+				NextAccept next = new NextAccept(ACCEPT_DELAY, "NextAccept", channel, this);
+				next.init();
+				next.go();
+				isNextAcceptScheduled = true;
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			} catch (AppiaException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void closeAcceptRange(Channel channel) {
+		if (pendingAccept == null)
+			return;
+		
+		// In FSYNC mode, a proposal can be acknowledged
+		// only after it has been forced to the disk
+		if (log != null && ZabLog.MODE == ZabLogMode.FSYNC &&
+				pendingAccept.logPosition > lastFlushedLogPosition)
+			unflushedAccepts.add(pendingAccept);
+		else
+			sendAccept(channel, pendingAccept);
+		
+		pendingAccept = null;
+	}
+	
+	private void sendAccept(Channel channel, AcceptRange range) {
+		// Observers do not vote
+		if (processList.getSelfProcess().isObserver())
+			return;
+		
+		try {
+			// The message carries the last serial of the range, the epoch
+			// and the first serial on top of them
+			ZabAccept accept = new ZabAccept(channel, range.direction, this);
+			accept.getMessage().pushLong(range.lastSerial);
+			accept.getMessage().pushInt(epochId);
+			accept.getMessage().pushLong(range.firstSerial);
+			accept.source = processList.getSelfProcess().getAddress();
+			accept.dest = range.leaderAddress;
+			accept.init();
+			accept.go();
+			
+			if (logger.isLoggable(Level.FINE))
+				logger.fine(String.format("Acknowledge proposals (epoch id: %d, proposal serial #: %d ~ %d)",
+						epochId, range.firstSerial, range.lastSerial));
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
 }
@@ -0,0 +1,25 @@
+package org.vanilladb.comm.protocols.zabacceptance;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * The reply to a ZabCatchUpRequest. It carries the committed proposals that
+ * the requester misses, and a snapshot if the log has been truncated.
+ */
+public class ZabCatchUp extends SendableEvent {
+	
+	// We must provide a public constructor for TcpCompleteSession
+	// in order to reconstruct this on the other side
+	public ZabCatchUp() {
+		super();
+	}
+	
+	public ZabCatchUp(Channel channel, Session source)
+			throws AppiaEventException {
+		super(channel, Direction.DOWN, source);
+	}
+}
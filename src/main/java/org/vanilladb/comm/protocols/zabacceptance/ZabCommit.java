@@ -7,6 +7,10 @@ import net.sf.appia.core.Channel;
 import net.sf.appia.core.Direction;
 import net.sf.appia.core.Session;
 
+/**
+ * Commits the proposals up to a serial. The message carries the epoch id
+ * and the serial as primitives, from the top.
+ */
 public class ZabCommit extends Broadcast {
 	
 	// We must provide a public constructor for TcpCompleteSession
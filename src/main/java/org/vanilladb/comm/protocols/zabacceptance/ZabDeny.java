@@ -5,6 +5,11 @@ import net.sf.appia.core.Channel;
 import net.sf.appia.core.Session;
 import net.sf.appia.core.events.SendableEvent;
 
+/**
+ * Denies a proposal. The message carries the epoch id and the serial
+ * of the proposal, and the epoch id of the denying process as primitives,
+ * from the top.
+ */
 public class ZabDeny extends SendableEvent {
 	
 	// We must provide a public constructor for TcpCompleteSession
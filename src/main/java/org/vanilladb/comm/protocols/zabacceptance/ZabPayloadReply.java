@@ -0,0 +1,32 @@
+package org.vanilladb.comm.protocols.zabacceptance;
+
+import java.io.Serializable;
+
+import org.vanilladb.comm.codec.CodecRegistry;
+import org.vanilladb.comm.protocols.zabproposal.ZabPayloadId;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * The reply to a ZabPayloadRequest, which carries the payloads that the
+ * leader has.
+ */
+public class ZabPayloadReply extends SendableEvent {
+	
+	// We must provide a public constructor for TcpCompleteSession
+	// in order to reconstruct this on the other side
+	public ZabPayloadReply() {
+		super();
+	}
+	
+	public ZabPayloadReply(Channel channel, Session source, ZabPayloadId[] ids,
+			Serializable[] payloads) throws AppiaEventException {
+		super(channel, Direction.DOWN, source);
+		CodecRegistry.pushAll(getMessage(), payloads);
+		ZabPayloadId.pushAll(getMessage(), ids);
+	}
+}
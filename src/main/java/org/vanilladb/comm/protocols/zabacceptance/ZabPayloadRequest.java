@@ -0,0 +1,28 @@
+package org.vanilladb.comm.protocols.zabacceptance;
+
+import org.vanilladb.comm.protocols.zabproposal.ZabPayloadId;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * Sent to the leader by a process that has received a proposal but
+ * misses the payloads of some messages in it.
+ */
+public class ZabPayloadRequest extends SendableEvent {
+	
+	// We must provide a public constructor for TcpCompleteSession
+	// in order to reconstruct this on the other side
+	public ZabPayloadRequest() {
+		super();
+	}
+	
+	public ZabPayloadRequest(Channel channel, Session source, ZabPayloadId[] ids)
+			throws AppiaEventException {
+		super(channel, Direction.DOWN, source);
+		ZabPayloadId.pushAll(getMessage(), ids);
+	}
+}
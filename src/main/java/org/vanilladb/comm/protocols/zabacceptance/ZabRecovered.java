@@ -0,0 +1,51 @@
+package org.vanilladb.comm.protocols.zabacceptance;
+
+import org.vanilladb.comm.protocols.zablog.ZabSnapshot;
+import org.vanilladb.comm.protocols.zabproposal.ZabProposal;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Session;
+
+/**
+ * The state recovered from the log when a process starts. It tells
+ * ZabProposalLayer which proposals have been committed, so that they are
+ * delivered again, and which ones have only been accepted.
+ */
+public class ZabRecovered extends Event {
+	
+	private ZabSnapshot snapshot;
+	private ZabProposal[] proposals;
+	private long committedSerial;
+	
+	public ZabRecovered(Channel channel, Session source, ZabSnapshot snapshot,
+			ZabProposal[] proposals, long committedSerial) throws AppiaEventException {
+		super(channel, Direction.UP, source);
+		this.snapshot = snapshot;
+		this.proposals = proposals;
+		this.committedSerial = committedSerial;
+	}
+	
+	/**
+	 * Returns the latest snapshot, or null if there is no snapshot.
+	 */
+	public ZabSnapshot getSnapshot() {
+		return snapshot;
+	}
+	
+	/**
+	 * Returns the accepted proposals in the order of serial numbers.
+	 */
+	public ZabProposal[] getProposals() {
+		return proposals;
+	}
+	
+	/**
+	 * Returns the serial number of the last proposal known to be committed.
+	 */
+	public long getCommittedSerial() {
+		return committedSerial;
+	}
+}
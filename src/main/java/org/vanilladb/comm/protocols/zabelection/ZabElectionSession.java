@@ -124,8 +124,9 @@ public class ZabElectionSession extends Session {
 	private void electNewLeader() {
 		// A deterministic algorithm
 		// Only works when there are no two processes failed at the same time
+		// Observers cannot be the leader
 		for (int i = processList.getSize() - 1; i >= 0; i--) {
-			if (processList.getProcess(i).isCorrect()) {
+			if (processList.getProcess(i).isCorrect() && !processList.getProcess(i).isObserver()) {
 				leaderId = i;
 				break;
 			}
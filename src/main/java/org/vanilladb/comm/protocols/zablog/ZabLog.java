@@ -0,0 +1,615 @@
+package org.vanilladb.comm.protocols.zablog;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.vanilladb.comm.protocols.zabproposal.ZabProposal;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.message.Message;
+
+/**
+ * An append-only log of the accepted Zab proposals. The log is split into
+ * memory-mapped segment files. Each record is stored as
+ * {@code [length][CRC32][encoded proposal]} and a zero length marks
+ * the end of a segment.<br>
+ * <br>
+ * The proposals are appended by the Appia thread, while a background
+ * thread forces the segments to the disk. In {@link ZabLogMode#FSYNC}
+ * mode, a force covers all the proposals appended before it starts, so
+ * many proposals share one fsync. The thread reports the forced position
+ * through a {@link ZabLogFlushed} event.<br>
+ * <br>
+ * A new leader may propose again the serial numbers that a previous epoch
+ * has used, so a record replaces all the records with the same or higher
+ * serial numbers before it. The log keeps an index of the records that have
+ * not been replaced, and only reads those.<br>
+ * <br>
+ * The application may save a {@link ZabSnapshot} in the log. The segments
+ * that only contain the messages covered by the snapshot are deleted.<br>
+ * <br>
+ * The log must be closed by {@link #close()}, which stops the background
+ * thread and unmaps the segments.
+ */
+public class ZabLog {
+	private static Logger logger = Logger.getLogger(ZabLog.class.getName());
+
+	public static final ZabLogMode MODE = ZabLogMode.valueOf(System.getProperty(
+			ZabLog.class.getName() + ".MODE", ZabLogMode.MEMORY_ONLY.name()));
+	// The directory where each server creates its own log directory
+	private static final String DIRECTORY = System.getProperty(
+			ZabLog.class.getName() + ".DIRECTORY",
+			new File(System.getProperty("java.io.tmpdir"), "vanillacomm-zab-log").getPath());
+	private static final int SEGMENT_SIZE = Integer.getInteger(
+			ZabLog.class.getName() + ".SEGMENT_SIZE", 64 * 1024 * 1024);
+	// How often (in milliseconds) the segments are forced in ASYNC_FLUSH mode
+	private static final long FLUSH_INTERVAL = Long.getLong(
+			ZabLog.class.getName() + ".FLUSH_INTERVAL", 100);
+
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+	private static class Segment {
+		File file;
+		long firstPosition;
+		RandomAccessFile raf;
+		MappedByteBuffer buffer;
+	}
+
+	// Where a record is and the last message that its proposal orders
+	private static class RecordIndex {
+		Segment segment;
+		int offset;
+		long lastMessageSerial;
+
+		RecordIndex(Segment segment, int offset, ZabProposal proposal) {
+			this.segment = segment;
+			this.offset = offset;
+			this.lastMessageSerial = proposal.getMessageStartId() +
+					proposal.getMessageCount() - 1;
+		}
+	}
+
+	private File directory;
+	private Channel channel;
+	private List<Segment> segments = new ArrayList<Segment>();
+	private Segment currentSegment;
+	// <proposal serial #> -> <the latest record of the serial>
+	private TreeMap<Long, RecordIndex> index = new TreeMap<Long, RecordIndex>();
+
+	// The position of a record is its sequence number in the log
+	private long lastAppendedPosition;
+	private long lastFlushedPosition;
+	// The segments that are full but have not been forced to the disk
+	private List<Segment> unflushedSegments = new ArrayList<Segment>();
+
+	private ZabSnapshot snapshot;
+
+	private Thread flusher;
+	private boolean isClosed;
+
+	/**
+	 * Opens (or creates) the log of the given server in the given Zab group
+	 * and recovers the proposals written before.
+	 *
+	 * @param serverId the id of the server who owns the log
+	 * @param groupId the id of the Zab group
+	 * @param channel the channel that {@link ZabLogFlushed} will be inserted into
+	 * @throws IOException if the log cannot be opened
+	 */
+	public ZabLog(int serverId, int groupId, Channel channel) throws IOException {
+		// The first group keeps the directory of a single group
+		String name = "server-" + serverId;
+		if (groupId > 0)
+			name += "-group-" + groupId;
+		this.directory = new File(DIRECTORY, name);
+		this.channel = channel;
+
+		if (!directory.exists() && !directory.mkdirs())
+			throw new IOException("cannot create the log directory: " + directory);
+
+		recover();
+
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("Opened the Zab log at %s in %s mode (%d records recovered)",
+					directory, MODE, lastAppendedPosition));
+
+		flusher = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				flushLoop();
+			}
+
+		}, "Zab-Log-Flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Appends the proposal to the end of the log.
+	 *
+	 * @param proposal the proposal to append
+	 * @return the position of the proposal in the log
+	 * @throws IOException if the proposal cannot be written
+	 */
+	public long append(ZabProposal proposal) throws IOException {
+		if (isClosed)
+			throw new IOException("the log has been closed: " + directory);
+
+		byte[] bytes = encode(proposal);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+
+		// Leave the space for the end mark of the segment
+		int recordSize = RECORD_HEADER_SIZE + bytes.length;
+		if (currentSegment.buffer.remaining() < recordSize + 4)
+			rollSegment(recordSize + 4);
+
+		MappedByteBuffer buffer = currentSegment.buffer;
+		addToIndex(proposal, currentSegment, buffer.position());
+		buffer.putInt(bytes.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(bytes);
+
+		synchronized (this) {
+			lastAppendedPosition++;
+			// The ASYNC_FLUSH flusher forces on its own schedule, so waking
+			// it up here would force nearly every record
+			if (MODE == ZabLogMode.FSYNC)
+				notifyAll();
+			return lastAppendedPosition;
+		}
+	}
+
+	/**
+	 * Reads all the proposals in the log that have not been replaced,
+	 * in the order of serial numbers.
+	 *
+	 * @return the proposals in the log
+	 */
+	public List<ZabProposal> readProposals() {
+		return readProposals(0, Long.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Reads the proposals that have not been replaced in the order of serial
+	 * numbers, starting from the one that ends at or after the given message
+	 * serial.
+	 *
+	 * @param fromMessageSerial the message serial to start from
+	 * @param toProposalSerial the last proposal serial to read
+	 * @param maxCount the maximum number of proposals to read
+	 * @return the proposals in the log
+	 */
+	public List<ZabProposal> readProposals(long fromMessageSerial,
+			long toProposalSerial, int maxCount) {
+		// The segments are unmapped once the log is closed
+		if (isClosed)
+			throw new IllegalStateException("the log has been closed: " + directory);
+
+		List<ZabProposal> proposals = new ArrayList<ZabProposal>();
+		for (RecordIndex record : index.headMap(toProposalSerial, true).values()) {
+			if (record.lastMessageSerial < fromMessageSerial)
+				continue;
+
+			ByteBuffer buffer = record.segment.buffer.duplicate();
+			buffer.position(record.offset);
+			proposals.add(decode(readRecord(buffer)));
+			if (proposals.size() >= maxCount)
+				break;
+		}
+		return proposals;
+	}
+
+	/**
+	 * Saves the snapshot to the disk and deletes the segments
+	 * that are no longer needed.
+	 *
+	 * @param snapshot the snapshot of the application
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public void saveSnapshot(ZabSnapshot snapshot) throws IOException {
+		if (isClosed)
+			throw new IOException("the log has been closed: " + directory);
+		if (this.snapshot != null &&
+				this.snapshot.getLastMessageSerial() >= snapshot.getLastMessageSerial())
+			return;
+
+		// Write to a temporary file first so that a crash
+		// will not leave a broken snapshot
+		File file = snapshotFile(snapshot.getLastMessageSerial());
+		File tempFile = new File(directory, file.getName() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tempFile);
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(fos);
+			out.writeObject(snapshot);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tempFile.renameTo(file))
+			throw new IOException("cannot save the snapshot: " + file);
+
+		if (this.snapshot != null)
+			snapshotFile(this.snapshot.getLastMessageSerial()).delete();
+		this.snapshot = snapshot;
+
+		truncate(snapshot.getLastMessageSerial());
+	}
+
+	/**
+	 * Returns the latest snapshot, or null if there is no snapshot.
+	 */
+	public ZabSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	public synchronized long getLastAppendedPosition() {
+		return lastAppendedPosition;
+	}
+
+	/**
+	 * Forces the appended proposals to the disk, stops the background
+	 * thread and unmaps the segments. The log cannot be used afterwards.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (isClosed)
+				return;
+			isClosed = true;
+			notifyAll();
+		}
+
+		// The flusher must not touch the segments after they are unmapped
+		boolean isInterrupted = false;
+		while (flusher.isAlive()) {
+			try {
+				flusher.join();
+			} catch (InterruptedException e) {
+				isInterrupted = true;
+			}
+		}
+		if (isInterrupted)
+			Thread.currentThread().interrupt();
+
+		if (lastAppendedPosition > lastFlushedPosition) {
+			for (Segment segment : unflushedSegments)
+				segment.buffer.force();
+			currentSegment.buffer.force();
+			lastFlushedPosition = lastAppendedPosition;
+		}
+		for (Segment segment : segments)
+			closeSegment(segment);
+		segments.clear();
+		unflushedSegments.clear();
+		index.clear();
+		currentSegment = null;
+
+		if (logger.isLoggable(Level.INFO))
+			logger.info("Closed the Zab log at " + directory);
+	}
+
+	/**
+	 * Deletes the oldest segments whose messages are all before the given
+	 * serial. The proposal that contains the message is kept, so that the
+	 * replicas receiving the snapshot can know where to continue.
+	 */
+	private void truncate(long messageSerial) {
+		// The segments are deleted from the oldest one, so that a record
+		// never comes back after the one replacing it is deleted
+		Set<Segment> inUse = new HashSet<Segment>();
+		for (RecordIndex record : index.values())
+			if (record.lastMessageSerial >= messageSerial)
+				inUse.add(record.segment);
+		int count = 0;
+		while (count + 1 < segments.size() && !inUse.contains(segments.get(count)))
+			count++;
+
+		Iterator<RecordIndex> iter = index.values().iterator();
+		while (iter.hasNext()) {
+			Segment segment = iter.next().segment;
+			if (segments.indexOf(segment) < count)
+				iter.remove();
+		}
+
+		for (int i = 0; i < count; i++) {
+			Segment segment;
+			synchronized (this) {
+				segment = segments.remove(0);
+				unflushedSegments.remove(segment);
+			}
+			// Not unmapped, since the flusher may be forcing it
+			try {
+				segment.raf.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			segment.file.delete();
+
+			if (logger.isLoggable(Level.FINE))
+				logger.fine("Deleted the log segment " + segment.file);
+		}
+	}
+
+	private File snapshotFile(long lastMessageSerial) {
+		return new File(directory, String.format("%s%020d", SNAPSHOT_PREFIX, lastMessageSerial));
+	}
+
+	private void recover() throws IOException {
+		File[] files = directory.listFiles();
+		Arrays.sort(files);
+
+		// Load the latest snapshot
+		for (File file : files) {
+			if (!file.getName().startsWith(SNAPSHOT_PREFIX))
+				continue;
+			if (file.getName().endsWith(".tmp")) {
+				file.delete();
+				continue;
+			}
+			ZabSnapshot loaded = (ZabSnapshot) deserialize(readFile(file));
+			if (snapshot != null)
+				snapshotFile(snapshot.getLastMessageSerial()).delete();
+			snapshot = loaded;
+		}
+
+		boolean isCorrupted = false;
+		for (File file : files) {
+			if (!file.getName().endsWith(SEGMENT_SUFFIX))
+				continue;
+
+			// The records after a corrupted one are not trustworthy
+			if (isCorrupted) {
+				if (logger.isLoggable(Level.WARNING))
+					logger.warning("Delete the segment after the corrupted record: " + file);
+				file.delete();
+				continue;
+			}
+
+			long firstPosition = Long.parseLong(file.getName().substring(0,
+					file.getName().length() - SEGMENT_SUFFIX.length()));
+			Segment segment = openSegment(file, firstPosition, 0);
+			MappedByteBuffer buffer = segment.buffer;
+			lastAppendedPosition = firstPosition - 1;
+			int offset = buffer.position();
+			byte[] bytes;
+			while ((bytes = readRecord(buffer)) != null) {
+				addToIndex(decode(bytes), segment, offset);
+				offset = buffer.position();
+				lastAppendedPosition++;
+			}
+
+			// A non-zero length without a valid record means that
+			// the process crashed while writing the record. Erase the
+			// rest of the segment so that the new records will not be
+			// mixed with the garbage.
+			if (buffer.remaining() >= 4 && buffer.getInt(buffer.position()) != 0) {
+				isCorrupted = true;
+				int position = buffer.position();
+				while (buffer.hasRemaining())
+					buffer.put((byte) 0);
+				buffer.position(position);
+			}
+
+			segments.add(segment);
+			currentSegment = segment;
+		}
+		lastFlushedPosition = lastAppendedPosition;
+
+		if (currentSegment == null) {
+			currentSegment = createSegment(lastAppendedPosition + 1, SEGMENT_SIZE);
+			segments.add(currentSegment);
+		}
+	}
+
+	private void addToIndex(ZabProposal proposal, Segment segment, int offset) {
+		long serial = proposal.getId().getSerialNumber();
+		index.tailMap(serial, true).clear();
+		index.put(serial, new RecordIndex(segment, offset, proposal));
+	}
+
+	private void rollSegment(int minSize) throws IOException {
+		Segment segment = createSegment(lastAppendedPosition + 1,
+				Math.max(SEGMENT_SIZE, minSize));
+
+		synchronized (this) {
+			unflushedSegments.add(currentSegment);
+			segments.add(segment);
+			currentSegment = segment;
+		}
+	}
+
+	private Segment createSegment(long firstPosition, int size) throws IOException {
+		File file = new File(directory, String.format("%020d%s", firstPosition, SEGMENT_SUFFIX));
+		return openSegment(file, firstPosition, size);
+	}
+
+	private Segment openSegment(File file, long firstPosition, int size) throws IOException {
+		Segment segment = new Segment();
+		segment.file = file;
+		segment.firstPosition = firstPosition;
+		segment.raf = new RandomAccessFile(file, "rw");
+		if (segment.raf.length() < size)
+			segment.raf.setLength(size);
+		segment.buffer = segment.raf.getChannel().map(
+				FileChannel.MapMode.READ_WRITE, 0, segment.raf.length());
+		return segment;
+	}
+
+	private void closeSegment(Segment segment) {
+		try {
+			segment.raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		unmap(segment.buffer);
+		segment.buffer = null;
+	}
+
+	private void flushLoop() {
+		while (true) {
+			try {
+				List<Segment> toFlush;
+				long flushingPosition;
+
+				synchronized (this) {
+					if (MODE == ZabLogMode.FSYNC) {
+						// Force as soon as there is something new
+						while (!isClosed && lastAppendedPosition == lastFlushedPosition)
+							wait();
+					} else {
+						// Force once per interval, so that all the records
+						// appended in the interval share the force
+						long deadline = System.currentTimeMillis() + FLUSH_INTERVAL;
+						long remaining;
+						while (!isClosed && (remaining = deadline - System.currentTimeMillis()) > 0)
+							wait(remaining);
+					}
+
+					// The rest is forced by close()
+					if (isClosed)
+						return;
+					if (lastAppendedPosition == lastFlushedPosition)
+						continue;
+
+					flushingPosition = lastAppendedPosition;
+					toFlush = new ArrayList<Segment>(unflushedSegments);
+					toFlush.add(currentSegment);
+					unflushedSegments.clear();
+				}
+
+				for (Segment segment : toFlush)
+					segment.buffer.force();
+
+				synchronized (this) {
+					lastFlushedPosition = flushingPosition;
+				}
+
+				if (MODE == ZabLogMode.FSYNC) {
+					ZabLogFlushed flushed = new ZabLogFlushed(flushingPosition);
+					flushed.asyncGo(channel, Direction.UP);
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Reads the record at the current position of the buffer. If there is
+	 * no complete record, the position of the buffer is left unchanged.
+	 */
+	private static byte[] readRecord(ByteBuffer buffer) {
+		int start = buffer.position();
+		if (buffer.remaining() < RECORD_HEADER_SIZE)
+			return null;
+
+		int length = buffer.getInt();
+		int checksum = buffer.getInt();
+		if (length <= 0 || length > buffer.remaining()) {
+			buffer.position(start);
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		if ((int) crc.getValue() != checksum) {
+			buffer.position(start);
+			return null;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Releases the mapping of the buffer without waiting for the garbage
+	 * collector, so that the segment files are not kept open. There is no
+	 * public API for this before Java 19, so the cleaner of the buffer is
+	 * found by reflection. If it cannot be found, the mapping is released
+	 * once the buffer is collected.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			// Java 9 and above
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			return;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Try the cleaner of Java 7 and 8
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null)
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			if (logger.isLoggable(Level.FINE))
+				logger.fine("Cannot unmap a log segment, leaving it to the garbage collector: " + e);
+		}
+	}
+
+	private static byte[] encode(ZabProposal proposal) {
+		// Same as the proposal sent through the network
+		Message message = new Message();
+		proposal.push(message);
+		return message.toByteArray();
+	}
+
+	private static ZabProposal decode(byte[] bytes) {
+		return ZabProposal.pop(new Message(bytes, 0, bytes.length));
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) raf.length()];
+			raf.readFully(bytes);
+			return bytes;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static Object deserialize(byte[] bytes) {
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			return in.readObject();
+		} catch (IOException e) {
+			throw new RuntimeException("cannot read an object from the log", e);
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException("cannot read an object from the log", e);
+		}
+	}
+}
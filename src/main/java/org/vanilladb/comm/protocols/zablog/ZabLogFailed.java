@@ -0,0 +1,28 @@
+package org.vanilladb.comm.protocols.zablog;
+
+import java.io.IOException;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Session;
+
+/**
+ * Tells the application that the proposals can no longer be written to
+ * the {@link ZabLog}. The process stops acknowledging the proposals of the
+ * channel, as if it had crashed, since it cannot keep what it acknowledges.
+ */
+public class ZabLogFailed extends Event {
+	
+	private IOException error;
+	
+	public ZabLogFailed(Channel channel, int dir, Session source, IOException error)
+			throws AppiaEventException {
+		super(channel, dir, source);
+		this.error = error;
+	}
+	
+	public IOException getError() {
+		return error;
+	}
+}
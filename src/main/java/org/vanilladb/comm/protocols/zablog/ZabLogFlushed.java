@@ -0,0 +1,22 @@
+package org.vanilladb.comm.protocols.zablog;
+
+import net.sf.appia.core.Event;
+
+/**
+ * Inserted asynchronously by {@link ZabLog} to notify the protocols that
+ * all the proposals appended at or before the given log position are
+ * on the disk.
+ */
+public class ZabLogFlushed extends Event {
+	
+	private long logPosition;
+	
+	public ZabLogFlushed(long logPosition) {
+		super();
+		this.logPosition = logPosition;
+	}
+	
+	public long getLogPosition() {
+		return logPosition;
+	}
+}
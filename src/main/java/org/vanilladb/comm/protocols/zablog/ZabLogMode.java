@@ -0,0 +1,22 @@
+package org.vanilladb.comm.protocols.zablog;
+
+public enum ZabLogMode {
+	
+	/**
+	 * Proposals are accepted only after they are forced to the disk.
+	 * One force covers all the proposals appended since the last one.
+	 */
+	FSYNC,
+	
+	/**
+	 * Proposals are accepted once they are written to the memory-mapped
+	 * segments. The segments are forced to the disk periodically.
+	 */
+	ASYNC_FLUSH,
+	
+	/**
+	 * Proposals are only kept in memory. Nothing is recovered after a
+	 * restart, and the application cannot save snapshots.
+	 */
+	MEMORY_ONLY
+}
@@ -0,0 +1,28 @@
+package org.vanilladb.comm.protocols.zablog;
+
+import java.io.Serializable;
+
+/**
+ * A state snapshot of the application that reflects all the
+ * total order messages up to the given serial number.
+ */
+public class ZabSnapshot implements Serializable {
+	
+	private static final long serialVersionUID = 20261017001L;
+	
+	private long lastMessageSerial;
+	private Serializable state;
+	
+	public ZabSnapshot(long lastMessageSerial, Serializable state) {
+		this.lastMessageSerial = lastMessageSerial;
+		this.state = state;
+	}
+	
+	public long getLastMessageSerial() {
+		return lastMessageSerial;
+	}
+	
+	public Serializable getState() {
+		return state;
+	}
+}
@@ -0,0 +1,121 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+/**
+ * Decides how many messages the Zab leader packs into a proposal and how
+ * long it waits for more messages before proposing. The leader only waits
+ * while some proposals are on the fly, so that a message sent to an idle
+ * leader is proposed at once. The size limit of a batch adapts to the
+ * observed commit latency. It grows while batches are full and the latency
+ * stays close to the lowest one we have seen, and it shrinks as soon as the
+ * latency grows beyond that.
+ */
+class ZabBatchPolicy {
+	
+	private static final int MAX_BATCH_MESSAGES = Integer.getInteger(
+			ZabBatchPolicy.class.getName() + ".MAX_BATCH_MESSAGES", 1000);
+	private static final int MAX_BATCH_BYTES = Integer.getInteger(
+			ZabBatchPolicy.class.getName() + ".MAX_BATCH_BYTES", 1024 * 1024);
+	private static final long MAX_LINGER_TIME = Long.getLong(
+			ZabBatchPolicy.class.getName() + ".MAX_LINGER_TIME", 2); // in milliseconds
+	
+	private static final int INITIAL_BATCH_MESSAGES = 16;
+	// How much the commit latency may exceed the lowest one before shrinking
+	private static final double LATENCY_TOLERANCE = 2.0;
+	// The weight of a new sample in the moving averages
+	private static final double SMOOTHING_FACTOR = 0.2;
+	// How fast the lowest latency drifts towards the average one, so that
+	// the policy can follow a slower network or heavier messages
+	private static final double BASELINE_DRIFT = 0.01;
+	
+	private int batchSizeLimit = Math.min(INITIAL_BATCH_MESSAGES, MAX_BATCH_MESSAGES);
+	private double avgBytesPerMessage; // 0 means unknown
+	private double avgCommitLatency; // in milliseconds
+	private double minCommitLatency = Double.MAX_VALUE; // in milliseconds
+	private long lastProposedSerial;
+	// Shrink at most once per round of proposals, since the proposals that
+	// were sent before shrinking still carry the old latency
+	private long shrinkableAfterSerial;
+	
+	/**
+	 * Gets the maximum number of messages that the next proposal can carry.
+	 * 
+	 * @return the maximum number of messages, which is at least 1
+	 */
+	int getBatchSizeLimit() {
+		int limit = batchSizeLimit;
+		if (avgBytesPerMessage > 0)
+			limit = (int) Math.min(limit, MAX_BATCH_BYTES / avgBytesPerMessage);
+		return Math.max(1, limit);
+	}
+	
+	/**
+	 * Gets how long the leader may wait for a batch to fill up.
+	 * 
+	 * @return the linger time in milliseconds
+	 */
+	long getLingerTime() {
+		return MAX_LINGER_TIME;
+	}
+	
+	/**
+	 * Checks if the leader should propose the queued messages now.
+	 * 
+	 * @param queuedCount the number of queued messages
+	 * @param waitedTime how long the oldest queued message has waited in milliseconds
+	 * @param inFlightCount the number of proposals that have not been committed
+	 * @return true if it is time to propose
+	 */
+	boolean isReadyToPropose(int queuedCount, long waitedTime, int inFlightCount) {
+		// Nothing would be sent while waiting, so waiting only adds latency
+		if (inFlightCount == 0)
+			return true;
+		return queuedCount >= getBatchSizeLimit() || waitedTime >= MAX_LINGER_TIME;
+	}
+	
+	/**
+	 * Records the size of a sent proposal.
+	 * 
+	 * @param proposalSerial the serial number of the proposal
+	 * @param messageCount the number of messages in the proposal
+	 * @param byteCount the serialized size of the proposal
+	 */
+	void onProposed(long proposalSerial, int messageCount, int byteCount) {
+		lastProposedSerial = proposalSerial;
+		
+		double bytesPerMessage = (double) byteCount / messageCount;
+		if (avgBytesPerMessage == 0)
+			avgBytesPerMessage = bytesPerMessage;
+		else
+			avgBytesPerMessage += SMOOTHING_FACTOR * (bytesPerMessage - avgBytesPerMessage);
+	}
+	
+	/**
+	 * Records the commit latency of a proposal and adjusts the batch size limit.
+	 * 
+	 * @param proposalSerial the serial number of the proposal
+	 * @param messageCount the number of messages in the proposal
+	 * @param latency the time from proposing to committing in milliseconds
+	 */
+	void onCommitted(long proposalSerial, int messageCount, double latency) {
+		if (minCommitLatency == Double.MAX_VALUE) {
+			avgCommitLatency = latency;
+			minCommitLatency = latency;
+		} else {
+			avgCommitLatency += SMOOTHING_FACTOR * (latency - avgCommitLatency);
+			minCommitLatency = Math.min(latency,
+					minCommitLatency + BASELINE_DRIFT * (avgCommitLatency - minCommitLatency));
+		}
+		
+		if (avgCommitLatency > minCommitLatency * LATENCY_TOLERANCE) {
+			// Multiplicative decrease
+			if (proposalSerial > shrinkableAfterSerial) {
+				batchSizeLimit = Math.max(1, batchSizeLimit * 3 / 4);
+				shrinkableAfterSerial = lastProposedSerial;
+			}
+		} else if (messageCount >= batchSizeLimit) {
+			// Additive increase, only when the batches are really full
+			batchSizeLimit = Math.min(MAX_BATCH_MESSAGES,
+					batchSizeLimit + Math.max(1, batchSizeLimit / 8));
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * Sent by a process that misses some committed proposals. It asks for the
+ * proposals after the last delivered message up to the given proposal
+ * serial.
+ */
+public class ZabCatchUpRequest extends SendableEvent {
+	
+	// We must provide a public constructor for TcpCompleteSession
+	// in order to reconstruct this on the other side
+	public ZabCatchUpRequest() {
+		super();
+	}
+	
+	public ZabCatchUpRequest(Channel channel, Session source, long fromMessageSerial,
+			long toProposalSerial) throws AppiaEventException {
+		super(channel, Direction.DOWN, source);
+		getMessage().pushLong(toProposalSerial);
+		getMessage().pushLong(fromMessageSerial);
+	}
+}
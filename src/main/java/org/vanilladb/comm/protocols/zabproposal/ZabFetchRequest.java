@@ -0,0 +1,28 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * Sent by a process that misses some committed proposals. It asks for the
+ * proposals in the given range of proposal serials, which the receiver
+ * serves from its retransmission cache.
+ */
+public class ZabFetchRequest extends SendableEvent {
+	
+	// We must provide a public constructor for TcpCompleteSession
+	// in order to reconstruct this on the other side
+	public ZabFetchRequest() {
+		super();
+	}
+	
+	public ZabFetchRequest(Channel channel, Session source, long fromProposalSerial,
+			long toProposalSerial) throws AppiaEventException {
+		super(channel, Direction.DOWN, source);
+		getMessage().pushLong(toProposalSerial);
+		getMessage().pushLong(fromProposalSerial);
+	}
+}
@@ -0,0 +1,37 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import java.io.Serializable;
+
+import org.vanilladb.comm.codec.CodecRegistry;
+import org.vanilladb.comm.protocols.beb.Broadcast;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Session;
+
+/**
+ * Broadcast by the server that receives some total order messages, so that
+ * every server has their payloads before the leader orders their ids.
+ * The messages are numbered from the given serial by the sender. Only the
+ * leader of the given epoch orders them.<br>
+ * <br>
+ * The acceptance layer keeps the payloads. On the way up, it leaves only
+ * the number of messages on top of the first serial for the leader.
+ */
+public class ZabPayload extends Broadcast {
+	
+	// We must provide a public constructor for TcpCompleteSession
+	// in order to reconstruct this on the other side
+	public ZabPayload() {
+		super();
+	}
+	
+	public ZabPayload(Channel channel, Session source, int epochId, long firstSerial,
+			Serializable[] messages) throws AppiaEventException {
+		super(channel, Direction.DOWN, source);
+		getMessage().pushInt(epochId);
+		CodecRegistry.pushAll(getMessage(), messages);
+		getMessage().pushLong(firstSerial);
+	}
+}
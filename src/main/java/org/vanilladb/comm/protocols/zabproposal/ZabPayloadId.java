@@ -0,0 +1,116 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.vanilladb.comm.codec.CodecRegistry;
+import org.vanilladb.comm.codec.MessageCodec;
+
+import net.sf.appia.core.message.Message;
+
+/**
+ * Identifies a total order message whose payload is disseminated by the
+ * server that received it, so that the leader only needs to order the ids.
+ * The epoch is the one of the leader that the payload is sent to.
+ */
+public class ZabPayloadId implements Serializable {
+	
+	private static final long serialVersionUID = 20261018001L;
+	
+	public static final MessageCodec<ZabPayloadId> CODEC = new MessageCodec<ZabPayloadId>() {
+		
+		@Override
+		public void encode(ZabPayloadId id, DataOutput out) throws IOException {
+			out.writeInt(id.epochId);
+			out.writeInt(id.originId);
+			out.writeLong(id.serialNumber);
+		}
+		
+		@Override
+		public ZabPayloadId decode(DataInput in) throws IOException {
+			return new ZabPayloadId(in.readInt(), in.readInt(), in.readLong());
+		}
+	};
+	
+	// The type id reserved for this class in CodecRegistry
+	private static final int CODEC_TYPE_ID = -2;
+	
+	static void registerCodec() {
+		CodecRegistry.registerReserved(CODEC_TYPE_ID, ZabPayloadId.class, CODEC);
+	}
+	
+	private int epochId;
+	private int originId;
+	private long serialNumber;
+	
+	public ZabPayloadId(int epochId, int originId, long serialNumber) {
+		this.epochId = epochId;
+		this.originId = originId;
+		this.serialNumber = serialNumber;
+	}
+	
+	public void push(Message buffer) {
+		buffer.pushLong(serialNumber);
+		buffer.pushInt(originId);
+		buffer.pushInt(epochId);
+	}
+	
+	public static ZabPayloadId pop(Message buffer) {
+		int epochId = buffer.popInt();
+		int originId = buffer.popInt();
+		long serialNumber = buffer.popLong();
+		return new ZabPayloadId(epochId, originId, serialNumber);
+	}
+	
+	public static void pushAll(Message buffer, ZabPayloadId[] ids) {
+		for (int i = ids.length - 1; i >= 0; i--)
+			ids[i].push(buffer);
+		buffer.pushInt(ids.length);
+	}
+	
+	public static ZabPayloadId[] popAll(Message buffer) {
+		ZabPayloadId[] ids = new ZabPayloadId[buffer.popInt()];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = pop(buffer);
+		return ids;
+	}
+	
+	public int getEpochId() {
+		return epochId;
+	}
+	
+	public int getOriginId() {
+		return originId;
+	}
+	
+	public long getSerialNumber() {
+		return serialNumber;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (!(obj instanceof ZabPayloadId))
+			return false;
+		ZabPayloadId id = (ZabPayloadId) obj;
+		return epochId == id.epochId && originId == id.originId &&
+				serialNumber == id.serialNumber;
+	}
+	
+	@Override
+	public int hashCode() {
+		int hash = 17;
+		hash = hash * 31 + epochId;
+		hash = hash * 31 + originId;
+		hash = hash * 31 + (int) (serialNumber ^ (serialNumber >>> 32));
+		return hash;
+	}
+	
+	@Override
+	public String toString() {
+		return epochId + "-" + originId + "-" + serialNumber;
+	}
+}
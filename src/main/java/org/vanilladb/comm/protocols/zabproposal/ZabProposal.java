@@ -2,21 +2,76 @@ package org.vanilladb.comm.protocols.zabproposal;
 
 import java.io.Serializable;
 
+import org.vanilladb.comm.codec.CodecException;
+import org.vanilladb.comm.codec.CodecRegistry;
+
+import net.sf.appia.core.message.Message;
+
 /**
- * A Zab proposal
+ * A Zab proposal. It is pushed to the message buffers field by field
+ * instead of being serialized, so that the messages in byte arrays
+ * are carried as they are and the registered codecs are used.<br>
+ * <br>
+ * The header of a proposal is pushed as primitives in front of its
+ * encoded messages. A proposal popped from a buffer keeps the messages
+ * encoded until they are needed, which is usually when it is delivered,
+ * and pushes the same bytes again if it is sent or logged.
  */
-public class ZabProposal implements Serializable {
-	
-	private static final long serialVersionUID = 20200501001L;
+public class ZabProposal {
 	
 	private ZabProposalId proposalId;
 	private long messageStartId;
+	private int messageCount;
+	// Whether some messages are the ids of the payloads disseminated
+	// by the other servers
+	private boolean hasPayloadIds;
+	// Either of them may be null until it is needed
 	private Serializable[] messages;
+	private byte[] encodedMessages;
+	// The highest proposal serial that the leader had committed
+	// when it made this proposal
+	private long commitWatermark;
+	// The round for merging the total orders of multiple groups,
+	// which never decreases along the proposals
+	private long round;
 	
-	public ZabProposal(ZabProposalId proposalId, long messageStartId, Serializable[] messages) {
+	public ZabProposal(ZabProposalId proposalId, long messageStartId,
+			Serializable[] messages, long commitWatermark, long round) {
 		this.proposalId = proposalId;
 		this.messageStartId = messageStartId;
+		this.messageCount = messages.length;
 		this.messages = messages;
+		this.commitWatermark = commitWatermark;
+		this.round = round;
+		
+		for (Serializable message : messages)
+			if (message instanceof ZabPayloadId)
+				hasPayloadIds = true;
+	}
+	
+	private ZabProposal(ZabProposalId proposalId, long messageStartId, int messageCount,
+			boolean hasPayloadIds, byte[] encodedMessages, long commitWatermark, long round) {
+		this.proposalId = proposalId;
+		this.messageStartId = messageStartId;
+		this.messageCount = messageCount;
+		this.hasPayloadIds = hasPayloadIds;
+		this.encodedMessages = encodedMessages;
+		this.commitWatermark = commitWatermark;
+		this.round = round;
+	}
+	
+	/**
+	 * Creates a proposal ordering the same messages with another id, such as
+	 * when a new leader proposes them again. The messages are not decoded.
+	 * 
+	 * @return the new proposal
+	 */
+	public ZabProposal withId(ZabProposalId proposalId, long messageStartId,
+			long commitWatermark, long round) {
+		if (encodedMessages == null)
+			return new ZabProposal(proposalId, messageStartId, messages, commitWatermark, round);
+		return new ZabProposal(proposalId, messageStartId, messageCount, hasPayloadIds,
+				encodedMessages, commitWatermark, round);
 	}
 	
 	public ZabProposalId getId() {
@@ -27,7 +82,76 @@ public class ZabProposal implements Serializable {
 		return messageStartId;
 	}
 	
-	public Serializable[] getMessages() {
+	public int getMessageCount() {
+		return messageCount;
+	}
+	
+	public boolean hasPayloadIds() {
+		return hasPayloadIds;
+	}
+	
+	/**
+	 * Gets the messages of the proposal, which decodes them at the first call
+	 * if the proposal has been popped from a buffer.
+	 * 
+	 * @return the messages
+	 * @throws CodecException if the messages cannot be decoded
+	 */
+	public Serializable[] getMessages() throws CodecException {
+		if (messages == null)
+			messages = CodecRegistry.popAll(
+					new Message(encodedMessages, 0, encodedMessages.length));
 		return messages;
 	}
+	
+	public long getCommitWatermark() {
+		return commitWatermark;
+	}
+	
+	public long getRound() {
+		return round;
+	}
+	
+	public void push(Message buffer) {
+		if (encodedMessages == null) {
+			Message encoded = new Message();
+			CodecRegistry.pushAll(encoded, messages);
+			encodedMessages = encoded.toByteArray();
+		}
+		
+		CodecRegistry.pushBytes(buffer, encodedMessages);
+		buffer.pushBoolean(hasPayloadIds);
+		buffer.pushInt(messageCount);
+		buffer.pushLong(round);
+		buffer.pushLong(commitWatermark);
+		buffer.pushLong(messageStartId);
+		buffer.pushLong(proposalId.getSerialNumber());
+		buffer.pushInt(proposalId.getEpochId());
+	}
+	
+	public static ZabProposal pop(Message buffer) {
+		int epochId = buffer.popInt();
+		long serialNumber = buffer.popLong();
+		long messageStartId = buffer.popLong();
+		long commitWatermark = buffer.popLong();
+		long round = buffer.popLong();
+		int messageCount = buffer.popInt();
+		boolean hasPayloadIds = buffer.popBoolean();
+		byte[] encodedMessages = CodecRegistry.popBytes(buffer);
+		return new ZabProposal(new ZabProposalId(epochId, serialNumber), messageStartId,
+				messageCount, hasPayloadIds, encodedMessages, commitWatermark, round);
+	}
+	
+	public static void pushAll(Message buffer, ZabProposal[] proposals) {
+		for (int i = proposals.length - 1; i >= 0; i--)
+			proposals[i].push(buffer);
+		buffer.pushInt(proposals.length);
+	}
+	
+	public static ZabProposal[] popAll(Message buffer) {
+		ZabProposal[] proposals = new ZabProposal[buffer.popInt()];
+		for (int i = 0; i < proposals.length; i++)
+			proposals[i] = pop(buffer);
+		return proposals;
+	}
 }
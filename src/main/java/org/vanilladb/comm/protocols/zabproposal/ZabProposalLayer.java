@@ -1,13 +1,19 @@
 package org.vanilladb.comm.protocols.zabproposal;
 
 import org.vanilladb.comm.protocols.events.ProcessListInit;
+import org.vanilladb.comm.protocols.multicastbeb.BroadcastsLost;
+import org.vanilladb.comm.protocols.tcpfd.FailureDetected;
 import org.vanilladb.comm.protocols.tcpfd.ProcessConnected;
 import org.vanilladb.comm.protocols.totalorderappl.TotalOrderMessages;
 import org.vanilladb.comm.protocols.totalorderappl.TotalOrderRequest;
+import org.vanilladb.comm.protocols.totalorderappl.TotalOrderRoundRequest;
+import org.vanilladb.comm.protocols.totalorderappl.TotalOrderSnapshot;
 import org.vanilladb.comm.protocols.zabacceptance.ZabAccept;
 import org.vanilladb.comm.protocols.zabacceptance.ZabCacheProposal;
+import org.vanilladb.comm.protocols.zabacceptance.ZabCatchUp;
 import org.vanilladb.comm.protocols.zabacceptance.ZabCommit;
 import org.vanilladb.comm.protocols.zabacceptance.ZabDeny;
+import org.vanilladb.comm.protocols.zabacceptance.ZabRecovered;
 import org.vanilladb.comm.protocols.zabelection.LeaderChanged;
 import org.vanilladb.comm.protocols.zabelection.LeaderInit;
 
@@ -16,12 +22,45 @@ import net.sf.appia.core.Session;
 
 public class ZabProposalLayer extends Layer {
 	
+	private long roundInterval;
+	
 	public ZabProposalLayer() {
+		this(0);
+	}
+	
+	/**
+	 * Creates a layer whose leader stamps the proposals with rounds of
+	 * the given length, so that the total orders of multiple groups can be
+	 * merged. The leader proposes an empty proposal when the other groups
+	 * wait for it to move past a round.
+	 * 
+	 * @param roundInterval the length of a round in milliseconds,
+	 * 0 for not using rounds
+	 */
+	public ZabProposalLayer(long roundInterval) {
+		this.roundInterval = roundInterval;
+		
+		// The proposals may carry the payload ids instead of the messages
+		ZabPayloadId.registerCodec();
+		
 		// Events that the protocol will create
 		evProvide = new Class[] {
 			ZabPropose.class,
 			TotalOrderMessages.class,
-			ZabCommit.class
+			ZabCommit.class,
+			NextProposal.class,
+			NextRedirect.class,
+			NextCommit.class,
+			NextRound.class,
+			NextResend.class,
+			ZabCatchUpRequest.class,
+			TotalOrderSnapshot.class,
+			ZabCatchUp.class,
+			ZabSyncQuery.class,
+			ZabSyncInfo.class,
+			ZabFetchRequest.class,
+			ZabResend.class,
+			ZabPayload.class
 		};
 		
 		// Events that the protocol requires to work
@@ -40,18 +79,32 @@ public class ZabProposalLayer extends Layer {
 		evAccept = new Class[] {
 			ProcessListInit.class,
 			ProcessConnected.class,
+			FailureDetected.class,
 			LeaderInit.class,
 			LeaderChanged.class,
 			TotalOrderRequest.class,
 			ZabCacheProposal.class,
 			ZabAccept.class,
 			ZabDeny.class,
-			ZabCommit.class
+			ZabCommit.class,
+			NextProposal.class,
+			NextRedirect.class,
+			NextCommit.class,
+			NextRound.class,
+			NextResend.class,
+			ZabCatchUp.class,
+			ZabRecovered.class,
+			ZabSyncQuery.class,
+			ZabSyncInfo.class,
+			ZabFetchRequest.class,
+			ZabPayload.class,
+			BroadcastsLost.class,
+			TotalOrderRoundRequest.class
 		};
 	}
 
 	@Override
 	public Session createSession() {
-		return new ZabProposalSession(this);
+		return new ZabProposalSession(this, roundInterval);
 	}
 }
@@ -1,52 +1,172 @@
 package org.vanilladb.comm.protocols.zabproposal;
 
 import java.io.Serializable;
+import java.net.SocketAddress;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.vanilladb.comm.codec.CodecException;
+import org.vanilladb.comm.process.CommProcess;
 import org.vanilladb.comm.process.ProcessList;
 import org.vanilladb.comm.process.ProcessState;
 import org.vanilladb.comm.protocols.events.ProcessListInit;
+import org.vanilladb.comm.protocols.multicastbeb.BroadcastsLost;
+import org.vanilladb.comm.protocols.tcpfd.FailureDetected;
 import org.vanilladb.comm.protocols.tcpfd.ProcessConnected;
 import org.vanilladb.comm.protocols.totalorderappl.TotalOrderMessages;
 import org.vanilladb.comm.protocols.totalorderappl.TotalOrderRequest;
+import org.vanilladb.comm.protocols.totalorderappl.TotalOrderRoundRequest;
+import org.vanilladb.comm.protocols.totalorderappl.TotalOrderSnapshot;
 import org.vanilladb.comm.protocols.zabacceptance.ZabAccept;
 import org.vanilladb.comm.protocols.zabacceptance.ZabCacheProposal;
+import org.vanilladb.comm.protocols.zabacceptance.ZabCatchUp;
 import org.vanilladb.comm.protocols.zabacceptance.ZabCommit;
 import org.vanilladb.comm.protocols.zabacceptance.ZabDeny;
+import org.vanilladb.comm.protocols.zabacceptance.ZabRecovered;
 import org.vanilladb.comm.protocols.zabelection.LeaderChanged;
 import org.vanilladb.comm.protocols.zabelection.LeaderInit;
+import org.vanilladb.comm.protocols.zablog.ZabLog;
+import org.vanilladb.comm.protocols.zablog.ZabLogMode;
+import org.vanilladb.comm.protocols.zablog.ZabSnapshot;
 
 import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AppiaException;
 import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
 import net.sf.appia.core.Event;
 import net.sf.appia.core.Layer;
 import net.sf.appia.core.Session;
+import net.sf.appia.core.message.Message;
 
 public class ZabProposalSession extends Session {
 	private static Logger logger = Logger.getLogger(ZabProposalSession.class.getName());
 	
+	private static class OngoingProposal {
+		ZabProposal proposal;
+		long proposedTime; // in nanoseconds
+		int voteCount;
+		
+		OngoingProposal(ZabProposal proposal, long proposedTime) {
+			this.proposal = proposal;
+			this.proposedTime = proposedTime;
+		}
+	}
+	
+	// The maximum number of proposals that the leader can have on the fly
+	private static final int MAX_IN_FLIGHT_PROPOSALS = Integer.getInteger(
+			ZabProposalSession.class.getName() + ".MAX_IN_FLIGHT_PROPOSALS", 4);
+	// How long (in milliseconds) a follower accumulates the requests before
+	// redirecting them to the leader. 0 means redirecting immediately.
+	private static final long REDIRECT_FLUSH_INTERVAL = Long.getLong(
+			ZabProposalSession.class.getName() + ".REDIRECT_FLUSH_INTERVAL", 1);
+	// A follower redirects the accumulated requests immediately once they
+	// carry this many messages
+	private static final int MAX_REDIRECT_BATCH_MESSAGES = Integer.getInteger(
+			ZabProposalSession.class.getName() + ".MAX_REDIRECT_BATCH_MESSAGES", 256);
+	// If enabled, the leader announces the commits with the commit watermark
+	// carried by the next proposal instead of broadcasting a ZabCommit for
+	// each committed proposal
+	private static final boolean PIGGYBACK_COMMITS = Boolean.getBoolean(
+			ZabProposalSession.class.getName() + ".PIGGYBACK_COMMITS");
+	// How long (in milliseconds) the leader waits for the next proposal to
+	// carry the commit watermark before broadcasting a standalone ZabCommit
+	private static final long COMMIT_IDLE_TIMEOUT = Long.getLong(
+			ZabProposalSession.class.getName() + ".COMMIT_IDLE_TIMEOUT", 5);
+	// How long (in milliseconds) a process waits for the reply before
+	// asking the leader for the missing proposals again
+	private static final long CATCH_UP_RETRY_INTERVAL = Long.getLong(
+			ZabProposalSession.class.getName() + ".CATCH_UP_RETRY_INTERVAL", 1000);
+	// How long (in milliseconds) the leader waits before proposing the
+	// uncommitted proposals again after a process denies one of them
+	private static final long DENY_RETRY_INTERVAL = Long.getLong(
+			ZabProposalSession.class.getName() + ".DENY_RETRY_INTERVAL", 100);
+	// The number of recently committed proposals that a process keeps in
+	// memory for the processes that miss them and for synchronizing with
+	// a new leader
+	private static final int RETRANSMISSION_CACHE_SIZE = Integer.getInteger(
+			ZabProposalSession.class.getName() + ".RETRANSMISSION_CACHE_SIZE", 1024);
+	// The maximum number of cached proposals sent in one reply to a ZabFetchRequest
+	private static final int MAX_FETCH_PROPOSALS = Integer.getInteger(
+			ZabProposalSession.class.getName() + ".MAX_FETCH_PROPOSALS", 64);
+	// If enabled, each server broadcasts the payloads of the messages it
+	// receives by itself, and the leader only orders the ids of them
+	private static final boolean SEPARATE_PAYLOADS = Boolean.getBoolean(
+			ZabProposalSession.class.getName() + ".SEPARATE_PAYLOADS");
+	
 	// For all processes
 	private ProcessList processList;
 	private int leaderId;
 	private int epochId = 0;
 	private long lastReceivedProposalSerial = 0;
-	private ZabProposal cachedProposal;
+	private long lastDeliveredProposalSerial = 0;
+	private long lastDeliveredMessageSerial = 0;
+	private long lastKnownCommittedSerial = 0;
+	// The highest round that we have seen in the proposals
+	private long lastRound = 0;
+	// The highest round that the other groups wait for this group to pass
+	private long requestedRound = -1;
+	// <proposal serial #> -> <proposal>
+	private Map<Long, ZabProposal> cachedProposals = new HashMap<Long, ZabProposal>();
+	private long catchUpRequestedTime; // in milliseconds
+	// The first proposal serial # that we fetched from the leader's cache
+	private long fetchRequestedSerial;
+	private ZabRetransmissionCache retransmissionCache =
+			new ZabRetransmissionCache(RETRANSMISSION_CACHE_SIZE);
 	
 	// For the leader
-	private boolean hasOngoingProposal;
 	private Queue<Serializable> messageQueue = new ArrayDeque<Serializable>();
+	private long queueWaitingSince; // in milliseconds
+	private boolean isNextProposalScheduled;
+	private ZabBatchPolicy batchPolicy = new ZabBatchPolicy();
 	private long nextProposalSerial = 1;
 	private long nextMessageStart = 1;
-	private long currentProposingSerial = 1;
-	private int voteCount = 0;
+	// <proposal serial #> -> <proposal>, ordered by the serial numbers
+	private SortedMap<Long, OngoingProposal> ongoingProposals =
+			new TreeMap<Long, OngoingProposal>();
+	private long lastCommittedSerial = 0;
+	private long lastAnnouncedCommitSerial = 0;
+	private long lastProposedTime; // in milliseconds
+	private boolean isNextCommitScheduled;
+	private boolean isNextResendScheduled;
+	// How long (in milliseconds) a round lasts. If it is positive, the leader
+	// stamps the proposals with the rounds and proposes an empty proposal
+	// when the other groups wait for it to pass a round.
+	private long roundInterval;
+	private boolean isNextRoundScheduled;
+	// A new leader does not propose until it has synchronized with
+	// a majority of processes
+	private boolean isSynchronizing;
+	// <process id> -> <last delivered proposal serial #>
+	private Map<Integer, Long> syncResponders = new HashMap<Integer, Long>();
+	// <proposal serial #> -> <proposal>, collected from the responders
+	private SortedMap<Long, ZabProposal> syncProposals = new TreeMap<Long, ZabProposal>();
+	
+	// For the followers
+	private TotalOrderRequest pendingRedirect;
+	// A ZabSyncQuery from a leader of an epoch that we have not entered
+	private Object deferredSyncLeader;
+	private int deferredSyncEpochId;
+	private long deferredSyncDeliveredSerial;
+	private boolean isNextRedirectScheduled;
+	// The serial # of the next message whose payload we broadcast
+	private long nextPayloadSerial = 1;
+	// The payloads sent to the leaders of the epochs that we have not entered
+	private List<ZabPayloadId> futurePayloadIds = new ArrayList<ZabPayloadId>();
 	
-	ZabProposalSession(Layer layer) {
+	ZabProposalSession(Layer layer, long roundInterval) {
 		super(layer);
+		this.roundInterval = roundInterval;
 	}
 	
 	@Override
@@ -55,12 +175,16 @@ public class ZabProposalSession extends Session {
 			handleProcessListInit((ProcessListInit) event);
 		else if (event instanceof ProcessConnected)
 			handleProcessConnected((ProcessConnected) event);
+		else if (event instanceof FailureDetected)
+			handleFailureDetected((FailureDetected) event);
 		else if (event instanceof LeaderInit)
 			handleLeaderInit((LeaderInit) event);
 		else if (event instanceof LeaderChanged)
 			handleLeaderChanged((LeaderChanged) event);
 		else if (event instanceof TotalOrderRequest)
 			handleTotalOrderRequest((TotalOrderRequest) event);
+		else if (event instanceof ZabPayload)
+			handleZabPayload((ZabPayload) event);
 		else if (event instanceof ZabCacheProposal)
 			handleZabCacheProposal((ZabCacheProposal) event);
 		else if (event instanceof ZabAccept)
@@ -69,6 +193,30 @@ public class ZabProposalSession extends Session {
 			handleZabDeny((ZabDeny) event);
 		else if (event instanceof ZabCommit)
 			handleZabCommit((ZabCommit) event);
+		else if (event instanceof NextProposal)
+			handleNextProposal((NextProposal) event);
+		else if (event instanceof NextRedirect)
+			handleNextRedirect((NextRedirect) event);
+		else if (event instanceof NextCommit)
+			handleNextCommit((NextCommit) event);
+		else if (event instanceof NextRound)
+			handleNextRound((NextRound) event);
+		else if (event instanceof NextResend)
+			handleNextResend((NextResend) event);
+		else if (event instanceof TotalOrderRoundRequest)
+			handleTotalOrderRoundRequest((TotalOrderRoundRequest) event);
+		else if (event instanceof ZabCatchUp)
+			handleZabCatchUp((ZabCatchUp) event);
+		else if (event instanceof ZabRecovered)
+			handleZabRecovered((ZabRecovered) event);
+		else if (event instanceof ZabSyncQuery)
+			handleZabSyncQuery((ZabSyncQuery) event);
+		else if (event instanceof ZabSyncInfo)
+			handleZabSyncInfo((ZabSyncInfo) event);
+		else if (event instanceof ZabFetchRequest)
+			handleZabFetchRequest((ZabFetchRequest) event);
+		else if (event instanceof BroadcastsLost)
+			handleBroadcastsLost((BroadcastsLost) event);
 	}
 	
 	private void handleProcessListInit(ProcessListInit event) {
@@ -102,12 +250,94 @@ public class ZabProposalSession extends Session {
 				.setState(ProcessState.CORRECT);
 	}
 	
+	private void handleFailureDetected(FailureDetected event) {
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("Received FailureDetected (failed id = " +
+					event.getFailedProcessId() + ")");
+		
+		// Let the event continue
+		try {
+			event.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+		
+		// The failed process may have been relaying the broadcasts. Propose the
+		// uncommitted proposals again and announce the last commit, so that
+		// the processes that miss some proposals can vote and fetch them.
+		if (processList.getSelfId() == leaderId && !isSynchronizing) {
+			if (!ongoingProposals.isEmpty())
+				resendOngoingProposals(event.getChannel());
+			if (lastCommittedSerial > 0)
+				broadcastCommit(event.getChannel(), lastCommittedSerial);
+		}
+		
+		// A failed responder can no longer serve the missing proposals.
+		// The committed ones are still accepted by the other responders.
+		if (isSynchronizing && syncResponders.remove(event.getFailedProcessId()) != null) {
+			catchUpRequestedTime = 0;
+			fetchRequestedSerial = 0;
+			finishSyncIfPossible(event.getChannel());
+		}
+	}
+	
+	private void handleBroadcastsLost(BroadcastsLost event) {
+		if (logger.isLoggable(Level.FINE))
+			logger.fine(String.format("Received BroadcastsLost (sender id: %d, receiver id: %d)",
+					event.getSenderId(), event.getReceiverId()));
+		
+		// Some proposals of this leader have been lost, so propose the uncommitted
+		// ones again and announce the last commit, as after a failure
+		int selfId = processList.getSelfId();
+		if (event.getSenderId() == selfId && selfId == leaderId && !isSynchronizing) {
+			if (!ongoingProposals.isEmpty())
+				resendOngoingProposals(event.getChannel());
+			if (lastCommittedSerial > 0)
+				broadcastCommit(event.getChannel(), lastCommittedSerial);
+		}
+		
+		// Fetch the committed proposals that this process may have lost
+		if (event.getReceiverId() == selfId && event.getSenderId() == leaderId &&
+				selfId != leaderId) {
+			fetch(event.getChannel(), processList.getProcess(leaderId).getAddress(),
+					lastDeliveredProposalSerial + 1, Long.MAX_VALUE);
+		}
+	}
+	
+	private void resendOngoingProposals(Channel channel) {
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("Propose again %d uncommitted proposals (epoch id: %d, proposal serial #: %d ~ %d)",
+					ongoingProposals.size(), epochId, ongoingProposals.firstKey(),
+					ongoingProposals.lastKey()));
+		
+		List<ZabProposal> proposals = new ArrayList<ZabProposal>();
+		for (OngoingProposal ongoing : ongoingProposals.values())
+			proposals.add(ongoing.proposal);
+		
+		try {
+			ZabResend resend = new ZabResend(channel, this, lastCommittedSerial,
+					proposals.toArray(new ZabProposal[proposals.size()]));
+			resend.init();
+			resend.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	private void handleLeaderInit(LeaderInit event) {
 		if (logger.isLoggable(Level.FINE))
 			logger.fine("Received LeaderInit, the leader is " + event.getLeaderId());
 		
 		// Set the leader id
 		leaderId = event.getLeaderId();
+		
+		if (processList.getSelfId() == leaderId) {
+			// The processes may have recovered different proposals from
+			// their logs, so the first leader synchronizes with them as well
+			if (ZabLog.MODE != ZabLogMode.MEMORY_ONLY)
+				startSync(event.getChannel());
+			closeRequestedRound(event.getChannel());
+		}
 	}
 	
 	private void handleLeaderChanged(LeaderChanged event) {
@@ -122,19 +352,318 @@ public class ZabProposalSession extends Session {
 				logger.severe("The epoch id is not as we expected. Do we miss something?");
 		}
 		epochId = event.getNewEpochId();
+		
+		// The proposals of the previous epoch can no longer be committed
+		ongoingProposals.clear();
+		
+		// The serial numbers of the new epoch start from
+		// where the new leader has synchronized
+		lastReceivedProposalSerial = 0;
+		
+		isSynchronizing = false;
+		syncResponders.clear();
+		syncProposals.clear();
+		enqueueFuturePayloads();
+		if (processList.getSelfId() == leaderId) {
+			startSync(event.getChannel());
+			closeRequestedRound(event.getChannel());
+		}
+		
+		// Answer the new leader if it has asked
+		if (deferredSyncLeader != null && deferredSyncEpochId == epochId)
+			replySyncQuery(event.getChannel(), deferredSyncLeader, epochId,
+					deferredSyncDeliveredSerial);
+		if (deferredSyncEpochId <= epochId)
+			deferredSyncLeader = null;
+	}
+	
+	private void startSync(Channel channel) {
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("Synchronize with the others for epoch %d (last delivered proposal #: %d)",
+					epochId, lastDeliveredProposalSerial));
+		
+		isSynchronizing = true;
+		catchUpRequestedTime = 0;
+		fetchRequestedSerial = 0;
+		
+		// The undelivered proposals of this process also count
+		for (ZabProposal proposal : cachedProposals.values())
+			mergeSyncProposal(proposal);
+		
+		try {
+			ZabSyncQuery query = new ZabSyncQuery(channel, this, epochId,
+					lastDeliveredProposalSerial);
+			query.init();
+			query.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+		
+		finishSyncIfPossible(channel);
+	}
+	
+	private void handleZabSyncQuery(ZabSyncQuery event) {
+		int syncEpochId = event.getMessage().popInt();
+		long leaderDeliveredSerial = event.getMessage().popLong();
+		int senderId = processList.getId((SocketAddress) event.source);
+		
+		if (senderId == processList.getSelfId())
+			return;
+		
+		if (logger.isLoggable(Level.FINE))
+			logger.fine(String.format("Received ZabSyncQuery from %d (epoch id: %d, last delivered proposal #: %d)",
+					senderId, syncEpochId, leaderDeliveredSerial));
+		
+		// The new leader may detect the failure before this process does.
+		// Answer after this process enters the new epoch, otherwise it would
+		// deny the proposals that the new leader makes after synchronizing.
+		if (syncEpochId > epochId) {
+			deferredSyncLeader = event.source;
+			deferredSyncEpochId = syncEpochId;
+			deferredSyncDeliveredSerial = leaderDeliveredSerial;
+			return;
+		}
+		if (syncEpochId == epochId)
+			replySyncQuery(event.getChannel(), event.source, syncEpochId, leaderDeliveredSerial);
+	}
+	
+	private void replySyncQuery(Channel channel, Object leaderAddress, int syncEpochId,
+			long leaderDeliveredSerial) {
+		// Send the proposals that the new leader may not have
+		SortedMap<Long, ZabProposal> proposals = new TreeMap<Long, ZabProposal>();
+		for (ZabProposal proposal : retransmissionCache.getRange(leaderDeliveredSerial + 1,
+				lastDeliveredProposalSerial, Integer.MAX_VALUE))
+			proposals.put(proposal.getId().getSerialNumber(), proposal);
+		for (ZabProposal proposal : cachedProposals.values())
+			if (proposal.getId().getSerialNumber() > leaderDeliveredSerial)
+				proposals.put(proposal.getId().getSerialNumber(), proposal);
+		
+		try {
+			ZabSyncInfo info = new ZabSyncInfo(channel, this, syncEpochId,
+					lastDeliveredProposalSerial,
+					proposals.values().toArray(new ZabProposal[proposals.size()]));
+			info.source = processList.getSelfProcess().getAddress();
+			info.dest = leaderAddress;
+			info.init();
+			info.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleZabSyncInfo(ZabSyncInfo event) {
+		int syncEpochId = event.getMessage().popInt();
+		long deliveredSerial = event.getMessage().popLong();
+		ZabProposal[] proposals = ZabProposal.popAll(event.getMessage());
+		int senderId = processList.getId((SocketAddress) event.source);
+		
+		if (logger.isLoggable(Level.FINE))
+			logger.fine(String.format("Received ZabSyncInfo from %d (epoch id: %d, last delivered proposal #: %d, proposal #: %d)",
+					senderId, syncEpochId, deliveredSerial, proposals.length));
+		
+		if (syncEpochId != epochId || processList.getSelfId() != leaderId)
+			return;
+		
+		// A late responder only needs to catch up
+		if (!isSynchronizing) {
+			sendSyncDiff(event.getChannel(), event.source, deliveredSerial);
+			return;
+		}
+		
+		syncResponders.put(senderId, deliveredSerial);
+		for (ZabProposal proposal : proposals)
+			mergeSyncProposal(proposal);
+		
+		finishSyncIfPossible(event.getChannel());
+	}
+	
+	private void mergeSyncProposal(ZabProposal proposal) {
+		// Keep the one proposed in the latest epoch
+		long serial = proposal.getId().getSerialNumber();
+		ZabProposal existing = syncProposals.get(serial);
+		if (existing == null || existing.getId().getEpochId() < proposal.getId().getEpochId())
+			syncProposals.put(serial, proposal);
+	}
+	
+	private void finishSyncIfPossible(Channel channel) {
+		// Wait for a majority of voters (including this process)
+		int voterCount = 1;
+		for (int responderId : syncResponders.keySet())
+			if (!processList.getProcess(responderId).isObserver())
+				voterCount++;
+		if (voterCount <= processList.getCorrectVoterCount() / 2)
+			return;
+		
+		// The proposals up to the highest delivered serial have been committed,
+		// so this process delivers the ones it misses
+		long committedSerial = Math.max(lastDeliveredProposalSerial, lastKnownCommittedSerial);
+		int mostUpToDateId = processList.getSelfId();
+		for (Map.Entry<Integer, Long> responder : syncResponders.entrySet()) {
+			if (responder.getValue() > committedSerial) {
+				committedSerial = responder.getValue();
+				mostUpToDateId = responder.getKey();
+			}
+		}
+		while (lastDeliveredProposalSerial < committedSerial) {
+			ZabProposal proposal = syncProposals.get(lastDeliveredProposalSerial + 1);
+			if (proposal == null) {
+				// The serials up to the committed one cannot be reused, so
+				// fetch the missing proposals from a process that has delivered
+				// them, and finish once they arrive
+				if (logger.isLoggable(Level.INFO))
+					logger.info(String.format("Fetch the committed proposals %d ~ %d before finishing the synchronization",
+							lastDeliveredProposalSerial + 1, committedSerial));
+				if (mostUpToDateId != processList.getSelfId())
+					requestCatchUp(channel, mostUpToDateId, committedSerial);
+				return;
+			}
+			cachedProposals.remove(lastDeliveredProposalSerial + 1);
+			lastDeliveredProposalSerial++;
+			deliver(channel, proposal);
+		}
+		
+		// Bring the responders up to date
+		for (Map.Entry<Integer, Long> responder : syncResponders.entrySet())
+			sendSyncDiff(channel, processList.getProcess(responder.getKey()).getAddress(),
+					responder.getValue());
+		
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("Synchronized for epoch %d (last delivered proposal #: %d, responder #: %d)",
+					epochId, lastDeliveredProposalSerial, syncResponders.size()));
+		
+		// Continue the serial numbers of the previous epochs
+		nextProposalSerial = committedSerial + 1;
+		nextMessageStart = lastDeliveredMessageSerial + 1;
+		lastCommittedSerial = committedSerial;
+		lastAnnouncedCommitSerial = committedSerial;
+		lastKnownCommittedSerial = committedSerial;
+		
+		// The accepted proposals after that may have been committed by
+		// the previous leader, so propose them again in this epoch
+		cachedProposals.clear();
+		ZabProposal proposal;
+		while ((proposal = syncProposals.get(nextProposalSerial)) != null &&
+				proposal.getMessageStartId() == nextMessageStart)
+			propose(channel, proposal.withId(new ZabProposalId(epochId, nextProposalSerial),
+					nextMessageStart, lastCommittedSerial, proposal.getRound()));
+		
+		isSynchronizing = false;
+		syncResponders.clear();
+		syncProposals.clear();
+		
+		proposeIfPossible(channel);
+	}
+	
+	private void sendSyncDiff(Channel channel, Object address, long deliveredSerial) {
+		List<ZabProposal> diff = retransmissionCache.getRange(deliveredSerial + 1,
+				lastDeliveredProposalSerial, Integer.MAX_VALUE);
+		if (!diff.isEmpty())
+			sendCatchUp(channel, address, diff);
+	}
+	
+	private void handleZabFetchRequest(ZabFetchRequest event) {
+		long fromSerial = event.getMessage().popLong();
+		long toSerial = event.getMessage().popLong();
+		
+		if (logger.isLoggable(Level.FINE))
+			logger.fine(String.format("Received ZabFetchRequest from %s (proposal serial #: %d ~ %d)",
+					event.source, fromSerial, toSerial));
+		
+		// Reply even if we do not have them any more, so that
+		// the requester asks for the log without waiting
+		List<ZabProposal> proposals = retransmissionCache.getRange(fromSerial,
+				toSerial, MAX_FETCH_PROPOSALS);
+		sendCatchUp(event.getChannel(), event.source, proposals);
+	}
+	
+	private void sendCatchUp(Channel channel, Object address, List<ZabProposal> proposals) {
+		try {
+			ZabCatchUp catchUp = new ZabCatchUp(channel, this);
+			ZabProposal.pushAll(catchUp.getMessage(),
+					proposals.toArray(new ZabProposal[proposals.size()]));
+			catchUp.getMessage().pushBoolean(false);
+			catchUp.source = processList.getSelfProcess().getAddress();
+			catchUp.dest = address;
+			catchUp.init();
+			catchUp.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
 	}
 	
 	private void handleTotalOrderRequest(TotalOrderRequest event) {
 		if (logger.isLoggable(Level.FINE))
 			logger.fine("Received TotalOrderRequest");
 		
-		if (processList.getSelfId() == leaderId) {
-			messageQueue.addAll(event.getCarriedMessages());
-			if (!hasOngoingProposal)
-				propose(event.getChannel());
+		// The leader also broadcasts the payloads if they are separated
+		if (processList.getSelfId() == leaderId && !SEPARATE_PAYLOADS) {
+			enqueue(event);
+			proposeIfPossible(event.getChannel());
 		} else {
-			redirectToLeader(event);
+			accumulateRedirect(event);
+		}
+	}
+	
+	private void handleZabPayload(ZabPayload event) {
+		// The acceptance layer has kept the payloads
+		long firstSerial = event.getMessage().popLong();
+		int count = event.getMessage().popInt();
+		int payloadEpochId = event.getMessage().popInt();
+		
+		if (logger.isLoggable(Level.FINE))
+			logger.fine(String.format("Received ZabPayload from %s (payload serial #: %d, message #: %d)",
+					event.source, firstSerial, count));
+		
+		// The payloads may be sent to a new leader before
+		// this process knows the leader has changed
+		int originId = processList.getId((SocketAddress) event.source);
+		if (payloadEpochId > epochId) {
+			for (int i = 0; i < count; i++)
+				futurePayloadIds.add(new ZabPayloadId(payloadEpochId, originId, firstSerial + i));
+			return;
 		}
+		
+		// Each leader only orders the payloads sent to it, so that
+		// the ones ordered by the previous leader are not ordered again
+		if (processList.getSelfId() != leaderId || payloadEpochId != epochId)
+			return;
+		
+		if (messageQueue.isEmpty())
+			queueWaitingSince = System.currentTimeMillis();
+		for (int i = 0; i < count; i++)
+			messageQueue.add(new ZabPayloadId(epochId, originId, firstSerial + i));
+		proposeIfPossible(event.getChannel());
+	}
+	
+	private void enqueueFuturePayloads() {
+		Iterator<ZabPayloadId> iter = futurePayloadIds.iterator();
+		while (iter.hasNext()) {
+			ZabPayloadId id = iter.next();
+			if (id.getEpochId() > epochId)
+				continue;
+			if (id.getEpochId() == epochId && processList.getSelfId() == leaderId) {
+				if (messageQueue.isEmpty())
+					queueWaitingSince = System.currentTimeMillis();
+				messageQueue.add(id);
+			}
+			iter.remove();
+		}
+	}
+	
+	private void enqueue(TotalOrderRequest request) {
+		List<Serializable> messages;
+		try {
+			messages = request.getCarriedMessages();
+		} catch (CodecException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Dropped a TotalOrderRequest from " + request.source +
+						" that cannot be decoded: " + e);
+			return;
+		}
+		
+		if (messageQueue.isEmpty())
+			queueWaitingSince = System.currentTimeMillis();
+		messageQueue.addAll(messages);
 	}
 	
 	// For caching the message
@@ -150,104 +679,572 @@ public class ZabProposalSession extends Session {
 		// it will not cache its message here.
 		if (id.getEpochId() == epochId && id.getSerialNumber() > lastReceivedProposalSerial) {
 			lastReceivedProposalSerial = id.getSerialNumber();
-			cachedProposal = proposal;
+			cachedProposals.put(id.getSerialNumber(), proposal);
+			
+			// Deliver the proposals that the leader has committed
+			deliverUpTo(event.getChannel(), proposal.getCommitWatermark());
 		}
 	}
 	
 	private void handleZabAccept(ZabAccept event) {
-		ZabProposalId id = (ZabProposalId) event.getMessage().popObject();
+		// A ZabAccept acknowledges all the proposals from
+		// the first serial to the last serial
+		long firstSerial = event.getMessage().popLong();
+		int acceptedEpochId = event.getMessage().popInt();
+		long lastSerial = event.getMessage().popLong();
 		
 		if (logger.isLoggable(Level.FINE))
-			logger.fine(String.format("Received ZabAccept from %s (epoch id: %d, proposal serial #: %d, vote #: %d)",
-					event.source, id.getEpochId(), id.getSerialNumber(), voteCount));
-		
-		if (id.getEpochId() == epochId && id.getSerialNumber() == currentProposingSerial) {
-			voteCount++;
-			if (voteCount > processList.getCorrectCount() / 2 && hasOngoingProposal) {
-				commit(event.getChannel());
-				
-				// Start the next proposal
-				if (!messageQueue.isEmpty())
-					propose(event.getChannel());
+			logger.fine(String.format("Received ZabAccept from %s (epoch id: %d, proposal serial #: %d ~ %d)",
+					event.source, acceptedEpochId, firstSerial, lastSerial));
+		
+		// Only the voters count
+		CommProcess sender = processList.getProcess((SocketAddress) event.source);
+		if (sender == null || sender.isObserver())
+			return;
+		
+		if (acceptedEpochId == epochId) {
+			Collection<OngoingProposal> accepted = ongoingProposals.subMap(
+					firstSerial, lastSerial + 1).values();
+			if (accepted.isEmpty())
+				return;
+			for (OngoingProposal ongoing : accepted)
+				ongoing.voteCount++;
+			
+			// Commit the proposals in the order of serial numbers,
+			// even if the acceptances of a later proposal come first
+			while (!ongoingProposals.isEmpty()) {
+				long serial = ongoingProposals.firstKey();
+				OngoingProposal ongoing = ongoingProposals.get(serial);
+				if (ongoing.voteCount <= processList.getCorrectVoterCount() / 2)
+					break;
+				commit(event.getChannel(), serial);
+				ongoingProposals.remove(serial);
+				batchPolicy.onCommitted(serial, ongoing.proposal.getMessageCount(),
+						(System.nanoTime() - ongoing.proposedTime) / 1_000_000.0);
 			}
+			
+			// Start the next proposals
+			proposeIfPossible(event.getChannel());
 		}
 	}
 	
 	private void handleZabDeny(ZabDeny event) {
-		ZabProposalId id = (ZabProposalId) event.getMessage().popObject();
+		int deniedEpochId = event.getMessage().popInt();
+		long deniedSerial = event.getMessage().popLong();
+		int denierEpochId = event.getMessage().popInt();
 		
 		if (logger.isLoggable(Level.WARNING))
-			logger.warning(String.format("Received ZabDeny from %s (epoch id: %d, proposal serial #: %d, vote #: %d)",
-					event.source, id.getEpochId(), id.getSerialNumber(), voteCount));
+			logger.warning(String.format("Received ZabDeny from %s (epoch id: %d, proposal serial #: %d, vote #: %d, denier's epoch id: %d)",
+					event.source, deniedEpochId, deniedSerial,
+					ongoingProposals.containsKey(deniedSerial)?
+							ongoingProposals.get(deniedSerial).voteCount : 0,
+					denierEpochId));
+		
+		if (processList.getSelfId() != leaderId || deniedEpochId != epochId ||
+				!ongoingProposals.containsKey(deniedSerial))
+			return;
+		
+		// A denier that follows a later leader never votes in this epoch
+		// again, so proposing again would not help
+		if (denierEpochId > epochId)
+			return;
+		
+		// The denier has not entered this epoch yet, and nobody would send
+		// the denied proposals to it again once it does. Propose them again
+		// later, otherwise they are stranded if its vote is needed.
+		scheduleNextResend(event.getChannel());
+	}
+	
+	private void handleNextResend(NextResend event) {
+		isNextResendScheduled = false;
+		
+		// The proposals may have been committed or dropped in the meantime
+		if (processList.getSelfId() == leaderId && !isSynchronizing &&
+				!ongoingProposals.isEmpty())
+			resendOngoingProposals(event.getChannel());
+	}
+	
+	private void scheduleNextResend(Channel channel) {
+		if (isNextResendScheduled)
+			return;
 		
-		// TODO: Retry with higher number?
+		try {
+			NextResend next = new NextResend(DENY_RETRY_INTERVAL, "NextResend", channel, this);
+			next.init();
+			next.go();
+			isNextResendScheduled = true;
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		} catch (AppiaException e) {
+			e.printStackTrace();
+		}
 	}
 	
 	private void handleZabCommit(ZabCommit event) {
-		ZabProposalId id = (ZabProposalId) event.getMessage().popObject();
+		int committedEpochId = event.getMessage().popInt();
+		long committedSerial = event.getMessage().popLong();
 		
 		if (logger.isLoggable(Level.FINE))
 			logger.fine(String.format("Received ZabCommit (epoch id: %d, serial #: %d)",
-					id.getEpochId(), id.getSerialNumber()));
+					committedEpochId, committedSerial));
 		
-		if (id.getEpochId() == epochId && id.getSerialNumber() == lastReceivedProposalSerial) {
-			try {
-				TotalOrderMessages messages = new TotalOrderMessages(event.getChannel(),
-						this, cachedProposal.getMessages(), cachedProposal.getMessageStartId());
-				messages.init();
-				messages.go();
-			} catch (AppiaEventException e) {
-				e.printStackTrace();
+		if (committedEpochId == epochId)
+			deliverUpTo(event.getChannel(), committedSerial);
+	}
+	
+	private void handleZabCatchUp(ZabCatchUp event) {
+		Message message = event.getMessage();
+		ZabSnapshot snapshot = null;
+		if (message.popBoolean())
+			snapshot = (ZabSnapshot) message.popObject();
+		ZabProposal[] proposals = ZabProposal.popAll(message);
+		
+		if (logger.isLoggable(Level.FINE))
+			logger.fine(String.format("Received ZabCatchUp (snapshot: %s, proposal #: %d)",
+					(snapshot == null)? "none" : "up to message " + snapshot.getLastMessageSerial(),
+					proposals.length));
+		
+		// Allow asking for the next part immediately
+		catchUpRequestedTime = 0;
+		
+		Channel channel = event.getChannel();
+		try {
+			if (snapshot != null && snapshot.getLastMessageSerial() > lastDeliveredMessageSerial) {
+				TotalOrderSnapshot restore = new TotalOrderSnapshot(channel, this,
+						snapshot.getLastMessageSerial(), snapshot.getState());
+				restore.init();
+				restore.go();
+				lastDeliveredMessageSerial = snapshot.getLastMessageSerial();
+			}
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+		
+		// The serial numbers of the messages tell if the proposals are contiguous,
+		// even if we do not know the proposal serial number of the snapshot
+		for (ZabProposal proposal : proposals) {
+			long firstMessageSerial = proposal.getMessageStartId();
+			if (firstMessageSerial > lastDeliveredMessageSerial + 1)
+				break;
+			deliver(channel, proposal);
+			lastDeliveredProposalSerial = Math.max(lastDeliveredProposalSerial,
+					proposal.getId().getSerialNumber());
+		}
+		
+		// Drop the delivered proposals and the ones from the previous
+		// epochs (the leader will propose them again if necessary),
+		// then continue with the cached ones
+		List<Long> deliveredSerials = new ArrayList<Long>();
+		for (ZabProposal proposal : cachedProposals.values())
+			if (proposal.getId().getSerialNumber() <= lastDeliveredProposalSerial ||
+					proposal.getId().getEpochId() < epochId)
+				deliveredSerials.add(proposal.getId().getSerialNumber());
+		for (Long serial : deliveredSerials)
+			cachedProposals.remove(serial);
+		if (isSynchronizing)
+			finishSyncIfPossible(channel);
+		else
+			deliverUpTo(channel, lastKnownCommittedSerial);
+	}
+	
+	private void handleZabRecovered(ZabRecovered event) {
+		ZabSnapshot snapshot = event.getSnapshot();
+		ZabProposal[] proposals = event.getProposals();
+		long committedSerial = event.getCommittedSerial();
+		
+		if (logger.isLoggable(Level.FINE))
+			logger.fine(String.format("Received ZabRecovered (snapshot: %s, proposal #: %d, committed proposal #: %d)",
+					(snapshot == null)? "none" : "up to message " + snapshot.getLastMessageSerial(),
+					proposals.length, committedSerial));
+		
+		Channel channel = event.getChannel();
+		try {
+			if (snapshot != null) {
+				TotalOrderSnapshot restore = new TotalOrderSnapshot(channel, this,
+						snapshot.getLastMessageSerial(), snapshot.getState());
+				restore.init();
+				restore.go();
+				lastDeliveredMessageSerial = snapshot.getLastMessageSerial();
+			}
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+		
+		// Deliver the committed proposals again, as long as they are contiguous
+		for (ZabProposal proposal : proposals) {
+			long serial = proposal.getId().getSerialNumber();
+			if (serial > committedSerial ||
+					proposal.getMessageStartId() > lastDeliveredMessageSerial + 1)
+				break;
+			deliver(channel, proposal);
+			lastDeliveredProposalSerial = serial;
+		}
+		lastKnownCommittedSerial = Math.max(lastDeliveredProposalSerial, committedSerial);
+		
+		// The accepted ones are handed to the leader during the synchronization
+		for (ZabProposal proposal : proposals)
+			if (proposal.getId().getSerialNumber() > lastDeliveredProposalSerial)
+				cachedProposals.put(proposal.getId().getSerialNumber(), proposal);
+		
+		// Continue the serial numbers in case this process becomes the leader
+		nextProposalSerial = lastDeliveredProposalSerial + 1;
+		nextMessageStart = lastDeliveredMessageSerial + 1;
+		lastCommittedSerial = lastDeliveredProposalSerial;
+		lastAnnouncedCommitSerial = lastDeliveredProposalSerial;
+	}
+	
+	private void deliverUpTo(Channel channel, long proposalSerial) {
+		if (proposalSerial > lastKnownCommittedSerial)
+			lastKnownCommittedSerial = proposalSerial;
+		
+		// Deliver the cached proposals one by one in the order of serial numbers
+		while (lastDeliveredProposalSerial < proposalSerial) {
+			ZabProposal proposal = cachedProposals.get(lastDeliveredProposalSerial + 1);
+			if (proposal == null || proposal.getId().getEpochId() != epochId) {
+				// We miss some committed proposals
+				requestCatchUp(channel);
+				return;
+			}
+			cachedProposals.remove(lastDeliveredProposalSerial + 1);
+			lastDeliveredProposalSerial++;
+			deliver(channel, proposal);
+		}
+	}
+	
+	private void deliver(Channel channel, ZabProposal proposal) {
+		retransmissionCache.add(proposal);
+		lastRound = Math.max(lastRound, proposal.getRound());
+		
+		// Skip the messages that have been delivered (e.g. by a snapshot).
+		// An empty proposal is still delivered for its round.
+		int skipped = (int) Math.max(0, lastDeliveredMessageSerial + 1 - proposal.getMessageStartId());
+		if (skipped > 0 && skipped >= proposal.getMessageCount())
+			return;
+		Serializable[] messages;
+		try {
+			messages = proposal.getMessages();
+		} catch (CodecException e) {
+			// Every process fails the same way unless the codecs are not
+			// registered everywhere, so the messages are skipped
+			lastDeliveredMessageSerial = proposal.getMessageStartId()
+					+ proposal.getMessageCount() - 1;
+			if (logger.isLoggable(Level.SEVERE))
+				logger.severe(String.format("Dropped the messages of proposal serial #%d (message serial #: %d ~ %d) that cannot be decoded: %s",
+						proposal.getId().getSerialNumber(), proposal.getMessageStartId(),
+						lastDeliveredMessageSerial, e));
+			return;
+		}
+		if (skipped > 0)
+			messages = Arrays.copyOfRange(messages, skipped, messages.length);
+		
+		try {
+			TotalOrderMessages event = new TotalOrderMessages(channel, this, messages,
+					proposal.getMessageStartId() + skipped, proposal.getRound());
+			event.init();
+			event.go();
+			lastDeliveredMessageSerial = proposal.getMessageStartId() + skipped
+					+ messages.length - 1;
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void requestCatchUp(Channel channel) {
+		// The leader has nobody to ask
+		if (processList.getSelfId() == leaderId)
+			return;
+		requestCatchUp(channel, leaderId, lastKnownCommittedSerial);
+	}
+	
+	/**
+	 * Asks the given process for the committed proposals after the last
+	 * delivered one, up to the given proposal serial.
+	 */
+	private void requestCatchUp(Channel channel, int targetId, long toSerial) {
+		long currentTime = System.currentTimeMillis();
+		if (currentTime - catchUpRequestedTime < CATCH_UP_RETRY_INTERVAL)
+			return;
+		catchUpRequestedTime = currentTime;
+		
+		Object target = processList.getProcess(targetId).getAddress();
+		
+		// Fetch the missing proposals from the cache of the target first. If
+		// this makes no progress, they must have been dropped from the cache.
+		long fromSerial = lastDeliveredProposalSerial + 1;
+		if (fromSerial != fetchRequestedSerial) {
+			fetchRequestedSerial = fromSerial;
+			fetch(channel, target, fromSerial, toSerial);
+			return;
+		}
+		
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("Ask process %d for the proposals after message %d (up to proposal %d)",
+					targetId, lastDeliveredMessageSerial, toSerial));
+		
+		try {
+			ZabCatchUpRequest request = new ZabCatchUpRequest(channel, this,
+					lastDeliveredMessageSerial + 1, toSerial);
+			request.source = processList.getSelfProcess().getAddress();
+			request.dest = target;
+			request.init();
+			request.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void fetch(Channel channel, Object target, long fromSerial, long toSerial) {
+		if (logger.isLoggable(Level.FINE))
+			logger.fine(String.format("Fetch the proposals %d ~ %d from %s",
+					fromSerial, toSerial, target));
+		
+		try {
+			ZabFetchRequest request = new ZabFetchRequest(channel, this,
+					fromSerial, toSerial);
+			request.source = processList.getSelfProcess().getAddress();
+			request.dest = target;
+			request.init();
+			request.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleNextCommit(NextCommit event) {
+		isNextCommitScheduled = false;
+		announceCommitsIfIdle(event.getChannel());
+	}
+	
+	private void handleNextProposal(NextProposal event) {
+		isNextProposalScheduled = false;
+		proposeIfPossible(event.getChannel());
+	}
+	
+	private void proposeIfPossible(Channel channel) {
+		if (isSynchronizing)
+			return;
+		
+		while (ongoingProposals.size() < MAX_IN_FLIGHT_PROPOSALS && !messageQueue.isEmpty()) {
+			// Wait for a while if the batch is not large enough
+			long waitedTime = System.currentTimeMillis() - queueWaitingSince;
+			if (!batchPolicy.isReadyToPropose(messageQueue.size(), waitedTime,
+					ongoingProposals.size())) {
+				scheduleNextProposal(channel, batchPolicy.getLingerTime() - waitedTime);
+				return;
 			}
+			
+			propose(channel);
+		}
+	}
+	
+	private void scheduleNextProposal(Channel channel, long waitingTime) {
+		if (isNextProposalScheduled)
+			return;
+		
+		try {
+			NextProposal next = new NextProposal(Math.max(1, waitingTime),
+					"NextProposal", channel, this);
+			next.init();
+			next.go();
+			isNextProposalScheduled = true;
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		} catch (AppiaException e) {
+			e.printStackTrace();
 		}
 	}
 	
 	private void propose(Channel channel) {
-		// Build a message list
+		// Build a message list with a limited size
+		int batchSizeLimit = batchPolicy.getBatchSizeLimit();
 		List<Serializable> messageList = new ArrayList<Serializable>();
-		Serializable message = messageQueue.poll();
-		while (message != null) {
-			messageList.add(message);
-			message = messageQueue.poll();
-		}
+		while (messageList.size() < batchSizeLimit && !messageQueue.isEmpty())
+			messageList.add(messageQueue.poll());
 		
 		if (messageList.isEmpty())
 			return;
-
+		
+		propose(channel, messageList.toArray(new Serializable[messageList.size()]),
+				getCurrentRound());
+	}
+	
+	private long getCurrentRound() {
+		// The rounds of a group must never decrease, even if the clock of a new
+		// leader is behind the one of the previous leader (see ZabGroupMerger).
+		// A new leader has delivered the committed proposals before proposing,
+		// so the last round covers all the rounds that have been delivered.
+		if (roundInterval <= 0)
+			return lastRound;
+		return Math.max(lastRound, System.currentTimeMillis() / roundInterval);
+	}
+	
+	private void propose(Channel channel, Serializable[] messages, long round) {
+		// Create a proposal
+		ZabProposalId id = new ZabProposalId(epochId, nextProposalSerial);
+		propose(channel, new ZabProposal(id, nextMessageStart,
+				messages, lastCommittedSerial, round));
+	}
+	
+	/**
+	 * Sends the given proposal, which must have the next proposal serial
+	 * and message serial.
+	 */
+	private void propose(Channel channel, ZabProposal proposal) {
+		ZabProposalId id = proposal.getId();
+		int messageCount = proposal.getMessageCount();
 		if (logger.isLoggable(Level.FINE))
-			logger.fine(String.format("Leader proposes (epoch id: %d, serial #: %d)",
-					epochId, nextMessageStart));
+			logger.fine(String.format("Leader proposes (epoch id: %d, serial #: %d, batch size: %d)",
+					epochId, nextMessageStart, messageCount));
 		
 		try {
-			// Create a proposal
-			ZabProposalId id = new ZabProposalId(epochId, nextProposalSerial);
-			ZabProposal proposal = new ZabProposal(id, nextMessageStart,
-					messageList.toArray(new Serializable[messageList.size()]));
+			lastAnnouncedCommitSerial = lastCommittedSerial;
+			lastProposedTime = System.currentTimeMillis();
+			lastRound = Math.max(lastRound, proposal.getRound());
 			
 			// Record the information for voting
-			currentProposingSerial = nextProposalSerial;
-			voteCount = 0;
+			ongoingProposals.put(nextProposalSerial,
+					new OngoingProposal(proposal, System.nanoTime()));
 			
 			// Advances the ids
 			nextProposalSerial++;
-			nextMessageStart += messageList.size();
+			nextMessageStart += messageCount;
 			
 			// Create a event for sending the proposal
 			ZabPropose propose = new ZabPropose(channel, this);
-			// Note: there are two ways to send a proposal via a SendableEvent.
-			// The first way is to push each proposed value and the corresponding
-			// information such as epoch id and proposal id one by one.
-			// Another way is to package them into a single object and pushObject
-			// it once.
-			// We chose the second way not only for higher readability
-			// but also for efficiency.
+			// Note: the proposal pushes the epoch id, the proposal id and
+			// the messages that have codecs one by one, but packages the
+			// other messages into a single object and pushObject it once.
 			// According to our research, calling pushObject multiple times
 			// for a large proposal dramatically reduces scalability of this module.
-			propose.getMessage().pushObject(proposal);
+			proposal.push(propose.getMessage());
+			if (messageCount > 0)
+				batchPolicy.onProposed(id.getSerialNumber(), messageCount,
+						propose.getMessage().length());
 			propose.init();
 			propose.go();
-			
-			hasOngoingProposal = true;
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleNextRound(NextRound event) {
+		isNextRoundScheduled = false;
+		
+		// Only the leader proposes
+		if (processList.getSelfId() == leaderId)
+			closeRequestedRound(event.getChannel());
+	}
+	
+	private void handleTotalOrderRoundRequest(TotalOrderRoundRequest event) {
+		// Every process records the request, in case it becomes the leader
+		requestedRound = Math.max(requestedRound, event.getRound());
+		if (processList.getSelfId() == leaderId)
+			closeRequestedRound(event.getChannel());
+	}
+	
+	/**
+	 * Lets the other groups know that the requested round has gone by, so
+	 * that an idle group does not propose unless someone waits for it.
+	 */
+	private void closeRequestedRound(Channel channel) {
+		if (roundInterval <= 0 || lastRound > requestedRound)
+			return;
+		
+		// Try again later if the leader cannot propose now
+		if (isSynchronizing || ongoingProposals.size() >= MAX_IN_FLIGHT_PROPOSALS) {
+			scheduleNextRound(channel, roundInterval);
+			return;
+		}
+		propose(channel, new Serializable[0],
+				Math.max(getCurrentRound(), requestedRound + 1));
+	}
+	
+	private void scheduleNextRound(Channel channel, long waitingTime) {
+		if (roundInterval <= 0 || isNextRoundScheduled)
+			return;
+		
+		try {
+			NextRound next = new NextRound(Math.max(1, waitingTime),
+					"NextRound", channel, this);
+			next.init();
+			next.go();
+			isNextRoundScheduled = true;
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		} catch (AppiaException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void handleNextRedirect(NextRedirect event) {
+		isNextRedirectScheduled = false;
+		flushRedirect();
+	}
+	
+	private void accumulateRedirect(TotalOrderRequest request) {
+		// Merge the requests into a single one, so that the leader
+		// receives fewer but larger requests
+		if (pendingRedirect == null)
+			pendingRedirect = request;
+		else
+			pendingRedirect.merge(request);
+		
+		if (REDIRECT_FLUSH_INTERVAL <= 0 ||
+				pendingRedirect.getCarriedMessageCount() >= MAX_REDIRECT_BATCH_MESSAGES) {
+			flushRedirect();
+		} else if (!isNextRedirectScheduled) {
+			try {
+				NextRedirect next = new NextRedirect(REDIRECT_FLUSH_INTERVAL,
+						"NextRedirect", request.getChannel(), this);
+				next.init();
+				next.go();
+				isNextRedirectScheduled = true;
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			} catch (AppiaException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void flushRedirect() {
+		if (pendingRedirect == null)
+			return;
+		
+		TotalOrderRequest request = pendingRedirect;
+		pendingRedirect = null;
+		
+		if (SEPARATE_PAYLOADS) {
+			broadcastPayload(request);
+		} else if (processList.getSelfId() == leaderId) {
+			// This process may become the leader in the meantime
+			enqueue(request);
+			proposeIfPossible(request.getChannel());
+		} else {
+			redirectToLeader(request);
+		}
+	}
+	
+	private void broadcastPayload(TotalOrderRequest request) {
+		List<Serializable> messages;
+		try {
+			messages = request.getCarriedMessages();
+		} catch (CodecException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Dropped a TotalOrderRequest that cannot be decoded: " + e);
+			return;
+		}
+		
+		if (logger.isLoggable(Level.FINE))
+			logger.fine(String.format("Broadcast the payloads of %d messages for the leader (id = %d)",
+					messages.size(), leaderId));
+		
+		try {
+			ZabPayload payload = new ZabPayload(request.getChannel(), this, epochId,
+					nextPayloadSerial, messages.toArray(new Serializable[messages.size()]));
+			payload.init();
+			payload.go();
+			nextPayloadSerial += messages.size();
 		} catch (AppiaEventException e) {
 			e.printStackTrace();
 		}
@@ -255,31 +1252,72 @@ public class ZabProposalSession extends Session {
 	
 	private void redirectToLeader(TotalOrderRequest request) {
 		if (logger.isLoggable(Level.FINE))
-			logger.fine("Redirect the message to the leader (id = " + leaderId + ")");
+			logger.fine(String.format("Redirect %d messages to the leader (id = %d)",
+					request.getCarriedMessageCount(), leaderId));
 		
 		try {
 			request.source = processList.getSelfProcess().getAddress();
 			request.dest = processList.getProcess(leaderId).getAddress();
+			request.setSourceSession(this);
+			request.setDir(Direction.DOWN);
+			request.init();
 			request.go();
 		} catch (AppiaEventException e) {
 			e.printStackTrace();
 		}
 	}
 	
-	private void commit(Channel chennel) {
+	private void commit(Channel channel, long proposalSerial) {
 		if (logger.isLoggable(Level.FINE))
 			logger.fine(String.format("Commit the message (epoch id: %d, proposal serial #: %d, vote #: %d)",
-					epochId, currentProposingSerial, voteCount));
+					epochId, proposalSerial, ongoingProposals.get(proposalSerial).voteCount));
+		
+		lastCommittedSerial = proposalSerial;
+		
+		if (PIGGYBACK_COMMITS) {
+			// The leader delivers the proposal by itself. The followers will
+			// learn the commit from the next proposal or from a standalone
+			// ZabCommit if no proposal is made for a while.
+			deliverUpTo(channel, proposalSerial);
+			announceCommitsIfIdle(channel);
+		} else {
+			broadcastCommit(channel, proposalSerial);
+		}
+	}
+	
+	private void announceCommitsIfIdle(Channel channel) {
+		if (lastAnnouncedCommitSerial >= lastCommittedSerial)
+			return;
 		
+		long idleTime = System.currentTimeMillis() - lastProposedTime;
+		if (idleTime >= COMMIT_IDLE_TIMEOUT) {
+			broadcastCommit(channel, lastCommittedSerial);
+		} else if (!isNextCommitScheduled) {
+			try {
+				NextCommit next = new NextCommit(COMMIT_IDLE_TIMEOUT - idleTime,
+						"NextCommit", channel, this);
+				next.init();
+				next.go();
+				isNextCommitScheduled = true;
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			} catch (AppiaException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void broadcastCommit(Channel channel, long proposalSerial) {
 		try {
 			// Broadcast the result (note that this process will
 			// also receive one since it is a broadcast)
-			ZabCommit commit = new ZabCommit(chennel, this);
-			commit.getMessage().pushObject(new ZabProposalId(epochId, currentProposingSerial));
+			ZabCommit commit = new ZabCommit(channel, this);
+			commit.getMessage().pushLong(proposalSerial);
+			commit.getMessage().pushInt(epochId);
 			commit.init();
 			commit.go();
 			
-			hasOngoingProposal = false;
+			lastAnnouncedCommitSerial = proposalSerial;
 		} catch (AppiaEventException e) {
 			e.printStackTrace();
 		}
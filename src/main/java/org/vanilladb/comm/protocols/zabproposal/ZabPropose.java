@@ -1,13 +1,19 @@
 package org.vanilladb.comm.protocols.zabproposal;
 
 import org.vanilladb.comm.protocols.beb.Broadcast;
+import org.vanilladb.comm.protocols.beb.RelayableBroadcast;
 
 import net.sf.appia.core.AppiaEventException;
 import net.sf.appia.core.Channel;
 import net.sf.appia.core.Direction;
 import net.sf.appia.core.Session;
 
-public class ZabPropose extends Broadcast {
+/**
+ * A proposal of the Zab leader. It can be relayed, since the leader proposes
+ * the uncommitted proposals again once it detects a failure, and the
+ * processes fetch the committed ones they miss.
+ */
+public class ZabPropose extends Broadcast implements RelayableBroadcast {
 	
 	// We must provide a public constructor for TcpCompleteSession
 	// in order to reconstruct this on the other side
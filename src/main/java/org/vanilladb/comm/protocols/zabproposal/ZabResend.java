@@ -0,0 +1,31 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import org.vanilladb.comm.protocols.beb.Broadcast;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Session;
+
+/**
+ * Broadcast by the leader to propose the uncommitted proposals again
+ * after detecting a failure, since the processes that got the proposals
+ * from a failed relay may have missed some of them. It carries the last
+ * committed serial, so that a process that missed some committed proposals
+ * can accept the rest.
+ */
+public class ZabResend extends Broadcast {
+	
+	// We must provide a public constructor for TcpCompleteSession
+	// in order to reconstruct this on the other side
+	public ZabResend() {
+		super();
+	}
+	
+	public ZabResend(Channel channel, Session source, long lastCommittedSerial,
+			ZabProposal[] proposals) throws AppiaEventException {
+		super(channel, Direction.DOWN, source);
+		ZabProposal.pushAll(getMessage(), proposals);
+		getMessage().pushLong(lastCommittedSerial);
+	}
+}
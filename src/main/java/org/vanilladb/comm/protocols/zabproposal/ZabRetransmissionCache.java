@@ -0,0 +1,77 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A ring buffer that keeps the most recently committed proposals, so that
+ * a process can send them again to the processes that miss them without
+ * reading the log. The proposals must be added in the order of their
+ * serial numbers. The ones that are older than the latest one are
+ * ignored. A gap in the serial numbers (e.g. after restoring
+ * a snapshot) drops the older proposals.
+ */
+class ZabRetransmissionCache {
+	
+	private final ZabProposal[] proposals;
+	// The cache holds the proposals from firstSerial to lastSerial,
+	// it is empty if lastSerial < firstSerial
+	private long firstSerial = 1;
+	private long lastSerial = 0;
+	
+	ZabRetransmissionCache(int capacity) {
+		proposals = new ZabProposal[Math.max(1, capacity)];
+	}
+	
+	void add(ZabProposal proposal) {
+		long serial = proposal.getId().getSerialNumber();
+		// The serial numbers never go back, even across epochs
+		if (serial <= lastSerial)
+			return;
+		if (serial != lastSerial + 1) {
+			Arrays.fill(proposals, null);
+			firstSerial = serial;
+		}
+		lastSerial = serial;
+		proposals[indexOf(serial)] = proposal;
+		if (lastSerial - firstSerial >= proposals.length)
+			firstSerial = lastSerial - proposals.length + 1;
+	}
+	
+	/**
+	 * Checks if the cache holds the proposal of the given serial number.
+	 * 
+	 * @param serial the serial number of the proposal
+	 * @return true if the proposal is cached
+	 */
+	boolean contains(long serial) {
+		return serial >= firstSerial && serial <= lastSerial;
+	}
+	
+	/**
+	 * Gets the cached proposals in the given range of serial numbers.
+	 * The returned proposals are contiguous and start from the first
+	 * requested serial number, so the result is empty if that proposal
+	 * has been dropped.
+	 * 
+	 * @param fromSerial the first serial number (inclusive)
+	 * @param toSerial the last serial number (inclusive)
+	 * @param maxCount the maximum number of proposals to return
+	 * @return the proposals in the order of their serial numbers
+	 */
+	List<ZabProposal> getRange(long fromSerial, long toSerial, int maxCount) {
+		List<ZabProposal> range = new ArrayList<ZabProposal>();
+		if (!contains(fromSerial))
+			return range;
+		
+		long last = Math.min(Math.min(toSerial, lastSerial), fromSerial + maxCount - 1);
+		for (long serial = fromSerial; serial <= last; serial++)
+			range.add(proposals[indexOf(serial)]);
+		return range;
+	}
+	
+	private int indexOf(long serial) {
+		return (int) (serial % proposals.length);
+	}
+}
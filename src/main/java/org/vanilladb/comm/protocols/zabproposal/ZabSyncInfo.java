@@ -0,0 +1,29 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * The reply to a ZabSyncQuery. It carries the last delivered proposal serial
+ * of the sender and the proposals the sender has after the new leader's.
+ */
+public class ZabSyncInfo extends SendableEvent {
+	
+	// We must provide a public constructor for TcpCompleteSession
+	// in order to reconstruct this on the other side
+	public ZabSyncInfo() {
+		super();
+	}
+	
+	public ZabSyncInfo(Channel channel, Session source, int epochId,
+			long lastDeliveredProposalSerial, ZabProposal[] proposals)
+			throws AppiaEventException {
+		super(channel, Direction.DOWN, source);
+		ZabProposal.pushAll(getMessage(), proposals);
+		getMessage().pushLong(lastDeliveredProposalSerial);
+		getMessage().pushInt(epochId);
+	}
+}
@@ -0,0 +1,28 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import org.vanilladb.comm.protocols.beb.Broadcast;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Session;
+
+/**
+ * Broadcast by a new leader to collect the states of the other processes
+ * before it starts proposing in the new epoch.
+ */
+public class ZabSyncQuery extends Broadcast {
+	
+	// We must provide a public constructor for TcpCompleteSession
+	// in order to reconstruct this on the other side
+	public ZabSyncQuery() {
+		super();
+	}
+	
+	public ZabSyncQuery(Channel channel, Session source, int epochId,
+			long lastDeliveredProposalSerial) throws AppiaEventException {
+		super(channel, Direction.DOWN, source);
+		getMessage().pushLong(lastDeliveredProposalSerial);
+		getMessage().pushInt(epochId);
+	}
+}
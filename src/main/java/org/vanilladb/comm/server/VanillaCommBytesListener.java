@@ -0,0 +1,14 @@
+package org.vanilladb.comm.server;
+
+/**
+ * Implemented by the listener of a {@link VanillaCommServer} that sends
+ * its total order messages as byte arrays. The byte arrays are delivered
+ * here instead of {@link VanillaCommServerListener#onReceiveTotalOrderMessage},
+ * in the same total order as the other messages. For the unmerged Zab groups,
+ * they still go to {@link VanillaCommGroupListener#onReceiveGroupMessage}.
+ */
+public interface VanillaCommBytesListener {
+	
+	void onReceiveTotalOrderBytes(long serialNumber, byte[] message);
+
+}
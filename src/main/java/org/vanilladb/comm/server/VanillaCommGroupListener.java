@@ -0,0 +1,20 @@
+package org.vanilladb.comm.server;
+
+import java.io.Serializable;
+
+/**
+ * Implemented by the listener of a {@link VanillaCommServer} that runs
+ * multiple Zab groups without merging their total orders. Each group
+ * numbers its messages by itself.
+ */
+public interface VanillaCommGroupListener {
+	
+	void onReceiveGroupMessage(int groupId, long serialNumber, Serializable message);
+	
+	/**
+	 * Called when the server has to catch up with a snapshot of the given
+	 * group instead of the messages it missed in that group.
+	 */
+	void onRestoreGroupSnapshot(int groupId, long serialNumber, Serializable snapshot);
+
+}
@@ -0,0 +1,21 @@
+package org.vanilladb.comm.server;
+
+import java.io.IOException;
+
+/**
+ * Implemented by the listener of a {@link VanillaCommServer} that wants to
+ * know why the server stops ordering messages when its Zab log fails. If
+ * the listener does not implement it, the failure is reported through
+ * {@link VanillaCommServerListener#onServerFailed} with the id of this
+ * server instead.
+ */
+public interface VanillaCommLogListener {
+	
+	/**
+	 * Called when the server cannot open or write the log of the given Zab
+	 * group. The server no longer acknowledges the proposals of the group,
+	 * as if it had crashed, and should be restarted once the log is fixed.
+	 */
+	void onZabLogFailed(int zabGroupId, IOException error);
+
+}
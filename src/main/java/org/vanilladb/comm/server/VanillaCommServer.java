@@ -1,24 +1,37 @@
 package org.vanilladb.comm.server;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.logging.log4j.core.config.Configurator;
+import org.vanilladb.comm.codec.CodecRegistry;
+import org.vanilladb.comm.codec.MessageCodec;
 import org.vanilladb.comm.process.ProcessList;
 import org.vanilladb.comm.process.ProcessStateListener;
 import org.vanilladb.comm.protocols.beb.BestEffortBroadcastLayer;
+import org.vanilladb.comm.protocols.coalescing.CoalescingLayer;
+import org.vanilladb.comm.protocols.compression.CompressionLayer;
+import org.vanilladb.comm.protocols.multicastbeb.MulticastBebLayer;
+import org.vanilladb.comm.protocols.niotcp.NioTcpLayer;
 import org.vanilladb.comm.protocols.p2pappl.P2pApplicationLayer;
 import org.vanilladb.comm.protocols.p2pappl.P2pMessage;
 import org.vanilladb.comm.protocols.p2pappl.P2pMessageListener;
 import org.vanilladb.comm.protocols.tcpfd.TcpFailureDetectionLayer;
 import org.vanilladb.comm.protocols.totalorderappl.TotalOrderApplicationLayer;
-import org.vanilladb.comm.protocols.totalorderappl.TotalOrderMessageListener;
 import org.vanilladb.comm.protocols.totalorderappl.TotalOrderRequest;
+import org.vanilladb.comm.protocols.totalorderappl.TotalOrderRoundRequest;
+import org.vanilladb.comm.protocols.totalorderappl.TotalOrderSnapshot;
 import org.vanilladb.comm.protocols.zabacceptance.ZabAcceptanceLayer;
 import org.vanilladb.comm.protocols.zabelection.ZabElectionLayer;
+import org.vanilladb.comm.protocols.zablog.ZabLog;
+import org.vanilladb.comm.protocols.zablog.ZabLogMode;
 import org.vanilladb.comm.protocols.zabproposal.ZabProposalLayer;
 import org.vanilladb.comm.view.ProcessType;
 import org.vanilladb.comm.view.ProcessView;
@@ -37,9 +50,42 @@ import net.sf.appia.core.Session;
 import net.sf.appia.protocols.tcpcomplete.TcpCompleteLayer;
 
 public class VanillaCommServer implements P2pMessageListener, ProcessStateListener,
-		TotalOrderMessageListener, Runnable {
+		Runnable {
 	private static Logger logger = Logger.getLogger(VanillaCommServer.class.getName());
 	
+	// The number of independent Zab groups. Each group has its own leader
+	// and orders the total order messages sent to it.
+	private static final int ZAB_GROUP_COUNT;
+	// If enabled, the messages of the groups are merged into a single total
+	// order for VanillaCommServerListener. Otherwise, the listener must be a
+	// VanillaCommGroupListener, which receives the order of each group.
+	private static final boolean MERGE_ZAB_GROUPS;
+	// How long (in milliseconds) a round lasts when merging the groups.
+	// A merged message is delivered about a round after it is ordered.
+	private static final long MERGE_ROUND_INTERVAL;
+	// If enabled, the channels use the NIO transport instead of TcpCompleteLayer
+	private static final boolean NIO_TRANSPORT;
+	// If enabled, the Zab channels broadcast over UDP multicast
+	private static final boolean MULTICAST_BROADCAST;
+	
+	static {
+		// The settings can only be read after ProcessView
+		// has loaded the configuration file
+		if (ProcessView.SERVER_COUNT == 0)
+			throw new RuntimeException("There is no server in the view");
+		
+		ZAB_GROUP_COUNT = Math.max(1, Integer.getInteger(
+				VanillaCommServer.class.getName() + ".ZAB_GROUP_COUNT", 1));
+		MERGE_ZAB_GROUPS = Boolean.valueOf(System.getProperty(
+				VanillaCommServer.class.getName() + ".MERGE_ZAB_GROUPS", "true"));
+		MERGE_ROUND_INTERVAL = Long.getLong(
+				VanillaCommServer.class.getName() + ".MERGE_ROUND_INTERVAL", 5);
+		NIO_TRANSPORT = Boolean.valueOf(System.getProperty(
+				VanillaCommServer.class.getName() + ".NIO_TRANSPORT", "false"));
+		MULTICAST_BROADCAST = Boolean.valueOf(System.getProperty(
+				VanillaCommServer.class.getName() + ".MULTICAST_BROADCAST", "false"));
+	}
+	
 	public static int getServerCount() {
 		return ProcessView.SERVER_COUNT;
 	}
@@ -48,20 +94,87 @@ public class VanillaCommServer implements P2pMessageListener, ProcessStateListen
 		return ProcessView.CLIENT_COUNT;
 	}
 	
+	public static int getZabGroupCount() {
+		return ZAB_GROUP_COUNT;
+	}
+	
+	/**
+	 * Registers a codec that encodes the messages of the given class instead of
+	 * the Java serialization, for both the total order and the P2P messages. The
+	 * codecs must be registered with the same type ids on every server and
+	 * client before they start.
+	 * 
+	 * @param typeId the non-negative id that identifies the class
+	 * @param type the class of the messages
+	 * @param codec the codec for the messages
+	 */
+	public static <T extends Serializable> void registerCodec(int typeId, Class<T> type,
+			MessageCodec<? super T> codec) {
+		CodecRegistry.register(typeId, type, codec);
+	}
+	
+	private int selfId;
 	private VanillaCommServerListener listener;
-	private Channel zabChannel;
+	// Null if there is only one group or the groups are not merged
+	private ZabGroupMerger merger;
+	private Channel[] zabChannels = new Channel[ZAB_GROUP_COUNT];
+	// The group that the messages go to if the group is not specified
+	private int defaultZabGroupId;
+	private int readyZabGroupCount;
+	private Set<Integer> failedProcessIds = new HashSet<Integer>();
 	private Channel p2pChannel;
 	private Session commonTcpSession;
+	// Shared by the Zab groups, so that a process connects and fails
+	// in all the groups at the same time
+	private Session commonFailureDetectionSession;
 	
 	public VanillaCommServer(int selfId, VanillaCommServerListener listener) {
-		this(selfId, listener, ProcessView.SERVER_COUNT - 1);
+		this(selfId, listener, ProcessView.getLastVoterServerId());
 	}
 	
+	/**
+	 * Creates a server whose first Zab group is led by the given server by
+	 * default. The default leaders of the other groups are the servers before
+	 * it (wrapping around), skipping the observers.
+	 */
 	public VanillaCommServer(int selfId, VanillaCommServerListener listener, int defaultZabLeaderId) {
+		if (ProcessView.SERVER_LIST.getProcess(defaultZabLeaderId).isObserver())
+			throw new IllegalArgumentException("An observer cannot be the Zab leader: "
+					+ defaultZabLeaderId);
+		if (ZAB_GROUP_COUNT > 1 && !MERGE_ZAB_GROUPS &&
+				!(listener instanceof VanillaCommGroupListener))
+			throw new IllegalArgumentException(
+					"The listener must be a VanillaCommGroupListener for unmerged Zab groups");
+		
 		int globalSelfId = ProcessView.toGlobalId(ProcessType.SERVER, selfId);
+		this.selfId = selfId;
 		this.listener = listener;
+		if (ZAB_GROUP_COUNT > 1 && MERGE_ZAB_GROUPS)
+			merger = new ZabGroupMerger(ZAB_GROUP_COUNT, new ZabGroupMerger.Output() {
+				
+				@Override
+				public void deliverTotalOrderMessage(long serialNumber, Serializable message) {
+					VanillaCommServer.this.deliverTotalOrderMessage(serialNumber, message);
+				}
+				
+				@Override
+				public void requestRound(int groupId, long round) {
+					VanillaCommServer.this.requestRound(groupId, round);
+				}
+			});
 		createCommonSessions();
-		setupZabChannel(globalSelfId, defaultZabLeaderId);
+		int[] defaultLeaderIds = placeZabLeaders(defaultZabLeaderId);
+		for (int groupId = 0; groupId < ZAB_GROUP_COUNT; groupId++)
+			setupZabChannel(globalSelfId, groupId, defaultLeaderIds[groupId]);
+		
+		// Send to the group led by this server (if any) to save a hop
+		defaultZabGroupId = selfId % ZAB_GROUP_COUNT;
+		for (int groupId = 0; groupId < ZAB_GROUP_COUNT; groupId++) {
+			if (defaultLeaderIds[groupId] == selfId) {
+				defaultZabGroupId = groupId;
+				break;
+			}
+		}
 		setupP2pChannel(globalSelfId);
 		
 		// Disable Log4j Logging which is the default logger of Appia
@@ -87,20 +200,108 @@ public class VanillaCommServer implements P2pMessageListener, ProcessStateListen
 	}
 	
 	public void sendTotalOrderMessage(Serializable message) {
+		sendTotalOrderMessage(defaultZabGroupId, message);
+	}
+	
+	public void sendTotalOrderMessages(List<Serializable> messages) {
+		sendTotalOrderMessages(defaultZabGroupId, messages);
+	}
+	
+	public void sendTotalOrderMessage(int zabGroupId, Serializable message) {
+		List<Serializable> messages = new ArrayList<Serializable>();
+		messages.add(message);
+		sendTotalOrderMessages(zabGroupId, messages);
+	}
+	
+	public void sendTotalOrderMessages(int zabGroupId, List<Serializable> messages) {
 		try {
-			List<Serializable> messages = new ArrayList<Serializable>();
-			messages.add(message);
 			TotalOrderRequest total = new TotalOrderRequest(messages);
-			total.asyncGo(zabChannel, Direction.DOWN);
+			total.asyncGo(zabChannels[zabGroupId], Direction.DOWN);
 		} catch (AppiaEventException e) {
 			e.printStackTrace();
 		}
 	}
 	
-	public void sendTotalOrderMessages(List<Serializable> messages) {
+	/**
+	 * Sends a message that the application has encoded by itself. The bytes
+	 * are carried as they are, without the Java serialization, and delivered
+	 * to {@link VanillaCommBytesListener#onReceiveTotalOrderBytes} if the
+	 * listener implements it. The array must not be modified after this call.
+	 * 
+	 * @param message the encoded message
+	 */
+	public void sendTotalOrderBytes(byte[] message) {
+		sendTotalOrderMessage(defaultZabGroupId, message);
+	}
+	
+	/**
+	 * Sends the remaining bytes of the buffer like {@link #sendTotalOrderBytes(byte[])}.
+	 * The position of the buffer is not changed.
+	 * 
+	 * @param message the buffer holding the encoded message
+	 */
+	public void sendTotalOrderBytes(ByteBuffer message) {
+		sendTotalOrderBytes(defaultZabGroupId, message);
+	}
+	
+	public void sendTotalOrderBytes(int zabGroupId, byte[] message) {
+		sendTotalOrderMessage(zabGroupId, message);
+	}
+	
+	public void sendTotalOrderBytes(int zabGroupId, ByteBuffer message) {
+		byte[] bytes = new byte[message.remaining()];
+		message.duplicate().get(bytes);
+		sendTotalOrderMessage(zabGroupId, bytes);
+	}
+
+	/**
+	 * Hands a snapshot of the application state to the total order service.
+	 * The snapshot must reflect all the total order messages up to the given
+	 * serial number. It is used for catching up the lagging servers, and the
+	 * older part of the log is truncated once the snapshot is saved.
+	 * Like the send methods, it must not be called from the listener callbacks.
+	 * Since the snapshot is kept in the log, it cannot be saved if the log
+	 * is in MEMORY_ONLY mode. The listener must be a {@link VanillaCommSnapshotListener}
+	 * so that the lagging servers can restore the snapshot.
+	 * 
+	 * @param serialNumber the serial number of the last message in the snapshot
+	 * @param snapshot the state of the application
+	 * @throws IllegalStateException if there is no durable Zab log, the
+	 * listener cannot restore the snapshot or there are many Zab groups
+	 */
+	public void saveSnapshot(long serialNumber, Serializable snapshot) {
+		if (ZAB_GROUP_COUNT > 1)
+			throw new IllegalStateException(
+					"The snapshot must be saved for a Zab group");
+		saveSnapshot(0, serialNumber, snapshot);
+	}
+
+	/**
+	 * Hands a snapshot of the application state built from the messages of
+	 * the given Zab group, which works like {@link #saveSnapshot(long, Serializable)}.
+	 * The groups cannot be merged, since a snapshot does not tell where the
+	 * other groups were in the merged order.
+	 * 
+	 * @param zabGroupId the id of the Zab group
+	 * @param serialNumber the serial number of the last message of the group in the snapshot
+	 * @param snapshot the state of the application
+	 * @throws IllegalStateException if there is no durable Zab log, the
+	 * listener cannot restore the snapshot or the groups are merged
+	 */
+	public void saveSnapshot(int zabGroupId, long serialNumber, Serializable snapshot) {
+		if (ZabLog.MODE == ZabLogMode.MEMORY_ONLY)
+			throw new IllegalStateException(
+					"Snapshots need a Zab log in FSYNC or ASYNC_FLUSH mode");
+		if (ZAB_GROUP_COUNT == 1 && !(listener instanceof VanillaCommSnapshotListener))
+			throw new IllegalStateException(
+					"The listener must be a VanillaCommSnapshotListener for saving snapshots");
+		if (merger != null)
+			throw new IllegalStateException(
+					"Snapshots are not supported for merged Zab groups");
+		
 		try {
-			TotalOrderRequest total = new TotalOrderRequest(messages);
-			total.asyncGo(zabChannel, Direction.DOWN);
+			TotalOrderSnapshot event = new TotalOrderSnapshot(serialNumber, snapshot);
+			event.asyncGo(zabChannels[zabGroupId], Direction.DOWN);
 		} catch (AppiaEventException e) {
 			e.printStackTrace();
 		}
@@ -112,13 +313,79 @@ public class VanillaCommServer implements P2pMessageListener, ProcessStateListen
 				ProcessView.toLocalId(senderId), message);
 	}
 
-	@Override
-	public void onRecvTotalOrderMessage(long serialNumber, Serializable message) {
-		listener.onReceiveTotalOrderMessage(serialNumber, message);
+	void onRecvGroupMessages(int groupId, long round, long firstSerialNumber,
+			Serializable[] messages) {
+		if (merger != null) {
+			merger.onGroupMessages(groupId, round, messages);
+		} else if (ZAB_GROUP_COUNT > 1) {
+			VanillaCommGroupListener groupListener = (VanillaCommGroupListener) listener;
+			for (int i = 0; i < messages.length; i++)
+				groupListener.onReceiveGroupMessage(groupId, firstSerialNumber + i, messages[i]);
+		} else {
+			for (int i = 0; i < messages.length; i++)
+				deliverTotalOrderMessage(firstSerialNumber + i, messages[i]);
+		}
+	}
+
+	void requestRound(int groupId, long round) {
+		// The merger runs in the Appia thread, so the request is sent
+		// from the top session of the group instead of by asyncGo
+		try {
+			ChannelCursor cc = zabChannels[groupId].getCursor();
+			cc.top();
+			TotalOrderRoundRequest event = new TotalOrderRoundRequest(
+					zabChannels[groupId], cc.getSession(), round);
+			event.init();
+			event.go();
+		} catch (AppiaCursorException e) {
+			e.printStackTrace();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+	}
+
+	void deliverTotalOrderMessage(long serialNumber, Serializable message) {
+		if (message instanceof byte[] && listener instanceof VanillaCommBytesListener)
+			((VanillaCommBytesListener) listener).onReceiveTotalOrderBytes(serialNumber,
+					(byte[]) message);
+		else
+			listener.onReceiveTotalOrderMessage(serialNumber, message);
+	}
+
+	void onRecvGroupSnapshot(int groupId, long serialNumber, Serializable snapshot) {
+		if (merger != null) {
+			// Only happens if a snapshot has been saved with another configuration
+			if (logger.isLoggable(Level.SEVERE))
+				logger.severe("Cannot restore a snapshot for merged Zab groups");
+		} else if (ZAB_GROUP_COUNT > 1) {
+			((VanillaCommGroupListener) listener).onRestoreGroupSnapshot(groupId,
+					serialNumber, snapshot);
+		} else if (listener instanceof VanillaCommSnapshotListener) {
+			((VanillaCommSnapshotListener) listener).onRestoreSnapshot(serialNumber, snapshot);
+		} else {
+			// Only happens if a snapshot has been saved by another listener
+			if (logger.isLoggable(Level.SEVERE))
+				logger.severe("The listener cannot restore a snapshot");
+		}
+	}
+
+	void onGroupLogFailed(int groupId, IOException error) {
+		if (logger.isLoggable(Level.SEVERE))
+			logger.severe("The Zab log of group " + groupId + " failed: " + error);
+		
+		if (listener instanceof VanillaCommLogListener)
+			((VanillaCommLogListener) listener).onZabLogFailed(groupId, error);
+		else
+			listener.onServerFailed(selfId);
 	}
 
 	@Override
 	public void onAllProcessesReady() {
+		// Each group reports once
+		readyZabGroupCount++;
+		if (readyZabGroupCount < ZAB_GROUP_COUNT)
+			return;
+		
 		if (logger.isLoggable(Level.INFO))
 			logger.info("All processes are ready.");
 		listener.onServerReady();
@@ -126,40 +393,88 @@ public class VanillaCommServer implements P2pMessageListener, ProcessStateListen
 
 	@Override
 	public void onProcessFailed(int failedProcessId) {
+		// Each group reports the same failure
+		if (!failedProcessIds.add(failedProcessId))
+			return;
+		
 		if (logger.isLoggable(Level.SEVERE))
 			logger.severe("Server " + failedProcessId + " failed");
 		if (ProcessView.toProcessType(failedProcessId) == ProcessType.SERVER)
 			listener.onServerFailed(ProcessView.toLocalId(failedProcessId));
 	}
 	
+	private int[] placeZabLeaders(int firstLeaderId) {
+		int[] leaderIds = new int[ZAB_GROUP_COUNT];
+		int serverId = firstLeaderId;
+		for (int groupId = 0; groupId < ZAB_GROUP_COUNT; groupId++) {
+			leaderIds[groupId] = serverId;
+			// Move to the previous voter
+			do {
+				serverId = (serverId + ProcessView.SERVER_COUNT - 1) % ProcessView.SERVER_COUNT;
+			} while (ProcessView.SERVER_LIST.getProcess(serverId).isObserver());
+		}
+		return leaderIds;
+	}
+	
+	private static Layer newTransportLayer() {
+		if (NIO_TRANSPORT)
+			return new NioTcpLayer();
+		return new TcpCompleteLayer();
+	}
+	
+	private static Layer newBroadcastLayer() {
+		if (MULTICAST_BROADCAST)
+			return new MulticastBebLayer();
+		return new BestEffortBroadcastLayer();
+	}
+	
 	private void createCommonSessions() {
 		Layer layer; 
 		
-		layer = new TcpCompleteLayer();
+		layer = newTransportLayer();
 		commonTcpSession = layer.createSession();
+		
+		layer = new TcpFailureDetectionLayer();
+		commonFailureDetectionSession = layer.createSession();
 	}
 	
-	private void setupZabChannel(int globalSelfId, int defaultZabLeaderId) {
+	private void setupZabChannel(int globalSelfId, int groupId, int defaultZabLeaderId) {
 		try {
 			ProcessList processList = ProcessView.buildServersProcessList(globalSelfId);
-			Layer[] layers = new Layer[] {
-				new TcpCompleteLayer(),
-				new TcpFailureDetectionLayer(),
-//				new P2pCountingLayer(), // Debug Layer
-				new BestEffortBroadcastLayer(),
-				new ZabElectionLayer(defaultZabLeaderId),
-				new ZabAcceptanceLayer(),
-				new ZabProposalLayer(),
-				new TotalOrderApplicationLayer(this, this, processList, true)
-			};
-			QoS qos = new QoS("Zab QoS", layers);
-			zabChannel = qos.createUnboundChannel("Zab Channel");
+			// The groups share the TCP session, which only needs to register
+			// the socket once
+			List<Layer> layers = new ArrayList<Layer>();
+			layers.add(newTransportLayer());
+			// Each group batches its own events, since a batch cannot
+			// cross the channels
+			Layer coalescingLayer = CoalescingLayer.ifEnabled();
+			if (coalescingLayer != null)
+				layers.add(coalescingLayer);
+			layers.add(new TcpFailureDetectionLayer());
+//			layers.add(new P2pCountingLayer()); // Debug Layer
+			// Above the common sessions, so that each group compresses its own messages
+			Layer compressionLayer = CompressionLayer.forZabChannel();
+			if (compressionLayer != null)
+				layers.add(compressionLayer);
+			layers.add(newBroadcastLayer());
+			layers.add(new ZabElectionLayer(defaultZabLeaderId));
+			layers.add(new ZabAcceptanceLayer(groupId));
+			layers.add(new ZabProposalLayer((merger != null)? MERGE_ROUND_INTERVAL : 0));
+			layers.add(new TotalOrderApplicationLayer(this, new ZabGroupChannelListener(this, groupId),
+					processList, groupId == 0));
+			QoS qos = new QoS("Zab QoS " + groupId, layers.toArray(new Layer[layers.size()]));
+			Channel zabChannel = qos.createUnboundChannel("Zab Channel " + groupId);
+			zabChannels[groupId] = zabChannel;
 			
 			// Set common sessions
 			try {
 				ChannelCursor cc = zabChannel.getCursor();
 				cc.bottom();
 				cc.setSession(commonTcpSession);
+				cc.up();
+				if (coalescingLayer != null)
+					cc.up();
+				cc.setSession(commonFailureDetectionSession);
 			} catch (AppiaCursorException ex) {
 				ex.printStackTrace();
 			}
@@ -176,11 +491,16 @@ public class VanillaCommServer implements P2pMessageListener, ProcessStateListen
 	private void setupP2pChannel(int globalSelfId) {
 		try {
 			ProcessList processList = ProcessView.buildAllProcessList(globalSelfId);
-			Layer[] layers = new Layer[] {
-				new TcpCompleteLayer(),
-				new P2pApplicationLayer(this, processList, false)
-			};
-			QoS qos = new QoS("P2P QoS", layers);
+			List<Layer> layers = new ArrayList<Layer>();
+			layers.add(newTransportLayer());
+			Layer coalescingLayer = CoalescingLayer.ifEnabled();
+			if (coalescingLayer != null)
+				layers.add(coalescingLayer);
+			Layer compressionLayer = CompressionLayer.forP2pChannel();
+			if (compressionLayer != null)
+				layers.add(compressionLayer);
+			layers.add(new P2pApplicationLayer(this, processList, false));
+			QoS qos = new QoS("P2P QoS", layers.toArray(new Layer[layers.size()]));
 			p2pChannel = qos.createUnboundChannel("P2P Channel");
 			
 			// Set common sessions
@@ -0,0 +1,20 @@
+package org.vanilladb.comm.server;
+
+import java.io.Serializable;
+
+/**
+ * Implemented by the listener of a {@link VanillaCommServer} that saves
+ * snapshots of its state through {@link VanillaCommServer#saveSnapshot}.
+ * For the unmerged Zab groups, the snapshots are restored through
+ * {@link VanillaCommGroupListener#onRestoreGroupSnapshot} instead.
+ */
+public interface VanillaCommSnapshotListener {
+	
+	/**
+	 * Called when the server has to catch up with a snapshot instead of
+	 * the messages it missed. The snapshot replaces the state built from
+	 * all the total order messages up to the given serial number.
+	 */
+	void onRestoreSnapshot(long serialNumber, Serializable snapshot);
+
+}
@@ -0,0 +1,43 @@
+package org.vanilladb.comm.server;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.vanilladb.comm.protocols.totalorderappl.TotalOrderRoundListener;
+
+/**
+ * Passes the total order messages of a Zab group to the server
+ * together with the id of the group.
+ */
+class ZabGroupChannelListener implements TotalOrderRoundListener {
+	
+	private VanillaCommServer server;
+	private int groupId;
+	
+	ZabGroupChannelListener(VanillaCommServer server, int groupId) {
+		this.server = server;
+		this.groupId = groupId;
+	}
+	
+	@Override
+	public void onRecvTotalOrderMessage(long serialNumber, Serializable message) {
+		// Not called, since the messages are received by proposal
+		server.onRecvGroupMessages(groupId, 0, serialNumber, new Serializable[] { message });
+	}
+	
+	@Override
+	public void onRecvTotalOrderMessages(long round, long firstSerialNumber,
+			Serializable[] messages) {
+		server.onRecvGroupMessages(groupId, round, firstSerialNumber, messages);
+	}
+	
+	@Override
+	public void onRecvTotalOrderSnapshot(long serialNumber, Serializable snapshot) {
+		server.onRecvGroupSnapshot(groupId, serialNumber, snapshot);
+	}
+	
+	@Override
+	public void onTotalOrderLogFailed(IOException error) {
+		server.onGroupLogFailed(groupId, error);
+	}
+}
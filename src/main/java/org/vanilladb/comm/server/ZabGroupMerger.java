@@ -0,0 +1,117 @@
+package org.vanilladb.comm.server;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Merges the total orders of multiple Zab groups into a single one. The
+ * leader of each group stamps its proposals with rounds, which never
+ * decrease in a group. The merged order sorts the messages by their rounds,
+ * then by the ids of their groups, then by their orders in the groups, so
+ * it is the same on every server. The messages of a round are released
+ * once every group has delivered a later round. The groups that hold them
+ * back are asked to move past the round, which makes an idle leader
+ * propose an empty proposal.<br>
+ * <br>
+ * The order is only the same on every server if the rounds of a group never
+ * decrease, including across leader changes. A leader takes its rounds from
+ * its clock, but never goes below the latest round that it has delivered or
+ * proposed, and a new leader has delivered all the committed proposals of
+ * the previous ones before it proposes. So the clocks of the leaders need
+ * not be synchronized. A leader whose clock is behind keeps the last round
+ * until its clock catches up, and one whose clock is ahead only makes the
+ * other groups wait, or propose empty proposals to move past its rounds.
+ */
+class ZabGroupMerger {
+	
+	/**
+	 * Receives the merged order, and passes the requests to the groups.
+	 */
+	interface Output {
+		
+		void deliverTotalOrderMessage(long serialNumber, Serializable message);
+		
+		void requestRound(int groupId, long round);
+	}
+	
+	private static class Batch {
+		long round;
+		Serializable[] messages;
+		
+		Batch(long round, Serializable[] messages) {
+			this.round = round;
+			this.messages = messages;
+		}
+	}
+	
+	private Output output;
+	// The latest round delivered by each group
+	private long[] groupRounds;
+	// The messages waiting for the other groups, for each group
+	private List<Queue<Batch>> pendingBatches;
+	// The latest round that each group has been asked to move past
+	private long[] requestedRounds;
+	private long nextSerialNumber = 1;
+	
+	ZabGroupMerger(int groupCount, Output output) {
+		this.output = output;
+		this.groupRounds = new long[groupCount];
+		Arrays.fill(groupRounds, Long.MIN_VALUE);
+		this.requestedRounds = new long[groupCount];
+		Arrays.fill(requestedRounds, Long.MIN_VALUE);
+		this.pendingBatches = new ArrayList<Queue<Batch>>(groupCount);
+		for (int groupId = 0; groupId < groupCount; groupId++)
+			pendingBatches.add(new ArrayDeque<Batch>());
+	}
+	
+	void onGroupMessages(int groupId, long round, Serializable[] messages) {
+		groupRounds[groupId] = Math.max(groupRounds[groupId], round);
+		if (messages.length > 0)
+			pendingBatches.get(groupId).add(new Batch(round, messages));
+		release();
+	}
+	
+	private void release() {
+		// No group will deliver the rounds before this one
+		long completedRound = Long.MAX_VALUE;
+		for (long round : groupRounds)
+			completedRound = Math.min(completedRound, round);
+		
+		while (true) {
+			// Find the earliest batch, the groups with lower ids go first
+			int nextGroupId = -1;
+			long nextRound = completedRound;
+			for (int groupId = 0; groupId < pendingBatches.size(); groupId++) {
+				Batch head = pendingBatches.get(groupId).peek();
+				if (head != null && head.round < nextRound) {
+					nextGroupId = groupId;
+					nextRound = head.round;
+				}
+			}
+			if (nextGroupId < 0)
+				break;
+			
+			Batch batch = pendingBatches.get(nextGroupId).poll();
+			for (Serializable message : batch.messages)
+				output.deliverTotalOrderMessage(nextSerialNumber++, message);
+		}
+		
+		// Ask the groups that hold back the earliest batch to move on
+		long waitingRound = Long.MAX_VALUE;
+		for (Queue<Batch> batches : pendingBatches)
+			if (!batches.isEmpty())
+				waitingRound = Math.min(waitingRound, batches.peek().round);
+		if (waitingRound == Long.MAX_VALUE)
+			return;
+		for (int groupId = 0; groupId < groupRounds.length; groupId++) {
+			if (groupRounds[groupId] <= waitingRound && requestedRounds[groupId] < waitingRound) {
+				requestedRounds[groupId] = waitingRound;
+				output.requestRound(groupId, waitingRound);
+			}
+		}
+	}
+}
@@ -17,6 +17,9 @@ public class ProcessView {
 	public static final int SERVER_COUNT;
 	public static final int CLIENT_COUNT;
 	
+	// The optional 4th token of a server in the view
+	private static final String OBSERVER_ROLE = "observer";
+	
 	static {
 		// read config file
 		String path = System.getProperty("org.vanilladb.comm.config.file");
@@ -71,12 +74,26 @@ public class ProcessView {
 		}
 	}
 	
+	/**
+	 * Gets the id of the last server that is not an observer, which is
+	 * the default Zab leader.
+	 * 
+	 * @return the server id
+	 */
+	public static int getLastVoterServerId() {
+		for (int serverId = SERVER_LIST.getSize() - 1; serverId >= 0; serverId--) {
+			if (!SERVER_LIST.getProcess(serverId).isObserver())
+				return serverId;
+		}
+		throw new RuntimeException("All the servers are observers");
+	}
+	
 	public static ProcessList buildServersProcessList(int selfGlobalId) {
 		ProcessList.Builder builder = new ProcessList.Builder();
 		for (int serverId = 0; serverId < SERVER_LIST.getSize(); serverId++) {
 			CommProcess process = SERVER_LIST.getProcess(serverId);
 			builder.addProcess(new CommProcess(process.getAddress(), serverId,
-					(process.getId() == selfGlobalId)));
+					(process.getId() == selfGlobalId), process.isObserver()));
 		}
 		return builder.build();
 	}
@@ -86,7 +103,7 @@ public class ProcessView {
 		for (int serverId = 0; serverId < SERVER_LIST.getSize(); serverId++) {
 			CommProcess process = SERVER_LIST.getProcess(serverId);
 			builder.addProcess(new CommProcess(process.getAddress(), serverId,
-					(process.getId() == selfGlobalId)));
+					(process.getId() == selfGlobalId), process.isObserver()));
 		}
 		for (int clientId = 0; clientId < CLIENT_LIST.getSize(); clientId++) {
 			CommProcess process = CLIENT_LIST.getProcess(clientId);
@@ -105,15 +122,22 @@ public class ProcessView {
 			String processStr = processSetSpliter.nextToken();
 			try {
 				StringTokenizer tokenizer = new StringTokenizer(processStr);
-				if (tokenizer.countTokens() != 3) {
+				if (tokenizer.countTokens() != 3 && tokenizer.countTokens() != 4) {
 					throw new RuntimeException("Machine view format error: "
 							+ tokenizer.countTokens());
 				}
 				int processId = Integer.parseInt(tokenizer.nextToken());
 				InetAddress addr = InetAddress.getByName(tokenizer.nextToken());
 				int portNumber = Integer.parseInt(tokenizer.nextToken());
+				boolean isObserver = false;
+				if (tokenizer.hasMoreTokens()) {
+					String role = tokenizer.nextToken();
+					if (!role.equalsIgnoreCase(OBSERVER_ROLE))
+						throw new RuntimeException("Unknown process role: " + role);
+					isObserver = true;
+				}
 				CommProcess process = new CommProcess(
-						new InetSocketAddress(addr, portNumber), processId, false);
+						new InetSocketAddress(addr, portNumber), processId, false, isObserver);
 				builder.addProcess(process);
 			} catch (UnknownHostException e) {
 				throw new RuntimeException("cannot build parse: " + processStr, e);
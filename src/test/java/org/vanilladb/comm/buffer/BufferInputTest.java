@@ -0,0 +1,87 @@
+package org.vanilladb.comm.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MsgBuffer;
+
+public class BufferInputTest {
+	
+	@Test
+	public void testRoundTrip() throws IOException {
+		BufferOutput output = BufferOutput.open();
+		output.writeBoolean(true);
+		output.writeByte(-3);
+		output.writeShort(-300);
+		output.writeChar('\u4e2d');
+		output.writeInt(123456789);
+		output.writeLong(-1234567890123L);
+		output.writeFloat(1.5f);
+		output.writeDouble(-2.25);
+		output.writeUTF("VanillaComm \u4e2d\u6587");
+		// Grows the buffer a few times
+		byte[] large = new byte[5000];
+		for (int i = 0; i < large.length; i++)
+			large[i] = (byte) i;
+		output.write(large);
+		
+		Message message = new Message();
+		output.pushTo(message);
+		output.close();
+		
+		BufferInput input = open(message);
+		assertEquals(true, input.readBoolean());
+		assertEquals(-3, input.readByte());
+		assertEquals(-300, input.readShort());
+		assertEquals('\u4e2d', input.readChar());
+		assertEquals(123456789, input.readInt());
+		assertEquals(-1234567890123L, input.readLong());
+		assertEquals(1.5f, input.readFloat(), 0);
+		assertEquals(-2.25, input.readDouble(), 0);
+		assertEquals("VanillaComm \u4e2d\u6587", input.readUTF());
+		byte[] read = new byte[large.length];
+		input.readFully(read);
+		for (int i = 0; i < large.length; i++)
+			assertEquals(large[i], read[i]);
+		
+		try {
+			input.readByte();
+			fail();
+		} catch (EOFException e) {
+			// The end of the range
+		}
+		input.close();
+	}
+	
+	@SuppressWarnings("deprecation")
+	@Test
+	public void testReadLineLikeDataInputStream() throws IOException {
+		byte[] bytes = "first\nsecond\r\nthird\rfourth\n\n\u00e9last".getBytes("ISO-8859-1");
+		BufferInput input = BufferInput.open(bytes, 0, bytes.length);
+		DataInputStream expected = new DataInputStream(new ByteArrayInputStream(bytes));
+		
+		String line;
+		do {
+			line = expected.readLine();
+			assertEquals(line, input.readLine());
+		} while (line != null);
+		assertNull(input.readLine());
+		input.close();
+	}
+	
+	private static BufferInput open(Message message) {
+		MsgBuffer space = new MsgBuffer();
+		space.len = message.popInt();
+		message.pop(space);
+		return BufferInput.open(space.data, space.off, space.len);
+	}
+}
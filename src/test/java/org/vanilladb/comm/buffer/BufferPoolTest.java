@@ -0,0 +1,77 @@
+package org.vanilladb.comm.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+	
+	@Test
+	public void testSizeClasses() {
+		assertCapacity(256, 1);
+		assertCapacity(256, 256);
+		assertCapacity(512, 257);
+		assertCapacity(512, 512);
+		assertCapacity(1024, 513);
+		assertCapacity(1024 * 1024, 1024 * 1024);
+	}
+	
+	@Test
+	public void testReusesReleasedBuffers() {
+		ByteBuffer buffer = BufferPool.acquire(40000);
+		buffer.putInt(42);
+		BufferPool.release(buffer);
+		
+		ByteBuffer reused = BufferPool.acquire(50000);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(reused.capacity(), reused.limit());
+		BufferPool.release(reused);
+	}
+	
+	@Test
+	public void testLargeBuffersAreNotPooled() {
+		ByteBuffer buffer = BufferPool.acquire(1024 * 1024 + 1);
+		assertFalse(buffer.isDirect());
+		assertEquals(1024 * 1024 + 1, buffer.capacity());
+		BufferPool.release(buffer);
+		assertNotSame(buffer, BufferPool.acquire(1024 * 1024 + 1));
+	}
+	
+	@Test
+	public void testForeignBuffersAreNotPooled() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(3000);
+		BufferPool.release(buffer);
+		ByteBuffer acquired = BufferPool.acquire(3000);
+		assertNotSame(buffer, acquired);
+		BufferPool.release(acquired);
+	}
+	
+	@Test
+	public void testGrowKeepsContent() {
+		ByteBuffer buffer = BufferPool.acquire(256);
+		for (int i = 0; i < 64; i++)
+			buffer.putInt(i);
+		
+		ByteBuffer larger = BufferPool.grow(buffer, 1000);
+		assertEquals(1024, larger.capacity());
+		assertEquals(256, larger.position());
+		larger.flip();
+		for (int i = 0; i < 64; i++)
+			assertEquals(i, larger.getInt());
+		BufferPool.release(larger);
+	}
+	
+	private static void assertCapacity(int capacity, int size) {
+		ByteBuffer buffer = BufferPool.acquire(size);
+		assertTrue(buffer.isDirect());
+		assertEquals(capacity, buffer.capacity());
+		BufferPool.release(buffer);
+	}
+}
@@ -0,0 +1,287 @@
+package org.vanilladb.comm.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.appia.core.message.Message;
+
+public class CodecRegistryTest {
+	
+	private static final int POINT_TYPE_ID = 4100;
+	
+	private static class Point implements Serializable {
+		
+		private static final long serialVersionUID = 1L;
+		
+		int x;
+		int y;
+		
+		Point(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Point))
+				return false;
+			Point point = (Point) obj;
+			return x == point.x && y == point.y;
+		}
+		
+		@Override
+		public int hashCode() {
+			return x * 31 + y;
+		}
+	}
+	
+	private static class SubPoint extends Point {
+		
+		private static final long serialVersionUID = 1L;
+		
+		SubPoint(int x, int y) {
+			super(x, y);
+		}
+	}
+	
+	// Registered with a reserved id
+	private static class Marker implements Serializable {
+		
+		private static final long serialVersionUID = 1L;
+	}
+	
+	private static final AtomicInteger encodeCount = new AtomicInteger();
+	
+	private static final MessageCodec<Point> POINT_CODEC = new MessageCodec<Point>() {
+		
+		@Override
+		public void encode(Point point, DataOutput out) throws IOException {
+			encodeCount.incrementAndGet();
+			out.writeInt(point.x);
+			out.writeInt(point.y);
+		}
+		
+		@Override
+		public Point decode(DataInput in) throws IOException {
+			return new Point(in.readInt(), in.readInt());
+		}
+	};
+	
+	// Encodes nothing
+	private static final MessageCodec<Marker> MARKER_CODEC = newMarkerCodec();
+	
+	@BeforeClass
+	public static void setUp() {
+		CodecRegistry.register(POINT_TYPE_ID, Point.class, POINT_CODEC);
+		CodecRegistry.registerReserved(-POINT_TYPE_ID, Marker.class, MARKER_CODEC);
+	}
+	
+	@Test
+	public void testSingleMessages() throws CodecException {
+		byte[] bytes = new byte[] { 1, 2, 3 };
+		Message buffer = new Message();
+		
+		// Popped in the reverse order of pushing
+		CodecRegistry.push(buffer, "text");
+		CodecRegistry.push(buffer, new Point(3, 4));
+		CodecRegistry.push(buffer, bytes);
+		CodecRegistry.push(buffer, new byte[0]);
+		
+		assertArrayEquals(new byte[0], (byte[]) CodecRegistry.pop(buffer));
+		assertArrayEquals(bytes, (byte[]) CodecRegistry.pop(buffer));
+		assertEquals(new Point(3, 4), CodecRegistry.pop(buffer));
+		assertEquals("text", CodecRegistry.pop(buffer));
+		assertEquals(0, buffer.length());
+	}
+	
+	@Test
+	public void testMixedGroup() throws CodecException {
+		Serializable[] messages = new Serializable[] {
+			new byte[] { 9, 8, 7 },
+			"a",
+			new Point(1, 2),
+			null,
+			Integer.valueOf(5),
+			new byte[0],
+			new Point(-1, Integer.MAX_VALUE)
+		};
+		
+		Message buffer = new Message();
+		CodecRegistry.pushAll(buffer, messages);
+		Serializable[] popped = CodecRegistry.popAll(buffer);
+		
+		assertEquals(messages.length, popped.length);
+		assertArrayEquals((byte[]) messages[0], (byte[]) popped[0]);
+		assertEquals(messages[1], popped[1]);
+		assertEquals(messages[2], popped[2]);
+		assertNull(popped[3]);
+		assertEquals(messages[4], popped[4]);
+		assertArrayEquals((byte[]) messages[5], (byte[]) popped[5]);
+		assertEquals(messages[6], popped[6]);
+		assertEquals(0, buffer.length());
+	}
+	
+	@Test
+	public void testEmptyEncodingsAfterTransfer() throws CodecException {
+		// The receivers pop from the bytes received from the network
+		Message sent = new Message();
+		Serializable[] messages = new Serializable[] {
+			new byte[0], new Marker(), new byte[0], new Marker()
+		};
+		CodecRegistry.pushAll(sent, messages);
+		byte[] bytes = sent.toByteArray();
+		Message received = new Message(bytes, 0, bytes.length);
+		
+		Serializable[] popped = CodecRegistry.popAll(received);
+		for (int i = 0; i < messages.length; i++) {
+			if (i % 2 == 0)
+				assertArrayEquals(new byte[0], (byte[]) popped[i]);
+			else
+				assertEquals(Marker.class, popped[i].getClass());
+		}
+		assertEquals(0, received.length());
+	}
+	
+	@Test
+	public void testGroupsOnTheSameBuffer() throws CodecException {
+		Message buffer = new Message();
+		CodecRegistry.pushAll(buffer, new Serializable[] { "first", new Point(1, 1) });
+		CodecRegistry.pushAll(buffer, new Serializable[0]);
+		CodecRegistry.pushAll(buffer, new Serializable[] { new byte[] { 1 } });
+		
+		assertEquals(1, CodecRegistry.popAll(buffer).length);
+		assertEquals(0, CodecRegistry.popAll(buffer).length);
+		Serializable[] first = CodecRegistry.popAll(buffer);
+		assertEquals("first", first[0]);
+		assertEquals(new Point(1, 1), first[1]);
+	}
+	
+	@Test
+	public void testOnlyExactClassUsesCodec() throws CodecException {
+		int before = encodeCount.get();
+		Message buffer = new Message();
+		CodecRegistry.pushAll(buffer, new Serializable[] { new Point(1, 2), new SubPoint(3, 4) });
+		assertEquals(before + 1, encodeCount.get());
+		
+		// The subclass is serialized, so it keeps its class
+		Serializable[] popped = CodecRegistry.popAll(buffer);
+		assertEquals(Point.class, popped[0].getClass());
+		assertEquals(SubPoint.class, popped[1].getClass());
+		assertEquals(new Point(3, 4), popped[1]);
+	}
+	
+	@Test
+	public void testRegisteredCodecIsSmaller() {
+		Message encoded = new Message();
+		CodecRegistry.push(encoded, new Point(1, 2));
+		Message serialized = new Message();
+		serialized.pushObject(new Point(1, 2));
+		assertTrue(encoded.length() < serialized.length());
+	}
+	
+	@Test
+	public void testRegisterRejectsConflicts() {
+		// Reserved, used type id, registered class
+		assertRejected(-5, Marker.class);
+		assertRejected(POINT_TYPE_ID, Marker.class);
+		assertRejected(POINT_TYPE_ID + 1, Point.class);
+	}
+	
+	@Test
+	public void testRegisterReservedAgain() throws CodecException {
+		// The layers of every channel register the same codec
+		CodecRegistry.registerReserved(-POINT_TYPE_ID, Marker.class, MARKER_CODEC);
+		
+		Message buffer = new Message();
+		CodecRegistry.push(buffer, new Marker());
+		assertEquals(Marker.class, CodecRegistry.pop(buffer).getClass());
+		
+		try {
+			CodecRegistry.registerReserved(-POINT_TYPE_ID, Marker.class, newMarkerCodec());
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Another codec for the same id
+		}
+		try {
+			CodecRegistry.registerReserved(POINT_TYPE_ID + 1, Marker.class, MARKER_CODEC);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Not a reserved id
+		}
+	}
+	
+	@Test
+	public void testUndecodableMessages() {
+		// A type id that is not registered on this process
+		Message buffer = new Message();
+		CodecRegistry.push(buffer, new Point(1, 2));
+		byte[] bytes = buffer.toByteArray();
+		ByteBuffer.wrap(bytes, 1, 4).putInt(POINT_TYPE_ID + 100);
+		assertUndecodable(new Message(bytes, 0, bytes.length), false);
+		
+		// A codec that cannot decode the bytes, which are shorter than a point
+		ByteBuffer.wrap(bytes, 1, 8).putInt(POINT_TYPE_ID).putInt(4);
+		assertUndecodable(new Message(bytes, 0, bytes.length), false);
+		
+		// Serialized bytes without the stream header
+		buffer = new Message();
+		CodecRegistry.pushAll(buffer, new Serializable[] { "a", new Point(1, 2) });
+		bytes = buffer.toByteArray();
+		for (int i = 0; i + 1 < bytes.length; i++)
+			if (bytes[i] == (byte) 0xac && bytes[i + 1] == (byte) 0xed)
+				bytes[i] = 0;
+		assertUndecodable(new Message(bytes, 0, bytes.length), true);
+		
+		// An unknown tag
+		assertUndecodable(new Message(new byte[] { 9 }, 0, 1), false);
+	}
+	
+	private static void assertUndecodable(Message buffer, boolean isGroup) {
+		try {
+			if (isGroup)
+				CodecRegistry.popAll(buffer);
+			else
+				CodecRegistry.pop(buffer);
+			fail();
+		} catch (CodecException e) {
+			// Dropped by the callers
+		}
+	}
+	
+	private static MessageCodec<Marker> newMarkerCodec() {
+		return new MessageCodec<Marker>() {
+			
+			@Override
+			public void encode(Marker message, DataOutput out) {
+			}
+			
+			@Override
+			public Marker decode(DataInput in) {
+				return new Marker();
+			}
+		};
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void assertRejected(int typeId, Class type) {
+		try {
+			CodecRegistry.register(typeId, type, POINT_CODEC);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+}
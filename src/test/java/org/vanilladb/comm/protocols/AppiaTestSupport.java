@@ -0,0 +1,26 @@
+package org.vanilladb.comm.protocols;
+
+import net.sf.appia.core.Appia;
+
+/**
+ * Runs the Appia scheduler for the tests that build channels. Appia has a
+ * single scheduler per JVM, so the tests share the same thread.
+ */
+public class AppiaTestSupport {
+	
+	private static Thread appiaThread;
+	
+	public static synchronized void startAppia() {
+		if (appiaThread != null)
+			return;
+		
+		appiaThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Appia.run();
+			}
+		}, "Appia test thread");
+		appiaThread.setDaemon(true);
+		appiaThread.start();
+	}
+}
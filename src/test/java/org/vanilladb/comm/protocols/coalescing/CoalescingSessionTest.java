@@ -0,0 +1,324 @@
+package org.vanilladb.comm.protocols.coalescing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.comm.protocols.AppiaTestSupport;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.Message;
+
+/**
+ * Sends the events through a layer below the session, which turns them
+ * around as the transport of the destination would.
+ */
+public class CoalescingSessionTest {
+	
+	private static final int MAX_EVENT_SIZE = 100;
+	private static final int MAX_BATCH_SIZE = 1000;
+	private static final long TIMEOUT = 10000;
+	
+	private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 43101);
+	
+	/**
+	 * An event carrying its index in the first 4 bytes of its message.
+	 */
+	public static class Payload extends SendableEvent {
+		
+		public Payload() {
+			super();
+		}
+	}
+	
+	/**
+	 * Asks the probe to send the events in a single dispatch round.
+	 */
+	private static class Send extends Event {
+		
+		int[] sizes;
+		
+		Send(int[] sizes) {
+			this.sizes = sizes;
+		}
+	}
+	
+	private static class LoopbackLayer extends Layer {
+		
+		private LoopbackSession session;
+		
+		LoopbackLayer() {
+			evProvide = new Class[] {
+				Payload.class,
+				CoalescedBatch.class
+			};
+			evRequire = new Class[0];
+			evAccept = new Class[] {
+				SendableEvent.class
+			};
+		}
+		
+		@Override
+		public Session createSession() {
+			session = new LoopbackSession(this);
+			return session;
+		}
+	}
+	
+	/**
+	 * Records the events that reach the network and sends them back up,
+	 * rebuilt from the bytes of their messages.
+	 */
+	private static class LoopbackSession extends Session {
+		
+		private BlockingQueue<Class<?>> sent = new LinkedBlockingQueue<Class<?>>();
+		
+		LoopbackSession(Layer layer) {
+			super(layer);
+		}
+		
+		@Override
+		public void handle(Event event) {
+			try {
+				if (event.getDir() == Direction.DOWN) {
+					SendableEvent sendable = (SendableEvent) event;
+					sent.add(event.getClass());
+					
+					byte[] bytes = sendable.getMessage().toByteArray();
+					SendableEvent received = (SendableEvent) event.getClass()
+							.getDeclaredConstructor().newInstance();
+					received.setChannel(event.getChannel());
+					received.setDir(Direction.UP);
+					received.setSourceSession(this);
+					received.source = ADDRESS;
+					received.dest = sendable.dest;
+					received.setMessage(new Message(bytes, 0, bytes.length));
+					received.init();
+					received.go();
+				} else
+					event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static class ProbeLayer extends Layer {
+		
+		private ProbeSession session;
+		
+		ProbeLayer() {
+			evProvide = new Class[] {
+				Payload.class
+			};
+			evRequire = new Class[0];
+			evAccept = new Class[] {
+				ChannelInit.class,
+				Payload.class,
+				Send.class
+			};
+		}
+		
+		@Override
+		public Session createSession() {
+			session = new ProbeSession(this);
+			return session;
+		}
+	}
+	
+	/**
+	 * Sends the events and records the ones it receives.
+	 */
+	private static class ProbeSession extends Session {
+		
+		private BlockingQueue<byte[]> delivered = new LinkedBlockingQueue<byte[]>();
+		
+		ProbeSession(Layer layer) {
+			super(layer);
+		}
+		
+		@Override
+		public void handle(Event event) {
+			try {
+				if (event instanceof Send) {
+					int[] sizes = ((Send) event).sizes;
+					for (int i = 0; i < sizes.length; i++) {
+						byte[] bytes = newPayload(i, sizes[i]);
+						Payload payload = new Payload();
+						payload.setChannel(event.getChannel());
+						payload.setDir(Direction.DOWN);
+						payload.setSourceSession(this);
+						payload.dest = ADDRESS;
+						payload.setMessage(new Message(bytes, 0, bytes.length));
+						payload.init();
+						payload.go();
+					}
+				} else if (event instanceof Payload) {
+					delivered.add(((Payload) event).getMessage().toByteArray());
+				} else
+					event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static int nextChannelNumber;
+	
+	private Channel channel;
+	private LoopbackSession loopback;
+	private ProbeSession probe;
+	
+	@BeforeClass
+	public static void setUp() {
+		System.setProperty(CoalescingSession.class.getName() + ".MAX_EVENT_SIZE",
+				Integer.toString(MAX_EVENT_SIZE));
+		System.setProperty(CoalescingSession.class.getName() + ".MAX_BATCH_SIZE",
+				Integer.toString(MAX_BATCH_SIZE));
+		AppiaTestSupport.startAppia();
+	}
+	
+	@Before
+	public void startChannel() throws Exception {
+		LoopbackLayer loopbackLayer = new LoopbackLayer();
+		ProbeLayer probeLayer = new ProbeLayer();
+		QoS qos = new QoS("Coalescing Test QoS", new Layer[] {
+			loopbackLayer,
+			new CoalescingLayer(),
+			probeLayer
+		});
+		channel = qos.createUnboundChannel("Coalescing Test Channel " + (nextChannelNumber++));
+		channel.start();
+		loopback = loopbackLayer.session;
+		probe = probeLayer.session;
+	}
+	
+	@After
+	public void closeChannel() {
+		channel.end();
+	}
+	
+	@Test
+	public void testSplitAtSizeLimits() throws Exception {
+		int[] sizes = new int[16];
+		// Fill a batch to exactly its limit with the largest buffered events
+		for (int i = 0; i < 10; i++)
+			sizes[i] = MAX_EVENT_SIZE;
+		// Sent before the large one that follows them
+		sizes[10] = 4;
+		sizes[11] = MAX_EVENT_SIZE;
+		sizes[12] = MAX_EVENT_SIZE + 1;
+		// Sent at the end of the round
+		sizes[13] = 50;
+		sizes[14] = 4;
+		sizes[15] = 50;
+		send(sizes);
+		
+		for (int i = 0; i < sizes.length; i++)
+			assertArrayEquals(newPayload(i, sizes[i]), poll());
+		
+		assertSent(CoalescedBatch.class, CoalescedBatch.class, Payload.class,
+				CoalescedBatch.class);
+	}
+	
+	@Test
+	public void testSingleEventIsNotBatched() throws Exception {
+		send(new int[] { MAX_EVENT_SIZE });
+		assertArrayEquals(newPayload(0, MAX_EVENT_SIZE), poll());
+		assertSent(Payload.class);
+	}
+	
+	@Test
+	public void testMalformedBatchesAreDropped() throws Exception {
+		// An unknown type, a type that is not an event, an event count
+		// larger than the batch and bytes that are not a batch at all
+		receive(newBatch("org.vanilladb.comm.NoSuchEvent", 2, 2));
+		receive(newBatch(String.class.getName(), 2, 2));
+		receive(newBatch(Payload.class.getName(), 3, 2));
+		receive(new Message(new byte[] { 1, 2, 3 }, 0, 3));
+		
+		// The events of a malformed batch are not delivered, even
+		// the ones before the broken part
+		receive(newBatch(Payload.class.getName(), 2, 2));
+		assertArrayEquals(newPayload(0, 8), poll());
+		assertArrayEquals(newPayload(1, 8), poll());
+		assertTrue(probe.delivered.isEmpty());
+	}
+	
+	private void send(int[] sizes) throws AppiaEventException {
+		Send send = new Send(sizes);
+		send.asyncGo(channel, Direction.DOWN);
+	}
+	
+	private void receive(Message message) throws AppiaEventException {
+		CoalescedBatch batch = new CoalescedBatch();
+		batch.setMessage(message);
+		batch.source = ADDRESS;
+		batch.asyncGo(channel, Direction.UP);
+	}
+	
+	/**
+	 * Builds a batch in the format of {@link CoalescingSession} with a
+	 * single type and the given event count in its header.
+	 */
+	private static Message newBatch(String typeName, int eventCount, int actualCount) {
+		Message message = new Message();
+		for (int i = actualCount - 1; i >= 0; i--) {
+			byte[] bytes = newPayload(i, 8);
+			Message event = new Message(bytes, 0, bytes.length);
+			event.pushInt(bytes.length);
+			event.pushShort((short) 0);
+			event.join(message);
+			message = event;
+		}
+		message.pushString(typeName);
+		message.pushShort((short) 1);
+		message.pushInt(eventCount);
+		return message;
+	}
+	
+	private static byte[] newPayload(int index, int size) {
+		byte[] bytes = new byte[size];
+		ByteBuffer.wrap(bytes).putInt(index);
+		for (int i = 4; i < size; i++)
+			bytes[i] = (byte) (index + i);
+		return bytes;
+	}
+	
+	private byte[] poll() throws InterruptedException {
+		byte[] bytes = probe.delivered.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(bytes);
+		return bytes;
+	}
+	
+	private void assertSent(Class<?>... types) throws InterruptedException {
+		List<Class<?>> sent = new ArrayList<Class<?>>();
+		loopback.sent.drainTo(sent);
+		assertEquals(types.length, sent.size());
+		for (int i = 0; i < types.length; i++)
+			assertEquals(types[i], sent.get(i));
+	}
+}
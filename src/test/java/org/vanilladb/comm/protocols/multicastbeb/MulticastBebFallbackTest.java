@@ -0,0 +1,264 @@
+package org.vanilladb.comm.protocols.multicastbeb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.comm.process.CommProcess;
+import org.vanilladb.comm.process.ProcessList;
+import org.vanilladb.comm.protocols.AppiaTestSupport;
+import org.vanilladb.comm.protocols.beb.Broadcast;
+import org.vanilladb.comm.protocols.events.ProcessListInit;
+import org.vanilladb.comm.protocols.tcpfd.ProcessConnected;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.Message;
+
+/**
+ * Runs two processes that cannot join the multicast group, since their
+ * network interface does not exist. A layer below each session plays the
+ * transport, which hands the broadcasts to the session of the destination.
+ */
+public class MulticastBebFallbackTest {
+	
+	private static final long TIMEOUT = 10000;
+	
+	private static class TransportLayer extends Layer {
+		
+		private SocketAddress address;
+		private Map<SocketAddress, TransportSession> transports;
+		
+		TransportLayer(SocketAddress address, Map<SocketAddress, TransportSession> transports) {
+			this.address = address;
+			this.transports = transports;
+			evProvide = new Class[] {
+				ProcessConnected.class,
+				Broadcast.class
+			};
+			evRequire = new Class[0];
+			evAccept = new Class[] {
+				ChannelInit.class,
+				ProcessListInit.class,
+				Broadcast.class
+			};
+		}
+		
+		@Override
+		public Session createSession() {
+			TransportSession session = new TransportSession(this, transports);
+			transports.put(address, session);
+			return session;
+		}
+	}
+	
+	/**
+	 * Connects the process to the others, and puts the broadcasts sent down
+	 * into the channels of their destinations.
+	 */
+	private static class TransportSession extends Session {
+		
+		private Map<SocketAddress, TransportSession> transports;
+		private Channel channel;
+		private int sentCount;
+		
+		TransportSession(Layer layer, Map<SocketAddress, TransportSession> transports) {
+			super(layer);
+			this.transports = transports;
+		}
+		
+		@Override
+		public void handle(Event event) {
+			try {
+				if (event instanceof ChannelInit) {
+					channel = event.getChannel();
+					event.go();
+				} else if (event instanceof ProcessListInit) {
+					ProcessList processList = ((ProcessListInit) event).copyProcessList();
+					event.go();
+					for (int id = 0; id < processList.getSize(); id++) {
+						if (id == processList.getSelfId())
+							continue;
+						ProcessConnected connected = new ProcessConnected(channel, this, id);
+						connected.init();
+						connected.go();
+					}
+				} else if (event.getDir() == Direction.DOWN) {
+					Broadcast broadcast = (Broadcast) event;
+					byte[] bytes = broadcast.getMessage().toByteArray();
+					for (Object dest : ((AppiaMulticast) broadcast.dest).getDestinations()) {
+						TransportSession target = transports.get(dest);
+						Broadcast received = new Broadcast();
+						received.setChannel(target.channel);
+						received.setDir(Direction.UP);
+						received.setSourceSession(target);
+						received.source = broadcast.source;
+						received.dest = dest;
+						received.setMessage(new Message(bytes, 0, bytes.length));
+						received.init();
+						received.go();
+						sentCount++;
+					}
+				} else
+					event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static class ProbeLayer extends Layer {
+		
+		private ProcessList processList;
+		private ProbeSession session;
+		
+		ProbeLayer(ProcessList processList) {
+			this.processList = processList;
+			evProvide = new Class[] {
+				ProcessListInit.class,
+				Broadcast.class
+			};
+			evRequire = new Class[] {
+				ChannelInit.class
+			};
+			evAccept = new Class[] {
+				ChannelInit.class,
+				Broadcast.class
+			};
+		}
+		
+		@Override
+		public Session createSession() {
+			session = new ProbeSession(this, processList);
+			return session;
+		}
+	}
+	
+	/**
+	 * Starts the process and records what it delivers.
+	 */
+	private static class ProbeSession extends Session {
+		
+		private ProcessList processList;
+		private BlockingQueue<Integer> delivered = new LinkedBlockingQueue<Integer>();
+		
+		ProbeSession(Layer layer, ProcessList processList) {
+			super(layer);
+			this.processList = processList;
+		}
+		
+		@Override
+		public void handle(Event event) {
+			try {
+				if (event instanceof ChannelInit) {
+					event.go();
+					ProcessListInit init = new ProcessListInit(event.getChannel(),
+							this, new ProcessList(processList));
+					init.init();
+					init.go();
+				} else if (event.getDir() == Direction.UP) {
+					Message message = ((Broadcast) event).getMessage();
+					delivered.add(message.popInt());
+				} else
+					event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private List<Channel> channels = new ArrayList<Channel>();
+	private Map<SocketAddress, TransportSession> transports =
+			new ConcurrentHashMap<SocketAddress, TransportSession>();
+	private ProbeSession[] probes;
+	
+	@BeforeClass
+	public static void setUp() {
+		System.setProperty(MulticastEndpoint.class.getName() + ".INTERFACE", "no-such-interface");
+		AppiaTestSupport.startAppia();
+	}
+	
+	@After
+	public void tearDown() {
+		for (Channel channel : channels)
+			channel.end();
+	}
+	
+	@Test
+	public void testBroadcastOverTransport() throws Exception {
+		startProcesses(2);
+		
+		broadcast(0, 0, 10);
+		assertDelivered(1, 0, 10);
+		assertDelivered(0, 0, 10);
+		
+		broadcast(1, 10, 20);
+		assertDelivered(0, 10, 20);
+		assertDelivered(1, 10, 20);
+		
+		for (TransportSession transport : transports.values())
+			assertEquals(10, transport.sentCount);
+		for (ProbeSession probe : probes)
+			assertTrue(probe.delivered.isEmpty());
+	}
+	
+	private void startProcesses(int processCount) throws Exception {
+		probes = new ProbeSession[processCount];
+		for (int self = 0; self < processCount; self++) {
+			ProcessList.Builder builder = new ProcessList.Builder();
+			for (int id = 0; id < processCount; id++)
+				builder.addProcess(new CommProcess(
+						new InetSocketAddress("127.0.0.1", 42981 + id), id, id == self));
+			ProcessList processList = builder.build();
+			
+			ProbeLayer probe = new ProbeLayer(processList);
+			QoS qos = new QoS("Multicast Fallback Test QoS", new Layer[] {
+				new TransportLayer(processList.getSelfProcess().getAddress(), transports),
+				new MulticastBebLayer(),
+				probe
+			});
+			Channel channel = qos.createUnboundChannel("Multicast Fallback Test Channel " + self);
+			channel.start();
+			channels.add(channel);
+			probes[self] = probe.session;
+		}
+		
+		// Wait for both to start
+		Thread.sleep(200);
+	}
+	
+	private void broadcast(int senderId, int from, int to) throws AppiaEventException {
+		for (int i = from; i < to; i++) {
+			Message message = new Message();
+			message.pushInt(i);
+			Broadcast broadcast = new Broadcast();
+			broadcast.setMessage(message);
+			broadcast.asyncGo(channels.get(senderId), Direction.DOWN);
+		}
+	}
+	
+	private void assertDelivered(int processId, int from, int to) throws InterruptedException {
+		for (int i = from; i < to; i++)
+			assertEquals(Integer.valueOf(i),
+					probes[processId].delivered.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+}
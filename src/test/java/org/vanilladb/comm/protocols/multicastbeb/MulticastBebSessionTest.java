@@ -0,0 +1,322 @@
+package org.vanilladb.comm.protocols.multicastbeb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.comm.process.CommProcess;
+import org.vanilladb.comm.process.ProcessList;
+import org.vanilladb.comm.protocols.AppiaTestSupport;
+import org.vanilladb.comm.protocols.beb.Broadcast;
+import org.vanilladb.comm.protocols.events.ProcessListInit;
+import org.vanilladb.comm.protocols.tcpfd.ProcessConnected;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.Message;
+
+/**
+ * Runs two processes over the loopback interface in the same JVM. A layer
+ * below each session drops some of the data datagrams, as a lossy network
+ * would.
+ */
+public class MulticastBebSessionTest {
+	
+	private static final int RETRANSMISSION_BUFFER_SIZE = 16;
+	private static final long TIMEOUT = 10000;
+	
+	// The kinds of the datagrams that carry a sequence number
+	private static final byte DATA = 0;
+	private static final byte SKIP = 3;
+	
+	/**
+	 * Decides which data and skip datagrams a process does not receive.
+	 */
+	private interface LossPolicy {
+		boolean drops(byte kind, long sequence);
+	}
+	
+	private static class LossLayer extends Layer {
+		
+		private LossPolicy policy;
+		
+		LossLayer(LossPolicy policy) {
+			this.policy = policy;
+			evProvide = new Class[0];
+			evRequire = new Class[0];
+			evAccept = new Class[] { DatagramReceived.class };
+		}
+		
+		@Override
+		public Session createSession() {
+			return new LossSession(this, policy);
+		}
+	}
+	
+	private static class LossSession extends Session {
+		
+		private LossPolicy policy;
+		
+		LossSession(Layer layer, LossPolicy policy) {
+			super(layer);
+			this.policy = policy;
+		}
+		
+		@Override
+		public void handle(Event event) {
+			// [kind][channel id length][channel id][process id][incarnation][sequence]
+			ByteBuffer datagram = ByteBuffer.wrap(((DatagramReceived) event).getDatagram());
+			byte kind = datagram.get();
+			if (kind == DATA || kind == SKIP) {
+				int channelIdLength = datagram.getShort();
+				datagram.position(datagram.position() + channelIdLength + 4 + 8);
+				if (policy.drops(kind, datagram.getLong()))
+					return;
+			}
+			
+			try {
+				event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static class ProbeLayer extends Layer {
+		
+		private ProcessList processList;
+		private ProbeSession session;
+		
+		ProbeLayer(ProcessList processList) {
+			this.processList = processList;
+			evProvide = new Class[] {
+				ProcessListInit.class,
+				ProcessConnected.class,
+				Broadcast.class
+			};
+			evRequire = new Class[] {
+				ChannelInit.class
+			};
+			evAccept = new Class[] {
+				ChannelInit.class,
+				Broadcast.class,
+				BroadcastsLost.class
+			};
+		}
+		
+		@Override
+		public Session createSession() {
+			session = new ProbeSession(this, processList);
+			return session;
+		}
+	}
+	
+	/**
+	 * Starts the process and records what it delivers.
+	 */
+	private static class ProbeSession extends Session {
+		
+		private ProcessList processList;
+		private BlockingQueue<Integer> delivered = new LinkedBlockingQueue<Integer>();
+		private BlockingQueue<BroadcastsLost> losses = new LinkedBlockingQueue<BroadcastsLost>();
+		
+		ProbeSession(Layer layer, ProcessList processList) {
+			super(layer);
+			this.processList = processList;
+		}
+		
+		@Override
+		public void handle(Event event) {
+			try {
+				if (event instanceof ChannelInit) {
+					event.go();
+					ProcessListInit init = new ProcessListInit(event.getChannel(),
+							this, new ProcessList(processList));
+					init.init();
+					init.go();
+				} else if (event instanceof BroadcastsLost) {
+					losses.add((BroadcastsLost) event);
+				} else if (event.getDir() == Direction.UP) {
+					Message message = ((Broadcast) event).getMessage();
+					delivered.add(message.popInt());
+				} else
+					event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static int nextChannelNumber;
+	
+	private List<Channel> channels = new ArrayList<Channel>();
+	private ProbeSession[] probes;
+	
+	@BeforeClass
+	public static void setUp() {
+		System.setProperty(MulticastBebSession.class.getName() + ".RETRANSMISSION_BUFFER_SIZE",
+				Integer.toString(RETRANSMISSION_BUFFER_SIZE));
+		System.setProperty(MulticastEndpoint.class.getName() + ".GROUP_PORT", "42990");
+		AppiaTestSupport.startAppia();
+	}
+	
+	@After
+	public void tearDown() {
+		for (Channel channel : channels)
+			channel.end();
+	}
+	
+	@Test
+	public void testDelivery() throws Exception {
+		startProcesses(null);
+		
+		broadcast(0, 0, 100, 0);
+		assertDelivered(1, 0, 100);
+		assertDelivered(0, 0, 100);
+	}
+	
+	@Test
+	public void testRepair() throws Exception {
+		// Lose the first copy of every third datagram. The receiver starts
+		// from the first one it sees, so that one is kept.
+		final Set<Long> seen = new HashSet<Long>();
+		startProcesses(new LossPolicy() {
+			@Override
+			public boolean drops(byte kind, long sequence) {
+				return kind == DATA && sequence > 0 && sequence % 3 == 0 && seen.add(sequence);
+			}
+		});
+		
+		// Including broadcasts split into many datagrams. The sender waits
+		// for each batch, so that the lost ones are still kept.
+		for (int i = 0; i < 50; i += 10) {
+			broadcast(0, i, i + 10, 0);
+			assertDelivered(1, i, i + 10);
+		}
+		for (int i = 50; i < 60; i += 2) {
+			broadcast(0, i, i + 2, 20000);
+			assertDelivered(1, i, i + 2);
+		}
+		assertTrue(probes[1].losses.isEmpty());
+	}
+	
+	@Test
+	public void testSkip() throws Exception {
+		// Lose the datagrams that the sender will no longer keep
+		startProcesses(new LossPolicy() {
+			@Override
+			public boolean drops(byte kind, long sequence) {
+				return kind == DATA && sequence >= 10 && sequence < 40;
+			}
+		});
+		
+		broadcast(0, 0, 100, 0);
+		assertDelivered(1, 0, 10);
+		assertDelivered(1, 40, 100);
+		
+		BroadcastsLost received = probes[1].losses.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(received);
+		assertEquals(0, received.getSenderId());
+		assertEquals(1, received.getReceiverId());
+		BroadcastsLost sent = probes[0].losses.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(sent);
+		assertEquals(0, sent.getSenderId());
+		assertEquals(1, sent.getReceiverId());
+	}
+	
+	@Test
+	public void testSkipWhenEarlyBufferIsFull() throws Exception {
+		// Lose a datagram for good, along with the skips of the sender, so
+		// that the receiver has to give up on it by itself
+		startProcesses(new LossPolicy() {
+			@Override
+			public boolean drops(byte kind, long sequence) {
+				return kind == SKIP || (kind == DATA && sequence == 10);
+			}
+		});
+		
+		broadcast(0, 0, 100, 0);
+		assertDelivered(1, 0, 10);
+		assertDelivered(1, 11, 100);
+		
+		BroadcastsLost received = probes[1].losses.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(received);
+		assertEquals(0, received.getSenderId());
+		assertEquals(1, received.getReceiverId());
+		assertTrue(probes[1].losses.isEmpty());
+	}
+	
+	/**
+	 * Starts two processes, where the second one loses the datagrams
+	 * chosen by the given policy.
+	 */
+	private void startProcesses(LossPolicy receiverLoss) throws Exception {
+		String channelId = "Multicast Test Channel " + (nextChannelNumber++);
+		LossPolicy[] policies = new LossPolicy[] { null, receiverLoss };
+		probes = new ProbeSession[policies.length];
+		
+		for (int self = 0; self < policies.length; self++) {
+			ProcessList.Builder builder = new ProcessList.Builder();
+			for (int id = 0; id < policies.length; id++)
+				builder.addProcess(new CommProcess(
+						new InetSocketAddress("127.0.0.1", 42991 + id), id, id == self));
+			
+			final LossPolicy policy = policies[self];
+			ProbeLayer probe = new ProbeLayer(builder.build());
+			QoS qos = new QoS("Multicast Test QoS", new Layer[] {
+				new LossLayer(new LossPolicy() {
+					@Override
+					public boolean drops(byte kind, long sequence) {
+						return policy != null && policy.drops(kind, sequence);
+					}
+				}),
+				new MulticastBebLayer(),
+				probe
+			});
+			Channel channel = qos.createUnboundChannel(channelId);
+			channel.start();
+			channels.add(channel);
+			probes[self] = probe.session;
+		}
+		
+		// Wait for both to join the group
+		Thread.sleep(200);
+	}
+	
+	private void broadcast(int senderId, int from, int to, int paddingSize)
+			throws AppiaEventException {
+		for (int i = from; i < to; i++) {
+			Message message = new Message();
+			message.pushObject(new byte[paddingSize]);
+			message.pushInt(i);
+			Broadcast broadcast = new Broadcast();
+			broadcast.setMessage(message);
+			broadcast.asyncGo(channels.get(senderId), Direction.DOWN);
+		}
+	}
+	
+	private void assertDelivered(int processId, int from, int to) throws InterruptedException {
+		for (int i = from; i < to; i++)
+			assertEquals(Integer.valueOf(i),
+					probes[processId].delivered.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+}
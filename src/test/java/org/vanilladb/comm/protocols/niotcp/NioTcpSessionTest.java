@@ -0,0 +1,320 @@
+package org.vanilladb.comm.protocols.niotcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.comm.protocols.AppiaTestSupport;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.tcpcomplete.TcpUndeliveredEvent;
+
+/**
+ * Runs two processes that talk through their own NIO transports in the
+ * same JVM, over TCP unless a test gives them a directory for the Unix
+ * domain sockets.
+ */
+public class NioTcpSessionTest {
+	
+	private static final int MAX_FRAME_SIZE = 2 * 1024 * 1024;
+	private static final long TIMEOUT = 10000;
+	
+	/**
+	 * The event sent between the processes, which is created again
+	 * by the receiver.
+	 */
+	public static class Ping extends SendableEvent {
+		
+		public Ping() {
+			super();
+		}
+	}
+	
+	/**
+	 * Keeps its session, so that the tests can see how the processes are
+	 * connected.
+	 */
+	private static class TransportLayer extends NioTcpLayer {
+		
+		private NioTcpSession session;
+		
+		TransportLayer(File unixSocketDirectory) {
+			super(MAX_FRAME_SIZE, unixSocketDirectory);
+		}
+		
+		@Override
+		public Session createSession() {
+			session = (NioTcpSession) super.createSession();
+			return session;
+		}
+	}
+	
+	private static class ProbeLayer extends Layer {
+		
+		private ProbeSession session;
+		
+		ProbeLayer() {
+			evProvide = new Class[] {
+				RegisterSocketEvent.class,
+				Ping.class
+			};
+			evRequire = new Class[] {
+				ChannelInit.class
+			};
+			evAccept = new Class[] {
+				ChannelInit.class,
+				RegisterSocketEvent.class,
+				Ping.class,
+				TcpUndeliveredEvent.class
+			};
+		}
+		
+		@Override
+		public Session createSession() {
+			session = new ProbeSession(this);
+			return session;
+		}
+	}
+	
+	/**
+	 * Registers a socket and records what the process receives.
+	 */
+	private static class ProbeSession extends Session {
+		
+		private BlockingQueue<InetSocketAddress> addresses = new LinkedBlockingQueue<InetSocketAddress>();
+		private BlockingQueue<Ping> received = new LinkedBlockingQueue<Ping>();
+		private BlockingQueue<TcpUndeliveredEvent> undelivered =
+				new LinkedBlockingQueue<TcpUndeliveredEvent>();
+		
+		ProbeSession(Layer layer) {
+			super(layer);
+		}
+		
+		@Override
+		public void handle(Event event) {
+			try {
+				if (event instanceof ChannelInit) {
+					event.go();
+					RegisterSocketEvent register = new RegisterSocketEvent(event.getChannel(),
+							Direction.DOWN, this);
+					register.localHost = InetAddress.getLoopbackAddress();
+					register.port = RegisterSocketEvent.RANDOMLY_AVAILABLE;
+					register.init();
+					register.go();
+				} else if (event instanceof RegisterSocketEvent) {
+					RegisterSocketEvent register = (RegisterSocketEvent) event;
+					if (!register.error)
+						addresses.add(new InetSocketAddress(register.localHost, register.port));
+				} else if (event instanceof TcpUndeliveredEvent) {
+					undelivered.add((TcpUndeliveredEvent) event);
+				} else if (event.getDir() == Direction.UP) {
+					received.add((Ping) event);
+				} else
+					event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static File socketDirectory;
+	private static int nextChannelNumber;
+	
+	private List<Channel> channels = new ArrayList<Channel>();
+	private NioTcpSession[] transports = new NioTcpSession[2];
+	private ProbeSession[] probes = new ProbeSession[2];
+	private InetSocketAddress[] addresses = new InetSocketAddress[2];
+	
+	@BeforeClass
+	public static void setUp() throws IOException {
+		socketDirectory = Files.createTempDirectory("nio-tcp-test").toFile();
+		AppiaTestSupport.startAppia();
+	}
+	
+	@AfterClass
+	public static void tearDownClass() {
+		delete(socketDirectory);
+	}
+	
+	@After
+	public void tearDown() {
+		for (Channel channel : channels)
+			channel.end();
+	}
+	
+	@Test
+	public void testDeliveryInOrder() throws Exception {
+		startProcesses(null, null);
+		
+		for (int i = 0; i < 1000; i++)
+			send(0, 1, i, new byte[i % 100]);
+		for (int i = 0; i < 1000; i++) {
+			Ping ping = probes[1].received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertNotNull(ping);
+			assertEquals(addresses[0], ping.source);
+			assertEquals(i, ping.getMessage().popInt());
+		}
+		assertFalse(isUnixSocket(0, 1));
+	}
+	
+	@Test
+	public void testUnixSockets() throws Exception {
+		Assume.assumeTrue(UnixSockets.isSupported());
+		startProcesses(socketDirectory, socketDirectory);
+		
+		assertExchanged(100);
+		assertTrue(isUnixSocket(0, 1));
+		assertTrue(isUnixSocket(1, 0));
+	}
+	
+	@Test
+	public void testTcpToProcessWithoutUnixSockets() throws Exception {
+		// The second process has no socket file to connect to
+		startProcesses(socketDirectory, null);
+		
+		assertExchanged(100);
+		assertFalse(isUnixSocket(0, 1));
+		assertFalse(isUnixSocket(1, 0));
+	}
+	
+	@Test
+	public void testTcpWhenSocketFileCannotBeCreated() throws Exception {
+		// A directory under a regular file cannot be created
+		File file = File.createTempFile("nio-tcp-test", null, socketDirectory);
+		File directory = new File(file, "sockets");
+		startProcesses(directory, directory);
+		
+		assertExchanged(100);
+		assertFalse(isUnixSocket(0, 1));
+		assertFalse(isUnixSocket(1, 0));
+	}
+	
+	@Test
+	public void testLargeEvent() throws Exception {
+		startProcesses(null, null);
+		
+		byte[] payload = new byte[MAX_FRAME_SIZE / 2];
+		for (int i = 0; i < payload.length; i++)
+			payload[i] = (byte) i;
+		send(1, 0, 7, payload);
+		
+		Ping ping = probes[0].received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(ping);
+		assertEquals(7, ping.getMessage().popInt());
+		assertArrayEquals(payload, (byte[]) ping.getMessage().popObject());
+	}
+	
+	@Test
+	public void testOversizedFrameClosesConnection() throws Exception {
+		startProcesses(null, null);
+		
+		send(0, 1, 1, new byte[MAX_FRAME_SIZE + 1]);
+		TcpUndeliveredEvent failure = probes[0].undelivered.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(failure);
+		assertEquals(addresses[1], failure.getFailedAddress());
+		assertNull(probes[1].received.poll(100, TimeUnit.MILLISECONDS));
+		
+		// A new connection is opened for the next event
+		send(0, 1, 2, new byte[0]);
+		Ping ping = probes[1].received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(ping);
+		assertEquals(2, ping.getMessage().popInt());
+		assertTrue(probes[1].received.isEmpty());
+	}
+	
+	/**
+	 * Starts two processes, which use the Unix domain sockets in the given
+	 * directories, or TCP only if a directory is null.
+	 */
+	private void startProcesses(File unixSocketDirectory0, File unixSocketDirectory1)
+			throws Exception {
+		// The receiver finds the channel by its id
+		String channelId = "NIO Test Channel " + (nextChannelNumber++);
+		File[] directories = new File[] { unixSocketDirectory0, unixSocketDirectory1 };
+		for (int i = 0; i < probes.length; i++) {
+			TransportLayer transport = new TransportLayer(directories[i]);
+			ProbeLayer probe = new ProbeLayer();
+			QoS qos = new QoS("NIO Test QoS", new Layer[] { transport, probe });
+			Channel channel = qos.createUnboundChannel(channelId);
+			channel.start();
+			channels.add(channel);
+			transports[i] = transport.session;
+			probes[i] = probe.session;
+			addresses[i] = probes[i].addresses.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertNotNull(addresses[i]);
+		}
+	}
+	
+	private void send(int senderId, int receiverId, int number, byte[] payload)
+			throws AppiaEventException {
+		Message message = new Message();
+		message.pushObject(payload);
+		message.pushInt(number);
+		Ping ping = new Ping();
+		ping.setMessage(message);
+		ping.dest = addresses[receiverId];
+		ping.asyncGo(channels.get(senderId), Direction.DOWN);
+	}
+	
+	/**
+	 * Sends the given number of events each way, and checks that they are
+	 * received in order from the right address.
+	 */
+	private void assertExchanged(int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			send(0, 1, i, new byte[0]);
+			send(1, 0, i, new byte[0]);
+		}
+		for (int receiverId = 0; receiverId < 2; receiverId++) {
+			for (int i = 0; i < count; i++) {
+				Ping ping = probes[receiverId].received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+				assertNotNull(ping);
+				assertEquals(addresses[1 - receiverId], ping.source);
+				assertEquals(i, ping.getMessage().popInt());
+			}
+		}
+	}
+	
+	private boolean isUnixSocket(int senderId, int receiverId) {
+		NioConnection connection = transports[senderId].getConnection(addresses[receiverId]);
+		assertNotNull(connection);
+		return connection.isUnixSocket();
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+}
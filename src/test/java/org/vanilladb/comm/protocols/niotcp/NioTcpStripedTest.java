@@ -0,0 +1,213 @@
+package org.vanilladb.comm.protocols.niotcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.comm.protocols.AppiaTestSupport;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+
+/**
+ * Runs two processes that open several connections to each other, so that
+ * the large events are striped over the connections other than the first.
+ */
+public class NioTcpStripedTest {
+	
+	private static final int CONNECTIONS_PER_PEER = 3;
+	private static final int STRIPE_THRESHOLD = 1024;
+	private static final long TIMEOUT = 10000;
+	
+	/**
+	 * The event sent between the processes, which is created again
+	 * by the receiver.
+	 */
+	public static class Ping extends SendableEvent {
+		
+		public Ping() {
+			super();
+		}
+	}
+	
+	/**
+	 * Keeps its session, so that the test can see the connections.
+	 */
+	private static class TransportLayer extends NioTcpLayer {
+		
+		private NioTcpSession session;
+		
+		@Override
+		public Session createSession() {
+			session = (NioTcpSession) super.createSession();
+			return session;
+		}
+	}
+	
+	private static class ProbeLayer extends Layer {
+		
+		private ProbeSession session;
+		
+		ProbeLayer() {
+			evProvide = new Class[] {
+				RegisterSocketEvent.class,
+				Ping.class
+			};
+			evRequire = new Class[] {
+				ChannelInit.class
+			};
+			evAccept = new Class[] {
+				ChannelInit.class,
+				RegisterSocketEvent.class,
+				Ping.class
+			};
+		}
+		
+		@Override
+		public Session createSession() {
+			session = new ProbeSession(this);
+			return session;
+		}
+	}
+	
+	/**
+	 * Registers a socket and records what the process receives.
+	 */
+	private static class ProbeSession extends Session {
+		
+		private BlockingQueue<InetSocketAddress> addresses = new LinkedBlockingQueue<InetSocketAddress>();
+		private BlockingQueue<Ping> received = new LinkedBlockingQueue<Ping>();
+		
+		ProbeSession(Layer layer) {
+			super(layer);
+		}
+		
+		@Override
+		public void handle(Event event) {
+			try {
+				if (event instanceof ChannelInit) {
+					event.go();
+					RegisterSocketEvent register = new RegisterSocketEvent(event.getChannel(),
+							Direction.DOWN, this);
+					register.localHost = InetAddress.getLoopbackAddress();
+					register.port = RegisterSocketEvent.RANDOMLY_AVAILABLE;
+					register.init();
+					register.go();
+				} else if (event instanceof RegisterSocketEvent) {
+					RegisterSocketEvent register = (RegisterSocketEvent) event;
+					if (!register.error)
+						addresses.add(new InetSocketAddress(register.localHost, register.port));
+				} else if (event.getDir() == Direction.UP) {
+					received.add((Ping) event);
+				} else
+					event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private List<Channel> channels = new ArrayList<Channel>();
+	private NioTcpSession[] transports = new NioTcpSession[2];
+	private ProbeSession[] probes = new ProbeSession[2];
+	private InetSocketAddress[] addresses = new InetSocketAddress[2];
+	
+	@BeforeClass
+	public static void setUp() {
+		System.setProperty(NioTcpSession.class.getName() + ".CONNECTIONS_PER_PEER",
+				Integer.toString(CONNECTIONS_PER_PEER));
+		System.setProperty(NioTcpSession.class.getName() + ".STRIPE_THRESHOLD",
+				Integer.toString(STRIPE_THRESHOLD));
+		AppiaTestSupport.startAppia();
+	}
+	
+	@After
+	public void tearDown() {
+		for (Channel channel : channels)
+			channel.end();
+	}
+	
+	@Test
+	public void testFifoWithLargeEventsStriped() throws Exception {
+		startProcesses();
+		
+		// Every third event is large, so the small ones after it
+		// may arrive on the first connection before it
+		int count = 300;
+		for (int i = 0; i < count; i++) {
+			send(0, 1, i, newPayload(i));
+			send(1, 0, i, newPayload(i));
+		}
+		for (int receiverId = 0; receiverId < 2; receiverId++) {
+			for (int i = 0; i < count; i++) {
+				Ping ping = probes[receiverId].received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+				assertNotNull(ping);
+				assertEquals(addresses[1 - receiverId], ping.source);
+				assertEquals(i, ping.getMessage().popInt());
+				assertEquals(newPayload(i).length, ((byte[]) ping.getMessage().popObject()).length);
+			}
+		}
+		
+		for (int senderId = 0; senderId < 2; senderId++) {
+			NioPeer peer = transports[senderId].getPeer(addresses[1 - senderId]);
+			assertNotNull(peer);
+			assertFalse(peer.isClosed());
+			assertEquals(CONNECTIONS_PER_PEER, peer.getConnections().length);
+		}
+		assertTrue(probes[0].received.isEmpty());
+		assertTrue(probes[1].received.isEmpty());
+	}
+	
+	private void startProcesses() throws Exception {
+		// The receiver finds the channel by its id
+		String channelId = "NIO Striped Test Channel";
+		for (int i = 0; i < probes.length; i++) {
+			TransportLayer transport = new TransportLayer();
+			ProbeLayer probe = new ProbeLayer();
+			QoS qos = new QoS("NIO Striped Test QoS", new Layer[] { transport, probe });
+			Channel channel = qos.createUnboundChannel(channelId);
+			channel.start();
+			channels.add(channel);
+			transports[i] = transport.session;
+			probes[i] = probe.session;
+			addresses[i] = probes[i].addresses.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertNotNull(addresses[i]);
+		}
+	}
+	
+	private static byte[] newPayload(int number) {
+		return new byte[(number % 3 == 0)? STRIPE_THRESHOLD * 16 : number % 100];
+	}
+	
+	private void send(int senderId, int receiverId, int number, byte[] payload)
+			throws AppiaEventException {
+		Message message = new Message();
+		message.pushObject(payload);
+		message.pushInt(number);
+		Ping ping = new Ping();
+		ping.setMessage(message);
+		ping.dest = addresses[receiverId];
+		ping.asyncGo(channels.get(senderId), Direction.DOWN);
+	}
+}
@@ -0,0 +1,285 @@
+package org.vanilladb.comm.protocols.zabacceptance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.comm.process.CommProcess;
+import org.vanilladb.comm.process.ProcessList;
+import org.vanilladb.comm.protocols.AppiaTestSupport;
+import org.vanilladb.comm.protocols.events.ProcessListInit;
+import org.vanilladb.comm.protocols.tcpfd.ProcessConnected;
+import org.vanilladb.comm.protocols.zablog.ZabLog;
+import org.vanilladb.comm.protocols.zablog.ZabLogFailed;
+import org.vanilladb.comm.protocols.zablog.ZabLogMode;
+import org.vanilladb.comm.protocols.zabproposal.ZabProposal;
+import org.vanilladb.comm.protocols.zabproposal.ZabProposalId;
+import org.vanilladb.comm.protocols.zabproposal.ZabPropose;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.Message;
+
+/**
+ * Runs a follower whose proposals come from a layer below it, which plays
+ * the leader and records the acknowledgements.
+ */
+public class ZabAcceptanceSessionTest {
+	
+	private static final int SEGMENT_SIZE = 4096;
+	private static final long TIMEOUT = 10000;
+	
+	private static final InetSocketAddress FOLLOWER_ADDRESS = new InetSocketAddress("127.0.0.1", 43001);
+	private static final InetSocketAddress LEADER_ADDRESS = new InetSocketAddress("127.0.0.1", 43002);
+	
+	private static class LeaderLayer extends Layer {
+		
+		private LeaderSession session;
+		
+		LeaderLayer() {
+			evProvide = new Class[] {
+				ZabPropose.class
+			};
+			evRequire = new Class[0];
+			evAccept = new Class[] {
+				ZabPropose.class,
+				ZabAccept.class,
+				ZabDeny.class
+			};
+		}
+		
+		@Override
+		public Session createSession() {
+			session = new LeaderSession(this);
+			return session;
+		}
+	}
+	
+	/**
+	 * Passes the proposals up and records the acknowledgements.
+	 */
+	private static class LeaderSession extends Session {
+		
+		private BlockingQueue<long[]> accepts = new LinkedBlockingQueue<long[]>();
+		private BlockingQueue<ZabDeny> denies = new LinkedBlockingQueue<ZabDeny>();
+		
+		LeaderSession(Layer layer) {
+			super(layer);
+		}
+		
+		@Override
+		public void handle(Event event) {
+			try {
+				if (event instanceof ZabAccept) {
+					Message message = ((ZabAccept) event).getMessage();
+					long firstSerial = message.popLong();
+					message.popInt();
+					accepts.add(new long[] { firstSerial, message.popLong() });
+				} else if (event instanceof ZabDeny) {
+					denies.add((ZabDeny) event);
+				} else
+					event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static class ProbeLayer extends Layer {
+		
+		private ProbeSession session;
+		
+		ProbeLayer() {
+			evProvide = new Class[] {
+				ProcessListInit.class,
+				ProcessConnected.class
+			};
+			evRequire = new Class[] {
+				ChannelInit.class
+			};
+			evAccept = new Class[] {
+				ChannelInit.class,
+				ZabCacheProposal.class,
+				ZabLogFailed.class
+			};
+		}
+		
+		@Override
+		public Session createSession() {
+			session = new ProbeSession(this);
+			return session;
+		}
+	}
+	
+	/**
+	 * Starts the follower and records the proposals it accepts.
+	 */
+	private static class ProbeSession extends Session {
+		
+		private BlockingQueue<Long> cached = new LinkedBlockingQueue<Long>();
+		private BlockingQueue<ZabLogFailed> failures = new LinkedBlockingQueue<ZabLogFailed>();
+		
+		ProbeSession(Layer layer) {
+			super(layer);
+		}
+		
+		@Override
+		public void handle(Event event) {
+			try {
+				if (event instanceof ChannelInit) {
+					event.go();
+					ProcessList.Builder builder = new ProcessList.Builder();
+					builder.addProcess(new CommProcess(FOLLOWER_ADDRESS, 0, true));
+					builder.addProcess(new CommProcess(LEADER_ADDRESS, 1, false));
+					ProcessListInit init = new ProcessListInit(event.getChannel(),
+							this, builder.build());
+					init.init();
+					init.go();
+				} else if (event instanceof ZabCacheProposal) {
+					ZabProposal proposal = ((ZabCacheProposal) event).getProposal();
+					cached.add(proposal.getId().getSerialNumber());
+				} else if (event instanceof ZabLogFailed) {
+					failures.add((ZabLogFailed) event);
+				}
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static File directory;
+	private static int nextChannelNumber;
+	
+	private Channel channel;
+	private LeaderSession leader;
+	private ProbeSession probe;
+	
+	@BeforeClass
+	public static void setUp() throws IOException {
+		directory = Files.createTempDirectory("zab-acceptance-test").toFile();
+		System.setProperty(ZabLog.class.getName() + ".DIRECTORY", directory.getPath());
+		System.setProperty(ZabLog.class.getName() + ".MODE", ZabLogMode.ASYNC_FLUSH.name());
+		System.setProperty(ZabLog.class.getName() + ".SEGMENT_SIZE",
+				Integer.toString(SEGMENT_SIZE));
+		AppiaTestSupport.startAppia();
+	}
+	
+	@AfterClass
+	public static void tearDown() {
+		delete(directory);
+	}
+	
+	@After
+	public void closeChannel() {
+		if (channel != null)
+			channel.end();
+	}
+	
+	@Test
+	public void testAppendFailureStopsAccepting() throws Exception {
+		// Each test uses its own group, which has its own log
+		int groupId = startFollower();
+		propose(1, 0);
+		assertAccepted(1);
+		
+		// The next segment cannot be created once the directory is gone
+		delete(new File(directory, "server-0-group-" + groupId));
+		propose(2, SEGMENT_SIZE * 2);
+		
+		ZabLogFailed failed = probe.failures.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(failed);
+		assertNotNull(failed.getError());
+		
+		// Neither the failed proposal nor the later ones are acknowledged
+		propose(3, 0);
+		assertNull(leader.accepts.poll(200, TimeUnit.MILLISECONDS));
+		assertTrue(leader.denies.isEmpty());
+		assertTrue(probe.cached.isEmpty());
+		assertTrue(probe.failures.isEmpty());
+	}
+	
+	@Test
+	public void testChannelCloseClosesLog() throws Exception {
+		startFollower();
+		propose(1, 0);
+		assertAccepted(1);
+		int flusherCount = countFlushers();
+		
+		channel.end();
+		channel = null;
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (countFlushers() >= flusherCount && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(flusherCount - 1, countFlushers());
+	}
+	
+	private int startFollower() throws Exception {
+		int groupId = ++nextChannelNumber;
+		LeaderLayer leaderLayer = new LeaderLayer();
+		ProbeLayer probeLayer = new ProbeLayer();
+		QoS qos = new QoS("Zab Acceptance Test QoS", new Layer[] {
+			leaderLayer,
+			new ZabAcceptanceLayer(groupId),
+			probeLayer
+		});
+		channel = qos.createUnboundChannel("Zab Acceptance Test Channel " + groupId);
+		channel.start();
+		leader = leaderLayer.session;
+		probe = probeLayer.session;
+		return groupId;
+	}
+	
+	private void propose(long serial, int paddingSize) throws AppiaEventException {
+		ZabProposal proposal = new ZabProposal(new ZabProposalId(0, serial), serial,
+				new Serializable[] { new byte[paddingSize] }, serial - 1, 0);
+		ZabPropose propose = new ZabPropose();
+		proposal.push(propose.getMessage());
+		propose.source = LEADER_ADDRESS;
+		propose.dest = FOLLOWER_ADDRESS;
+		propose.asyncGo(channel, Direction.UP);
+	}
+	
+	private void assertAccepted(long serial) throws InterruptedException {
+		long[] range = leader.accepts.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(range);
+		assertEquals(serial, range[0]);
+		assertEquals(serial, range[1]);
+		assertEquals(Long.valueOf(serial), probe.cached.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+	
+	private static int countFlushers() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if (thread.getName().equals("Zab-Log-Flusher"))
+				count++;
+		return count;
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+}
@@ -0,0 +1,239 @@
+package org.vanilladb.comm.protocols.zablog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.comm.protocols.zabproposal.ZabProposal;
+import org.vanilladb.comm.protocols.zabproposal.ZabProposalId;
+
+/**
+ * Opens the logs again in the same directories, as a restarted server would.
+ */
+public class ZabLogTest {
+	
+	private static final int SEGMENT_SIZE = 4096;
+	
+	private static File directory;
+	private static int nextServerId;
+	
+	@BeforeClass
+	public static void setUp() throws IOException {
+		directory = Files.createTempDirectory("zab-log-test").toFile();
+		System.setProperty(ZabLog.class.getName() + ".DIRECTORY", directory.getPath());
+		System.setProperty(ZabLog.class.getName() + ".MODE", ZabLogMode.ASYNC_FLUSH.name());
+		System.setProperty(ZabLog.class.getName() + ".SEGMENT_SIZE",
+				Integer.toString(SEGMENT_SIZE));
+	}
+	
+	@AfterClass
+	public static void tearDown() {
+		delete(directory);
+	}
+	
+	@Test
+	public void testRecover() throws IOException {
+		int serverId = nextServerId++;
+		ZabLog log = new ZabLog(serverId, 0, null);
+		assertNull(log.getSnapshot());
+		assertTrue(log.readProposals().isEmpty());
+		for (int serial = 1; serial <= 5; serial++)
+			assertEquals(serial, log.append(newProposal(1, serial, 0)));
+		
+		log = new ZabLog(serverId, 0, null);
+		assertEquals(5, log.getLastAppendedPosition());
+		assertProposals(log.readProposals(), 1, 5, 1);
+		
+		// Appends after the recovered records
+		assertEquals(6, log.append(newProposal(1, 6, 0)));
+		log = new ZabLog(serverId, 0, null);
+		assertProposals(log.readProposals(), 1, 6, 1);
+	}
+	
+	@Test
+	public void testGroupsKeepTheirOwnLogs() throws IOException {
+		int serverId = nextServerId++;
+		new ZabLog(serverId, 0, null).append(newProposal(1, 1, 0));
+		new ZabLog(serverId, 1, null).append(newProposal(2, 1, 0));
+		
+		assertEquals(1, new ZabLog(serverId, 0, null).readProposals()
+				.get(0).getId().getEpochId());
+		assertEquals(2, new ZabLog(serverId, 1, null).readProposals()
+				.get(0).getId().getEpochId());
+	}
+	
+	@Test
+	public void testLaterEpochReplacesRecords() throws IOException {
+		int serverId = nextServerId++;
+		ZabLog log = new ZabLog(serverId, 0, null);
+		for (int serial = 1; serial <= 5; serial++)
+			log.append(newProposal(1, serial, 0));
+		
+		// A new leader proposes from serial 4 again
+		log.append(newProposal(2, 4, 0));
+		assertLatestEpochs(log.readProposals());
+		
+		log = new ZabLog(serverId, 0, null);
+		assertLatestEpochs(log.readProposals());
+		assertEquals(6, log.getLastAppendedPosition());
+	}
+	
+	@Test
+	public void testReadRange() throws IOException {
+		ZabLog log = new ZabLog(nextServerId++, 0, null);
+		for (int serial = 1; serial <= 10; serial++)
+			log.append(newProposal(1, serial, 0));
+		
+		// Each proposal orders 2 messages, so message 7 is in proposal 4
+		List<ZabProposal> proposals = log.readProposals(7, 8, 3);
+		assertProposals(proposals, 4, 6, 1);
+		proposals = log.readProposals(7, 5, Integer.MAX_VALUE);
+		assertProposals(proposals, 4, 5, 1);
+	}
+	
+	@Test
+	public void testRollAndTruncateSegments() throws IOException {
+		int serverId = nextServerId++;
+		ZabLog log = new ZabLog(serverId, 0, null);
+		for (int serial = 1; serial <= 40; serial++)
+			log.append(newProposal(1, serial, 1000));
+		int segmentCount = countSegments(serverId);
+		assertTrue(segmentCount > 5);
+		
+		log.saveSnapshot(new ZabSnapshot(60, "state"));
+		assertTrue(countSegments(serverId) < segmentCount);
+		
+		// The proposal with message 60 and the later ones are kept
+		List<ZabProposal> proposals = log.readProposals();
+		assertTrue(proposals.get(0).getMessageStartId() <= 60);
+		assertEquals(40, proposals.get(proposals.size() - 1).getId().getSerialNumber());
+		
+		log = new ZabLog(serverId, 0, null);
+		assertNotNull(log.getSnapshot());
+		assertEquals(60, log.getSnapshot().getLastMessageSerial());
+		assertEquals("state", log.getSnapshot().getState());
+		assertEquals(proposals.size(), log.readProposals().size());
+		assertEquals(40, log.getLastAppendedPosition());
+	}
+	
+	@Test
+	public void testTornRecordIsErased() throws IOException {
+		int serverId = nextServerId++;
+		ZabLog log = new ZabLog(serverId, 0, null);
+		for (int serial = 1; serial <= 3; serial++)
+			log.append(newProposal(1, serial, 0));
+		
+		// A record whose checksum does not match, as if the process
+		// crashed while writing it
+		File segment = getSegments(serverId)[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			int offset = 0;
+			for (int i = 0; i < 3; i++) {
+				raf.seek(offset);
+				offset += 8 + raf.readInt();
+			}
+			raf.seek(offset);
+			raf.writeInt(16);
+			raf.writeInt(12345);
+			raf.write(new byte[16]);
+		} finally {
+			raf.close();
+		}
+		
+		log = new ZabLog(serverId, 0, null);
+		assertProposals(log.readProposals(), 1, 3, 1);
+		log.append(newProposal(1, 4, 0));
+		
+		log = new ZabLog(serverId, 0, null);
+		assertProposals(log.readProposals(), 1, 4, 1);
+	}
+	
+	@Test
+	public void testClose() throws IOException {
+		int serverId = nextServerId++;
+		ZabLog log = new ZabLog(serverId, 0, null);
+		for (int serial = 1; serial <= 10; serial++)
+			log.append(newProposal(1, serial, 1000));
+		log.close();
+		
+		try {
+			log.append(newProposal(1, 11, 0));
+			fail();
+		} catch (IOException e) {
+			// Closed
+		}
+		
+		// The records are forced by close()
+		log = new ZabLog(serverId, 0, null);
+		assertProposals(log.readProposals(), 1, 10, 1);
+		log.close();
+	}
+	
+	private static ZabProposal newProposal(int epochId, long serial, int paddingSize) {
+		// Two messages per proposal
+		Serializable[] messages = new Serializable[] {
+			"e" + epochId + "-" + serial,
+			new byte[paddingSize]
+		};
+		return new ZabProposal(new ZabProposalId(epochId, serial), serial * 2 - 1,
+				messages, serial - 1, 0);
+	}
+	
+	private static void assertProposals(List<ZabProposal> proposals, long firstSerial,
+			long lastSerial, int epochId) throws IOException {
+		assertEquals(lastSerial - firstSerial + 1, proposals.size());
+		for (int i = 0; i < proposals.size(); i++) {
+			ZabProposal proposal = proposals.get(i);
+			long serial = firstSerial + i;
+			assertEquals(epochId, proposal.getId().getEpochId());
+			assertEquals(serial, proposal.getId().getSerialNumber());
+			assertEquals(serial * 2 - 1, proposal.getMessageStartId());
+			assertEquals(serial - 1, proposal.getCommitWatermark());
+			assertEquals("e" + epochId + "-" + serial, proposal.getMessages()[0]);
+		}
+	}
+	
+	private static void assertLatestEpochs(List<ZabProposal> proposals) throws IOException {
+		assertEquals(4, proposals.size());
+		assertProposals(proposals.subList(0, 3), 1, 3, 1);
+		assertProposals(proposals.subList(3, 4), 4, 4, 2);
+	}
+	
+	private static File[] getSegments(int serverId) {
+		File[] files = new File(directory, "server-" + serverId).listFiles();
+		List<File> segments = new ArrayList<File>();
+		for (File file : files)
+			if (file.getName().endsWith(".log"))
+				segments.add(file);
+		File[] sorted = segments.toArray(new File[segments.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+	
+	private static int countSegments(int serverId) {
+		return getSegments(serverId).length;
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+}
@@ -0,0 +1,62 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.comm.protocols.AppiaTestSupport;
+import org.vanilladb.comm.protocols.zabacceptance.ZabAcceptanceSession;
+import org.vanilladb.comm.protocols.zablog.ZabLog;
+import org.vanilladb.comm.protocols.zablog.ZabLogMode;
+
+/**
+ * Runs five processes whose followers acknowledge the proposals received
+ * within a delay with a single ZabAccept, and hands the acknowledgements
+ * to the leader one follower at a time.
+ */
+public class ZabAcceptRangeTest {
+	
+	private static final long ACCEPT_DELAY = 100;
+	
+	private ZabTestCluster cluster = new ZabTestCluster(43221);
+	
+	@BeforeClass
+	public static void setUp() {
+		System.setProperty(ZabLog.class.getName() + ".MODE", ZabLogMode.MEMORY_ONLY.name());
+		System.setProperty(ZabBatchPolicy.class.getName() + ".MAX_BATCH_MESSAGES", "1");
+		System.setProperty(ZabAcceptanceSession.class.getName() + ".ACCEPT_DELAY",
+				Long.toString(ACCEPT_DELAY));
+		AppiaTestSupport.startAppia();
+	}
+	
+	@After
+	public void tearDown() {
+		cluster.stop();
+	}
+	
+	@Test
+	public void testRangeVotesForEveryProposal() throws Exception {
+		cluster.start(5);
+		for (int id = 1; id < 5; id++)
+			cluster.holdAccepts(id);
+		
+		// Four proposals arrive within the delay
+		cluster.submit(0, 0, 4);
+		for (int id = 1; id < 5; id++) {
+			assertArrayEquals(new long[] { 1, 4 }, cluster.pollAccept(id, ZabTestCluster.TIMEOUT));
+			assertNull(cluster.pollAccept(id, 0));
+		}
+		
+		// The leader and one follower are not a majority of five
+		cluster.releaseAccepts(1);
+		cluster.assertNothingDelivered(0, ACCEPT_DELAY * 3);
+		
+		// A second follower makes a majority for all the proposals
+		cluster.releaseAccepts(2);
+		cluster.assertDelivered(0, 0, 4);
+		cluster.assertDelivered(1, 0, 4);
+		cluster.assertDelivered(3, 0, 4);
+	}
+}
@@ -0,0 +1,46 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ZabBatchPolicyTest {
+	
+	@Test
+	public void testProposesAtOnceWhenIdle() {
+		ZabBatchPolicy policy = new ZabBatchPolicy();
+		assertTrue(policy.isReadyToPropose(1, 0, 0));
+	}
+	
+	@Test
+	public void testLingersWhileProposalsAreOnTheFly() {
+		ZabBatchPolicy policy = new ZabBatchPolicy();
+		assertFalse(policy.isReadyToPropose(1, 0, 1));
+		assertTrue(policy.isReadyToPropose(1, policy.getLingerTime(), 1));
+		
+		// A full batch does not wait
+		assertTrue(policy.isReadyToPropose(policy.getBatchSizeLimit(), 0, 1));
+	}
+	
+	@Test
+	public void testBatchSizeFollowsLatency() {
+		ZabBatchPolicy policy = new ZabBatchPolicy();
+		int initial = policy.getBatchSizeLimit();
+		
+		// Full batches at a stable latency
+		for (long serial = 1; serial <= 10; serial++) {
+			policy.onProposed(serial, policy.getBatchSizeLimit(), 100);
+			policy.onCommitted(serial, policy.getBatchSizeLimit(), 1.0);
+		}
+		int grown = policy.getBatchSizeLimit();
+		assertTrue(grown > initial);
+		
+		// The latency grows a lot
+		for (long serial = 11; serial <= 20; serial++) {
+			policy.onProposed(serial, policy.getBatchSizeLimit(), 100);
+			policy.onCommitted(serial, policy.getBatchSizeLimit(), 50.0);
+		}
+		assertTrue(policy.getBatchSizeLimit() < grown);
+	}
+}
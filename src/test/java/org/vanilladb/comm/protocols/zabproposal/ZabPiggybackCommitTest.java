@@ -0,0 +1,57 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.comm.protocols.AppiaTestSupport;
+import org.vanilladb.comm.protocols.zabacceptance.ZabCommit;
+import org.vanilladb.comm.protocols.zablog.ZabLog;
+import org.vanilladb.comm.protocols.zablog.ZabLogMode;
+
+/**
+ * Runs a leader that announces the commits with the next proposals, and
+ * waits too long to send a standalone ZabCommit during the test.
+ */
+public class ZabPiggybackCommitTest {
+	
+	private ZabTestCluster cluster = new ZabTestCluster(43211);
+	
+	@BeforeClass
+	public static void setUp() {
+		System.setProperty(ZabLog.class.getName() + ".MODE", ZabLogMode.MEMORY_ONLY.name());
+		System.setProperty(ZabBatchPolicy.class.getName() + ".MAX_BATCH_MESSAGES", "1");
+		System.setProperty(ZabProposalSession.class.getName() + ".PIGGYBACK_COMMITS", "true");
+		System.setProperty(ZabProposalSession.class.getName() + ".COMMIT_IDLE_TIMEOUT", "60000");
+		AppiaTestSupport.startAppia();
+	}
+	
+	@After
+	public void tearDown() {
+		cluster.stop();
+	}
+	
+	@Test
+	public void testWatermarkOfNextProposalCommits() throws Exception {
+		cluster.start(3);
+		
+		// The leader delivers once it commits, but the followers
+		// have not learned about the commit
+		cluster.submit(0, 0, 1);
+		cluster.assertDelivered(0, 0, 1);
+		cluster.assertNothingDelivered(1, 200);
+		cluster.assertNothingDelivered(2, 0);
+		
+		// The next proposal carries the commit of the first one
+		cluster.submit(0, 1, 2);
+		cluster.assertDelivered(1, 0, 1);
+		cluster.assertDelivered(2, 0, 1);
+		cluster.assertDelivered(0, 1, 2);
+		cluster.assertNothingDelivered(1, 200);
+		cluster.assertNothingDelivered(2, 0);
+		
+		assertEquals(2, cluster.countSent(0, ZabPropose.class));
+		assertEquals(0, cluster.countSent(0, ZabCommit.class));
+	}
+}
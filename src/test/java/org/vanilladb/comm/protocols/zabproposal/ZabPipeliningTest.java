@@ -0,0 +1,59 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.comm.protocols.AppiaTestSupport;
+import org.vanilladb.comm.protocols.zabacceptance.ZabCommit;
+import org.vanilladb.comm.protocols.zablog.ZabLog;
+import org.vanilladb.comm.protocols.zablog.ZabLogMode;
+
+/**
+ * Keeps several proposals of a leader on the fly by holding back the
+ * acknowledgements of the followers.
+ */
+public class ZabPipeliningTest {
+	
+	// The default of ZabProposalSession
+	private static final int MAX_IN_FLIGHT_PROPOSALS = 4;
+	
+	private ZabTestCluster cluster = new ZabTestCluster(43201);
+	
+	@BeforeClass
+	public static void setUp() {
+		System.setProperty(ZabLog.class.getName() + ".MODE", ZabLogMode.MEMORY_ONLY.name());
+		// A proposal for each message
+		System.setProperty(ZabBatchPolicy.class.getName() + ".MAX_BATCH_MESSAGES", "1");
+		AppiaTestSupport.startAppia();
+	}
+	
+	@After
+	public void tearDown() {
+		cluster.stop();
+	}
+	
+	@Test
+	public void testCommitInOrderWithProposalsInFlight() throws Exception {
+		cluster.start(3);
+		cluster.holdAccepts(1);
+		cluster.holdAccepts(2);
+		
+		cluster.submit(0, 0, 10);
+		cluster.awaitSent(0, ZabPropose.class, MAX_IN_FLIGHT_PROPOSALS);
+		
+		// The leader stops at the limit, and nothing commits
+		// with the vote of the leader only
+		cluster.assertNothingDelivered(0, 200);
+		assertEquals(MAX_IN_FLIGHT_PROPOSALS, cluster.countSent(0, ZabPropose.class));
+		assertEquals(0, cluster.countSent(0, ZabCommit.class));
+		
+		// A majority commits the proposals in flight, and the leader
+		// proposes the rest as they commit
+		cluster.releaseAccepts(1);
+		for (int id = 0; id < 3; id++)
+			cluster.assertDelivered(id, 0, 10);
+		assertEquals(10, cluster.countSent(0, ZabPropose.class));
+	}
+}
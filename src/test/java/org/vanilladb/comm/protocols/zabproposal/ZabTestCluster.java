@@ -0,0 +1,358 @@
+package org.vanilladb.comm.protocols.zabproposal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.vanilladb.comm.process.CommProcess;
+import org.vanilladb.comm.process.ProcessList;
+import org.vanilladb.comm.protocols.beb.BestEffortBroadcastLayer;
+import org.vanilladb.comm.protocols.events.ProcessListInit;
+import org.vanilladb.comm.protocols.tcpfd.FailureDetected;
+import org.vanilladb.comm.protocols.tcpfd.ProcessConnected;
+import org.vanilladb.comm.protocols.totalorderappl.TotalOrderMessages;
+import org.vanilladb.comm.protocols.totalorderappl.TotalOrderRequest;
+import org.vanilladb.comm.protocols.zabacceptance.ZabAccept;
+import org.vanilladb.comm.protocols.zabacceptance.ZabAcceptanceLayer;
+import org.vanilladb.comm.protocols.zabacceptance.ZabCatchUp;
+import org.vanilladb.comm.protocols.zabacceptance.ZabCommit;
+import org.vanilladb.comm.protocols.zabacceptance.ZabDeny;
+import org.vanilladb.comm.protocols.zabelection.ZabElectionLayer;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.Message;
+
+/**
+ * Runs a Zab group in this JVM. Process 0 is the leader. A layer at the
+ * bottom of each channel plays the network, which hands the events to the
+ * channels of their destinations, records them and can hold back the
+ * acknowledgements of a process.
+ */
+class ZabTestCluster {
+	
+	static final long TIMEOUT = 10000;
+	
+	/**
+	 * Asks the network of a process to send the acknowledgements it holds.
+	 */
+	private static class Release extends Event {
+	}
+	
+	private static class NetworkLayer extends Layer {
+		
+		private SocketAddress address;
+		private Map<SocketAddress, NetworkSession> network;
+		private NetworkSession session;
+		
+		NetworkLayer(SocketAddress address, Map<SocketAddress, NetworkSession> network) {
+			this.address = address;
+			this.network = network;
+			evProvide = new Class[] {
+				ProcessConnected.class,
+				FailureDetected.class,
+				ZabPropose.class,
+				ZabResend.class,
+				ZabAccept.class,
+				ZabDeny.class,
+				ZabCommit.class,
+				ZabFetchRequest.class,
+				ZabCatchUpRequest.class,
+				ZabCatchUp.class,
+				TotalOrderRequest.class
+			};
+			evRequire = new Class[0];
+			evAccept = new Class[] {
+				ChannelInit.class,
+				ProcessListInit.class,
+				SendableEvent.class,
+				Release.class
+			};
+		}
+		
+		@Override
+		public Session createSession() {
+			session = new NetworkSession(this, network);
+			network.put(address, session);
+			return session;
+		}
+	}
+	
+	/**
+	 * Connects the process to the others, and puts the events sent down
+	 * into the channels of their destinations.
+	 */
+	private static class NetworkSession extends Session {
+		
+		private Map<SocketAddress, NetworkSession> network;
+		private Channel channel;
+		private BlockingQueue<Class<?>> sent = new LinkedBlockingQueue<Class<?>>();
+		private BlockingQueue<long[]> accepts = new LinkedBlockingQueue<long[]>();
+		private volatile boolean isHoldingAccepts;
+		private List<SendableEvent> heldAccepts = new ArrayList<SendableEvent>();
+		
+		NetworkSession(Layer layer, Map<SocketAddress, NetworkSession> network) {
+			super(layer);
+			this.network = network;
+		}
+		
+		@Override
+		public void handle(Event event) {
+			try {
+				if (event instanceof ChannelInit) {
+					channel = event.getChannel();
+					event.go();
+				} else if (event instanceof ProcessListInit) {
+					ProcessList processList = ((ProcessListInit) event).copyProcessList();
+					event.go();
+					for (int id = 0; id < processList.getSize(); id++) {
+						if (id == processList.getSelfId())
+							continue;
+						ProcessConnected connected = new ProcessConnected(channel, this, id);
+						connected.init();
+						connected.go();
+					}
+				} else if (event instanceof Release) {
+					isHoldingAccepts = false;
+					for (SendableEvent accept : heldAccepts)
+						send(accept);
+					heldAccepts.clear();
+				} else if (event.getDir() == Direction.DOWN) {
+					SendableEvent sendable = (SendableEvent) event;
+					sent.add(event.getClass());
+					if (event instanceof ZabAccept) {
+						accepts.add(peekAcceptRange(sendable.getMessage()));
+						if (isHoldingAccepts) {
+							heldAccepts.add(sendable);
+							return;
+						}
+					}
+					send(sendable);
+				} else
+					event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		private void send(SendableEvent event) throws AppiaEventException {
+			List<Object> destinations = new ArrayList<Object>();
+			if (event.dest instanceof AppiaMulticast) {
+				for (Object dest : ((AppiaMulticast) event.dest).getDestinations())
+					destinations.add(dest);
+			} else
+				destinations.add(event.dest);
+			
+			byte[] bytes = event.getMessage().toByteArray();
+			for (Object dest : destinations) {
+				NetworkSession target = network.get(dest);
+				SendableEvent received;
+				try {
+					received = event.getClass().getDeclaredConstructor().newInstance();
+				} catch (ReflectiveOperationException e) {
+					throw new AssertionError(e);
+				}
+				received.setChannel(target.channel);
+				received.setDir(Direction.UP);
+				received.setSourceSession(target);
+				received.source = event.source;
+				received.dest = dest;
+				received.setMessage(new Message(bytes, 0, bytes.length));
+				received.init();
+				received.go();
+			}
+		}
+		
+		private static long[] peekAcceptRange(Message message) {
+			byte[] bytes = message.toByteArray();
+			Message copy = new Message(bytes, 0, bytes.length);
+			long firstSerial = copy.popLong();
+			copy.popInt();
+			return new long[] { firstSerial, copy.popLong() };
+		}
+	}
+	
+	private static class ProbeLayer extends Layer {
+		
+		private ProcessList processList;
+		private ProbeSession session;
+		
+		ProbeLayer(ProcessList processList) {
+			this.processList = processList;
+			evProvide = new Class[] {
+				ProcessListInit.class,
+				TotalOrderRequest.class
+			};
+			evRequire = new Class[] {
+				ChannelInit.class
+			};
+			evAccept = new Class[] {
+				ChannelInit.class,
+				TotalOrderMessages.class
+			};
+		}
+		
+		@Override
+		public Session createSession() {
+			session = new ProbeSession(this, processList);
+			return session;
+		}
+	}
+	
+	/**
+	 * Starts the process and records the messages it delivers.
+	 */
+	private static class ProbeSession extends Session {
+		
+		private ProcessList processList;
+		private BlockingQueue<Serializable> delivered = new LinkedBlockingQueue<Serializable>();
+		
+		ProbeSession(Layer layer, ProcessList processList) {
+			super(layer);
+			this.processList = processList;
+		}
+		
+		@Override
+		public void handle(Event event) {
+			try {
+				if (event instanceof ChannelInit) {
+					event.go();
+					ProcessListInit init = new ProcessListInit(event.getChannel(),
+							this, new ProcessList(processList));
+					init.init();
+					init.go();
+				} else if (event instanceof TotalOrderMessages) {
+					for (Serializable message : ((TotalOrderMessages) event).getMessages())
+						delivered.add(message);
+				} else
+					event.go();
+			} catch (AppiaEventException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private int firstPort;
+	private List<Channel> channels = new ArrayList<Channel>();
+	private Map<SocketAddress, NetworkSession> network =
+			new ConcurrentHashMap<SocketAddress, NetworkSession>();
+	private NetworkSession[] networks;
+	private ProbeSession[] probes;
+	
+	/**
+	 * Creates a group whose processes have the addresses from the given port.
+	 */
+	ZabTestCluster(int firstPort) {
+		this.firstPort = firstPort;
+	}
+	
+	void start(int processCount) throws Exception {
+		networks = new NetworkSession[processCount];
+		probes = new ProbeSession[processCount];
+		for (int self = 0; self < processCount; self++) {
+			ProcessList.Builder builder = new ProcessList.Builder();
+			for (int id = 0; id < processCount; id++)
+				builder.addProcess(new CommProcess(
+						new InetSocketAddress("127.0.0.1", firstPort + id), id, id == self));
+			ProcessList processList = builder.build();
+			
+			NetworkLayer networkLayer = new NetworkLayer(
+					processList.getSelfProcess().getAddress(), network);
+			ProbeLayer probeLayer = new ProbeLayer(processList);
+			QoS qos = new QoS("Zab Test QoS", new Layer[] {
+				networkLayer,
+				new BestEffortBroadcastLayer(),
+				new ZabElectionLayer(0),
+				new ZabAcceptanceLayer(),
+				new ZabProposalLayer(),
+				probeLayer
+			});
+			Channel channel = qos.createUnboundChannel("Zab Test Channel " + (firstPort + self));
+			channel.start();
+			channels.add(channel);
+			networks[self] = networkLayer.session;
+			probes[self] = probeLayer.session;
+		}
+		
+		// Wait for all processes to start
+		Thread.sleep(200);
+	}
+	
+	void stop() {
+		for (Channel channel : channels)
+			channel.end();
+	}
+	
+	/**
+	 * Submits the messages from {@code from} to {@code to - 1} in a single request.
+	 */
+	void submit(int processId, int from, int to) throws AppiaEventException {
+		List<Serializable> messages = new ArrayList<Serializable>();
+		for (int i = from; i < to; i++)
+			messages.add(i);
+		TotalOrderRequest request = new TotalOrderRequest(messages);
+		request.asyncGo(channels.get(processId), Direction.DOWN);
+	}
+	
+	void holdAccepts(int processId) {
+		networks[processId].isHoldingAccepts = true;
+	}
+	
+	void releaseAccepts(int processId) throws AppiaEventException {
+		new Release().asyncGo(channels.get(processId), Direction.DOWN);
+	}
+	
+	/**
+	 * Gets the first and the last serial of the next acknowledgement that
+	 * the process sends, including the held ones.
+	 */
+	long[] pollAccept(int processId, long waitingTime) throws InterruptedException {
+		return networks[processId].accepts.poll(waitingTime, TimeUnit.MILLISECONDS);
+	}
+	
+	int countSent(int processId, Class<?> type) {
+		int count = 0;
+		for (Class<?> sentType : networks[processId].sent)
+			if (sentType == type)
+				count++;
+		return count;
+	}
+	
+	/**
+	 * Waits until the process has sent the given number of events of the type.
+	 */
+	void awaitSent(int processId, Class<?> type, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (countSent(processId, type) < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(count, countSent(processId, type));
+	}
+	
+	void assertDelivered(int processId, int from, int to) throws InterruptedException {
+		for (int i = from; i < to; i++)
+			assertEquals(Integer.valueOf(i),
+					probes[processId].delivered.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+	
+	void assertNothingDelivered(int processId, long waitingTime) throws InterruptedException {
+		assertNull(probes[processId].delivered.poll(waitingTime, TimeUnit.MILLISECONDS));
+	}
+}
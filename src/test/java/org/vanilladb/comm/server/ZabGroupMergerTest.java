@@ -0,0 +1,147 @@
+package org.vanilladb.comm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZabGroupMergerTest {
+	
+	private List<Serializable> delivered = new ArrayList<Serializable>();
+	private List<long[]> requests = new ArrayList<long[]>();
+	private ZabGroupMerger merger;
+	
+	@Before
+	public void setUp() {
+		merger = newMerger(2, delivered, requests);
+	}
+	
+	@Test
+	public void testWaitsForEveryGroup() {
+		merger.onGroupMessages(0, 1, new Serializable[] { "a", "b" });
+		assertTrue(delivered.isEmpty());
+		
+		// Group 1 has not passed round 1 yet
+		merger.onGroupMessages(1, 1, new Serializable[] { "c" });
+		assertTrue(delivered.isEmpty());
+		
+		merger.onGroupMessages(0, 2, new Serializable[0]);
+		assertTrue(delivered.isEmpty());
+		merger.onGroupMessages(1, 2, new Serializable[0]);
+		assertEquals(Arrays.<Serializable>asList("a", "b", "c"), delivered);
+	}
+	
+	@Test
+	public void testOrdersByRoundThenGroup() {
+		merger.onGroupMessages(1, 1, new Serializable[] { "b1" });
+		merger.onGroupMessages(1, 3, new Serializable[] { "b3" });
+		merger.onGroupMessages(0, 1, new Serializable[] { "a1" });
+		merger.onGroupMessages(0, 2, new Serializable[] { "a2" });
+		merger.onGroupMessages(0, 4, new Serializable[] { "a4" });
+		assertEquals(Arrays.<Serializable>asList("a1", "b1", "a2"), delivered);
+		
+		merger.onGroupMessages(1, 5, new Serializable[0]);
+		assertEquals(Arrays.<Serializable>asList("a1", "b1", "a2", "b3"), delivered);
+	}
+	
+	@Test
+	public void testSameOrderForAnyInterleaving() {
+		List<Serializable> other = new ArrayList<Serializable>();
+		ZabGroupMerger otherMerger = newMerger(3, other, new ArrayList<long[]>());
+		merger = newMerger(3, delivered, requests);
+		
+		merger.onGroupMessages(0, 1, new Serializable[] { "a1" });
+		merger.onGroupMessages(1, 1, new Serializable[] { "b1" });
+		merger.onGroupMessages(2, 2, new Serializable[] { "c2" });
+		merger.onGroupMessages(0, 2, new Serializable[] { "a2" });
+		merger.onGroupMessages(1, 3, new Serializable[0]);
+		merger.onGroupMessages(0, 3, new Serializable[0]);
+		merger.onGroupMessages(2, 3, new Serializable[0]);
+		
+		otherMerger.onGroupMessages(2, 2, new Serializable[] { "c2" });
+		otherMerger.onGroupMessages(2, 3, new Serializable[0]);
+		otherMerger.onGroupMessages(1, 1, new Serializable[] { "b1" });
+		otherMerger.onGroupMessages(0, 1, new Serializable[] { "a1" });
+		otherMerger.onGroupMessages(1, 3, new Serializable[0]);
+		otherMerger.onGroupMessages(0, 2, new Serializable[] { "a2" });
+		otherMerger.onGroupMessages(0, 3, new Serializable[0]);
+		
+		assertEquals(Arrays.<Serializable>asList("a1", "b1", "a2", "c2"), delivered);
+		assertEquals(delivered, other);
+	}
+	
+	@Test
+	public void testRequestsRoundFromIdleGroups() {
+		merger.onGroupMessages(0, 5, new Serializable[] { "a" });
+		
+		// Both groups must move past round 5 before it is released
+		assertEquals(2, requests.size());
+		assertRequest(0, 5, requests.get(0));
+		assertRequest(1, 5, requests.get(1));
+		
+		// Only asked once for the same round
+		merger.onGroupMessages(0, 6, new Serializable[0]);
+		assertEquals(2, requests.size());
+		
+		// No request once nothing is waiting
+		merger.onGroupMessages(1, 6, new Serializable[0]);
+		assertEquals(Arrays.<Serializable>asList("a"), delivered);
+		merger.onGroupMessages(1, 7, new Serializable[0]);
+		assertEquals(2, requests.size());
+	}
+	
+	@Test
+	public void testLeaderChangeWithSlowerClock() {
+		List<Serializable> other = new ArrayList<Serializable>();
+		ZabGroupMerger otherMerger = newMerger(2, other, new ArrayList<long[]>());
+		
+		// The clock of the first leader of group 0 is ahead. Its successor,
+		// whose clock says round 7, keeps proposing in round 10.
+		merger.onGroupMessages(0, 10, new Serializable[] { "a10" });
+		merger.onGroupMessages(1, 8, new Serializable[] { "b8" });
+		merger.onGroupMessages(0, 10, new Serializable[] { "a10'" });
+		merger.onGroupMessages(1, 9, new Serializable[] { "b9" });
+		assertEquals(Arrays.<Serializable>asList("b8"), delivered);
+		merger.onGroupMessages(1, 11, new Serializable[0]);
+		assertEquals(Arrays.<Serializable>asList("b8", "b9"), delivered);
+		merger.onGroupMessages(0, 11, new Serializable[0]);
+		
+		otherMerger.onGroupMessages(1, 8, new Serializable[] { "b8" });
+		otherMerger.onGroupMessages(1, 9, new Serializable[] { "b9" });
+		otherMerger.onGroupMessages(1, 11, new Serializable[0]);
+		otherMerger.onGroupMessages(0, 10, new Serializable[] { "a10" });
+		otherMerger.onGroupMessages(0, 10, new Serializable[] { "a10'" });
+		otherMerger.onGroupMessages(0, 11, new Serializable[0]);
+		
+		assertEquals(Arrays.<Serializable>asList("b8", "b9", "a10", "a10'"), delivered);
+		assertEquals(delivered, other);
+	}
+	
+	private static void assertRequest(int groupId, long round, long[] request) {
+		assertEquals(groupId, request[0]);
+		assertEquals(round, request[1]);
+	}
+	
+	private static ZabGroupMerger newMerger(int groupCount, final List<Serializable> delivered,
+			final List<long[]> requests) {
+		return new ZabGroupMerger(groupCount, new ZabGroupMerger.Output() {
+			
+			@Override
+			public void deliverTotalOrderMessage(long serialNumber, Serializable message) {
+				assertEquals(delivered.size() + 1, serialNumber);
+				delivered.add(message);
+			}
+			
+			@Override
+			public void requestRound(int groupId, long round) {
+				requests.add(new long[] { groupId, round });
+			}
+		});
+	}
+}